@@ -372,7 +372,8 @@ class AsyncDatastoreServiceImpl extends BaseAsyncDatastoreServiceImpl {
           private void addEntitiesToResultMap(GetResponse response) {
             for (GetResponse.Entity entityResult : response.entitys()) {
               if (entityResult.hasEntity()) {
-                Entity responseEntity = EntityTranslator.createFromPb(entityResult.getEntity());
+                Entity responseEntity =
+                    EntityTranslator.createLazilyFromPb(entityResult.getEntity());
                 Key responseKey = responseEntity.getKey();
 
                 // Hack for Remote API which rewrites App Ids on Keys.
@@ -21,7 +21,9 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jspecify.annotations.Nullable;
 
@@ -29,6 +31,10 @@ import org.jspecify.annotations.Nullable;
  * Concrete implementation of QueryResultsSource which knows how to make callbacks back into the
  * datastore to retrieve more entities for the specified cursor.
  *
+ * <p>The next batch is always fetched while the current one is being consumed. If no chunk size
+ * was set, the size of the batches grows while they are consumed faster than they are fetched, up
+ * to {@link #MAX_ADAPTIVE_FETCH_COUNT} and the limit.
+ *
  */
 abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
     implements QueryResultsSource {
@@ -82,6 +88,10 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
 
   /* @VisibleForTesting */
   static Logger logger = Logger.getLogger(BaseQueryResultsSource.class.getName());
+  // Logs, at FINE, how long each query waited for the datastore once all its results are loaded.
+  /* @VisibleForTesting */
+  static final Logger fetchWaitLogger =
+      Logger.getLogger(BaseQueryResultsSource.class.getName() + ".fetchWait");
   private static final int AT_LEAST_ONE = -1;
   private static final String DISABLE_CHUNK_SIZE_WARNING_SYS_PROP =
       "appengine.datastore.disableChunkSizeWarning";
@@ -95,10 +105,17 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
   static MonitoredIndexUsageTracker monitoredIndexUsageTracker = new MonitoredIndexUsageTracker();
   /* @VisibleForTesting */
   static final AtomicLong lastChunkSizeWarning = new AtomicLong(0);
+  // The smallest and largest number of results fetched by a call when the batch size adapts to the
+  // rate at which the results are consumed.
+  /* @VisibleForTesting */
+  static final int MIN_ADAPTIVE_FETCH_COUNT = 20;
+  /* @VisibleForTesting */
+  static final int MAX_ADAPTIVE_FETCH_COUNT = 1000;
 
   private final DatastoreCallbacks callbacks;
   private final int chunkSize;
   private final int offset;
+  private final @Nullable Integer limit;
   private final Transaction txn;
   private final Query query;
   private final CurrentTransactionProvider currentTransactionProvider;
@@ -110,6 +127,11 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
   private List<Index> indexList = null;
   private boolean addedSkippedCursor;
   private final Future<InitialResultT> initialQueryResultFuture;
+  // The number of results to fetch by the next call when no chunk size was set, or null to let the
+  // datastore decide. It grows each time the results were consumed before the call completed.
+  private @Nullable Integer adaptiveFetchCount = null;
+  // The time spent waiting for calls to complete.
+  private long fetchWaitNanos;
 
   /**
    * Prototype for next/continue requests. This field remains null until initialQueryResultFuture is
@@ -127,6 +149,7 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
     this.chunkSize =
         fetchOptions.getChunkSize() != null ? fetchOptions.getChunkSize() : AT_LEAST_ONE;
     this.offset = fetchOptions.getOffset() != null ? fetchOptions.getOffset() : 0;
+    this.limit = fetchOptions.getLimit();
     this.txn = txn;
     this.query = query;
     this.currentTransactionProvider =
@@ -170,16 +193,40 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
     return (nextQueryPrototype == null || queryResultFuture != null);
   }
 
+  @Override
+  public boolean isReady() {
+    Future<?> pending = nextQueryPrototype == null ? initialQueryResultFuture : queryResultFuture;
+    return pending == null || pending.isDone();
+  }
+
   @Override
   public int getNumSkipped() {
     return skippedResults;
   }
 
+  @Override
+  public long getFetchWaitNanos() {
+    return fetchWaitNanos;
+  }
+
+  /** Returns the result of {@code future}, adding the time spent waiting for it. */
+  private <T> T await(Future<T> future) {
+    if (future.isDone()) {
+      return FutureHelper.quietGet(future);
+    }
+    long start = System.nanoTime();
+    try {
+      return FutureHelper.quietGet(future);
+    } finally {
+      fetchWaitNanos += System.nanoTime() - start;
+    }
+  }
+
   @Override
   public List<Index> getIndexList() {
     if (indexList == null) {
       // The first query result contains the index list.
-      InitialResultT res = FutureHelper.quietGet(initialQueryResultFuture);
+      InitialResultT res = await(initialQueryResultFuture);
       Set<Index> monitoredIndexBuffer = Sets.newHashSet();
       indexList = wrapInitialResult(res).getIndexInfo(monitoredIndexBuffer);
       if (!monitoredIndexBuffer.isEmpty()) {
@@ -214,17 +261,28 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
     }
 
     WrappedQueryResult res;
+    boolean consumedBeforeFetched = false;
     if (nextQueryPrototype == null) {
       getIndexList(); // Maybe fill in index data.
       InitialResultT initialRes = FutureHelper.quietGet(initialQueryResultFuture);
       nextQueryPrototype = buildNextCallPrototype(initialRes);
       res = wrapInitialResult(initialRes);
     } else {
-      res = wrapResult(FutureHelper.quietGet(queryResultFuture));
+      consumedBeforeFetched = !queryResultFuture.isDone();
+      res = wrapResult(await(queryResultFuture));
       queryResultFuture = null;
     }
 
     int fetchedSoFar = processQueryResult(res, buffer, cursorBuffer);
+    if (consumedBeforeFetched && chunkSize == AT_LEAST_ONE) {
+      // The results are consumed faster than they are fetched, so fetch more of them at once.
+      adaptiveFetchCount =
+          Math.min(
+              MAX_ADAPTIVE_FETCH_COUNT,
+              Math.max(
+                  MIN_ADAPTIVE_FETCH_COUNT,
+                  2 * Math.max(fetchedSoFar, adaptiveFetchCount == null ? 0 : adaptiveFetchCount)));
+    }
 
     Integer fetchCountOrNull = null;
     Integer offsetOrNull = null;
@@ -254,8 +312,7 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
         }
         WrappedQueryResult nextRes =
             wrapResult(
-                FutureHelper.quietGet(
-                    makeNextCall(nextQueryPrototype, res, fetchCountOrNull, offsetOrNull)));
+                await(makeNextCall(nextQueryPrototype, res, fetchCountOrNull, offsetOrNull)));
         if (!nextRes.madeProgress(res)) {
           throw new DatastoreTimeoutException("The query was not able to make any progress.");
         }
@@ -266,13 +323,31 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
 
     // Start next async call iff we have more results to get.
     if (res.hasMoreResults()) {
-      fetchCountOrNull = chunkSize != AT_LEAST_ONE ? chunkSize : null;
+      fetchCountOrNull =
+          chunkSize != AT_LEAST_ONE ? Integer.valueOf(chunkSize) : getAdaptiveFetchCount();
       offsetOrNull = null; // At this point the offset must have been met.
       queryResultFuture = makeNextCall(nextQueryPrototype, res, fetchCountOrNull, offsetOrNull);
+    } else if (fetchWaitLogger.isLoggable(Level.FINE)) {
+      fetchWaitLogger.fine(
+          "Query for kind "
+              + query.getKind()
+              + " returned "
+              + totalResults
+              + " results after waiting "
+              + TimeUnit.NANOSECONDS.toMillis(fetchWaitNanos)
+              + " ms for the datastore");
     }
     return res.getEndCursor();
   }
 
+  /** Returns the adaptive fetch count, bounded by the results left to reach the limit. */
+  private @Nullable Integer getAdaptiveFetchCount() {
+    if (adaptiveFetchCount == null || limit == null) {
+      return adaptiveFetchCount;
+    }
+    return Math.max(1, Math.min(adaptiveFetchCount, limit - totalResults));
+  }
+
   /**
    * Helper function to process the query results.
    *
@@ -344,6 +344,35 @@ public final class DataTypeTranslator {
     extractUnindexedPropertiesFromPb(proto, map);
   }
 
+  /**
+   * Copy the properties present on {@code proto} whose names are in {@code propertyNames}, encoded
+   * as UTF-8, into {@code map}. The other properties are skipped without decoding their names or
+   * values.
+   */
+  static void extractPropertiesFromPb(
+      EntityProto proto, byte[][] propertyNames, Map<String, @Nullable Object> map) {
+    for (Property property : proto.propertys()) {
+      if (hasName(property, propertyNames)) {
+        addPropertyToMap(property, true, map);
+      }
+    }
+    for (Property property : proto.rawPropertys()) {
+      if (hasName(property, propertyNames)) {
+        addPropertyToMap(property, false, map);
+      }
+    }
+  }
+
+  private static boolean hasName(Property property, byte[][] names) {
+    byte[] name = property.getNameAsBytes();
+    for (byte[] candidate : names) {
+      if (Arrays.equals(name, candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Copy all of the properties present on {@code proto} into {@code map}.
    *
@@ -261,6 +261,12 @@ public final class Entity extends PropertyContainer implements Cloneable {
     this.propertyMap = new HashMap<>();
   }
 
+  /** Creates an {@code Entity} with the given property map, which it takes ownership of. */
+  Entity(Key key, Map<String, @Nullable Object> propertyMap) {
+    this.key = key;
+    this.propertyMap = propertyMap;
+  }
+
   /**
    * Two {@code Entity} objects are considered equal if they refer to the same entity (i.e. their
    * {@code Key} objects match).
@@ -361,4 +367,13 @@ public final class Entity extends PropertyContainer implements Cloneable {
   Map<String, @Nullable Object> getPropertyMap() {
     return propertyMap;
   }
+
+  // An entity whose properties are decoded lazily is serialized with a plain HashMap of them, as
+  // entities always have been.
+  private Object writeReplace() {
+    if (propertyMap instanceof LazyPropertyMap) {
+      return new Entity(key, new HashMap<>(propertyMap));
+    }
+    return this;
+  }
 }
@@ -16,6 +16,8 @@
 
 package com.google.appengine.api.datastore;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.common.collect.Maps;
 import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
 import com.google.storage.onestore.v3.OnestoreEntity.Path;
@@ -38,17 +40,38 @@ public class EntityTranslator {
   // classes such as {@link Entity} and {@link Key} which we can not move.
 
   public static Entity createFromPb(EntityProto proto, Collection<Projection> projections) {
+    return createFromPb(proto, projections, getPropertyNames(projections));
+  }
+
+  /**
+   * Creates the entity of a projection query result, only decoding the properties of {@code proto}
+   * that {@code projections} read.
+   *
+   * @param propertyNames the names of those properties, as returned by {@link #getPropertyNames}
+   */
+  static Entity createFromPb(
+      EntityProto proto, Collection<Projection> projections, byte[][] propertyNames) {
     Key key = KeyTranslator.createFromPb(proto.getKey());
 
     Entity entity = new Entity(key);
-    Map<String, @Nullable Object> values = Maps.newHashMap();
-    DataTypeTranslator.extractPropertiesFromPb(proto, values);
+    Map<String, @Nullable Object> values = Maps.newHashMapWithExpectedSize(propertyNames.length);
+    DataTypeTranslator.extractPropertiesFromPb(proto, propertyNames, values);
     for (Projection projection : projections) {
       entity.setProperty(projection.getName(), projection.getValue(values));
     }
     return entity;
   }
 
+  /** Returns the names of the properties that {@code projections} read, encoded as UTF-8. */
+  static byte[][] getPropertyNames(Collection<Projection> projections) {
+    byte[][] propertyNames = new byte[projections.size()][];
+    int i = 0;
+    for (Projection projection : projections) {
+      propertyNames[i++] = projection.getPropertyName().getBytes(UTF_8);
+    }
+    return propertyNames;
+  }
+
   public static Entity createFromPb(EntityProto proto) {
     Key key = KeyTranslator.createFromPb(proto.getKey());
 
@@ -57,6 +80,15 @@ public class EntityTranslator {
     return entity;
   }
 
+  /**
+   * Creates an entity whose properties are only decoded from {@code proto} when they are first
+   * used. {@code proto} must not be changed afterwards.
+   */
+  static Entity createLazilyFromPb(EntityProto proto) {
+    Key key = KeyTranslator.createFromPb(proto.getKey());
+    return new Entity(key, new LazyPropertyMap(proto));
+  }
+
   public static Entity createFromPbBytes(byte[] pbBytes) {
     EntityProto proto = new EntityProto();
     boolean parsed = proto.mergeFrom(pbBytes);
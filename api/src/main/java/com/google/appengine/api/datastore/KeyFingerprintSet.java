@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+
+/**
+ * A set of complete {@link Key}s that only holds a 128 bit fingerprint of each key, in an open
+ * addressing table of {@code long}s, rather than the keys themselves.
+ *
+ * <p>Two distinct keys are only mistaken for each other if their fingerprints collide, which is
+ * vanishingly unlikely for the number of results a query can return.
+ *
+ * <p>Note: this class is not thread-safe.
+ */
+final class KeyFingerprintSet {
+  private static final int INITIAL_CAPACITY = 64;
+
+  // Fingerprint i is held in slots 2i and 2i+1. An empty entry is all zeros.
+  private long[] table = new long[2 * INITIAL_CAPACITY];
+  private int size;
+
+  /** Adds the key and returns true, unless the set already contained it. */
+  boolean add(Key key) {
+    ByteBuffer fingerprint = ByteBuffer.wrap(fingerprint(key).asBytes());
+    long high = fingerprint.getLong(0);
+    long low = fingerprint.getLong(8);
+    if (high == 0 && low == 0) {
+      // Keep all zeros for empty entries.
+      low = 1;
+    }
+    // Keep the table at most half full.
+    if (2 * (size + 1) > table.length / 2) {
+      resize();
+    }
+    if (!insert(table, high, low)) {
+      return false;
+    }
+    size++;
+    return true;
+  }
+
+  /** Returns the number of keys in the set. */
+  int size() {
+    return size;
+  }
+
+  private static boolean insert(long[] table, long high, long low) {
+    int mask = table.length / 2 - 1;
+    for (int i = (int) (high ^ (high >>> 32)) & mask; ; i = (i + 1) & mask) {
+      long entryHigh = table[2 * i];
+      long entryLow = table[2 * i + 1];
+      if (entryHigh == 0 && entryLow == 0) {
+        table[2 * i] = high;
+        table[2 * i + 1] = low;
+        return true;
+      }
+      if (entryHigh == high && entryLow == low) {
+        return false;
+      }
+    }
+  }
+
+  private void resize() {
+    long[] resized = new long[table.length * 2];
+    for (int i = 0; i < table.length; i += 2) {
+      if (table[i] != 0 || table[i + 1] != 0) {
+        insert(resized, table[i], table[i + 1]);
+      }
+    }
+    table = resized;
+  }
+
+  private static HashCode fingerprint(Key key) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    putString(hasher, key.getAppId());
+    putString(hasher, key.getNamespace());
+    for (Key element = key; element != null; element = element.getParent()) {
+      putString(hasher, element.getKind());
+      if (element.getName() != null) {
+        hasher.putByte((byte) 1);
+        putString(hasher, element.getName());
+      } else {
+        hasher.putByte((byte) 0);
+        hasher.putLong(element.getId());
+      }
+    }
+    return hasher.hash();
+  }
+
+  // Length-prefixed, so that the boundaries between strings are part of the fingerprint.
+  private static void putString(Hasher hasher, String value) {
+    byte[] bytes = value.getBytes(UTF_8);
+    hasher.putInt(bytes.length);
+    hasher.putBytes(bytes);
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import com.google.common.collect.ForwardingMap;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import java.util.HashMap;
+import java.util.Map;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * The property map of an {@link Entity} read from the datastore, which only decodes the properties
+ * of the {@link EntityProto} the first time it is used. Entities that are only read for their keys,
+ * or that are dropped before their properties are looked at, never pay for decoding them.
+ *
+ * <p>Every operation, including those made through the {@code propertyMap} field of {@link Entity}
+ * rather than through {@link Entity#getPropertyMap}, decodes the properties first. The proto must
+ * not be changed afterwards, so it should be one that was just parsed from a response. Entities are
+ * serialized with a copy of the decoded properties, so this class is not serializable.
+ */
+final class LazyPropertyMap extends ForwardingMap<String, @Nullable Object> {
+  private final Map<String, @Nullable Object> properties = new HashMap<>();
+
+  // Null once the properties have been decoded.
+  private volatile @Nullable EntityProto proto;
+
+  LazyPropertyMap(EntityProto proto) {
+    this.proto = proto;
+  }
+
+  /** Returns whether the properties have been decoded. */
+  boolean isDecoded() {
+    return proto == null;
+  }
+
+  @Override
+  protected Map<String, @Nullable Object> delegate() {
+    if (proto != null) {
+      decode();
+    }
+    return properties;
+  }
+
+  // Entities are not thread-safe, but entities that are only read used to be safe to share.
+  private synchronized void decode() {
+    EntityProto pending = proto;
+    if (pending != null) {
+      DataTypeTranslator.extractPropertiesFromPb(pending, properties);
+      proto = null;
+    }
+  }
+}
@@ -24,6 +24,7 @@ import com.google.apphosting.datastore.DatastoreV3Pb.Query.Order;
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import java.util.ArrayDeque;
@@ -36,6 +37,8 @@ import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
 import org.jspecify.annotations.Nullable;
 
 /**
@@ -51,6 +54,20 @@ import org.jspecify.annotations.Nullable;
  * sorted we simply use a {@link PriorityQueue} to merge the results from the sub-query as new
  * results are requested.
  *
+ * <p>If the {@link #MAX_CONCURRENT_QUERIES_SYS_PROP} system property is set, the multi-query runs
+ * in a concurrent mode, for queries with many components such as large IN filters:
+ *
+ * <ul>
+ *   <li>Up to that many component queries, rather than {@link #MAX_BUFFERED_QUERIES}, run at once,
+ *       including the sequential queries of a builder and the count queries.
+ *   <li>When there is a limit, the first batch of each component query is its share of the limit,
+ *       rather than the whole limit.
+ *   <li>Results are deduped by a {@link KeyFingerprintSet} rather than a set of {@link Key}s,
+ *       unless the query is a projection query.
+ *   <li>If the query has no sort order, results are returned from whichever component query has
+ *       them first, rather than one component query after the other, so that slower component
+ *       queries don't hold back the results of the others.
+ * </ul>
  */
 class PreparedMultiQuery extends BasePreparedQuery {
   // MAX_BUFFERED_QUERIES is the target number of simultaneous queries used by a PreparedMultiQuery.
@@ -62,6 +79,19 @@ class PreparedMultiQuery extends BasePreparedQuery {
   // @VisibleForTesting
   static final int MAX_BUFFERED_QUERIES = 10;
 
+  /**
+   * Name of a system property that turns on the concurrent mode, see above, and sets the number of
+   * component queries it runs at once.
+   */
+  static final String MAX_CONCURRENT_QUERIES_SYS_PROP =
+      "appengine.datastore.maxConcurrentMultiQueries";
+
+  private static final Logger logger = Logger.getLogger(PreparedMultiQuery.class.getName());
+
+  // In the concurrent mode, the smallest first batch of a component query that has a limit.
+  // @VisibleForTesting
+  static final int MIN_ADAPTIVE_PREFETCH_SIZE = 20;
+
   private final Query baseQuery;
   private final List<MultiQueryBuilder> queryBuilders;
   private final EntityComparator entityComparator;
@@ -72,6 +102,12 @@ class PreparedMultiQuery extends BasePreparedQuery {
   // The number of query iterators each builder can keep running simultaneously (at least 1).
   private final int[] maxBufferedIteratorsPerBuilder;
 
+  // The number of component queries run at once in the concurrent mode, or 0 outside of it.
+  private final int maxConcurrentQueries;
+
+  // The number of component queries the multi-query starts at once.
+  private final int initialQueryCount;
+
   /**
    * @param baseQuery the base query on which to apply generate filters filters
    * @param queryBuilders the source of filters to use
@@ -79,19 +115,34 @@ class PreparedMultiQuery extends BasePreparedQuery {
    * @throws IllegalArgumentException if this multi-query required in memory sorting and the base
    *     query is both a keys-only query and sorted by anything other than its key.
    */
-  @SuppressWarnings("deprecation")
   PreparedMultiQuery(
       Query baseQuery,
       List<MultiQueryBuilder> queryBuilders,
       Transaction txn,
       QueryRunner queryRunner) {
+    this(baseQuery, queryBuilders, txn, queryRunner, getMaxConcurrentQueries());
+  }
+
+  /**
+   * @param maxConcurrentQueries the number of component queries run at once in the concurrent
+   *     mode, or 0 to not run in the concurrent mode
+   */
+  @SuppressWarnings("deprecation")
+  PreparedMultiQuery(
+      Query baseQuery,
+      List<MultiQueryBuilder> queryBuilders,
+      Transaction txn,
+      QueryRunner queryRunner,
+      int maxConcurrentQueries) {
     checkArgument(!queryBuilders.isEmpty());
+    checkArgument(maxConcurrentQueries >= 0);
     checkArgument(baseQuery.getFilter() == null);
     checkArgument(baseQuery.getFilterPredicates().isEmpty());
     this.txn = txn;
     this.baseQuery = baseQuery;
     this.queryBuilders = queryBuilders;
     this.queryRunner = queryRunner;
+    this.maxConcurrentQueries = maxConcurrentQueries;
 
     if (baseQuery.getProjections().isEmpty()) {
       projected = Collections.emptySet();
@@ -137,7 +188,7 @@ class PreparedMultiQuery extends BasePreparedQuery {
     // Calculate the number of iterators each builder can start simultaneously.  We assign
     // at least one per builder to prevent starvation.
     maxBufferedIteratorsPerBuilder = new int[queryBuilders.size()];
-    int allocatableQueries = MAX_BUFFERED_QUERIES;
+    int allocatableQueries = maxConcurrentQueries > 0 ? maxConcurrentQueries : MAX_BUFFERED_QUERIES;
 
     // Allocate one iterator per builder first.
     for (int i = 0; i < queryBuilders.size(); i++) {
@@ -150,13 +201,84 @@ class PreparedMultiQuery extends BasePreparedQuery {
     while (allocatableQueries > 0 && !madeEmptyPass) {
       madeEmptyPass = true;
       for (int i = 0; i < queryBuilders.size(); i++) {
-        if (queryBuilders.get(i).getParallelQuerySize() <= allocatableQueries) {
+        if (queryBuilders.get(i).getParallelQuerySize() <= allocatableQueries
+            // In the concurrent mode, leave the queries a builder can't run to the others.
+            && (maxConcurrentQueries == 0
+                || maxBufferedIteratorsPerBuilder[i] < getQueryListCount(queryBuilders.get(i)))) {
           ++maxBufferedIteratorsPerBuilder[i];
           allocatableQueries -= queryBuilders.get(i).getParallelQuerySize();
           madeEmptyPass = false;
         }
       }
     }
+
+    int queryCount = 0;
+    for (int i = 0; i < queryBuilders.size(); i++) {
+      MultiQueryBuilder queryBuilder = queryBuilders.get(i);
+      queryCount +=
+          Math.min(maxBufferedIteratorsPerBuilder[i], getQueryListCount(queryBuilder))
+              * queryBuilder.getParallelQuerySize();
+    }
+    initialQueryCount = queryCount;
+  }
+
+  /**
+   * Returns the number of component queries to run at once set by {@link
+   * #MAX_CONCURRENT_QUERIES_SYS_PROP}, or 0 if it is not set or is not a number.
+   */
+  static int getMaxConcurrentQueries() {
+    String sysPropVal = System.getProperty(MAX_CONCURRENT_QUERIES_SYS_PROP);
+    if (sysPropVal == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Integer.parseInt(sysPropVal.trim()));
+    } catch (NumberFormatException e) {
+      logger.warning("Cannot parse " + MAX_CONCURRENT_QUERIES_SYS_PROP + ": " + sysPropVal);
+      return 0;
+    }
+  }
+
+  /** Returns the number of lists of queries {@code queryBuilder} generates. */
+  private static int getQueryListCount(MultiQueryBuilder queryBuilder) {
+    long queryCount = 1;
+    for (MultiQueryComponent component : queryBuilder.components) {
+      queryCount = Math.min(queryCount * component.getFilters().size(), Integer.MAX_VALUE);
+    }
+    return (int) Math.max(1, queryCount / queryBuilder.getParallelQuerySize());
+  }
+
+  /**
+   * Returns a predicate that is only true for the first entity of those with the same {@link
+   * #getDedupeValue dedupe value}.
+   */
+  private Predicate<Entity> newDedupeFilter() {
+    if (maxConcurrentQueries > 0 && projected.isEmpty()) {
+      KeyFingerprintSet seenKeys = new KeyFingerprintSet();
+      return entity -> seenKeys.add(entity.getKey());
+    }
+    Set<Object> seenUniqueValues = Sets.newHashSet();
+    return entity -> seenUniqueValues.add(getDedupeValue(entity));
+  }
+
+  /**
+   * Returns the fetch options of the component queries. In the concurrent mode, a component query
+   * with a limit first fetches its share of the limit, and then fetches more as needed.
+   */
+  private FetchOptions getComponentFetchOptions(FetchOptions fetchOptions) {
+    Integer limit = fetchOptions.getLimit();
+    if (maxConcurrentQueries == 0
+        || initialQueryCount <= 1
+        || limit == null
+        || fetchOptions.getPrefetchSize() != null) {
+      return fetchOptions;
+    }
+    int share = (int) ((limit + (long) initialQueryCount - 1) / initialQueryCount);
+    int prefetchSize = Math.max(MIN_ADAPTIVE_PREFETCH_SIZE, share);
+    if (prefetchSize >= limit) {
+      return fetchOptions;
+    }
+    return new FetchOptions(fetchOptions).prefetchSize(prefetchSize);
   }
 
   @SuppressWarnings("deprecation")
@@ -219,7 +341,9 @@ class PreparedMultiQuery extends BasePreparedQuery {
   private class FilteredMultiQueryIterator extends AbstractIterator<Entity> {
     private final Iterator<List<List<FilterPredicate>>> multiQueryIterator;
     private final FetchOptions fetchOptions;
-    private final Set<Object> seenUniqueValues;
+    private final Predicate<Entity> isUnique;
+    // Whether results are returned from whichever source query has them first.
+    private final boolean completionOrder;
 
     private Iterator<Entity> currentIterator = Collections.emptyIterator();
     /*
@@ -232,12 +356,14 @@ class PreparedMultiQuery extends BasePreparedQuery {
     public FilteredMultiQueryIterator(
         MultiQueryBuilder queryBuilder,
         FetchOptions fetchOptions,
-        Set<Object> seenUniqueValues,
-        int numIteratorsToBuffer) {
+        Predicate<Entity> isUnique,
+        int numIteratorsToBuffer,
+        boolean completionOrder) {
       this.multiQueryIterator = queryBuilder.iterator();
       this.queryIterBuffer = new ArrayDeque<Iterator<Entity>>(numIteratorsToBuffer);
       this.fetchOptions = fetchOptions;
-      this.seenUniqueValues = seenUniqueValues;
+      this.isUnique = isUnique;
+      this.completionOrder = completionOrder;
 
       /* Fill iterator buffer */
       while (queryIterBuffer.size() < numIteratorsToBuffer && multiQueryIterator.hasNext()) {
@@ -254,7 +380,10 @@ class PreparedMultiQuery extends BasePreparedQuery {
      */
     protected Iterator<Entity> getNextIterator() {
       while (!queryIterBuffer.isEmpty()) {
-        Iterator<Entity> result = queryIterBuffer.remove();
+        Iterator<Entity> result = completionOrder ? removeReadyIterator() : null;
+        if (result == null) {
+          result = queryIterBuffer.remove();
+        }
         if (multiQueryIterator.hasNext()) {
           queryIterBuffer.add(makeQueryIterator());
         }
@@ -265,6 +394,18 @@ class PreparedMultiQuery extends BasePreparedQuery {
       return null;
     }
 
+    /** Removes and returns the first buffered iterator that is ready, or returns null. */
+    private Iterator<Entity> removeReadyIterator() {
+      for (Iterator<Iterator<Entity>> it = queryIterBuffer.iterator(); it.hasNext(); ) {
+        Iterator<Entity> buffered = it.next();
+        if (isReady(buffered)) {
+          it.remove();
+          return buffered;
+        }
+      }
+      return null;
+    }
+
     /**
      * Create a iterator on a source query, either directly from a single query if possible or by
      * wrapping multiple queries that need to be mergesorted inside of a {@link HeapIterator}.
@@ -296,6 +437,14 @@ class PreparedMultiQuery extends BasePreparedQuery {
     protected Entity computeNext() {
       Entity result = null;
       do {
+        if (completionOrder && !isReady(currentIterator)) {
+          // Rather than wait for the current source query, switch to one that has results.
+          Iterator<Entity> readyIterator = removeReadyIterator();
+          if (readyIterator != null) {
+            queryIterBuffer.add(currentIterator);
+            currentIterator = readyIterator;
+          }
+        }
         if (!currentIterator.hasNext()) {
           currentIterator = getNextIterator();
           if (currentIterator == null) {
@@ -306,7 +455,7 @@ class PreparedMultiQuery extends BasePreparedQuery {
         // currentIterator is guaranteed to have a next at this point
         result = currentIterator.next();
         // loop until we find a result that passes the filters
-      } while (!seenUniqueValues.add(getDedupeValue(result)));
+      } while (!isUnique.test(result));
 
       if (!projected.isEmpty()) {
         // Removing any property not part of the projection
@@ -320,6 +469,15 @@ class PreparedMultiQuery extends BasePreparedQuery {
     }
   }
 
+  /**
+   * Returns whether {@code iterator} can return its next result, or that it has none, without
+   * waiting for the datastore.
+   */
+  private static boolean isReady(Iterator<Entity> iterator) {
+    return !(iterator instanceof QueryResultIteratorImpl)
+        || ((QueryResultIteratorImpl) iterator).isReady();
+  }
+
   static final class HeapIterator extends AbstractIterator<Entity> {
     private final PriorityQueue<EntitySource> heap;
 
@@ -430,31 +588,58 @@ class PreparedMultiQuery extends BasePreparedQuery {
       }
     }
 
-    Set<Object> seen = Sets.newHashSet();
-
-    // Run all queries serially as keys only queries while deduping.
-    outer:
-    for (MultiQueryBuilder queryBuilder : queryBuilders) {
-      for (List<List<FilterPredicate>> filtersList : queryBuilder) {
-        for (List<FilterPredicate> filters : filtersList) {
-          PreparedQuery preparedQuery = prepareQuery(filters, true);
-          Query query = new Query(baseQuery);
-          if (query.getProjections().isEmpty()) {
-            query.setKeysOnly();
+    Predicate<Entity> isUnique = newDedupeFilter();
+    int limit =
+        overrideOptions.getLimit() != null ? overrideOptions.getLimit() : Integer.MAX_VALUE;
+    int count = 0;
+
+    if (maxConcurrentQueries > 0) {
+      // Run up to maxConcurrentQueries queries at once, as keys only queries while deduping.
+      Iterator<List<FilterPredicate>> filtersIterator = allQueryFilters();
+      Queue<Iterator<Entity>> running = new ArrayDeque<>(maxConcurrentQueries);
+      while (running.size() < maxConcurrentQueries && filtersIterator.hasNext()) {
+        running.add(prepareQuery(filtersIterator.next(), true).asIterator(overrideOptions));
+      }
+      outer:
+      while (!running.isEmpty()) {
+        Iterator<Entity> results = running.remove();
+        if (filtersIterator.hasNext()) {
+          running.add(prepareQuery(filtersIterator.next(), true).asIterator(overrideOptions));
+        }
+        while (results.hasNext()) {
+          if (isUnique.test(results.next()) && ++count >= limit) {
+            break outer;
           }
-          for (Entity entity : preparedQuery.asIterable(overrideOptions)) {
-            if (seen.add(getDedupeValue(entity))
-                && overrideOptions.getLimit() != null
-                && seen.size() >= overrideOptions.getLimit()) {
-              break outer;
+        }
+      }
+    } else {
+      // Run all queries serially as keys only queries while deduping.
+      outer:
+      for (MultiQueryBuilder queryBuilder : queryBuilders) {
+        for (List<List<FilterPredicate>> filtersList : queryBuilder) {
+          for (List<FilterPredicate> filters : filtersList) {
+            PreparedQuery preparedQuery = prepareQuery(filters, true);
+            for (Entity entity : preparedQuery.asIterable(overrideOptions)) {
+              if (isUnique.test(entity) && ++count >= limit) {
+                break outer;
+              }
             }
           }
         }
       }
     }
     return fetchOptions.getOffset() == null
-        ? seen.size()
-        : Math.max(0, seen.size() - fetchOptions.getOffset());
+        ? count
+        : Math.max(0, count - fetchOptions.getOffset());
+  }
+
+  /** Returns the filters of all the source queries, lazily. */
+  private Iterator<List<FilterPredicate>> allQueryFilters() {
+    return Iterators.concat(
+        Iterators.transform(
+            queryBuilders.iterator(),
+            queryBuilder ->
+                Iterators.concat(Iterators.transform(queryBuilder.iterator(), List::iterator))));
   }
 
   @Override
@@ -486,28 +671,44 @@ class PreparedMultiQuery extends BasePreparedQuery {
         }
       }
       return new SlicingIterator<Entity>(
-          newFilteredMultiQueryIterator(override),
+          newFilteredMultiQueryIterator(override, fetchOptions.getOffset() == null),
           fetchOptions.getOffset(),
           // even though limit was passed to the DedupingMultiQueryIterator,
           // it only uses this value to restrict sub-queries and may return more
           // results than limit, so we also include it here.
           fetchOptions.getLimit());
     } else {
-      return newFilteredMultiQueryIterator(fetchOptions);
+      return newFilteredMultiQueryIterator(fetchOptions, fetchOptions.getOffset() == null);
     }
   }
 
-  private Iterator<Entity> newFilteredMultiQueryIterator(FetchOptions fetchOptions) {
-    Set<Object> dedupeSet = Sets.newHashSet();
+  /**
+   * @param canReorder whether the results of a query without a sort order may be returned in a
+   *     different order each time it runs, which is not the case if an offset is applied to them
+   */
+  private Iterator<Entity> newFilteredMultiQueryIterator(
+      FetchOptions fetchOptions, boolean canReorder) {
+    Predicate<Entity> isUnique = newDedupeFilter();
+    FetchOptions componentOptions = getComponentFetchOptions(fetchOptions);
+    boolean completionOrder =
+        maxConcurrentQueries > 0 && canReorder && baseQuery.getSortPredicates().isEmpty();
     if (queryBuilders.size() == 1) {
       return new FilteredMultiQueryIterator(
-          queryBuilders.get(0), fetchOptions, dedupeSet, maxBufferedIteratorsPerBuilder[0]);
+          queryBuilders.get(0),
+          componentOptions,
+          isUnique,
+          maxBufferedIteratorsPerBuilder[0],
+          completionOrder);
     }
     List<Iterator<Entity>> iterators = Lists.newArrayListWithCapacity(queryBuilders.size());
     for (int i = 0; i < queryBuilders.size(); i++) {
       iterators.add(
           new FilteredMultiQueryIterator(
-              queryBuilders.get(i), fetchOptions, dedupeSet, maxBufferedIteratorsPerBuilder[i]));
+              queryBuilders.get(i),
+              componentOptions,
+              isUnique,
+              maxBufferedIteratorsPerBuilder[i],
+              completionOrder));
     }
     return makeHeapIterator(iterators);
   }
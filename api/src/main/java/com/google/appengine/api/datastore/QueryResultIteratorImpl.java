@@ -83,6 +83,14 @@ class QueryResultIteratorImpl implements QueryResultIterator<Entity> {
     return ensureLoaded();
   }
 
+  /**
+   * Returns true when {@link #hasNext} and {@link #next} would not wait for a call that is still in
+   * progress.
+   */
+  boolean isReady() {
+    return !entityBuffer.isEmpty() || !resultsSource.hasMoreEntities() || resultsSource.isReady();
+  }
+
   @Override
   public Entity next() {
     TransactionImpl.ensureTxnActive(txn);
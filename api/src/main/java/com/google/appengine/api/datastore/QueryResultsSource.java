@@ -29,6 +29,13 @@ interface QueryResultsSource {
    */
   boolean hasMoreEntities();
 
+  /**
+   * Returns true when loading more {@code Entity} objects would not wait for a call that is still
+   * in progress. Loading may still need to make further calls to satisfy an offset or the number of
+   * entities requested.
+   */
+  boolean isReady();
+
   /**
    * Load at least one {@code Entity} object if there are more entities.
    *
@@ -74,6 +81,9 @@ interface QueryResultsSource {
    */
   int getNumSkipped();
 
+  /** Returns the time spent waiting for the datastore to return results, in nanoseconds. */
+  long getFetchWaitNanos();
+
   /**
    * Get the indexes used to perform the query. May sometimes return only the indexes used so far.
    *
@@ -101,12 +101,15 @@ class QueryResultsSourceV3 extends BaseQueryResultsSource<QueryResult, NextReque
     public List<Entity> getEntities(Collection<Projection> projections) {
       List<Entity> entities = Lists.newArrayListWithCapacity(res.resultSize());
       if (projections.isEmpty()) {
+        // The results were just parsed and are not used once converted, so their properties can be
+        // decoded lazily.
         for (EntityProto entityProto : res.results()) {
-          entities.add(EntityTranslator.createFromPb(entityProto));
+          entities.add(EntityTranslator.createLazilyFromPb(entityProto));
         }
       } else {
+        byte[][] propertyNames = EntityTranslator.getPropertyNames(projections);
         for (EntityProto entityProto : res.results()) {
-          entities.add(EntityTranslator.createFromPb(entityProto, projections));
+          entities.add(EntityTranslator.createFromPb(entityProto, projections, propertyNames));
         }
       }
       return entities;
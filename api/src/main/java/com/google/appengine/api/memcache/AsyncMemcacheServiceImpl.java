@@ -52,6 +52,7 @@ import com.google.apphosting.api.ApiProxy;
 import com.google.common.base.Ascii;
 import com.google.common.base.Joiner;
 import com.google.common.primitives.Bytes;
+import com.google.common.util.concurrent.Futures;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 import java.io.IOException;
@@ -99,8 +100,15 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     private final long items;
     private final long bytesStored;
     private final int maxCachedTime;
+    private final boolean hasNearCache;
+    private final long nearCacheHits;
+    private final long nearCacheMisses;
 
     StatsImpl(MergedNamespaceStats stats) {
+      this(stats, null);
+    }
+
+    StatsImpl(MergedNamespaceStats stats, NearCache nearCache) {
       if (stats != null) {
         hits = stats.getHits();
         misses = stats.getMisses();
@@ -112,6 +120,9 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
         hits = misses = bytesFetched = items = bytesStored = 0;
         maxCachedTime = 0;
       }
+      hasNearCache = nearCache != null;
+      nearCacheHits = hasNearCache ? nearCache.getHitCount() : 0;
+      nearCacheMisses = hasNearCache ? nearCache.getMissCount() : 0;
     }
 
     @Override
@@ -144,6 +155,16 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       return maxCachedTime;
     }
 
+    @Override
+    public long getNearCacheHitCount() {
+      return nearCacheHits;
+    }
+
+    @Override
+    public long getNearCacheMissCount() {
+      return nearCacheMisses;
+    }
+
     @Override
     public String toString() {
       StringBuilder builder = new StringBuilder();
@@ -153,6 +174,10 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       builder.append("Bytes Stored: ").append(bytesStored).append('\n');
       builder.append("Items: ").append(items).append('\n');
       builder.append("Max Cached Time: ").append(maxCachedTime).append('\n');
+      if (hasNearCache) {
+        builder.append("Near Cache Hits: ").append(nearCacheHits).append('\n');
+        builder.append("Near Cache Misses: ").append(nearCacheMisses).append('\n');
+      }
       return builder.toString();
     }
   }
@@ -331,8 +356,26 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
   }
 
+  /** The codecs used to encode values, or {@code null} for plain Java serialization. */
+  private final List<MemcacheCodec> codecs;
+
+  private final int compressionThreshold;
+
+  /** The near cache consulted by {@link #get} and {@link #getAll}, or {@code null}. */
+  private final NearCache nearCache;
+
   AsyncMemcacheServiceImpl(String namespace) {
     super(namespace);
+    codecs = null;
+    compressionThreshold = MemcacheServiceConfig.NO_COMPRESSION;
+    nearCache = null;
+  }
+
+  AsyncMemcacheServiceImpl(String namespace, MemcacheServiceConfig config) {
+    super(namespace);
+    codecs = config.getCodecs();
+    compressionThreshold = config.getCompressionThreshold();
+    nearCache = config.getNearCache();
   }
 
   static <T, V> Map<T, V> makeMap(Collection<T> keys, V value) {
@@ -351,17 +394,21 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
   }
 
-  private static ValueAndFlags serializeValue(Object value) {
+  private ValueAndFlags serializeValue(Object value) {
     try {
-      return MemcacheSerialization.serialize(value);
+      return MemcacheSerialization.serialize(value, codecs, compressionThreshold);
     } catch (IOException ex) {
       throw new IllegalArgumentException("Cannot use as value: '" + value + "'", ex);
     }
   }
 
   private Object deserializeItem(Object key, MemcacheGetResponse.Item item) {
+    return deserializeValue(key, item.getValue(), item.getFlags());
+  }
+
+  private Object deserializeValue(Object key, ByteString value, int flags) {
     try {
-      return MemcacheSerialization.deserialize(item.getValue().toByteArray(), item.getFlags());
+      return MemcacheSerialization.deserialize(value.toByteArray(), flags);
     } catch (ClassNotFoundException ex) {
       getErrorHandler().handleDeserializationError(
           new InvalidValueException("Can't find class for value of key '" + key + "'", ex));
@@ -522,6 +569,9 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
 
   @Override
   public Future<Object> get(final Object key) {
+    if (nearCache != null) {
+      return getThroughNearCache(key);
+    }
     return doGet(
         key,
         false, // forCas
@@ -536,6 +586,33 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
         DefaultValueProviders.nullValue());
   }
 
+  private Future<Object> getThroughNearCache(final Object key) {
+    final String namespace = getEffectiveNamespace();
+    final ByteString pbKey = makePbKey(key);
+    NearCache.Entry entry = nearCache.get(namespace, pbKey);
+    if (entry != null) {
+      return Futures.immediateFuture(deserializeValue(key, entry.value, entry.flags));
+    }
+    final long generation = nearCache.generation();
+    return doGet(
+        key,
+        false, // forCas
+        false, // forPeek
+        "Memcache get: exception getting 1 key (" + key + ")",
+        new Transformer<MemcacheGetResponse, Object>() {
+          @Override
+          public Object transform(MemcacheGetResponse response) {
+            if (response.getItemCount() == 0) {
+              return null;
+            }
+            MemcacheGetResponse.Item item = response.getItem(0);
+            nearCache.put(namespace, pbKey, item.getValue(), item.getFlags(), null, generation);
+            return deserializeItem(key, item);
+          }
+        },
+        DefaultValueProviders.nullValue());
+  }
+
   @Override
   public Future<IdentifiableValue> getIdentifiable(final Object key) {
     return doGet(
@@ -655,6 +732,9 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
 
   @Override
   public <K> Future<Map<K, Object>> getAll(Collection<K> keys) {
+    if (nearCache != null) {
+      return getAllThroughNearCache(keys);
+    }
     return doGetAll(
         keys,
         false, // forCas
@@ -669,6 +749,55 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
         DefaultValueProviders.<K, Object>emptyMap());
   }
 
+  private <K> Future<Map<K, Object>> getAllThroughNearCache(Collection<K> keys) {
+    final String namespace = getEffectiveNamespace();
+    final Map<K, Object> cached = new HashMap<K, Object>();
+    List<K> missing = new ArrayList<K>(keys.size());
+    for (K key : keys) {
+      NearCache.Entry entry = nearCache.get(namespace, makePbKey(key));
+      if (entry != null) {
+        cached.put(key, deserializeValue(key, entry.value, entry.flags));
+      } else {
+        missing.add(key);
+      }
+    }
+    if (missing.isEmpty()) {
+      return Futures.immediateFuture(cached);
+    }
+    final long generation = nearCache.generation();
+    Future<Map<K, Object>> fetched =
+        doGetAll(
+            missing,
+            false, // forCas
+            false, // forPeek
+            "Memcache getAll: exception getting multiple keys",
+            new Transformer<KeyValuePair<K, MemcacheGetResponse.Item>, Object>() {
+              @Override
+              public Object transform(KeyValuePair<K, MemcacheGetResponse.Item> pair) {
+                MemcacheGetResponse.Item item = pair.value;
+                nearCache.put(
+                    namespace, item.getKey(), item.getValue(), item.getFlags(), null, generation);
+                return deserializeItem(pair.key, item);
+              }
+            },
+            DefaultValueProviders.<K, Object>emptyMap());
+    if (cached.isEmpty()) {
+      return fetched;
+    }
+    return new FutureWrapper<Map<K, Object>, Map<K, Object>>(fetched) {
+      @Override
+      protected Map<K, Object> wrap(Map<K, Object> values) {
+        values.putAll(cached);
+        return values;
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        return cause;
+      }
+    };
+  }
+
   private <K, V> Future<Map<K, V>> doGetAll(Collection<K> keys, boolean forCas, boolean forPeek,
       String errorText,
       Transformer<KeyValuePair<K, MemcacheGetResponse.Item>, V> responseTransformer,
@@ -766,6 +895,19 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
     final int itemSize = itemBuilder.getKey().size() + itemBuilder.getValue().size();
     requestBuilder.addItem(itemBuilder);
+    Transformer<MemcacheSetResponse, Boolean> responseTransformer =
+        new PutResponseTransformer(key, itemSize);
+    if (nearCache != null) {
+      nearCache.invalidate(requestBuilder.getNameSpace(), itemBuilder.getKey());
+      responseTransformer =
+          new NearCachePutResponseTransformer(
+              responseTransformer,
+              nearCache,
+              requestBuilder.getNameSpace(),
+              itemBuilder,
+              expires,
+              nearCache.generation());
+    }
 
     // When creating string for logging truncate with ellipsis if necessary.
     String valueAsString =
@@ -778,7 +920,7 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
             requestBuilder.getNameSpace(),
             MemcacheSetResponse.getDefaultInstance(),
             String.format("Memcache put: exception setting 1 key (%s) to '%s'", key, valueAsString),
-            new PutResponseTransformer(key, itemSize)),
+            responseTransformer),
         DefaultValueProviders.falseValue());
   }
 
@@ -810,6 +952,53 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
   }
 
+  /**
+   * Adds the value of a successful put to the near cache, and drops the key from it if the put
+   * failed, e.g. because the value was touched since it was read by {@code getIdentifiable}.
+   */
+  private static class NearCachePutResponseTransformer
+      implements Transformer<MemcacheSetResponse, Boolean> {
+    private final Transformer<MemcacheSetResponse, Boolean> delegate;
+    private final NearCache nearCache;
+    private final String namespace;
+    private final MemcacheSetRequest.Item.Builder item;
+    private final Expiration expires;
+    private final long generation;
+
+    NearCachePutResponseTransformer(
+        Transformer<MemcacheSetResponse, Boolean> delegate,
+        NearCache nearCache,
+        String namespace,
+        MemcacheSetRequest.Item.Builder item,
+        Expiration expires,
+        long generation) {
+      this.delegate = delegate;
+      this.nearCache = nearCache;
+      this.namespace = namespace;
+      this.item = item;
+      this.expires = expires;
+      this.generation = generation;
+    }
+
+    @Override
+    public Boolean transform(MemcacheSetResponse response) {
+      Boolean stored;
+      try {
+        stored = delegate.transform(response);
+      } catch (RuntimeException ex) {
+        nearCache.invalidate(namespace, item.getKey());
+        throw ex;
+      }
+      if (stored) {
+        nearCache.putWritten(
+            namespace, item.getKey(), item.getValue(), item.getFlags(), expires, generation);
+      } else {
+        nearCache.invalidate(namespace, item.getKey());
+      }
+      return stored;
+    }
+  }
+
   private static MemcacheSetRequest.SetPolicy convertSetPolicyToPb(SetPolicy policy) {
     switch (policy) {
       case SET_ALWAYS:
@@ -901,6 +1090,8 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       itemBuilder.setSetPolicy(policy);
       requestBuilder.addItem(itemBuilder);
 
+      invalidateNearCache(requestBuilder.getNameSpace(), itemBuilder.getKey());
+
       int itemSize = itemBuilder.getKey().size() + itemBuilder.getValue().size();
       if (itemSize > MAX_ITEM_SIZE) {
         oversized.add(itemIndex);
@@ -1008,6 +1199,7 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
             .setKey(makePbKey(key))
             .setDeleteTime((int) TimeUnit.SECONDS.convert(millisNoReAdd, TimeUnit.MILLISECONDS)))
         .build();
+    invalidateNearCache(request.getNameSpace(), request.getItem(0).getKey());
     return makeAsyncCall(
         "Delete",
         request,
@@ -1035,9 +1227,11 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     List<T> requestedKeys = new ArrayList<T>(keys.size());
     for (T key : keys) {
       requestedKeys.add(key);
+      ByteString pbKey = makePbKey(key);
       requestBuilder.addItem(MemcacheDeleteRequest.Item.newBuilder()
                                  .setDeleteTime((int) (millisNoReAdd / 1000))
-                                 .setKey(makePbKey(key)));
+                                 .setKey(pbKey));
+      invalidateNearCache(requestBuilder.getNameSpace(), pbKey);
     }
     return makeAsyncCall(
         "Delete",
@@ -1071,6 +1265,12 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
   }
 
+  private void invalidateNearCache(String namespace, ByteString pbKey) {
+    if (nearCache != null) {
+      nearCache.invalidate(namespace, pbKey);
+    }
+  }
+
   private static MemcacheIncrementRequest.Builder newIncrementRequestBuilder(
       Object key, long delta, Long initialValue) {
     MemcacheIncrementRequest.Builder requestBuilder = MemcacheIncrementRequest.newBuilder();
@@ -1099,6 +1299,7 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     MemcacheIncrementRequest request = newIncrementRequestBuilder(key, delta, initialValue)
         .setNameSpace(getEffectiveNamespace())
         .build();
+    invalidateNearCache(request.getNameSpace(), request.getKey());
     return makeAsyncCall(
         "Increment",
         request,
@@ -1175,8 +1376,10 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     final List<T> requestedKeys = new ArrayList<T>(offsets.size());
     for (Map.Entry<T, Long> entry : offsets.entrySet()) {
       requestedKeys.add(entry.getKey());
-      requestBuilder.addItem(
-          newIncrementRequestBuilder(entry.getKey(), entry.getValue(), initialValue));
+      MemcacheIncrementRequest.Builder itemBuilder =
+          newIncrementRequestBuilder(entry.getKey(), entry.getValue(), initialValue);
+      invalidateNearCache(requestBuilder.getNameSpace(), itemBuilder.getKey());
+      requestBuilder.addItem(itemBuilder);
     }
     Provider<Map<T, Long>> defaultValue = new Provider<Map<T, Long>>() {
       @Override
@@ -1220,6 +1423,9 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
 
   @Override
   public Future<Void> clearAll() {
+    if (nearCache != null) {
+      nearCache.invalidateAll();
+    }
     return makeAsyncCall(
         "FlushAll",
         MemcacheFlushRequest.getDefaultInstance(),
@@ -1246,9 +1452,16 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
             new Transformer<MemcacheStatsResponse, Stats>() {
               @Override
               public Stats transform(MemcacheStatsResponse response) {
-                return new StatsImpl(response.getStats());
+                return new StatsImpl(response.getStats(), nearCache);
               }
             }),
-        DefaultValueProviders.emptyStats());
+        nearCache == null
+            ? DefaultValueProviders.emptyStats()
+            : new Provider<Stats>() {
+              @Override
+              public Stats get() {
+                return new StatsImpl(null, nearCache);
+              }
+            });
   }
 }
@@ -44,4 +44,26 @@ public interface IMemcacheServiceFactory {
    */
    AsyncMemcacheService getAsyncMemcacheService(String namespace);
 
+  /**
+   * Similar to {@link #getMemcacheService(String)} but the returned service serializes values as
+   * configured by {@code config}.
+   *
+   * <p>The default implementation ignores {@code config}, for factories which predate {@link
+   * MemcacheServiceConfig}.
+   *
+   * @return a new {@code MemcacheService} instance.
+   */
+  default MemcacheService getMemcacheService(String namespace, MemcacheServiceConfig config) {
+    return getMemcacheService(namespace);
+  }
+
+  /**
+   * Similar to {@link #getMemcacheService(String, MemcacheServiceConfig)} but returns a handle to
+   * an asynchronous version of the cache service.
+   */
+  default AsyncMemcacheService getAsyncMemcacheService(
+      String namespace, MemcacheServiceConfig config) {
+    return getAsyncMemcacheService(namespace);
+  }
+
 }
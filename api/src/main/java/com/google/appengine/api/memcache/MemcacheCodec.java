@@ -0,0 +1,62 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import java.io.IOException;
+
+/**
+ * Converts cached values of some types to and from bytes, as a faster or more compact alternative
+ * to Java serialization.
+ *
+ * <p>A {@code MemcacheService} only encodes values with the codecs listed in its {@link
+ * MemcacheServiceConfig}, but it can decode a value written with any codec that has been {@link
+ * MemcacheCodecs#register registered}. Values written by a codec are stored with the {@link
+ * MemcacheSerialization.Flag#CODEC} flag and tagged with the {@link #getId id} of the codec, so
+ * every instance of the application that reads them must register a codec with the same id.
+ *
+ * <p>Implementations must be thread-safe.
+ *
+ */
+public interface MemcacheCodec {
+
+  /**
+   * Returns the identifier stored with every value this codec encodes. It must be unique among the
+   * registered codecs, stable across releases of the application, and at most 255 ASCII
+   * characters long.
+   */
+  String getId();
+
+  /**
+   * Returns {@code true} if this codec can encode {@code value}, which is never {@code null}.
+   */
+  boolean canEncode(Object value);
+
+  /**
+   * Encodes {@code value}, for which {@link #canEncode} returned {@code true}.
+   *
+   * @throws IOException if the value cannot be encoded
+   */
+  byte[] encode(Object value) throws IOException;
+
+  /**
+   * Decodes a value previously returned by {@link #encode}.
+   *
+   * @throws ClassNotFoundException if the type of the value can't be found
+   * @throws IOException if the value cannot be decoded
+   */
+  Object decode(byte[] bytes) throws ClassNotFoundException, IOException;
+}
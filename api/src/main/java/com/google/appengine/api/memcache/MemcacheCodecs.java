@@ -0,0 +1,191 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.protobuf.MessageLite;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Static utility for getting the built-in {@link MemcacheCodec}s and for registering the codecs
+ * used to decode cached values.
+ *
+ * <p>The built-in codecs are always registered.
+ *
+ */
+public final class MemcacheCodecs {
+
+  private static final MemcacheCodec PROTOBUF = new ProtobufCodec();
+  private static final MemcacheCodec BYTE_BUFFER = new ByteBufferCodec();
+
+  private static final ConcurrentMap<String, MemcacheCodec> registry =
+      new ConcurrentHashMap<String, MemcacheCodec>();
+
+  static {
+    register(PROTOBUF);
+    register(BYTE_BUFFER);
+  }
+
+  private MemcacheCodecs() {
+    // Utility class
+  }
+
+  /**
+   * Returns a codec for protocol buffer messages. A message is stored as the name of its class
+   * followed by its wire format, and is parsed back with the static {@code parseFrom(byte[])}
+   * method of that class.
+   */
+  public static MemcacheCodec getProtobuf() {
+    return PROTOBUF;
+  }
+
+  /**
+   * Returns a codec which stores the remaining bytes of a {@link ByteBuffer} as they are, without
+   * changing the position of the buffer. Values are read back as heap buffers.
+   */
+  public static MemcacheCodec getByteBuffer() {
+    return BYTE_BUFFER;
+  }
+
+  /**
+   * Registers {@code codec} so that values it encoded can be decoded by any {@code
+   * MemcacheService}. Registering the same codec again has no effect.
+   *
+   * @throws IllegalArgumentException if the id of the codec is not valid, or if a codec of a
+   *     different class is already registered with the same id
+   */
+  public static void register(MemcacheCodec codec) {
+    String id = codec.getId();
+    if (id.isEmpty() || id.length() > 255 || !US_ASCII.newEncoder().canEncode(id)) {
+      throw new IllegalArgumentException("Invalid codec id '" + id + "'");
+    }
+    MemcacheCodec existing = registry.putIfAbsent(id, codec);
+    if (existing != null && existing.getClass() != codec.getClass()) {
+      throw new IllegalArgumentException(
+          "Codec id '" + id + "' is already used by " + existing.getClass().getName());
+    }
+  }
+
+  /** Returns the registered codec with the given {@code id}, or {@code null} if there is none. */
+  static MemcacheCodec forId(String id) {
+    return registry.get(id);
+  }
+
+  private static final class ProtobufCodec implements MemcacheCodec {
+    private static final ClassValue<Method> PARSE_FROM =
+        new ClassValue<Method>() {
+          @Override
+          protected Method computeValue(Class<?> type) {
+            try {
+              return type.getMethod("parseFrom", byte[].class);
+            } catch (NoSuchMethodException ex) {
+              return null;
+            }
+          }
+        };
+
+    @Override
+    public String getId() {
+      return "protobuf";
+    }
+
+    @Override
+    public boolean canEncode(Object value) {
+      return value instanceof MessageLite;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+      byte[] className = value.getClass().getName().getBytes(UTF_8);
+      MessageLite message = (MessageLite) value;
+      ByteBuffer buffer = ByteBuffer.allocate(4 + className.length + message.getSerializedSize());
+      buffer.putInt(className.length).put(className);
+      message.toByteString().copyTo(buffer);
+      return buffer.array();
+    }
+
+    @Override
+    public Object decode(byte[] bytes) throws ClassNotFoundException, IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      int classNameLength = buffer.getInt();
+      if (classNameLength < 0 || classNameLength > buffer.remaining()) {
+        throw new IOException("Corrupt protocol buffer value");
+      }
+      String className = new String(bytes, 4, classNameLength, UTF_8);
+      Class<?> type = loadClass(className);
+      Method parseFrom = PARSE_FROM.get(type);
+      if (parseFrom == null) {
+        throw new IOException(className + " has no parseFrom(byte[]) method");
+      }
+      byte[] message = new byte[bytes.length - 4 - classNameLength];
+      System.arraycopy(bytes, 4 + classNameLength, message, 0, message.length);
+      try {
+        return parseFrom.invoke(null, (Object) message);
+      } catch (IllegalAccessException ex) {
+        throw new IOException("Can't parse " + className, ex);
+      } catch (InvocationTargetException ex) {
+        throw new IOException("Can't parse " + className, ex.getCause());
+      }
+    }
+
+    private static Class<?> loadClass(String className) throws ClassNotFoundException {
+      // Message classes are application classes, which the thread context class loader finds
+      // when this class was loaded by a parent loader.
+      ClassLoader threadClassLoader = Thread.currentThread().getContextClassLoader();
+      if (threadClassLoader != null) {
+        try {
+          return Class.forName(className, false, threadClassLoader);
+        } catch (ClassNotFoundException ex) {
+          // Fall through to the class loader of this class.
+        }
+      }
+      return Class.forName(className, false, ProtobufCodec.class.getClassLoader());
+    }
+  }
+
+  private static final class ByteBufferCodec implements MemcacheCodec {
+    @Override
+    public String getId() {
+      return "bytebuffer";
+    }
+
+    @Override
+    public boolean canEncode(Object value) {
+      return value instanceof ByteBuffer;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+      ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return bytes;
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      return ByteBuffer.wrap(bytes);
+    }
+  }
+}
@@ -31,8 +31,12 @@ import java.io.Serializable;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Static serialization helpers used by {@link MemcacheServiceImpl}
@@ -56,7 +60,11 @@ public class MemcacheSerialization {
     LONG,    // python TYPE_LONG
     BOOLEAN,  // python TYPE_BOOL
     BYTE,
-    SHORT;
+    SHORT,
+    /** Encoded by the {@link MemcacheCodec} whose id prefixes the value. */
+    CODEC,
+    /** Compressed with deflate, after the flag of the uncompressed value. */
+    COMPRESSED;
 
     private static final Flag[] VALUES = Flag.values();
 
@@ -219,6 +227,36 @@ public class MemcacheSerialization {
         objIn.close();
         return response;
 
+      case CODEC:
+        {
+          if (value.length == 0 || value.length < 1 + (value[0] & 0xff)) {
+            throw new InvalidValueException("Cannot deserialize codec value: bad length", null);
+          }
+          int idLength = value[0] & 0xff;
+          String id = new String(value, 1, idLength, US_ASCII);
+          MemcacheCodec codec = MemcacheCodecs.forId(id);
+          if (codec == null) {
+            throw new InvalidValueException("No codec registered with id '" + id + "'", null);
+          }
+          byte[] encoded = new byte[value.length - 1 - idLength];
+          System.arraycopy(value, 1 + idLength, encoded, 0, encoded.length);
+          return codec.decode(encoded);
+        }
+
+      case COMPRESSED:
+        {
+          if (value.length == 0) {
+            throw new InvalidValueException(
+                "Cannot deserialize compressed value: bad length", null);
+          }
+          int innerFlags = value[0] & 0xff;
+          if (innerFlags == Flag.COMPRESSED.ordinal()) {
+            throw new InvalidValueException(
+                "Cannot deserialize compressed value: bad flags", null);
+          }
+          return deserialize(inflate(value, 1), innerFlags);
+        }
+
       default:
         assert false;
     }
@@ -307,6 +345,29 @@ public class MemcacheSerialization {
    */
   public static ValueAndFlags serialize(Object value)
       throws IOException {
+    return serialize(value, null, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Serializes {@code value} as by {@link #serialize(Object)}, except that values of other types
+   * than the natively supported ones are encoded with the first of {@code codecs} that accepts
+   * them, and that the result is compressed if it is larger than {@code compressionThreshold}
+   * bytes and compression makes it smaller.
+   */
+  static ValueAndFlags serialize(
+      Object value, List<MemcacheCodec> codecs, int compressionThreshold) throws IOException {
+    ValueAndFlags serialized = serializeUncompressed(value, codecs);
+    if (serialized.value.length > compressionThreshold) {
+      byte[] compressed = deflate(serialized.value, serialized.flags);
+      if (compressed.length < serialized.value.length) {
+        return new ValueAndFlags(compressed, Flag.COMPRESSED);
+      }
+    }
+    return serialized;
+  }
+
+  private static ValueAndFlags serializeUncompressed(Object value, List<MemcacheCodec> codecs)
+      throws IOException {
     Flag flags;
     byte[] bytes;
 
@@ -342,6 +403,9 @@ public class MemcacheSerialization {
       flags = Flag.UTF8;
       bytes = ((String) value).getBytes(UTF_8);
 
+    } else if (codecs != null && (bytes = encodeWithCodec(value, codecs)) != null) {
+      flags = Flag.CODEC;
+
     } else if (value instanceof Serializable) {
       flags = Flag.OBJECT;
       ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -356,4 +420,62 @@ public class MemcacheSerialization {
     }
     return new ValueAndFlags(bytes, flags);
   }
+
+  /**
+   * Encodes {@code value} with the first of {@code codecs} which accepts it, prefixed by the id of
+   * that codec. Returns {@code null} if no codec accepts the value.
+   */
+  private static byte[] encodeWithCodec(Object value, List<MemcacheCodec> codecs)
+      throws IOException {
+    for (MemcacheCodec codec : codecs) {
+      if (codec.canEncode(value)) {
+        byte[] id = codec.getId().getBytes(US_ASCII);
+        byte[] encoded = codec.encode(value);
+        byte[] bytes = new byte[1 + id.length + encoded.length];
+        bytes[0] = (byte) id.length;
+        System.arraycopy(id, 0, bytes, 1, id.length);
+        System.arraycopy(encoded, 0, bytes, 1 + id.length, encoded.length);
+        return bytes;
+      }
+    }
+    return null;
+  }
+
+  private static byte[] deflate(byte[] value, Flag flags) {
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(value);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 16);
+      out.write(flags.ordinal());
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] value, int offset) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(value, offset, value.length - offset);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(value.length * 2);
+      byte[] buffer = new byte[8192];
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(buffer);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new InvalidValueException("Cannot deserialize compressed value: truncated", null);
+        }
+        out.write(buffer, 0, inflated);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException ex) {
+      throw new InvalidValueException("Cannot deserialize compressed value: bad contents", ex);
+    } finally {
+      inflater.end();
+    }
+  }
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * User-configurable properties of a {@link MemcacheService} or {@link AsyncMemcacheService}
+ * created with {@link MemcacheServiceFactory#getMemcacheService(String, MemcacheServiceConfig)}.
+ *
+ * <p>Notes on usage:<br>
+ * The recommended way to instantiate a {@code MemcacheServiceConfig} object is to statically
+ * import {@link Builder}.* and invoke a static creation method followed by instance mutators (if
+ * needed):
+ *
+ * <pre>{@code
+ * import static com.google.appengine.api.memcache.MemcacheServiceConfig.Builder.*;
+ *
+ * ...
+ *
+ * // store protocol buffers in their wire format rather than with Java serialization
+ * MemcacheServiceConfig config = withCodec(MemcacheCodecs.getProtobuf());
+ *
+ * // ... and compress values larger than 8KB
+ * MemcacheServiceConfig config =
+ *     withCodec(MemcacheCodecs.getProtobuf()).compressionThreshold(8 * 1024);
+ *
+ * // keep up to 16MB of values in process for at most 5 seconds
+ * static final MemcacheServiceConfig NEAR_CACHED = withNearCache(16 << 20, 5000);
+ * }</pre>
+ *
+ * <p>Services created from the same config with a near cache share that near cache, so a config
+ * with a near cache is usually kept in a static field and used to create a service per request.
+ *
+ */
+public final class MemcacheServiceConfig {
+
+  /** The compression threshold of a config which does not compress values. */
+  public static final int NO_COMPRESSION = Integer.MAX_VALUE;
+
+  private final List<MemcacheCodec> codecs = new ArrayList<MemcacheCodec>();
+  private int compressionThreshold = NO_COMPRESSION;
+  private NearCache nearCache;
+
+  private MemcacheServiceConfig() {}
+
+  /**
+   * Adds a codec used to encode values. Codecs are tried in the order in which they were added, and
+   * only for values which are not {@code null}, {@code byte[]}, {@code String}, {@code Boolean} or
+   * integral numbers, which are always stored in their native format. Values that no codec can
+   * encode fall back to Java serialization. The codec is also {@link MemcacheCodecs#register
+   * registered}, so that every service can decode the values it encodes.
+   *
+   * @param codec the codec to add.
+   * @return {@code this} (for chaining)
+   * @throws IllegalArgumentException if the codec can't be registered
+   */
+  public MemcacheServiceConfig codec(MemcacheCodec codec) {
+    if (codec == null) {
+      throw new NullPointerException("codec must not be null");
+    }
+    MemcacheCodecs.register(codec);
+    codecs.add(codec);
+    return this;
+  }
+
+  /**
+   * Sets the size, in bytes, above which encoded values are compressed with the deflate algorithm.
+   * A value is only stored compressed if that makes it smaller. Compressed values can be read by
+   * any service, whatever its own threshold.
+   *
+   * @param compressionThreshold the threshold, or {@link #NO_COMPRESSION}.
+   * @return {@code this} (for chaining)
+   * @throws IllegalArgumentException if {@code compressionThreshold} is negative
+   */
+  public MemcacheServiceConfig compressionThreshold(int compressionThreshold) {
+    if (compressionThreshold < 0) {
+      throw new IllegalArgumentException(
+          "compressionThreshold must be >= 0, got " + compressionThreshold);
+    }
+    this.compressionThreshold = compressionThreshold;
+    return this;
+  }
+
+  /**
+   * Enables a near cache: an in-process cache, consulted before memcache by {@code get} and {@code
+   * getAll}, of the values read or written by the services created from this config.
+   *
+   * <p>The near cache holds at most {@code maxBytes} of keys and values, evicting the least
+   * recently used ones first. A value is kept for at most {@code maxAgeMillis}, and never past the
+   * {@link Expiration} it was put with; since other instances of the application may change a
+   * value at any time, {@code maxAgeMillis} bounds how stale a value returned by {@code get} can
+   * be. Values put, deleted or incremented through the services sharing the near cache are
+   * invalidated immediately, as are values whose compare-and-swap fails. {@link
+   * Stats#getNearCacheHitCount()} and {@link Stats#getNearCacheMissCount()} report how effective
+   * the near cache is.
+   *
+   * @param maxBytes the maximum total size of the keys and values held.
+   * @param maxAgeMillis the maximum time a value is held, in milliseconds.
+   * @return {@code this} (for chaining)
+   * @throws IllegalArgumentException if {@code maxBytes} or {@code maxAgeMillis} is not positive
+   */
+  public MemcacheServiceConfig nearCache(long maxBytes, long maxAgeMillis) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be > 0, got " + maxBytes);
+    }
+    if (maxAgeMillis <= 0) {
+      throw new IllegalArgumentException("maxAgeMillis must be > 0, got " + maxAgeMillis);
+    }
+    this.nearCache = new NearCache(maxBytes, maxAgeMillis);
+    return this;
+  }
+
+  /** Returns the codecs used to encode values, in the order in which they are tried. */
+  public List<MemcacheCodec> getCodecs() {
+    return ImmutableList.copyOf(codecs);
+  }
+
+  /** Returns the size above which values are compressed. */
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  /** Returns the near cache shared by the services created from this config, or {@code null}. */
+  NearCache getNearCache() {
+    return nearCache;
+  }
+
+  /** Contains static creation methods for {@link MemcacheServiceConfig}. */
+  public static final class Builder {
+
+    /**
+     * Create a {@link MemcacheServiceConfig} with the given codec.
+     *
+     * @param codec the codec to add.
+     * @return The newly created MemcacheServiceConfig instance.
+     */
+    public static MemcacheServiceConfig withCodec(MemcacheCodec codec) {
+      return withDefaults().codec(codec);
+    }
+
+    /**
+     * Create a {@link MemcacheServiceConfig} with the given compression threshold.
+     *
+     * @param compressionThreshold the threshold to set.
+     * @return The newly created MemcacheServiceConfig instance.
+     */
+    public static MemcacheServiceConfig withCompressionThreshold(int compressionThreshold) {
+      return withDefaults().compressionThreshold(compressionThreshold);
+    }
+
+    /**
+     * Create a {@link MemcacheServiceConfig} with a near cache.
+     *
+     * @param maxBytes the maximum total size of the keys and values held.
+     * @param maxAgeMillis the maximum time a value is held, in milliseconds.
+     * @return The newly created MemcacheServiceConfig instance.
+     * @see MemcacheServiceConfig#nearCache(long, long)
+     */
+    public static MemcacheServiceConfig withNearCache(long maxBytes, long maxAgeMillis) {
+      return withDefaults().nearCache(maxBytes, maxAgeMillis);
+    }
+
+    /**
+     * Helper method for creating a {@link MemcacheServiceConfig} instance with default values:
+     * values are serialized as by {@link MemcacheSerialization#serialize}, they are never
+     * compressed, and there is no near cache.
+     *
+     * @return The newly created MemcacheServiceConfig instance.
+     */
+    public static MemcacheServiceConfig withDefaults() {
+      return new MemcacheServiceConfig();
+    }
+
+    // Only utility methods, no need to instantiate.
+    private Builder() {}
+  }
+}
@@ -60,6 +60,22 @@ public class MemcacheServiceFactory {
     return getFactory().getMemcacheService(namespace);
   }
 
+  /**
+   * Similar to {@link #getMemcacheService(String)} but the returned service serializes values
+   * as configured by {@code config}: with the codecs it lists, and compressed above its
+   * compression threshold. Values written by such a service can be read by any other.
+   *
+   * @param namespace if not {@code null} forces the use of {@code namespace}
+   * for all operations in {@code MemcacheService}.
+   * @param config how the service serializes values.
+   *
+   * @return a new {@code MemcacheService} instance.
+   */
+  public static MemcacheService getMemcacheService(
+      String namespace, MemcacheServiceConfig config) {
+    return getFactory().getMemcacheService(namespace, config);
+  }
+
   /**
    * Similar to {@link #getMemcacheService()} but returns a handle to an
    * asynchronous version of the cache service.
@@ -76,6 +92,15 @@ public class MemcacheServiceFactory {
     return getFactory().getAsyncMemcacheService(namespace);
   }
 
+  /**
+   * Similar to {@link #getMemcacheService(String, MemcacheServiceConfig)} but returns a handle to
+   * an asynchronous version of the cache service.
+   */
+  public static AsyncMemcacheService getAsyncMemcacheService(
+      String namespace, MemcacheServiceConfig config) {
+    return getFactory().getAsyncMemcacheService(namespace, config);
+  }
+
   private MemcacheServiceFactory() {
     // non-instantiable
   }
@@ -31,4 +31,15 @@ final class MemcacheServiceFactoryImpl implements IMemcacheServiceFactory {
     return new AsyncMemcacheServiceImpl(namespace);
   }
 
+  @Override
+  public MemcacheService getMemcacheService(String namespace, MemcacheServiceConfig config) {
+    return new MemcacheServiceImpl(namespace, config);
+  }
+
+  @Override
+  public AsyncMemcacheService getAsyncMemcacheService(
+      String namespace, MemcacheServiceConfig config) {
+    return new AsyncMemcacheServiceImpl(namespace, config);
+  }
+
 }
@@ -35,6 +35,10 @@ class MemcacheServiceImpl implements MemcacheService {
     async = new AsyncMemcacheServiceImpl(namespace);
   }
 
+  MemcacheServiceImpl(String namespace, MemcacheServiceConfig config) {
+    async = new AsyncMemcacheServiceImpl(namespace, config);
+  }
+
   private static <T> T quietGet(Future<T> future) {
     try {
       return future.get();
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import com.google.protobuf.ByteString;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded in-process cache of serialized memcache values, consulted by {@link
+ * AsyncMemcacheServiceImpl} before it makes a Get RPC.
+ *
+ * <p>Entries are evicted in least recently used order once the total size of their keys and values
+ * exceeds the limit, and expire after the maximum age or at the expiration given when they were
+ * put, whichever comes first. Since other instances of the application can change the shared
+ * cache at any time, the maximum age bounds how stale a value read from here can be.
+ *
+ * <p>Writes made through the services sharing a near cache invalidate the keys they touch. Every
+ * invalidation also bumps a generation counter; a value fetched by an RPC is only added if no
+ * invalidation happened since the RPC was issued, so a slow Get can't resurrect a value that a
+ * concurrent put or delete replaced.
+ *
+ * <p>This class is thread-safe.
+ */
+final class NearCache {
+
+  /** A cached value, with the flags it was stored with. */
+  static final class Entry {
+    final ByteString value;
+    final int flags;
+    final long expiresAtMillis;
+    final long weight;
+
+    Entry(ByteString value, int flags, long expiresAtMillis, long weight) {
+      this.value = value;
+      this.flags = flags;
+      this.expiresAtMillis = expiresAtMillis;
+      this.weight = weight;
+    }
+  }
+
+  private static final class Key {
+    final String namespace;
+    final ByteString key;
+
+    Key(String namespace, ByteString key) {
+      this.namespace = namespace;
+      this.key = key;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return namespace.equals(other.namespace) && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(namespace, key);
+    }
+  }
+
+  private final long maxBytes;
+  private final long maxAgeMillis;
+  private final LongSupplier clock;
+
+  /** Guarded by this, in access order. */
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Guarded by this. */
+  private long totalBytes;
+
+  /** Guarded by this. */
+  private long generation;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  NearCache(long maxBytes, long maxAgeMillis) {
+    this(maxBytes, maxAgeMillis, System::currentTimeMillis);
+  }
+
+  NearCache(long maxBytes, long maxAgeMillis, LongSupplier clock) {
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    this.clock = clock;
+  }
+
+  /** Returns the live entry for {@code key}, or {@code null}. Counts as a hit or a miss. */
+  synchronized Entry get(String namespace, ByteString key) {
+    Key entryKey = new Key(namespace, key);
+    Entry entry = entries.get(entryKey);
+    if (entry != null && entry.expiresAtMillis <= clock.getAsLong()) {
+      remove(entryKey);
+      entry = null;
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the current generation, to be passed to {@link #put} with a value fetched by an RPC
+   * issued after this call.
+   */
+  synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * Adds a value, unless a key was invalidated since {@code generation} was obtained.
+   *
+   * @param expiration when the value expires in memcache, or {@code null} if it never does
+   */
+  synchronized void put(
+      String namespace,
+      ByteString key,
+      ByteString value,
+      int flags,
+      Expiration expiration,
+      long generation) {
+    if (generation == this.generation) {
+      add(new Key(namespace, key), value, flags, expiration);
+    }
+  }
+
+  /**
+   * Adds a value just written to memcache, unless a key was invalidated since {@code generation}
+   * was obtained, and discards the values of in-flight RPCs, which may have read the value it
+   * replaced.
+   *
+   * @param expiration when the value expires in memcache, or {@code null} if it never does
+   */
+  synchronized void putWritten(
+      String namespace,
+      ByteString key,
+      ByteString value,
+      int flags,
+      Expiration expiration,
+      long generation) {
+    Key entryKey = new Key(namespace, key);
+    if (generation == this.generation) {
+      this.generation++;
+      add(entryKey, value, flags, expiration);
+    } else {
+      remove(entryKey);
+    }
+  }
+
+  private void add(Key entryKey, ByteString value, int flags, Expiration expiration) {
+    remove(entryKey);
+    long weight = entryKey.key.size() + value.size();
+    if (weight > maxBytes) {
+      return;
+    }
+    long expiresAtMillis = clock.getAsLong() + maxAgeMillis;
+    if (expiration != null) {
+      expiresAtMillis = Math.min(expiresAtMillis, expiration.getMillisecondsValue());
+    }
+    entries.put(entryKey, new Entry(value, flags, expiresAtMillis, weight));
+    totalBytes += weight;
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (totalBytes > maxBytes) {
+      totalBytes -= eldest.next().weight;
+      eldest.remove();
+    }
+  }
+
+  /** Drops the value of {@code key}, if any, and discards the values of in-flight RPCs. */
+  synchronized void invalidate(String namespace, ByteString key) {
+    generation++;
+    remove(new Key(namespace, key));
+  }
+
+  /** Drops every value, and discards the values of in-flight RPCs. */
+  synchronized void invalidateAll() {
+    generation++;
+    entries.clear();
+    totalBytes = 0;
+  }
+
+  private void remove(Key key) {
+    Entry removed = entries.remove(key);
+    if (removed != null) {
+      totalBytes -= removed.weight;
+    }
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getMissCount() {
+    return misses.get();
+  }
+
+  synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+}
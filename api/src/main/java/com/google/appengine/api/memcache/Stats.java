@@ -52,4 +52,22 @@ public interface Stats {
    * Milliseconds since last access of least-recently-used live entry.
    */
   int getMaxTimeWithoutAccess();
+
+  /**
+   * The counter of {@link MemcacheService#get(Object)} and {@link
+   * MemcacheService#getAll(java.util.Collection)} lookups answered by the near cache of the
+   * service, or 0 if it has none. See {@link MemcacheServiceConfig#nearCache(long, long)}.
+   */
+  default long getNearCacheHitCount() {
+    return 0;
+  }
+
+  /**
+   * The counter of {@link MemcacheService#get(Object)} and {@link
+   * MemcacheService#getAll(java.util.Collection)} lookups that the near cache of the service could
+   * not answer, or 0 if it has none.
+   */
+  default long getNearCacheMissCount() {
+    return 0;
+  }
 }
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore.dev;
+
+import com.google.appengine.api.datastore.dev.LocalDatastoreService.VersionedEntity;
+import com.google.common.base.Supplier;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the writes applied to a {@link LocalDatastoreService}, used as its backing
+ * store in {@link LocalDatastoreService.PersistenceMode#LOG} mode.
+ *
+ * <p>The file holds a short header followed by records of the form {@code type, length, payload,
+ * crc32}, where the payload of a put or a delete is a commit timestamp followed by a serialized
+ * {@link EntityProto} or {@link Reference}. Writes are encoded when they are applied and queued in
+ * memory; {@link #flush} appends the queued records to the file, so the cost of persisting is
+ * proportional to the writes since the last flush rather than to the size of the datastore. Once
+ * the log has grown well past its last compacted size, {@link #compact} rewrites it with a single
+ * record per live entity.
+ *
+ * <p>{@link #replay} reads the records back in order. A truncated or corrupt tail, as left by a
+ * process that died in the middle of a flush, is dropped.
+ */
+final class DatastoreLog {
+  private static final Logger logger = Logger.getLogger(DatastoreLog.class.getName());
+
+  /** The first four bytes of a log file, "LDBL". */
+  private static final int MAGIC = 0x4c44424c;
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int HEADER_SIZE = 8;
+
+  /** Bytes taken by a record besides its payload: type, length and checksum. */
+  private static final int RECORD_OVERHEAD = 9;
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final byte ID_COUNTERS = 3;
+
+  /** A log is never compacted while it is smaller than this. */
+  static final long MIN_COMPACTION_SIZE = 4L * 1024 * 1024;
+
+  /** Receives the writes stored in a log, in the order they were applied. */
+  interface Replayer {
+    void put(EntityProto entity, long timestamp);
+
+    void delete(Reference key, long timestamp);
+
+    void setIdCounters(long sequential, long scattered);
+  }
+
+  private final File file;
+
+  /** Guards {@link #pending}. Never held while waiting on anything else. */
+  private final Object pendingLock = new Object();
+
+  /** Encoded records which have not been written to the file yet. */
+  private List<byte[]> pending = new ArrayList<>();
+
+  // The fields below are guarded by this.
+  private OutputStream out;
+  private long size;
+  private long compactedSize;
+  private long lastSequentialId = -1;
+  private long lastScatteredId = -1;
+
+  DatastoreLog(File file) {
+    this.file = file;
+  }
+
+  /** Returns true if {@code file} starts with a log header. */
+  static boolean isLog(File file) throws IOException {
+    if (file.length() < HEADER_SIZE) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return in.readInt() == MAGIC;
+    }
+  }
+
+  /**
+   * Replays the records of the log in {@code file} into {@code replayer}. If the log ends with an
+   * incomplete or corrupt record, the file is truncated to the last valid record.
+   */
+  static void replay(File file, Replayer replayer) throws IOException {
+    long validSize = HEADER_SIZE;
+    int records = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a datastore log");
+      }
+      int version = in.readInt();
+      if (version != FORMAT_VERSION) {
+        throw new IOException(String.format("Unsupported datastore log format [%d]", version));
+      }
+      CRC32 crc = new CRC32();
+      while (true) {
+        int type = in.read();
+        if (type < 0) {
+          break;
+        }
+        byte[] payload;
+        try {
+          int length = in.readInt();
+          if (length < 0 || length > file.length()) {
+            throw new IOException("Invalid record length " + length);
+          }
+          payload = new byte[length];
+          in.readFully(payload);
+          int checksum = in.readInt();
+          crc.reset();
+          crc.update(type);
+          crc.update(payload);
+          if ((int) crc.getValue() != checksum) {
+            throw new IOException("Record checksum mismatch");
+          }
+        } catch (IOException e) {
+          logger.log(
+              Level.WARNING,
+              String.format(
+                  "Dropping the incomplete tail of %s after %d records: %s",
+                  file, records, e.getMessage()));
+          break;
+        }
+        apply((byte) type, payload, replayer);
+        validSize += RECORD_OVERHEAD + payload.length;
+        records++;
+      }
+    }
+    if (validSize < file.length()) {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(validSize);
+      }
+    }
+  }
+
+  private static void apply(byte type, byte[] payload, Replayer replayer) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    switch (type) {
+      case PUT:
+        {
+          long timestamp = buffer.getLong();
+          EntityProto entity = new EntityProto();
+          if (!entity.parseFrom(payload, buffer.position(), buffer.remaining())) {
+            throw new IOException("Corrupt or incomplete EntityProto");
+          }
+          replayer.put(entity, timestamp);
+          break;
+        }
+      case DELETE:
+        {
+          long timestamp = buffer.getLong();
+          Reference key = new Reference();
+          if (!key.parseFrom(payload, buffer.position(), buffer.remaining())) {
+            throw new IOException("Corrupt or incomplete Reference");
+          }
+          replayer.delete(key, timestamp);
+          break;
+        }
+      case ID_COUNTERS:
+        replayer.setIdCounters(buffer.getLong(), buffer.getLong());
+        break;
+      default:
+        throw new IOException("Unknown datastore log record type " + type);
+    }
+  }
+
+  /** Opens an existing log, which has already been replayed, for appending. */
+  synchronized void open() throws IOException {
+    size = file.length();
+    compactedSize = size;
+    out = new BufferedOutputStream(new FileOutputStream(file, /* append= */ true));
+  }
+
+  /** Queues a put of {@code entity}, committed at {@code timestamp}. */
+  void recordPut(EntityProto entity, long timestamp) {
+    enqueue(encode(PUT, timestamp, entity.toByteArray()));
+  }
+
+  /** Queues a delete of the entity with the given {@code key}, committed at {@code timestamp}. */
+  void recordDelete(Reference key, long timestamp) {
+    enqueue(encode(DELETE, timestamp, key.toByteArray()));
+  }
+
+  private void enqueue(byte[] record) {
+    synchronized (pendingLock) {
+      pending.add(record);
+    }
+  }
+
+  private List<byte[]> drainPending() {
+    synchronized (pendingLock) {
+      List<byte[]> records = pending;
+      pending = new ArrayList<>();
+      return records;
+    }
+  }
+
+  /**
+   * Appends the queued records to the file, followed by the id allocation counters if they changed
+   * since they were last written.
+   */
+  synchronized void flush(long sequentialId, long scatteredId) throws IOException {
+    List<byte[]> records = drainPending();
+    if (sequentialId != lastSequentialId || scatteredId != lastScatteredId) {
+      records.add(encodeIdCounters(sequentialId, scatteredId));
+      lastSequentialId = sequentialId;
+      lastScatteredId = scatteredId;
+    }
+    if (records.isEmpty()) {
+      return;
+    }
+    if (out == null) {
+      throw new IOException("The datastore log " + file + " is not open");
+    }
+    for (byte[] record : records) {
+      out.write(record);
+      size += record.length;
+    }
+    out.flush();
+  }
+
+  /** Returns true if the log has grown enough since it was last compacted to be worth compacting. */
+  synchronized boolean needsCompaction() {
+    return size >= MIN_COMPACTION_SIZE && size > 2 * compactedSize;
+  }
+
+  /**
+   * Replaces the log with one holding a single put per entity returned by {@code entities} and
+   * opens it for appending.
+   *
+   * <p>The queued records are discarded: every write is queued after it has been applied to the
+   * datastore, so it is already reflected in {@code entities}, which is only called once the queue
+   * has been drained. Writes queued while the new log is written are kept and appended to it by
+   * the next {@link #flush}; replaying a write that the compacted log already reflects is harmless.
+   */
+  synchronized void compact(
+      Supplier<? extends Collection<VersionedEntity>> entities,
+      long sequentialId,
+      long scatteredId)
+      throws IOException {
+    drainPending();
+    File compacted = new File(file.getPath() + ".compact");
+    long compactedLength = HEADER_SIZE;
+    try (DataOutputStream compactedOut =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)))) {
+      compactedOut.writeInt(MAGIC);
+      compactedOut.writeInt(FORMAT_VERSION);
+      byte[] idCounters = encodeIdCounters(sequentialId, scatteredId);
+      compactedOut.write(idCounters);
+      compactedLength += idCounters.length;
+      for (VersionedEntity entity : entities.get()) {
+        byte[] record = encode(PUT, entity.version(), entity.entityProto().toByteArray());
+        compactedOut.write(record);
+        compactedLength += record.length;
+      }
+    }
+    close();
+    Files.move(
+        compacted.toPath(),
+        file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    lastSequentialId = sequentialId;
+    lastScatteredId = scatteredId;
+    open();
+  }
+
+  synchronized void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+
+  private static byte[] encode(byte type, long timestamp, byte[] proto) {
+    return encode(type, ByteBuffer.allocate(8 + proto.length).putLong(timestamp).put(proto));
+  }
+
+  private static byte[] encodeIdCounters(long sequentialId, long scatteredId) {
+    return encode(ID_COUNTERS, ByteBuffer.allocate(16).putLong(sequentialId).putLong(scatteredId));
+  }
+
+  private static byte[] encode(byte type, ByteBuffer payload) {
+    byte[] bytes = payload.array();
+    CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(bytes);
+    return ByteBuffer.allocate(RECORD_OVERHEAD + bytes.length)
+        .put(type)
+        .putInt(bytes.length)
+        .put(bytes)
+        .putInt((int) crc.getValue())
+        .array();
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.google.appengine.api.datastore.dev;
 
+import static com.google.appengine.api.datastore.DataTypeTranslator.getComparablePropertyValue;
 import static com.google.appengine.api.datastore.dev.Utils.checkRequest;
 import static com.google.appengine.api.datastore.dev.Utils.getKind;
 import static com.google.appengine.api.datastore.dev.Utils.getLastElement;
@@ -31,6 +32,7 @@ import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.dev.ReservedKinds;
 import com.google.appengine.api.datastore.DataTypeUtils;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityProtoComparators;
 import com.google.appengine.api.datastore.EntityProtoComparators.EntityProtoComparator;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.dev.LocalCompositeIndexManager.IndexConfigurationFormat;
@@ -74,6 +76,7 @@ import com.google.cloud.datastore.core.appengv3.converter.CursorModernizer;
 import com.google.cloud.datastore.core.exception.InvalidConversionException;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -127,7 +130,9 @@ import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.WeakHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -221,6 +226,12 @@ public abstract class LocalDatastoreService {
   /** True to put the datastore into "memory-only" mode. */
   public static final String NO_STORAGE_PROPERTY = "datastore.no_storage";
 
+  /**
+   * How the datastore is written to its backing store, one of {@link PersistenceMode}. Defaults to
+   * {@link PersistenceMode#SNAPSHOT}.
+   */
+  public static final String PERSISTENCE_MODE_PROPERTY = "datastore.persistence_mode";
+
   /**
    * The fully-qualifed name of a class that implements {@link HighRepJobPolicy} and has a no-arg
    * constructor. If not provided we use a {@link DefaultHighRepJobPolicy}. See the javadoc for this
@@ -330,6 +341,20 @@ public abstract class LocalDatastoreService {
     SCATTERED
   }
 
+  /** The set of supported values for {@link #PERSISTENCE_MODE_PROPERTY}. */
+  public static enum PersistenceMode {
+    /**
+     * The whole datastore is periodically rewritten to the backing store with Java serialization,
+     * blocking all datastore operations while it is written.
+     */
+    SNAPSHOT,
+    /**
+     * Writes are periodically appended to a log in the backing store, which is compacted once it
+     * has grown large enough. See {@link DatastoreLog}.
+     */
+    LOG
+  }
+
   // Important that these begin with 1, because 0 stands for "not assigned".
   private final AtomicLong entityIdSequential = new AtomicLong(1);
   private final AtomicLong entityIdScattered = new AtomicLong(1);
@@ -365,11 +390,21 @@ public abstract class LocalDatastoreService {
   protected abstract void addActionImpl(TaskQueueAddRequest action);
 
   /**
-   * Clear out the in-memory datastore. Note that this does not clear out any data that has been
-   * persisted on disk.
+   * Clear out the in-memory datastore. In {@link PersistenceMode#SNAPSHOT} mode this does not
+   * clear out any data that has been persisted on disk. In {@link PersistenceMode#LOG} mode the log
+   * is compacted to the now empty datastore, as replaying it would otherwise restore the cleared
+   * entities along with any written later.
    */
   public void clearProfiles() {
     profiles.clear();
+    DatastoreLog log = datastoreLog;
+    if (log != null) {
+      try {
+        compactLog(log);
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Unable to clear the datastore log", e);
+      }
+    }
   }
 
   /** Clear out the query history that we use for generating indexes. */
@@ -437,6 +472,11 @@ public abstract class LocalDatastoreService {
 
   private boolean noStorage;
 
+  private PersistenceMode persistenceMode = PersistenceMode.SNAPSHOT;
+
+  /** The log writes are appended to in {@link PersistenceMode#LOG} mode, once it is open. */
+  private DatastoreLog datastoreLog;
+
   /** The pseudoKinds known to this local datastore. */
   private PseudoKinds pseudoKinds;
 
@@ -467,6 +507,10 @@ public abstract class LocalDatastoreService {
       noStorage = Boolean.parseBoolean(noStorageProp);
     }
 
+    persistenceMode =
+        getEnumProperty(
+            properties, PersistenceMode.class, PERSISTENCE_MODE_PROPERTY, persistenceMode);
+
     if (storeFile == null && !noStorage) {
       File dir = GenerationDirectory.getGenerationDirectory(appDirectory);
       dir.mkdirs();
@@ -681,6 +725,7 @@ public abstract class LocalDatastoreService {
       // forward before we shut down.
       rollForwardAllUnappliedJobs();
       persist();
+      closeLog();
     }
 
     clearProfiles();
@@ -726,6 +771,10 @@ public abstract class LocalDatastoreService {
     this.noStorage = noStorage;
   }
 
+  public void setPersistenceMode(PersistenceMode persistenceMode) {
+    this.persistenceMode = persistenceMode;
+  }
+
   // TODO: Add a unit test for this.
   public void enableScatterProperty(boolean enable) {
     if (enable) {
@@ -1253,8 +1302,12 @@ public abstract class LocalDatastoreService {
         Extent extent = extents.get(query.getKind());
 
         if (extent != null) {
-          // Make a copy of the list of all the entities in the extent
-          versionedEntities = extent.getAllEntities();
+          // Use a property index to narrow down the entities when a filter allows it, otherwise
+          // make a copy of the list of all the entities in the extent.
+          versionedEntities = extent.getCandidateEntities(validatedQuery.getQuery().filters());
+          if (versionedEntities == null) {
+            versionedEntities = extent.getAllEntities();
+          }
         } else if (!query.hasKind()) {
           // Kind-less query, so we need a list containing all entities of
           // all kinds.
@@ -1850,12 +1903,37 @@ public abstract class LocalDatastoreService {
       logger.log(
           Level.INFO, "The backing store, " + path + ", does not exist. " + "It will be created.");
       backingStoreFile.getParentFile().mkdirs();
-      return;
+    } else {
+      long start = clock.getCurrentTime();
+      try {
+        // Either format is accepted regardless of the persistence mode, so that switching modes
+        // converts the backing store the next time it is written.
+        if (DatastoreLog.isLog(backingStoreFile)) {
+          replayLog(backingStoreFile);
+        } else {
+          loadSnapshot(backingStoreFile);
+        }
+        long end = clock.getCurrentTime();
+
+        logger.log(Level.INFO, "Time to load datastore: " + (end - start) + " ms");
+      } catch (FileNotFoundException e) {
+        // Should never happen, because we just checked for it
+        logger.log(Level.SEVERE, "Failed to find the backing store, " + path);
+        return;
+      } catch (IOException | ClassNotFoundException e) {
+        logger.log(Level.INFO, "Failed to load from the backing store, " + path, e);
+        // Don't start a log on top of a backing store that could not be read.
+        return;
+      }
+    }
+    if (persistenceMode == PersistenceMode.LOG) {
+      openLog(backingStoreFile);
     }
+  }
 
-    long start = clock.getCurrentTime();
+  private void loadSnapshot(File backingStoreFile) throws IOException, ClassNotFoundException {
     try (ObjectInputStream objectIn =
-        new ObjectInputStream(new BufferedInputStream(new FileInputStream(backingStore)))) {
+        new ObjectInputStream(new BufferedInputStream(new FileInputStream(backingStoreFile)))) {
 
       long version = -objectIn.readLong();
       if (version < 0) {
@@ -1872,17 +1950,99 @@ public abstract class LocalDatastoreService {
         profiles.clear();
         profiles.putAll(profilesOnDisk);
       }
-      long end = clock.getCurrentTime();
+    }
+  }
+
+  private void replayLog(File backingStoreFile) throws IOException {
+    clearProfiles();
+    DatastoreLog.replay(
+        backingStoreFile,
+        new DatastoreLog.Replayer() {
+          @Override
+          public void put(EntityProto entity, long timestamp) {
+            Profile profile = getOrCreateProfile(entity.getKey().getApp());
+            getOrCreateExtent(profile, getKind(entity.getKey()))
+                .putEntity(VersionedEntity.create(entity, timestamp));
+            profile.lastCommitTimestamp = Math.max(profile.lastCommitTimestamp, timestamp);
+          }
 
-      logger.log(Level.INFO, "Time to load datastore: " + (end - start) + " ms");
-    } catch (FileNotFoundException e) {
-      // Should never happen, because we just checked for it
-      logger.log(Level.SEVERE, "Failed to find the backing store, " + path);
-    } catch (IOException | ClassNotFoundException e) {
-      logger.log(Level.INFO, "Failed to load from the backing store, " + path, e);
+          @Override
+          public void delete(Reference key, long timestamp) {
+            Profile profile = getOrCreateProfile(key.getApp());
+            Extent extent = profile.getExtents().get(getKind(key));
+            if (extent != null) {
+              extent.removeEntity(key);
+            }
+            profile.lastCommitTimestamp = Math.max(profile.lastCommitTimestamp, timestamp);
+          }
+
+          @Override
+          public void setIdCounters(long sequential, long scattered) {
+            entityIdSequential.set(sequential);
+            entityIdScattered.set(scattered);
+          }
+        });
+  }
+
+  /**
+   * Opens the log that writes are appended to. A backing store that does not exist yet or that
+   * holds a snapshot is replaced by a log of the entities loaded from it.
+   */
+  private void openLog(File backingStoreFile) {
+    DatastoreLog log = new DatastoreLog(backingStoreFile);
+    try {
+      if (DatastoreLog.isLog(backingStoreFile)) {
+        log.open();
+      } else {
+        compactLog(log);
+      }
+      datastoreLog = log;
+    } catch (IOException e) {
+      logger.log(
+          Level.SEVERE,
+          "Unable to open the datastore log "
+              + backingStoreFile.getAbsolutePath()
+              + ", writes will not be persisted",
+          e);
     }
   }
 
+  private void closeLog() {
+    if (datastoreLog != null) {
+      try {
+        datastoreLog.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to close the datastore log", e);
+      }
+      datastoreLog = null;
+    }
+  }
+
+  private void compactLog(DatastoreLog log) throws IOException {
+    log.compact(
+        new Supplier<List<VersionedEntity>>() {
+          @Override
+          public List<VersionedEntity> get() {
+            return getAllVersionedEntities();
+          }
+        },
+        entityIdSequential.get(),
+        entityIdScattered.get());
+  }
+
+  /** Returns every entity of every profile, each profile being read consistently. */
+  private List<VersionedEntity> getAllVersionedEntities() {
+    List<Profile> allProfiles;
+    synchronized (profiles) {
+      allProfiles = new ArrayList<>(profiles.values());
+    }
+    List<VersionedEntity> entities = new ArrayList<>();
+    for (Profile profile : allProfiles) {
+      entities.addAll(profile.getAllEntities());
+    }
+    return entities;
+  }
+
   /** A profile for an application. Contains all the Extents owned by the application. */
   static class Profile implements Serializable {
 
@@ -2245,6 +2405,19 @@ public abstract class LocalDatastoreService {
      */
     private Map<Reference, Long> versions = new HashMap<>();
 
+    /**
+     * Single-property indexes over the entities of this extent, keyed by property name. Each index
+     * maps an indexed property value to the keys of the entities holding that value, ordered by
+     * {@link EntityProtoComparators#MULTI_TYPE_COMPARATOR} so that equality and inequality filters
+     * become range lookups instead of extent scans.
+     *
+     * <p>An index is built the first time a query filters on its property and is then maintained
+     * by {@link #putEntity} and {@link #removeEntity}. Indexes are transient: they are rebuilt on
+     * demand after the extent is deserialized or copied into a transaction snapshot.
+     */
+    private transient Map<String, NavigableMap<Comparable<Object>, Set<Reference>>>
+        propertyIndexes;
+
     /* Default serial version from 195 SDK. */
     private static final long serialVersionUID = 1199103439874512494L;
 
@@ -2279,13 +2452,123 @@ public abstract class LocalDatastoreService {
 
     public void removeEntity(Reference key) {
       versions.remove(key);
-      entities.remove(key);
+      EntityProto removed = entities.remove(key);
+      if (removed != null && hasPropertyIndexes()) {
+        updatePropertyIndexes(removed, /* add= */ false);
+      }
     }
 
     public void putEntity(VersionedEntity entity) {
       Reference key = entity.entityProto().getKey();
-      entities.put(key, entity.entityProto());
+      EntityProto previous = entities.put(key, entity.entityProto());
       versions.put(key, entity.version());
+      if (hasPropertyIndexes()) {
+        if (previous != null) {
+          updatePropertyIndexes(previous, /* add= */ false);
+        }
+        updatePropertyIndexes(entity.entityProto(), /* add= */ true);
+      }
+    }
+
+    /**
+     * Returns the entities that may satisfy {@code filters}, found through the single-property
+     * index of the most selective equality or inequality filter, or {@code null} if none of the
+     * filters can be answered from an index. The result is a superset of the matching entities, so
+     * callers must still apply the complete filter.
+     */
+    @Nullable
+    public Collection<VersionedEntity> getCandidateEntities(List<Query.Filter> filters) {
+      Map<String, IndexRange> ranges = new LinkedHashMap<>();
+      for (Query.Filter filter : filters) {
+        if (filter.propertySize() != 1) {
+          continue;
+        }
+        Property property = filter.getProperty(0);
+        if (property.getName().startsWith("__")) {
+          // __key__ and the other reserved properties are not stored on the entity.
+          continue;
+        }
+        IndexRange range = ranges.get(property.getName());
+        if (range == null) {
+          range = new IndexRange();
+          ranges.put(property.getName(), range);
+        }
+        if (!range.addFilter(filter.getOpEnum(), getComparablePropertyValue(property))) {
+          ranges.remove(property.getName());
+        }
+      }
+
+      Set<Reference> best = null;
+      for (Map.Entry<String, IndexRange> entry : ranges.entrySet()) {
+        Set<Reference> keys = entry.getValue().lookup(getPropertyIndex(entry.getKey()));
+        if (best == null || keys.size() < best.size()) {
+          best = keys;
+          if (best.isEmpty()) {
+            break;
+          }
+        }
+      }
+      if (best == null) {
+        return null;
+      }
+      List<VersionedEntity> candidates = new ArrayList<>(best.size());
+      for (Reference key : best) {
+        candidates.add(getEntityByKey(key));
+      }
+      return candidates;
+    }
+
+    private boolean hasPropertyIndexes() {
+      return propertyIndexes != null && !propertyIndexes.isEmpty();
+    }
+
+    private NavigableMap<Comparable<Object>, Set<Reference>> getPropertyIndex(String name) {
+      if (propertyIndexes == null) {
+        propertyIndexes = new HashMap<>();
+      }
+      NavigableMap<Comparable<Object>, Set<Reference>> index = propertyIndexes.get(name);
+      if (index == null) {
+        index = new TreeMap<>(EntityProtoComparators.MULTI_TYPE_COMPARATOR);
+        for (EntityProto entity : entities.values()) {
+          for (Property property : entity.propertys()) {
+            if (property.getName().equals(name)) {
+              addToIndex(index, property, entity.getKey());
+            }
+          }
+        }
+        propertyIndexes.put(name, index);
+      }
+      return index;
+    }
+
+    private void updatePropertyIndexes(EntityProto entity, boolean add) {
+      for (Property property : entity.propertys()) {
+        NavigableMap<Comparable<Object>, Set<Reference>> index =
+            propertyIndexes.get(property.getName());
+        if (index == null) {
+          continue;
+        }
+        if (add) {
+          addToIndex(index, property, entity.getKey());
+        } else {
+          Comparable<Object> value = getComparablePropertyValue(property);
+          Set<Reference> keys = index.get(value);
+          if (keys != null && keys.remove(entity.getKey()) && keys.isEmpty()) {
+            index.remove(value);
+          }
+        }
+      }
+    }
+
+    private static void addToIndex(
+        NavigableMap<Comparable<Object>, Set<Reference>> index, Property property, Reference key) {
+      Comparable<Object> value = getComparablePropertyValue(property);
+      Set<Reference> keys = index.get(value);
+      if (keys == null) {
+        keys = new HashSet<>();
+        index.put(value, keys);
+      }
+      keys.add(key);
     }
 
     /**
@@ -2369,6 +2652,93 @@ public abstract class LocalDatastoreService {
     }
   }
 
+  /**
+   * The values of a single property accepted by the equality and inequality filters of a query,
+   * expressed as a range over an {@link Extent} property index.
+   */
+  private static final class IndexRange {
+    private final List<Comparable<Object>> equalValues = new ArrayList<>();
+    private boolean hasMin;
+    private Comparable<Object> min;
+    private boolean minInclusive;
+    private boolean hasMax;
+    private Comparable<Object> max;
+    private boolean maxInclusive;
+
+    /**
+     * Adds a filter on the property. Returns false if the filter cannot be answered from a
+     * single-property index, in which case the property must not be used to select candidates.
+     */
+    boolean addFilter(Query.Filter.Operator op, Comparable<Object> value) {
+      switch (op) {
+        case EQUAL:
+          equalValues.add(value);
+          return true;
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQUAL:
+          {
+            boolean inclusive = op == Query.Filter.Operator.GREATER_THAN_OR_EQUAL;
+            int cmp = hasMin ? EntityProtoComparators.MULTI_TYPE_COMPARATOR.compare(value, min) : 1;
+            if (cmp > 0 || (cmp == 0 && !inclusive)) {
+              hasMin = true;
+              min = value;
+              minInclusive = inclusive;
+            }
+            return true;
+          }
+        case LESS_THAN:
+        case LESS_THAN_OR_EQUAL:
+          {
+            boolean inclusive = op == Query.Filter.Operator.LESS_THAN_OR_EQUAL;
+            int cmp = hasMax ? EntityProtoComparators.MULTI_TYPE_COMPARATOR.compare(value, max) : -1;
+            if (cmp < 0 || (cmp == 0 && !inclusive)) {
+              hasMax = true;
+              max = value;
+              maxInclusive = inclusive;
+            }
+            return true;
+          }
+        default:
+          return false;
+      }
+    }
+
+    /** Returns the keys of the entities with at least one value of the property in range. */
+    Set<Reference> lookup(NavigableMap<Comparable<Object>, Set<Reference>> index) {
+      if (!equalValues.isEmpty()) {
+        // An entity must hold every equality value, so any one of them bounds the result. The
+        // range is re-checked by the query predicate.
+        Set<Reference> smallest = null;
+        for (Comparable<Object> value : equalValues) {
+          Set<Reference> keys = index.get(value);
+          if (keys == null) {
+            return Collections.emptySet();
+          }
+          if (smallest == null || keys.size() < smallest.size()) {
+            smallest = keys;
+          }
+        }
+        return new HashSet<>(smallest);
+      }
+      NavigableMap<Comparable<Object>, Set<Reference>> range = index;
+      if (hasMin && hasMax) {
+        if (EntityProtoComparators.MULTI_TYPE_COMPARATOR.compare(min, max) > 0) {
+          return Collections.emptySet();
+        }
+        range = index.subMap(min, minInclusive, max, maxInclusive);
+      } else if (hasMin) {
+        range = index.tailMap(min, minInclusive);
+      } else if (hasMax) {
+        range = index.headMap(max, maxInclusive);
+      }
+      Set<Reference> keys = new HashSet<>();
+      for (Set<Reference> valueKeys : range.values()) {
+        keys.addAll(valueKeys);
+      }
+      return keys;
+    }
+  }
+
   /** A {@link LocalDatastoreJob} that puts and deletes a set of entities. */
   class WriteJob extends LocalDatastoreJob {
     private final Profile profile;
@@ -2461,12 +2831,18 @@ public abstract class LocalDatastoreService {
         Extent extent = profile.getExtents().get(getKind(key));
         if (extent != null) {
           extent.removeEntity(key);
+          if (datastoreLog != null) {
+            datastoreLog.recordDelete(key, timestamp);
+          }
         }
       }
       for (Map.Entry<Reference, EntityProto> entry : puts.entrySet()) {
         if (!isNoOpWrite(entry.getKey())) {
           Extent extent = getOrCreateExtent(profile, getKind(entry.getKey()));
           extent.putEntity(VersionedEntity.create(entry.getValue(), timestamp));
+          if (datastoreLog != null) {
+            datastoreLog.recordPut(entry.getValue(), timestamp);
+          }
         }
       }
       dirty = true;
@@ -2576,6 +2952,12 @@ public abstract class LocalDatastoreService {
     private final Map<Reference, Long> versions;
     private EntityProto lastResult = null;
     private int remainingOffset = 0;
+    /**
+     * Index in {@link #entities} of the next result to return. Results are consumed by advancing
+     * this position rather than by removing them from the front of the list, which would shift the
+     * remaining results on every batch.
+     */
+    private int position = 0;
 
     public LiveQuery(
         List<EntityProto> entities,
@@ -2639,10 +3021,11 @@ public abstract class LocalDatastoreService {
     }
 
     private int offsetResults(int offset) {
-      int realOffset = Math.min(Math.min(offset, entities.size()), MAX_QUERY_RESULTS);
+      int realOffset = Math.min(Math.min(offset, entities.size() - position), MAX_QUERY_RESULTS);
       if (realOffset > 0) {
-        lastResult = entities.get(realOffset - 1);
-        entities.subList(0, realOffset).clear();
+        lastResult = entities.get(position + realOffset - 1);
+        Collections.fill(entities.subList(position, position + realOffset), null);
+        position += realOffset;
         remainingOffset -= realOffset;
       }
       return realOffset;
@@ -2686,7 +3069,7 @@ public abstract class LocalDatastoreService {
           }
         }
       }
-      result.setMoreResults(!entities.isEmpty());
+      result.setMoreResults(position < this.entities.size());
       result.setKeysOnly(query.isKeysOnly());
       result.setIndexOnly(query.propertyNameSize() > 0);
       if (compile) {
@@ -2697,14 +3080,15 @@ public abstract class LocalDatastoreService {
 
     /** Removes and returns the given number of entities from the result set. */
     private List<EntityProto> removeEntities(int count) {
-      List<EntityProto> subList = entities.subList(0, Math.min(count, entities.size()));
+      int end = position + Math.min(count, entities.size() - position);
+      List<EntityProto> results = new ArrayList<>(entities.subList(position, end));
 
-      if (!subList.isEmpty()) {
-        lastResult = subList.get(subList.size() - 1);
+      if (!results.isEmpty()) {
+        lastResult = results.get(results.size() - 1);
+        // Release the returned entities, the live query may be kept around for a while.
+        Collections.fill(entities.subList(position, end), null);
       }
-
-      List<EntityProto> results = new ArrayList<>(subList);
-      subList.clear();
+      position = end;
 
       return results;
     }
@@ -3188,6 +3572,10 @@ public abstract class LocalDatastoreService {
   }
 
   private void persist() {
+    if (persistenceMode == PersistenceMode.LOG) {
+      persistLog();
+      return;
+    }
     globalLock.writeLock().lock();
     try {
       if (noStorage || !dirty) {
@@ -3221,6 +3609,31 @@ public abstract class LocalDatastoreService {
     }
   }
 
+  /**
+   * Appends the writes applied since the last call to the datastore log, and compacts the log if
+   * it has grown large enough. Unlike snapshot persistence this does not take the global lock, so
+   * datastore operations continue while the log is written; compaction only holds each profile
+   * lock long enough to list its entities.
+   */
+  private void persistLog() {
+    DatastoreLog log = datastoreLog;
+    if (noStorage || log == null) {
+      return;
+    }
+    try {
+      log.flush(entityIdSequential.get(), entityIdScattered.get());
+      if (log.needsCompaction()) {
+        long start = clock.getCurrentTime();
+        compactLog(log);
+        long end = clock.getCurrentTime();
+
+        logger.log(Level.INFO, "Time to compact datastore log: " + (end - start) + " ms");
+      }
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to save the datastore", e);
+    }
+  }
+
   /**
    * Triggers the stale query sweeper with a simulated delay sufficient to expire all active
    * queries.
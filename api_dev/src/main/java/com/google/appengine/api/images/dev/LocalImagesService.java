@@ -51,6 +51,10 @@ import com.google.appengine.tools.development.LocalServerEnvironment;
 import com.google.appengine.tools.development.LocalServiceContext;
 import com.google.apphosting.api.ApiProxy;
 import com.google.auto.service.AutoService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
 import java.awt.AlphaComposite;
 import java.awt.Composite;
@@ -65,6 +69,12 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
@@ -94,9 +104,66 @@ public final class LocalImagesService extends AbstractLocalRpcService {
    */
   public static final String PACKAGE = "images";
 
+  /**
+   * Init property that specifies, in bytes, how much memory may be used to cache images read from
+   * blobs. Three quarters of it hold decoded source images, and the rest the encoded outputs of
+   * transforms. 0 disables caching.
+   */
+  public static final String CACHE_SIZE = "LocalImagesService.cacheSize";
+
+  private static final long DEFAULT_CACHE_SIZE = 64L << 20; // 64 MB
+
   private BlobStorage blobStorage;
   private DatastoreService datastoreService;
 
+  // Decoded images by blob key, or null if caching is disabled. The images are shared, so they
+  // must not be modified: transforms always draw into new images.
+  private Cache<String, BufferedImage> decodedImages;
+  // Encoded transform outputs, or null if caching is disabled.
+  private Cache<OutputKey, ImageData> encodedOutputs;
+
+  /** Decodes the source images of composite requests in parallel. */
+  private static final class Decoders {
+    static final ExecutorService EXECUTOR =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("LocalImagesService decoder %d")
+                .build());
+  }
+
+  /**
+   * Identifies the output of a transform applied to a blob: the blob, the kind of request and the
+   * settings of that request other than its image.
+   */
+  private static final class OutputKey {
+    private final String blobKey;
+    private final String kind;
+    private final ByteString settings;
+
+    OutputKey(String blobKey, String kind, ByteString settings) {
+      this.blobKey = blobKey;
+      this.kind = kind;
+      this.settings = settings;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof OutputKey)) {
+        return false;
+      }
+      OutputKey that = (OutputKey) o;
+      return blobKey.equals(that.blobKey)
+          && kind.equals(that.kind)
+          && settings.equals(that.settings);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(blobKey, kind, settings);
+    }
+  }
+
   public LocalImagesService() {}
 
   /** {@inheritDoc} */
@@ -152,6 +219,38 @@ public final class LocalImagesService extends AbstractLocalRpcService {
     LocalServerEnvironment env = context.getLocalServerEnvironment();
     hostPrefix = "http://" + env.getAddress() + ":" + env.getPort();
     Log.debugLevel = Log.LEVEL_NONE;
+
+    long cacheSize = parseCacheSize(properties.get(CACHE_SIZE));
+    if (cacheSize > 0) {
+      decodedImages =
+          CacheBuilder.newBuilder()
+              .maximumWeight(cacheSize - cacheSize / 4)
+              .weigher(
+                  (String blobKey, BufferedImage image) ->
+                      Ints.saturatedCast(4L * image.getWidth() * image.getHeight()))
+              .build();
+      encodedOutputs =
+          CacheBuilder.newBuilder()
+              .maximumWeight(cacheSize / 4)
+              .weigher((OutputKey key, ImageData image) -> image.getContent().size())
+              .build();
+    } else {
+      decodedImages = null;
+      encodedOutputs = null;
+    }
+  }
+
+  private static long parseCacheSize(String value) {
+    if (value == null) {
+      return DEFAULT_CACHE_SIZE;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      log.warning(
+          "Invalid value for " + CACHE_SIZE + ": " + value + "; using " + DEFAULT_CACHE_SIZE);
+      return DEFAULT_CACHE_SIZE;
+    }
   }
 
   /** {@inheritDoc} */
@@ -171,6 +270,19 @@ public final class LocalImagesService extends AbstractLocalRpcService {
    */
   public ImagesTransformResponse transform(
       final Status status, final ImagesTransformRequest request) {
+    OutputKey outputKey = null;
+    if (encodedOutputs != null && request.getImage().hasBlobKey()) {
+      outputKey =
+          new OutputKey(
+              request.getImage().getBlobKey(),
+              "transform",
+              request.toBuilder().clearImage().buildPartial().toByteString());
+      ImageData cached = getCachedOutput(outputKey);
+      if (cached != null) {
+        status.setSuccessful(true);
+        return ImagesTransformResponse.newBuilder().setImage(cached).build();
+      }
+    }
     BufferedImage img = openImage(request.getImage(), status);
     if (request.getTransformCount() > ImagesService.MAX_TRANSFORMS_PER_REQUEST) {
       // TODO: Do we need to set both fields *and* throw an
@@ -252,9 +364,48 @@ public final class LocalImagesService extends AbstractLocalRpcService {
             .setWidth(img.getWidth())
             .setHeight(img.getHeight())
             .build();
+    if (outputKey != null) {
+      encodedOutputs.put(outputKey, imageData);
+    }
     return ImagesTransformResponse.newBuilder().setImage(imageData).build();
   }
 
+  /**
+   * Returns an image served from a blob, from the cache of transform outputs if it was already
+   * served with the same options, or from {@code encoder} otherwise.
+   *
+   * @param blobKey the blob the image is read from
+   * @param options the serving options which, with the blob, determine the encoded image
+   * @param encoder encodes the image if it is not cached
+   * @return the encoded image
+   * @throws ApiProxy.ApplicationException If the image cannot be opened, encoded, or if the
+   *     options are malformed
+   */
+  public byte[] getServingImage(String blobKey, String options, Supplier<byte[]> encoder) {
+    if (encodedOutputs == null) {
+      return encoder.get();
+    }
+    OutputKey outputKey = new OutputKey(blobKey, "serving", ByteString.copyFromUtf8(options));
+    ImageData cached = getCachedOutput(outputKey);
+    if (cached != null) {
+      return cached.getContent().toByteArray();
+    }
+    byte[] image = encoder.get();
+    encodedOutputs.put(
+        outputKey, ImageData.newBuilder().setContent(ByteString.copyFrom(image)).build());
+    return image;
+  }
+
+  /** Returns the cached output for {@code key}, or null if there is none or its blob is gone. */
+  private ImageData getCachedOutput(OutputKey key) {
+    ImageData cached = encodedOutputs.getIfPresent(key);
+    if (cached != null && !getBlobStorage().hasBlob(new BlobKey(key.blobKey))) {
+      encodedOutputs.invalidate(key);
+      return null;
+    }
+    return cached;
+  }
+
   /**
    * @param status RPC status
    * @param request request to be processed
@@ -262,10 +413,7 @@ public final class LocalImagesService extends AbstractLocalRpcService {
    */
   public ImagesCompositeResponse composite(
       final Status status, final ImagesCompositeRequest request) {
-    List<BufferedImage> images = new ArrayList<BufferedImage>(request.getImageCount());
-    for (int i = 0; i < request.getImageCount(); i++) {
-      images.add(openImage(request.getImage(i), status));
-    }
+    List<BufferedImage> images = openImages(request.getImageList(), status);
     if (request.getOptionsCount() > ImagesService.MAX_COMPOSITES_PER_REQUEST) {
       status.setSuccessful(false);
       status.setErrorCode(ErrorCode.BAD_TRANSFORM_DATA.getNumber());
@@ -302,6 +450,53 @@ public final class LocalImagesService extends AbstractLocalRpcService {
         .build();
   }
 
+  /**
+   * Loads several images, decoding them in parallel.
+   *
+   * @param imageDatas references to the images
+   * @param status RPC status
+   * @return the images, in the same order
+   * @throws ApiProxy.ApplicationException If one of the images cannot be opened. It is the
+   *     exception of the first such image.
+   */
+  private List<BufferedImage> openImages(List<ImageData> imageDatas, Status status) {
+    List<BufferedImage> images = new ArrayList<>(imageDatas.size());
+    if (imageDatas.size() < 2) {
+      for (ImageData imageData : imageDatas) {
+        images.add(openImage(imageData, status));
+      }
+      return images;
+    }
+    List<Future<BufferedImage>> decoded = new ArrayList<>(imageDatas.size());
+    for (ImageData imageData : imageDatas) {
+      decoded.add(Decoders.EXECUTOR.submit(() -> openImage(imageData, new Status())));
+    }
+    try {
+      for (Future<BufferedImage> image : decoded) {
+        images.add(image.get());
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ApiProxy.ApplicationException) {
+        ApiProxy.ApplicationException cause = (ApiProxy.ApplicationException) e.getCause();
+        status.setSuccessful(false);
+        status.setErrorCode(cause.getApplicationError());
+        throw cause;
+      }
+      status.setSuccessful(false);
+      status.setErrorCode(ErrorCode.UNSPECIFIED_ERROR.getNumber());
+      throw new ApiProxy.ApplicationException(
+          ErrorCode.UNSPECIFIED_ERROR.getNumber(), "Failed to read image");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ApiProxy.CancelledException(PACKAGE, "Composite");
+    } finally {
+      for (Future<BufferedImage> image : decoded) {
+        image.cancel(true);
+      }
+    }
+    return images;
+  }
+
   /**
    * Obtains the mime type of the image data.
    *
@@ -370,7 +565,8 @@ public final class LocalImagesService extends AbstractLocalRpcService {
   }
 
   /**
-   * Loads an image represented by a byte array into a {@link BufferedImage}.
+   * Loads an image represented by a byte array into a {@link BufferedImage}. Images stored as blobs
+   * are cached once decoded, so the image returned must not be modified.
    *
    * @param imageData A byte array representing an image
    * @param status RPC status
@@ -378,6 +574,23 @@ public final class LocalImagesService extends AbstractLocalRpcService {
    * @throws ApiProxy.ApplicationException If the image cannot be opened.
    */
   public BufferedImage openImage(ImageData imageData, Status status) {
+    if (decodedImages == null || !imageData.hasBlobKey()) {
+      return readImage(imageData, status);
+    }
+    String blobKey = imageData.getBlobKey();
+    BufferedImage img = decodedImages.getIfPresent(blobKey);
+    if (img != null) {
+      if (getBlobStorage().hasBlob(new BlobKey(blobKey))) {
+        return img;
+      }
+      decodedImages.invalidate(blobKey);
+    }
+    img = readImage(imageData, status);
+    decodedImages.put(blobKey, img);
+    return img;
+  }
+
+  private BufferedImage readImage(ImageData imageData, Status status) {
     InputStream in = null;
     try {
       try {
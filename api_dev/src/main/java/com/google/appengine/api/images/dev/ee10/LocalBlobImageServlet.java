@@ -264,6 +264,20 @@ public class LocalBlobImageServlet extends HttpServlet {
             .build();
 
     String originalMimeType = imagesService.getMimeType(imageData);
+    MIME_TYPE outputMimeType =
+        transcodeToPng.contains(originalMimeType) ? MIME_TYPE.PNG : MIME_TYPE.JPEG;
+    String options =
+        request.hasOptions() ? "s" + request.getResize() + (request.getCrop() ? "-c" : "") : "";
+    byte[] image =
+        imagesService.getServingImage(
+            request.getBlobKey(),
+            options,
+            () -> encodeImage(request, imageData, outputMimeType, unusedStatus));
+    return new Image(image, outputMimeType == MIME_TYPE.PNG ? "image/png" : "image/jpeg");
+  }
+
+  private byte[] encodeImage(
+      ParsedUrl request, ImageData imageData, MIME_TYPE outputMimeType, Status unusedStatus) {
     BufferedImage img = imagesService.openImage(imageData, unusedStatus);
 
     // Apply the transform
@@ -308,13 +322,6 @@ public class LocalBlobImageServlet extends HttpServlet {
       img = imagesService.processTransform(img, resizeXform, unusedStatus);
     }
 
-    MIME_TYPE outputMimeType = MIME_TYPE.JPEG;
-    String outputMimeTypeString = "image/jpeg";
-    if (transcodeToPng.contains(originalMimeType)) {
-      outputMimeType = MIME_TYPE.PNG;
-      outputMimeTypeString = "image/png";
-    }
-    return new Image(
-        imagesService.saveImage(img, outputMimeType, unusedStatus), outputMimeTypeString);
+    return imagesService.saveImage(img, outputMimeType, unusedStatus);
   }
 }
@@ -19,6 +19,7 @@ package com.google.appengine.api.log.dev;
 import com.google.appengine.tools.development.AbstractLocalRpcService;
 import com.google.appengine.tools.development.DevLogService;
 import com.google.appengine.tools.development.LocalRpcService;
+import com.google.appengine.tools.development.LocalServiceContext;
 import com.google.apphosting.api.logservice.LogServicePb.LogLine;
 import com.google.apphosting.api.logservice.LogServicePb.LogModuleVersion;
 import com.google.apphosting.api.logservice.LogServicePb.LogOffset;
@@ -31,14 +32,17 @@ import com.google.common.base.Splitter;
 import com.google.protobuf.ByteString;
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
-import java.util.Set;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.logging.Handler;
+import java.util.logging.Logger;
 import org.jspecify.annotations.Nullable;
 
 /**
@@ -47,20 +51,65 @@ import org.jspecify.annotations.Nullable;
  */
 @AutoService(LocalRpcService.class)
 public class LocalLogService extends AbstractLocalRpcService implements DevLogService {
+  private static final Logger logger = Logger.getLogger(LocalLogService.class.getName());
+
   private static final String DEFAULT_MODULE = "default";
 
+  /**
+   * Init property that specifies how many request logs are kept in memory. Once there are more,
+   * the oldest ones are dropped. The default is {@value #DEFAULT_MAX_REQUEST_LOGS}.
+   */
+  public static final String MAX_REQUEST_LOGS = "LocalLogService.maxRequestLogs";
+
+  // To conserve memory within the dev_appserver, we bound the number of logs
+  // that we can store. This constant specifies the default limit.
+  private static final int DEFAULT_MAX_REQUEST_LOGS = 1000;
+
   private static final ThreadLocal<Long> threadLocalResponseSize = new ThreadLocal<>();
 
-  // The in-memory list of the most recent MAX_NUM_LOGS seen by this
-  // application. Newest logs are stored at the beginning, to match the behavior
-  // seen in production.
-  // Lists do not automatically provide synchronized access - methods that
-  // add, delete, or read items from it should be synchronized.
-  private final List<RequestLog> logs = new ArrayList<>();
+  // The in-memory logs of the most recent requests seen by this application, indexed by request
+  // id, and by the order in which their request ids were first seen. Newest logs come first in
+  // logsBySequence, to match the behavior seen in production. Logs are kept as builders so that
+  // app log lines are appended in place. Methods that add, delete, or read logs should be
+  // synchronized.
+  private final Map<String, StoredLog> logsById = new HashMap<>();
+  private final NavigableMap<Long, StoredLog> logsBySequence =
+      new TreeMap<>(Collections.reverseOrder());
+  private long nextSequence;
+  private int maxRequestLogs = DEFAULT_MAX_REQUEST_LOGS;
+
+  /** A request log, with the position of its request id in the order they were first seen. */
+  private static final class StoredLog {
+    final long sequence;
+    final RequestLog.Builder log;
+
+    StoredLog(long sequence, RequestLog.Builder log) {
+      this.sequence = sequence;
+      this.log = log;
+    }
+  }
 
-  // To conserve memory within the dev_appserver, we bound the number of logs
-  // that we can store. This constant specifies that limit.
-  private static final int MAX_NUM_LOGS = 1000;
+  @Override
+  public void init(LocalServiceContext context, Map<String, String> properties) {
+    String value = properties.get(MAX_REQUEST_LOGS);
+    if (value != null) {
+      try {
+        int max = Integer.parseInt(value.trim());
+        if (max <= 0) {
+          throw new NumberFormatException("must be positive");
+        }
+        setMaxRequestLogs(max);
+      } catch (NumberFormatException e) {
+        logger.warning(
+            "Invalid value for " + MAX_REQUEST_LOGS + ": " + value + "; using "
+                + DEFAULT_MAX_REQUEST_LOGS);
+      }
+    }
+  }
+
+  private synchronized void setMaxRequestLogs(int maxRequestLogs) {
+    this.maxRequestLogs = maxRequestLogs;
+  }
 
   /**
    * @return The package name associated with this API.
@@ -82,54 +131,39 @@ public class LocalLogService extends AbstractLocalRpcService implements DevLogSe
    */
   public synchronized LogReadResponse read(Status status, LogReadRequest request) {
     LogReadResponse.Builder response = LogReadResponse.newBuilder();
-    Integer index = 0;
 
-    Set<ByteString> requestedIds = null;
+    // Requested ids are looked up directly, rather than by scanning every log.
+    NavigableMap<Long, StoredLog> candidates = logsBySequence;
     if (!request.getRequestIdList().isEmpty()) {
-      requestedIds = new HashSet<>(request.getRequestIdList());
+      candidates = new TreeMap<>(Collections.reverseOrder());
+      for (ByteString requestId : request.getRequestIdList()) {
+        StoredLog stored = logsById.get(requestId.toStringUtf8());
+        if (stored != null) {
+          candidates.put(stored.sequence, stored);
+        }
+      }
     }
 
-    // If the user gave us a request ID to start with, look through our logs
-    // until we find it. Since it may have been deleted between the time they
+    // If the user gave us a request ID to start with, continue with the log
+    // that follows it. Since it may have been deleted between the time they
     // originally were given that value and now, any value with a timestamp
     // after this one is acceptable.
     if (request.hasOffset()) {
-      index = null;
-      BigInteger requestToFind =
-          new BigInteger(request.getOffset().getRequestId().toStringUtf8(), 16);
-      for (int i = 0; i < logs.size(); i++) {
-        BigInteger thisRequestId = new BigInteger(logs.get(i).getRequestId().toStringUtf8(), 16);
-        if (requestToFind.compareTo(thisRequestId) > 0) {
-          index = i;
-          break;
-        }
-      }
+      Long startAfter = findOffsetSequence(request.getOffset().getRequestId().toStringUtf8());
 
       // There is an unlikely scenario that can occur if the user is promised
       // more logs but before they ask for more, they are all deleted. In this
       // scenario, return a response to them with no logs and no offset, so
       // that they don't ask us for any more logs.
-      if (index == null) {
+      if (startAfter == null) {
         return response.build();
       }
+      candidates = candidates.tailMap(startAfter, false);
     }
 
     int numResultsFetched = 0;
-    for (int i = index; i < logs.size(); i++) {
-      RequestLog thisLog = null;
-      int j = 0;
-      for (RequestLog log : logs) {
-        if (i == j) {
-          thisLog = log;
-          break;
-        }
-        j++;
-      }
-
-      if (requestedIds != null &&
-          !requestedIds.contains(thisLog.getRequestId())) {
-        continue;
-      }
+    for (Iterator<StoredLog> iterator = candidates.values().iterator(); iterator.hasNext(); ) {
+      RequestLog.Builder thisLog = iterator.next().log;
 
       // We want to get all logs that have started within the bounds the user
       // has requested, so check the request's starting time (not its ending
@@ -196,7 +230,7 @@ public class LocalLogService extends AbstractLocalRpcService implements DevLogSe
       // se we are filling mandatory fields with dummy data, so we do not need to change the
       // official
       // log service implementation.
-      RequestLog.Builder logCopy = thisLog.toBuilder().clone();
+      RequestLog.Builder logCopy = thisLog.clone();
       fillRequiredFields(logCopy);
 
       if (!request.getIncludeAppLogs()) {
@@ -211,8 +245,8 @@ public class LocalLogService extends AbstractLocalRpcService implements DevLogSe
       if (numResultsFetched >= request.getCount()) {
         // If there are more results, set the offset to the next result's
         // request id
-        if (i + 1 < logs.size()) {
-          ByteString nextOffset = logs.get(i).getRequestId();
+        if (iterator.hasNext()) {
+          ByteString nextOffset = thisLog.getRequestId();
           LogOffset offset = LogOffset.newBuilder().setRequestId(nextOffset).build();
           response.setOffset(offset);
         }
@@ -223,6 +257,27 @@ public class LocalLogService extends AbstractLocalRpcService implements DevLogSe
     return response.build();
   }
 
+  /**
+   * Returns the sequence number after which logs should be read to continue from {@code
+   * requestId}, or null if there are no more logs to read.
+   */
+  private @Nullable Long findOffsetSequence(String requestId) {
+    StoredLog offsetLog = logsById.get(requestId);
+    if (offsetLog != null) {
+      return offsetLog.sequence;
+    }
+    // The log was dropped or cleared since the offset was handed out, so continue with the newest
+    // log that has an older request id.
+    BigInteger requestToFind = new BigInteger(requestId, 16);
+    for (StoredLog stored : logsBySequence.values()) {
+      BigInteger thisRequestId = new BigInteger(stored.log.getRequestId().toStringUtf8(), 16);
+      if (requestToFind.compareTo(thisRequestId) > 0) {
+        return stored.sequence + 1;
+      }
+    }
+    return null;
+  }
+
   private void fillRequiredFields(RequestLog.Builder logBuilder) {
     // At this point, logBuilder proto might only be partial, which is fine in dev mode
     // (difference between proto1 and proto2),
@@ -331,11 +386,8 @@ public class LocalLogService extends AbstractLocalRpcService implements DevLogSe
       @Nullable Integer status,
       @Nullable String referrer) {
 
-    // Find where log with given requestid is or create one.
-    RequestLog existingOrNewLog = findLogInLogMapOrAddNewLog(requestId);
-    int index = logs.indexOf(existingOrNewLog);
-
-    RequestLog.Builder log = existingOrNewLog.toBuilder().setAppId(appId);
+    // Find the log with given requestid or create one, and update it in place.
+    RequestLog.Builder log = findLogInLogMapOrAddNewLog(requestId).setAppId(appId);
 
     // Set the version id to be just the major version id
     String majorVersionId = Splitter.on('.').splitToList(versionId).get(0);
@@ -371,9 +423,6 @@ public class LocalLogService extends AbstractLocalRpcService implements DevLogSe
 
     // Required proto2 fields...
     log.setUrlMapEntry("").setFinished(complete);
-
-    // Replace element in the existing list, while keeping position.
-    logs.set(index, log.build());
   }
 
   public synchronized void addAppLogLine(String requestId, long time, int level,
@@ -384,47 +433,41 @@ public class LocalLogService extends AbstractLocalRpcService implements DevLogSe
     }
     LogLine line =
         LogLine.newBuilder().setTime(time).setLevel(level).setLogMessage(message).build();
-    int index = logs.indexOf(findLogInLogMapOrAddNewLog(requestId));
-
-    RequestLog log = findLogInLogMapOrAddNewLog(requestId).toBuilder().addLine(line).buildPartial();
-    // Replace element in the existing list, while keeping position.
-    logs.set(index, log);
+    findLogInLogMapOrAddNewLog(requestId).addLine(line);
   }
 
-  private synchronized RequestLog findLogInLogMapOrAddNewLog(String requestId) {
+  private synchronized RequestLog.Builder findLogInLogMapOrAddNewLog(String requestId) {
     if (requestId == null) {
       requestId = "null";
     }
 
-    // TODO: This should be a LinkedHashMap, or we should at
-    // least be using a binary search search here since they're
-    // assumed to be sorted by requestId.
-    for (int i = 0; i < logs.size(); i++) {
-      RequestLog possibleLog = logs.get(i);
-      if (possibleLog.getRequestId().toStringUtf8().equals(requestId)) {
-        return possibleLog;
-      }
+    StoredLog existing = logsById.get(requestId);
+    if (existing != null) {
+      return existing.log;
     }
 
-    /* Items are sorted in descending order w.r.t. request id. Since request ids
-     * are monotonically increasing, this means that the new request id we're
-     * about to generate will have the largest value ever seen in the log list,
-     * so put it at the beginning of the list. Lists also are not
-     * thread-safe for adds and deletes, so synchronize access to it. */
+    /* Since request ids are monotonically increasing, the new request id is
+     * the newest one seen, so it gets the highest sequence number, which puts
+     * it at the beginning of logsBySequence. */
     // Fill with required fields with dummy data that will be replaced later anyway.
-    RequestLog.Builder log =
-        RequestLog.newBuilder().setRequestId(ByteString.copyFromUtf8(requestId)).setFinished(false);
     LogOffset offset =
         LogOffset.newBuilder().setRequestId(ByteString.copyFromUtf8(requestId)).build();
-    RequestLog built = log.setOffset(offset).buildPartial();
-    logs.add(0, built);
-
-    // If there are too many logs stored, remove the oldest (last) one.
-    if (logs.size() > MAX_NUM_LOGS) {
-      logs.remove(logs.size() - 1);
+    RequestLog.Builder log =
+        RequestLog.newBuilder()
+            .setRequestId(ByteString.copyFromUtf8(requestId))
+            .setFinished(false)
+            .setOffset(offset);
+    StoredLog stored = new StoredLog(nextSequence++, log);
+    logsById.put(requestId, stored);
+    logsBySequence.put(stored.sequence, stored);
+
+    // If there are too many logs stored, remove the oldest (last) ones.
+    while (logsBySequence.size() > maxRequestLogs) {
+      StoredLog oldest = logsBySequence.pollLastEntry().getValue();
+      logsById.remove(oldest.log.getRequestId().toStringUtf8());
     }
 
-    return built;
+    return log;
   }
 
   /**
@@ -535,6 +578,7 @@ public class LocalLogService extends AbstractLocalRpcService implements DevLogSe
    * Clears out the internal logs stored.
    */
   public synchronized void clear() {
-    logs.clear();
+    logsById.clear();
+    logsBySequence.clear();
   }
 }
@@ -54,6 +54,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Java bindings for the local Memcache service. The local cache will by default hold up to 100Mb of
@@ -61,6 +62,12 @@ import java.util.concurrent.atomic.AtomicLong;
  * memcache.maxsize}, set in megabytes ("100M"), in kilobytes ("102400K"), or in bytes
  * ("104857600").
  *
+ * <p>The cache is split into {@link #SEGMENT_COUNT} segments by hashing the namespace and key of
+ * each entry. Every segment has its own lock and LRU chain, so operations on different keys rarely
+ * contend; an operation on a single key, including increments and compare-and-swap, is atomic.
+ * When the cache is over its size limit, the least recently used entry across all segments is
+ * evicted.
+ *
  */
 @AutoService(LocalRpcService.class)
 public final class LocalMemcacheService extends AbstractLocalRpcService {
@@ -79,6 +86,15 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
   // around.  See //depot/google3/cacheserving/memcacheg/server/item.cc.
   private final AtomicLong globalNextCasId;
 
+  /** The number of segments the cache is split into. Must be a power of two. */
+  private static final int SEGMENT_COUNT = 16;
+
+  /**
+   * Source of {@link CacheEntry#lruStamp}. Stamps order entry accesses across segments, which the
+   * clock can't do on its own since several accesses often happen in the same millisecond.
+   */
+  private final AtomicLong lruClock = new AtomicLong();
+
   /**
    * A single entry in the cache.
    *
@@ -96,6 +112,9 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     /** Access time in milliseconds-since-epoch */
     public long access;
 
+    /** Position of the last access among all accesses, see {@link #lruClock}. */
+    long lruStamp;
+
     public long bytes;
 
     /** "compare-and-swap" ID. See comments in <internal9>. */
@@ -151,62 +170,75 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
   }
 
   private class LocalStats {
-    private long hits;
-    private long misses;
-    private long hitBytes;
-    private long itemCount;
-    private long totalBytes;
-
-    private LocalStats(long hits, long misses, long hitBytes, long itemCount, long totalBytes) {
-      this.hits = hits;
-      this.misses = misses;
-      this.hitBytes = hitBytes;
-      this.itemCount = itemCount;
-      this.totalBytes = totalBytes;
-    }
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong hitBytes = new AtomicLong();
+    private final AtomicLong itemCount = new AtomicLong();
+    private final AtomicLong totalBytes = new AtomicLong();
 
     public MergedNamespaceStats getAsMergedNamespaceStats() {
       return MergedNamespaceStats.newBuilder()
-          .setHits(hits)
-          .setMisses(misses)
-          .setByteHits(hitBytes)
-          .setBytes(totalBytes)
-          .setItems(itemCount)
+          .setHits(hits.get())
+          .setMisses(misses.get())
+          .setByteHits(hitBytes.get())
+          .setBytes(totalBytes.get())
+          .setItems(itemCount.get())
           .setOldestItemAge(getMaxSecondsWithoutAccess())
           .build();
     }
 
     public int getMaxSecondsWithoutAccess() {
-      if (lru.isEmpty()) {
+      CacheEntry entry = null;
+      for (Segment segment : segments) {
+        segment.lock.lock();
+        try {
+          CacheEntry oldest = segment.lru.getOldest();
+          if (oldest != null && (entry == null || oldest.lruStamp < entry.lruStamp)) {
+            entry = oldest;
+          }
+        } finally {
+          segment.lock.unlock();
+        }
+      }
+      if (entry == null) {
         return 0; // no entries
       }
-      CacheEntry entry = lru.getOldest();
       return (int) ((clock.getCurrentTime() - entry.access) / 1000);
     }
 
     public void recordHit(CacheEntry ce) {
-      hits++;
-      hitBytes += ce.bytes;
+      hits.incrementAndGet();
+      hitBytes.addAndGet(ce.bytes);
     }
 
     public void recordMiss() {
-      misses++;
+      misses.incrementAndGet();
     }
 
+    /**
+     * Records the addition of an entry. Callers must call {@link #evictIfNeeded} once they no
+     * longer hold a segment lock.
+     */
     public void recordAdd(CacheEntry ce) {
-      itemCount++;
-      totalBytes += ce.bytes;
-      while (totalBytes > maxSize) {
-        CacheEntry oldest = lru.getOldest();
-        internalDelete(oldest.namespace, oldest.key);
-        itemCount--;
-        totalBytes -= oldest.bytes;
-      }
+      itemCount.incrementAndGet();
+      totalBytes.addAndGet(ce.bytes);
     }
 
     public void recordDelete(CacheEntry ce) {
-      itemCount--;
-      totalBytes -= ce.bytes;
+      itemCount.decrementAndGet();
+      totalBytes.addAndGet(-ce.bytes);
+    }
+
+    public boolean isOverLimit() {
+      return totalBytes.get() > maxSize;
+    }
+
+    public void reset() {
+      hits.set(0);
+      misses.set(0);
+      hitBytes.set(0);
+      itemCount.set(0);
+      totalBytes.set(0);
     }
   }
 
@@ -240,74 +272,130 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     }
   }
 
-  private LRU<CacheEntry> lru;
-  private final Map<String, Map<Key, CacheEntry>> mockCache;
-  private final Map<String, Map<Key, Long>> deleteHold;
-  private long maxSize;
-  private LocalStats stats;
-  private Clock clock;
-
-  public LocalMemcacheService() {
-    lru = new LRU<CacheEntry>();
-    mockCache = new HashMap<String, Map<Key, CacheEntry>>();
-    deleteHold = new HashMap<String, Map<Key, Long>>();
-    stats = new LocalStats(0, 0, 0, 0, 0);
-    globalNextCasId = new AtomicLong(1);
-  }
-
-  private <K1, K2, V> Map<K2, V> getOrMakeSubMap(Map<K1, Map<K2, V>> map, K1 key) {
-    Map<K2, V> subMap = map.get(key);
-    if (subMap == null) {
-      subMap = new HashMap<K2, V>();
-      map.put(key, subMap);
-    }
-    return subMap;
-  }
-
-  private CacheEntry getWithExpiration(String namespace, Key key) {
-    CacheEntry entry;
-    synchronized (mockCache) {
-      entry = getOrMakeSubMap(mockCache, namespace).get(key);
+  /**
+   * A shard of the cache. Holds the entries, delete holds and LRU chain of the keys which hash to
+   * it. All of its state is guarded by {@link #lock}. No other segment lock may be acquired while
+   * holding it, except by {@link #flushAll}, which takes all of them in index order.
+   */
+  private class Segment {
+    final ReentrantLock lock = new ReentrantLock();
+    final Map<String, Map<Key, CacheEntry>> entries = new HashMap<String, Map<Key, CacheEntry>>();
+    final Map<String, Map<Key, Long>> deleteHold = new HashMap<String, Map<Key, Long>>();
+    final LRU<CacheEntry> lru = new LRU<CacheEntry>();
+
+    CacheEntry getWithExpiration(String namespace, Key key) {
+      Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(entries, namespace);
+      CacheEntry entry = namespaceMap.get(key);
       if (entry != null) {
         if (entry.expires == 0 || clock.getCurrentTime() < entry.expires) {
           entry.access = clock.getCurrentTime();
-          lru.update(entry);
+          touch(entry);
           return entry;
         }
         // Clean up expired item.
-        getOrMakeSubMap(mockCache, namespace).remove(key);
+        namespaceMap.remove(key);
         lru.remove(entry);
         stats.recordDelete(entry);
       }
+      return null;
     }
-    return null;
-  }
 
-  private CacheEntry internalDelete(String namespace, Key key) {
-    CacheEntry ce;
-    synchronized (mockCache) {
-      ce = getOrMakeSubMap(mockCache, namespace).remove(key);
+    CacheEntry delete(String namespace, Key key) {
+      CacheEntry ce = getOrMakeSubMap(entries, namespace).remove(key);
       if (ce != null) {
         lru.remove(ce);
+        stats.recordDelete(ce);
       }
+      return ce;
     }
-    return ce;
-  }
 
-  private void internalSet(String namespace, Key key, CacheEntry entry) {
-    synchronized (mockCache) {
-      Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(mockCache, namespace);
-      CacheEntry old = namespaceMap.get(key);
+    void set(String namespace, Key key, CacheEntry entry) {
+      CacheEntry old = getOrMakeSubMap(entries, namespace).put(key, entry);
       if (old != null) {
         // The old entry is no longer valid so remove it from the LRU. The new entry will take its
         // place when we add it below.
         lru.remove(old);
         stats.recordDelete(old);
       }
-      namespaceMap.put(key, entry);
-      lru.update(entry);
+      touch(entry);
       stats.recordAdd(entry);
     }
+
+    void touch(CacheEntry entry) {
+      entry.lruStamp = lruClock.incrementAndGet();
+      lru.update(entry);
+    }
+
+    void clear() {
+      entries.clear();
+      deleteHold.clear();
+      lru.clear();
+    }
+  }
+
+  private final Segment[] segments;
+  private long maxSize;
+  private final LocalStats stats;
+  private Clock clock;
+
+  public LocalMemcacheService() {
+    segments = new Segment[SEGMENT_COUNT];
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i] = new Segment();
+    }
+    stats = new LocalStats();
+    globalNextCasId = new AtomicLong(1);
+  }
+
+  private <K1, K2, V> Map<K2, V> getOrMakeSubMap(Map<K1, Map<K2, V>> map, K1 key) {
+    Map<K2, V> subMap = map.get(key);
+    if (subMap == null) {
+      subMap = new HashMap<K2, V>();
+      map.put(key, subMap);
+    }
+    return subMap;
+  }
+
+  private Segment segmentFor(String namespace, Key key) {
+    int hash = namespace.hashCode() * 31 + key.hashCode();
+    hash ^= hash >>> 16;
+    return segments[hash & (SEGMENT_COUNT - 1)];
+  }
+
+  /**
+   * Evicts the least recently used entries, across all segments, until the cache fits within its
+   * size limit. Must not be called while holding a segment lock.
+   */
+  private void evictIfNeeded() {
+    while (stats.isOverLimit()) {
+      Segment oldestSegment = null;
+      long oldestStamp = Long.MAX_VALUE;
+      for (Segment segment : segments) {
+        segment.lock.lock();
+        try {
+          CacheEntry oldest = segment.lru.getOldest();
+          if (oldest != null && oldest.lruStamp < oldestStamp) {
+            oldestSegment = segment;
+            oldestStamp = oldest.lruStamp;
+          }
+        } finally {
+          segment.lock.unlock();
+        }
+      }
+      if (oldestSegment == null) {
+        return;
+      }
+      oldestSegment.lock.lock();
+      try {
+        CacheEntry oldest = oldestSegment.lru.getOldest();
+        // If the entry was touched in the meantime, look for the oldest entry again.
+        if (oldest != null && oldest.lruStamp == oldestStamp) {
+          oldestSegment.delete(oldest.namespace, oldest.key);
+        }
+      } finally {
+        oldestSegment.lock.unlock();
+      }
+    }
   }
 
   @Override
@@ -358,27 +446,34 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
 
   public MemcacheGetResponse get(Status status, MemcacheGetRequest req) {
     MemcacheGetResponse.Builder result = MemcacheGetResponse.newBuilder();
+    final String namespace = req.getNameSpace();
 
     for (int i = 0; i < req.getKeyCount(); i++) {
       // our key is always a SHA1 hashcode
       Key key = new Key(req.getKey(i).toByteArray());
-      CacheEntry entry = getWithExpiration(req.getNameSpace(), key);
-      if (entry == null) {
-        stats.recordMiss();
-      } else {
-        stats.recordHit(entry);
-        MemcacheGetResponse.Item.Builder item = MemcacheGetResponse.Item.newBuilder();
+      Segment segment = segmentFor(namespace, key);
+      segment.lock.lock();
+      try {
+        CacheEntry entry = segment.getWithExpiration(namespace, key);
+        if (entry == null) {
+          stats.recordMiss();
+        } else {
+          stats.recordHit(entry);
+          MemcacheGetResponse.Item.Builder item = MemcacheGetResponse.Item.newBuilder();
 
-        item.setKey(ByteString.copyFrom(key.getBytes()))
-            .setFlags(entry.flags)
-            .setValue(ByteString.copyFrom(entry.value));
+          item.setKey(ByteString.copyFrom(key.getBytes()))
+              .setFlags(entry.flags)
+              .setValue(ByteString.copyFrom(entry.value));
 
-        if (req.hasForCas() && req.getForCas()) {
-          entry.markWithCasId();
-          item.setCasId(entry.getCasId());
-        }
+          if (req.hasForCas() && req.getForCas()) {
+            entry.markWithCasId();
+            item.setCasId(entry.getCasId());
+          }
 
-        result.addItem(item.build());
+          result.addItem(item.build());
+        }
+      } finally {
+        segment.lock.unlock();
       }
     }
     status.setSuccessful(true);
@@ -393,23 +488,25 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
       MemcacheSetRequest.Item item = req.getItem(i);
       Key key = new Key(item.getKey().toByteArray());
       SetPolicy policy = item.getSetPolicy();
-      Map<Key, Long> timeoutMap = getOrMakeSubMap(deleteHold, namespace);
-      Long timeout = timeoutMap.get(key);
+      Segment segment = segmentFor(namespace, key);
+      segment.lock.lock();
+      try {
+        Map<Key, Long> timeoutMap = getOrMakeSubMap(segment.deleteHold, namespace);
+        Long timeout = timeoutMap.get(key);
 
-      if (timeout != null && policy == SetPolicy.SET) {
-        // A SET operation overrides and clears any timeout that may exist
-        timeout = null;
-        timeoutMap.remove(key);
-      }
+        if (timeout != null && policy == SetPolicy.SET) {
+          // A SET operation overrides and clears any timeout that may exist
+          timeout = null;
+          timeoutMap.remove(key);
+        }
 
-      if ((timeout != null && clock.getCurrentTime() < timeout)
-          || (policy == SetPolicy.CAS && !item.hasCasId())) {
-        result.addSetStatus(SetStatusCode.NOT_STORED);
-        continue;
-      }
+        if ((timeout != null && clock.getCurrentTime() < timeout)
+            || (policy == SetPolicy.CAS && !item.hasCasId())) {
+          result.addSetStatus(SetStatusCode.NOT_STORED);
+          continue;
+        }
 
-      synchronized (mockCache) {
-        CacheEntry existingEntry = getWithExpiration(namespace, key);
+        CacheEntry existingEntry = segment.getWithExpiration(namespace, key);
         if ((policy == SetPolicy.REPLACE && existingEntry == null)
             || (policy == SetPolicy.ADD && existingEntry != null)
             || (policy == SetPolicy.CAS && existingEntry == null)) {
@@ -422,15 +519,17 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
           byte[] value = item.getValue().toByteArray();
           int flags = item.getFlags();
 
-          // We create a new cacheEntry every time (rather than updating existing ones) to
-          // avoid having to synchronize on reads. (Otherwise a reader on another thread
-          // could be exposed to a partially modified entry).
+          // We create a new cacheEntry every time (rather than updating existing ones) so that
+          // entries handed out under the segment lock are never modified by a later set.
           CacheEntry newEntry = new CacheEntry(namespace, key, value, flags, expiry * 1000);
-          internalSet(namespace, key, newEntry);
+          segment.set(namespace, key, newEntry);
           result.addSetStatus(SetStatusCode.STORED);
         }
+      } finally {
+        segment.lock.unlock();
       }
     }
+    evictIfNeeded();
     status.setSuccessful(true);
     return result.build();
   }
@@ -443,15 +542,19 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     for (int i = 0; i < req.getItemCount(); i++) {
       MemcacheDeleteRequest.Item item = req.getItem(i);
       Key key = new Key(item.getKey().toByteArray());
-      CacheEntry ce = internalDelete(namespace, key);
-      result.addDeleteStatus(ce == null ? DeleteStatusCode.NOT_FOUND : DeleteStatusCode.DELETED);
-      if (ce != null) {
-        stats.recordDelete(ce);
-      }
-      // open spec whether this happens if there was no deletion
-      if (item.hasDeleteTime()) {
-        int millisNoReAdd = item.getDeleteTime() * 1000;
-        getOrMakeSubMap(deleteHold, namespace).put(key, clock.getCurrentTime() + millisNoReAdd);
+      Segment segment = segmentFor(namespace, key);
+      segment.lock.lock();
+      try {
+        CacheEntry ce = segment.delete(namespace, key);
+        result.addDeleteStatus(ce == null ? DeleteStatusCode.NOT_FOUND : DeleteStatusCode.DELETED);
+        // open spec whether this happens if there was no deletion
+        if (item.hasDeleteTime()) {
+          int millisNoReAdd = item.getDeleteTime() * 1000;
+          getOrMakeSubMap(segment.deleteHold, namespace)
+              .put(key, clock.getCurrentTime() + millisNoReAdd);
+        }
+      } finally {
+        segment.lock.unlock();
       }
     }
     status.setSuccessful(true);
@@ -464,8 +567,10 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     final Key key = new Key(req.getKey().toByteArray());
     final long delta = req.getDirection() == Direction.DECREMENT ? -req.getDelta() : req.getDelta();
 
-    synchronized (mockCache) { // only increment offers atomicity
-      CacheEntry ce = getWithExpiration(namespace, key);
+    Segment segment = segmentFor(namespace, key);
+    segment.lock.lock();
+    try { // only increment offers atomicity
+      CacheEntry ce = segment.getWithExpiration(namespace, key);
       if (ce == null) {
         if (req.hasInitialValue()) {
           // initial value is considered as uint64 and therefore can never be negative
@@ -475,7 +580,7 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
                   ? req.getInitialFlags()
                   : MemcacheSerialization.Flag.LONG.ordinal();
           ce = new CacheEntry(namespace, key, value.toString().getBytes(), flags, 0);
-          internalSet(namespace, key, ce);
+          segment.set(namespace, key, ce);
         } else {
           stats.recordMiss();
           return result.build(); // with hasNewValue() == false
@@ -513,12 +618,12 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
       }
       // don't change the flags; it keeps its original size/type
       ce.bytes = key.getBytes().length + ce.value.length;
-      Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(mockCache, namespace);
-      namespaceMap.remove(key);
-      namespaceMap.put(key, ce);
       stats.recordAdd(ce);
       result.setNewValue(value.longValue());
+    } finally {
+      segment.lock.unlock();
     }
+    evictIfNeeded();
     status.setSuccessful(true);
     return result.build();
   }
@@ -528,89 +633,93 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     MemcacheBatchIncrementResponse.Builder result = MemcacheBatchIncrementResponse.newBuilder();
     String namespace = batchReq.getNameSpace();
 
-    synchronized (mockCache) { // only increment offers atomicity
-      for (MemcacheIncrementRequest req : batchReq.getItemList()) {
-        MemcacheIncrementResponse.Builder resp = MemcacheIncrementResponse.newBuilder();
+    for (MemcacheIncrementRequest req : batchReq.getItemList()) {
+      Key key = new Key(req.getKey().toByteArray());
+      Segment segment = segmentFor(namespace, key);
+      segment.lock.lock();
+      try { // each increment is atomic, the batch as a whole is not
+        result.addItem(batchIncrementItem(segment, namespace, key, req));
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    evictIfNeeded();
+    status.setSuccessful(true);
+    return result.build();
+  }
 
-        Key key = new Key(req.getKey().toByteArray());
-        long delta = req.getDelta();
-        if (req.getDirection() == Direction.DECREMENT) {
-          delta = -delta;
-        }
+  /** Applies one increment of a batch. Must be called with the lock of {@code segment} held. */
+  private MemcacheIncrementResponse.Builder batchIncrementItem(
+      Segment segment, String namespace, Key key, MemcacheIncrementRequest req) {
+    MemcacheIncrementResponse.Builder resp = MemcacheIncrementResponse.newBuilder();
+    long delta = req.getDelta();
+    if (req.getDirection() == Direction.DECREMENT) {
+      delta = -delta;
+    }
 
-        CacheEntry ce = getWithExpiration(namespace, key);
-        long newvalue;
-        if (ce == null) {
-          if (req.hasInitialValue()) {
-            MemcacheSerialization.ValueAndFlags value;
-            try {
-              value = MemcacheSerialization.serialize(req.getInitialValue());
-            } catch (IOException e) {
-              throw new ApiProxy.UnknownException("Serialzation error: " + e);
-            }
-            ce = new CacheEntry(namespace, key, value.value, value.flags.ordinal(), 0);
-          } else {
-            stats.recordMiss();
-            resp.setIncrementStatus(IncrementStatusCode.NOT_CHANGED);
-            result.addItem(resp);
-            continue;
-          }
-        }
-        stats.recordHit(ce);
-        Long longval;
+    CacheEntry ce = segment.getWithExpiration(namespace, key);
+    long newvalue;
+    if (ce == null) {
+      if (req.hasInitialValue()) {
+        MemcacheSerialization.ValueAndFlags value;
         try {
-          longval = Long.parseLong(new String(ce.value, UTF8));
-        } catch (NumberFormatException e) {
-          resp.setIncrementStatus(IncrementStatusCode.NOT_CHANGED);
-          result.addItem(resp);
-          continue;
-        } catch (UnsupportedEncodingException e) {
-          resp.setIncrementStatus(IncrementStatusCode.NOT_CHANGED);
-          result.addItem(resp);
-          continue;
-        }
-        if (longval < 0) {
-          resp.setIncrementStatus(IncrementStatusCode.NOT_CHANGED);
-          result.addItem(resp);
-          continue;
+          value = MemcacheSerialization.serialize(req.getInitialValue());
+        } catch (IOException e) {
+          throw new ApiProxy.UnknownException("Serialzation error: " + e);
         }
+        ce = new CacheEntry(namespace, key, value.value, value.flags.ordinal(), 0);
+        segment.set(namespace, key, ce);
+      } else {
+        stats.recordMiss();
+        return resp.setIncrementStatus(IncrementStatusCode.NOT_CHANGED);
+      }
+    }
+    stats.recordHit(ce);
+    long longval;
+    try {
+      longval = Long.parseLong(new String(ce.value, UTF8));
+    } catch (NumberFormatException | UnsupportedEncodingException e) {
+      return resp.setIncrementStatus(IncrementStatusCode.NOT_CHANGED);
+    }
+    if (longval < 0) {
+      return resp.setIncrementStatus(IncrementStatusCode.NOT_CHANGED);
+    }
 
-        newvalue = longval;
-        newvalue += delta;
-        if (delta < 0 && newvalue < 0) {
-          newvalue = 0;
-        }
-        stats.recordDelete(ce);
-        try {
-          ce.value = Long.toString(newvalue).getBytes(UTF8);
-        } catch (UnsupportedEncodingException e) {
-          // Shouldn't happen.
-          throw new ApiProxy.UnknownException(UTF8 + " encoding was not found.");
-        }
+    newvalue = longval;
+    newvalue += delta;
+    if (delta < 0 && newvalue < 0) {
+      newvalue = 0;
+    }
+    stats.recordDelete(ce);
+    try {
+      ce.value = Long.toString(newvalue).getBytes(UTF8);
+    } catch (UnsupportedEncodingException e) {
+      // Shouldn't happen.
+      throw new ApiProxy.UnknownException(UTF8 + " encoding was not found.");
+    }
 
-        // don't change the flags; it keeps its original size/type
-        ce.bytes = key.getBytes().length + ce.value.length;
-        Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(mockCache, namespace);
-        namespaceMap.remove(key);
-        namespaceMap.put(key, ce);
-        stats.recordAdd(ce);
+    // don't change the flags; it keeps its original size/type
+    ce.bytes = key.getBytes().length + ce.value.length;
+    stats.recordAdd(ce);
 
-        resp.setIncrementStatus(IncrementStatusCode.OK);
-        resp.setNewValue(newvalue);
-        result.addItem(resp);
-      }
-    }
-    status.setSuccessful(true);
-    return result.build();
+    return resp.setIncrementStatus(IncrementStatusCode.OK).setNewValue(newvalue);
   }
 
   public MemcacheFlushResponse flushAll(Status status, MemcacheFlushRequest req) {
     MemcacheFlushResponse.Builder result = MemcacheFlushResponse.newBuilder();
-    synchronized (mockCache) {
-      mockCache.clear();
-      deleteHold.clear();
-      lru.clear();
-      stats = new LocalStats(0, 0, 0, 0, 0);
+    // Take every segment lock, always in the same order, so the flush is atomic.
+    for (Segment segment : segments) {
+      segment.lock.lock();
+    }
+    try {
+      for (Segment segment : segments) {
+        segment.clear();
+      }
+      stats.reset();
+    } finally {
+      for (Segment segment : segments) {
+        segment.lock.unlock();
+      }
     }
 
     status.setSuccessful(true);
@@ -634,8 +743,18 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     return 32 << 20; // 32 MB
   }
 
+  /** Returns the total length of the LRU chains of all segments. Only use this in tests! */
   /* @VisibleForTesting */
-  LRU<?> getLRU() {
-    return lru;
+  long getLruChainLength() {
+    long length = 0;
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        length += segment.lru.getChainLength();
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return length;
   }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.search.dev;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Shares one read-only {@link IndexSearcher} for an index between concurrent requests, instead of
+ * opening the index for each of them.
+ *
+ * <p>The searcher is kept until {@link #invalidate} is called after a commit, at which point the
+ * next {@link #acquire} reopens its reader, which only loads the segments that changed. Readers are
+ * reference counted, so a searcher replaced while a request still uses it is only closed once that
+ * request {@link #release releases} it.
+ */
+final class IndexSearcherManager {
+  private final Directory directory;
+
+  // Guarded by this.
+  private IndexSearcher searcher;
+  private boolean closed;
+
+  private volatile boolean stale;
+
+  private final AtomicLong reopenCount = new AtomicLong();
+  private final AtomicLong searchCount = new AtomicLong();
+  private final AtomicLong searchNanos = new AtomicLong();
+
+  IndexSearcherManager(Directory directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns a searcher that reflects every commit made before {@link #invalidate} was last called.
+   * Each searcher returned must be passed to {@link #release} once the caller is done with it.
+   *
+   * @throws IOException if the index can't be opened or reopened, or this manager is closed
+   */
+  synchronized IndexSearcher acquire() throws IOException {
+    if (closed) {
+      throw new IOException("Index searcher manager is closed");
+    }
+    if (searcher == null) {
+      stale = false;
+      searcher = newSearcher(IndexReader.open(directory, true));
+    } else if (stale) {
+      // Cleared first, so that a commit made while reopening is not missed.
+      stale = false;
+      IndexReader reader = searcher.getIndexReader();
+      IndexReader reopened;
+      try {
+        reopened = reader.reopen();
+      } catch (IOException e) {
+        stale = true;
+        throw e;
+      }
+      if (reopened != reader) {
+        searcher = newSearcher(reopened);
+        reader.decRef();
+        reopenCount.incrementAndGet();
+      }
+    }
+    searcher.getIndexReader().incRef();
+    return searcher;
+  }
+
+  /** Releases a searcher returned by {@link #acquire}. */
+  void release(IndexSearcher released) throws IOException {
+    released.getIndexReader().decRef();
+  }
+
+  /** Marks the current searcher as out of date, after changes to the index were committed. */
+  void invalidate() {
+    stale = true;
+  }
+
+  /** Records the time taken by a search. */
+  void recordSearch(long nanos) {
+    searchCount.incrementAndGet();
+    searchNanos.addAndGet(nanos);
+  }
+
+  /** Returns the number of times the searcher was reopened after a commit. */
+  long getReopenCount() {
+    return reopenCount.get();
+  }
+
+  /** Returns the number of searches recorded. */
+  long getSearchCount() {
+    return searchCount.get();
+  }
+
+  /** Returns the total time taken by the searches recorded, in nanoseconds. */
+  long getSearchNanos() {
+    return searchNanos.get();
+  }
+
+  /**
+   * Closes the current searcher once it is no longer in use. Searchers can no longer be acquired
+   * afterwards.
+   */
+  synchronized void close() throws IOException {
+    closed = true;
+    if (searcher != null) {
+      IndexReader reader = searcher.getIndexReader();
+      searcher = null;
+      reader.decRef();
+    }
+  }
+
+  private static IndexSearcher newSearcher(IndexReader reader) {
+    IndexSearcher searcher = new IndexSearcher(reader);
+    searcher.setDefaultFieldSortScoring(true, false);
+    return searcher;
+  }
+}
@@ -34,11 +34,14 @@ import com.google.apphosting.api.search.DocumentPb.FieldValue;
 import com.google.apphosting.api.search.DocumentPb.FieldValue.ContentType;
 import com.google.apphosting.utils.config.GenerationDirectory;
 import com.google.auto.service.AutoService;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.InvalidProtocolBufferException;
 // <internal22>
 import java.io.BufferedInputStream;
@@ -46,6 +49,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -59,6 +63,13 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.lucene.analysis.Analyzer;
@@ -90,6 +101,29 @@ public class LocalSearchService extends AbstractLocalRpcService {
   public static final String USE_RAM_DIRECTORY = "LocalSearchService.useRamDirectory";
   public static final String USE_DIRECTORY = "LocalSearchService.useDirectory";
 
+  /**
+   * Init property that specifies, in milliseconds, how long changes to an index may wait to be
+   * committed, so that the changes made by several requests share a commit. Pending changes are
+   * committed early once there are {@link #MAX_UNCOMMITTED_DOCUMENTS} of them, before the index is
+   * read, and when the service stops. The default of 0 commits the changes of each request.
+   */
+  public static final String COMMIT_DELAY = "LocalSearchService.commitDelay";
+
+  /**
+   * Init property that specifies how many documents may be changed in an index before pending
+   * changes are committed, when {@link #COMMIT_DELAY} is set.
+   */
+  public static final String MAX_UNCOMMITTED_DOCUMENTS =
+      "LocalSearchService.maxUncommittedDocuments";
+
+  private static final int DEFAULT_MAX_UNCOMMITTED_DOCUMENTS = 1000;
+
+  /** How long {@link #stop} waits for a background commit to finish. */
+  private static final long COMMIT_SHUTDOWN_TIMEOUT_MS = 30_000;
+
+  // The number of documents indexed by each task of a bulk load.
+  private static final int BULK_INDEX_BATCH_SIZE = 500;
+
   static final Logger LOG = Logger.getLogger(LocalSearchService.class.getCanonicalName());
   
   /** Hash function for adding query fingerprints to cursors. */
@@ -151,6 +185,13 @@ public class LocalSearchService extends AbstractLocalRpcService {
 
   private String documentsFile;
 
+  private long commitDelayMs;
+  private int maxUncommittedDocuments = DEFAULT_MAX_UNCOMMITTED_DOCUMENTS;
+  private ScheduledExecutorService commitScheduler;
+
+  /** The number of documents changed, but not committed yet, by each index writer. */
+  private final Map<IndexWriter, Integer> uncommittedChanges = new HashMap<>();
+
   public LocalSearchService() {
     analyzer = new WordSeparatorAnalyzer();
     LOG.info("Local search service created");
@@ -214,9 +255,35 @@ public class LocalSearchService extends AbstractLocalRpcService {
         documentsFile = null;
       }
     }
+    commitDelayMs = parseLong(properties, COMMIT_DELAY, 0);
+    maxUncommittedDocuments =
+        (int) parseLong(properties, MAX_UNCOMMITTED_DOCUMENTS, DEFAULT_MAX_UNCOMMITTED_DOCUMENTS);
+    if (commitDelayMs > 0) {
+      commitScheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder()
+                  .setDaemon(true)
+                  .setNameFormat("LocalSearchService commits")
+                  .build());
+      commitScheduler.scheduleWithFixedDelay(
+          this::commitPendingChanges, commitDelayMs, commitDelayMs, TimeUnit.MILLISECONDS);
+    }
     LOG.info(getPackage() + " initialized");
   }
 
+  private static long parseLong(Map<String, String> properties, String name, long defaultValue) {
+    String value = properties.get(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      LOG.warning("Invalid value for " + name + ": " + value + "; using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
   // <internal23>
   private void loadDocumentMap(File indexDirectory, File documentsFile) {
     String path = documentsFile.getAbsolutePath();
@@ -270,8 +337,41 @@ public class LocalSearchService extends AbstractLocalRpcService {
     }
   }
 
+  private void closeIndexSearcherManagers() {
+    for (Map.Entry<Directory, IndexSearcherManager> entry : searcherManagers.entrySet()) {
+      IndexSearcherManager searcherManager = entry.getValue();
+      if (LOG.isLoggable(Level.FINE) && searcherManager.getSearchCount() > 0) {
+        LOG.fine(String.format("Index %s: %d searches, %d us on average, %d reopens",
+            entry.getKey(), searcherManager.getSearchCount(),
+            searcherManager.getSearchNanos() / searcherManager.getSearchCount() / 1000,
+            searcherManager.getReopenCount()));
+      }
+      try {
+        searcherManager.close();
+      } catch (IOException e) {
+        LOG.log(Level.SEVERE, "Failed to close index searcher", e);
+      }
+    }
+    searcherManagers.clear();
+  }
+
   @Override
   public void stop() {
+    if (commitScheduler != null) {
+      // Let a background commit that is running finish, rather than interrupting it, which would
+      // close the index writer it is committing.
+      commitScheduler.shutdown();
+      try {
+        if (!commitScheduler.awaitTermination(COMMIT_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          LOG.warning("Timed out waiting for a background commit to finish");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      commitScheduler = null;
+    }
+    commitPendingChanges();
+    closeIndexSearcherManagers();
     closeIndexWriters();
     LOG.info(getPackage() + " stopped");
   }
@@ -345,10 +445,101 @@ public class LocalSearchService extends AbstractLocalRpcService {
         // Ignored; this is an exception in a debug level log message.
       }
     }
-    commitChangesToIndexWriter(indexWriter);
+    commitChangesToIndexWriter(indexWriter, docsToIndex);
     return respBuilder.build();
   }
 
+  /**
+   * Indexes documents read from a stream, which is much faster than indexing them through batches
+   * of requests when seeding a large index. The stream holds length-delimited documents, as written
+   * by {@link DocumentPb.Document#writeDelimitedTo}. They are added to the index by {@code threads}
+   * threads, and committed once all of them have been added. Invalid documents are logged and
+   * skipped.
+   *
+   * @param appId the application that owns the index
+   * @param indexId the name of the index, which is created if it doesn't exist
+   * @param documents the stream of documents to index
+   * @param threads the number of threads adding documents to the index
+   * @return the number of documents indexed
+   * @throws IOException if reading the stream or writing the index fails
+   */
+  public int bulkIndexDocumentsForApp(
+      String appId, String indexId, InputStream documents, int threads) throws IOException {
+    Preconditions.checkArgument(threads > 0, "threads must be positive: %s", threads);
+    if (dirMap == null) {
+      throw new IllegalStateException(
+          "Bulk indexing called before local search service was initialized");
+    }
+    IndexWriter indexWriter = getIndexWriter(
+        dirMap.getDirectory(appId, IndexSpec.newBuilder().setName(indexId).build()), true);
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            threads,
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("LocalSearchService bulk indexing %d")
+                .build());
+    // Bounds the documents read ahead of the threads indexing them.
+    Semaphore pendingBatches = new Semaphore(2 * threads);
+    List<Future<Integer>> batches = new ArrayList<>();
+    try {
+      List<DocumentPb.Document> batch = new ArrayList<>();
+      DocumentPb.Document doc;
+      while ((doc = DocumentPb.Document.parseDelimitedFrom(documents)) != null) {
+        batch.add(doc);
+        if (batch.size() == BULK_INDEX_BATCH_SIZE) {
+          batches.add(submitBulkIndexBatch(executor, pendingBatches, indexWriter, batch));
+          batch = new ArrayList<>();
+        }
+      }
+      if (!batch.isEmpty()) {
+        batches.add(submitBulkIndexBatch(executor, pendingBatches, indexWriter, batch));
+      }
+      int indexed = 0;
+      for (Future<Integer> result : batches) {
+        indexed += Futures.getChecked(result, IOException.class);
+      }
+      indexWriter.commit();
+      IndexSearcherManager searcherManager = searcherManagers.get(indexWriter.getDirectory());
+      if (searcherManager != null) {
+        searcherManager.invalidate();
+      }
+      LOG.info(String.format("Bulk indexed %d documents into index %s", indexed, indexId));
+      return indexed;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Future<Integer> submitBulkIndexBatch(ExecutorService executor,
+      Semaphore pendingBatches, IndexWriter indexWriter, List<DocumentPb.Document> batch) {
+    pendingBatches.acquireUninterruptibly();
+    return executor.submit(() -> {
+      try {
+        int indexed = 0;
+        for (DocumentPb.Document d : batch) {
+          try {
+            DocumentChecker.checkValid(d);
+          } catch (IllegalArgumentException e) {
+            LOG.warning("Skipping invalid document " + d.getId() + ": " + e.getMessage());
+            continue;
+          }
+          String id = d.getId();
+          if (Strings.isNullOrEmpty(id)) {
+            id = UUID.randomUUID().toString();
+            d = d.toBuilder().setId(id).build();
+          }
+          indexWriter.updateDocument(
+              new Term(LuceneUtils.DOCID_FIELD_NAME, id), LuceneUtils.toLuceneDocument(id, d));
+          indexed++;
+        }
+        return indexed;
+      } finally {
+        pendingBatches.release();
+      }
+    });
+  }
+
   public SearchServicePb.DeleteDocumentResponse deleteDocument(Status status,
       SearchServicePb.DeleteDocumentRequest req) {
     return deleteDocumentForApp(getAppId(), req.getParams().getIndexSpec(),
@@ -411,7 +602,7 @@ public class LocalSearchService extends AbstractLocalRpcService {
       return respBuilder.addAllStatus(newRepeatedStatus(docsToDelete,
           SearchServicePb.SearchServiceError.ErrorCode.INTERNAL_ERROR)).build();
     } finally {
-      commitChangesToIndexWriter(indexWriter);
+      commitChangesToIndexWriter(indexWriter, docsToDelete);
     }
   }
 
@@ -490,7 +681,9 @@ public class LocalSearchService extends AbstractLocalRpcService {
     if (!IndexReader.indexExists(directory)) {
       return ImmutableList.of();
     }
-    final IndexSearcher indexSearcher = new IndexSearcher(directory, true);
+    commitPendingChanges(directory);
+    IndexSearcherManager searcherManager = getIndexSearcherManager(directory);
+    final IndexSearcher indexSearcher = searcherManager.acquire();
 
     List<Document> docs = new ArrayList<>();
     try {
@@ -514,7 +707,7 @@ public class LocalSearchService extends AbstractLocalRpcService {
         }
       }
     } finally {
-      closeIndexSearcher(indexSearcher);
+      releaseIndexSearcher(searcherManager, indexSearcher);
     }
     return ImmutableList.copyOf(docs);
   }
@@ -594,14 +787,17 @@ public class LocalSearchService extends AbstractLocalRpcService {
       return replyWith(SearchServicePb.SearchServiceError.ErrorCode.INVALID_REQUEST, respBuilder);
     }
     SearchServicePb.SearchParams searchParams = req.getParams();
+    long startNanos = System.nanoTime();
+    IndexSearcherManager searcherManager = null;
     IndexSearcher indexSearcher = null;
     Map<String, Set<DocumentPb.FieldValue.ContentType>> fieldTypes = null;
     try {
       Directory directory = dirMap.getDirectory(appId, searchParams.getIndexSpec());
       if (IndexReader.indexExists(directory)) {
         fieldTypes = getFieldTypes(appId, searchParams.getIndexSpec());
-        indexSearcher = new IndexSearcher(directory, true);
-        indexSearcher.setDefaultFieldSortScoring(true, false);
+        commitPendingChanges(directory);
+        searcherManager = getIndexSearcherManager(directory);
+        indexSearcher = searcherManager.acquire();
       }
     } catch (IOException e) {
       LOG.log(Level.SEVERE, "Failed to access index", e);
@@ -691,7 +887,8 @@ public class LocalSearchService extends AbstractLocalRpcService {
       LOG.log(Level.SEVERE, "Failed to execute search", e);
       return replyWith(SearchServicePb.SearchServiceError.ErrorCode.INTERNAL_ERROR, respBuilder);
     } finally {
-      closeIndexSearcher(indexSearcher);
+      releaseIndexSearcher(searcherManager, indexSearcher);
+      searcherManager.recordSearch(System.nanoTime() - startNanos);
     }
   }
 
@@ -725,17 +922,17 @@ public class LocalSearchService extends AbstractLocalRpcService {
   // --- Helper methods ---
 
   /**
-   * Closes, if necessary, the index searcher reporting any problems in logs.
+   * Releases the index searcher reporting any problems in logs.
    *
-   * @param indexSearcher the index searcher to close
+   * @param searcherManager the manager the index searcher was acquired from
+   * @param indexSearcher the index searcher to release
    */
-  private static void closeIndexSearcher(IndexSearcher indexSearcher) {
-    if (indexSearcher != null) {
-      try {
-        indexSearcher.close();
-      } catch (IOException e) {
-        LOG.log(Level.SEVERE, "Failed to close index searcher", e);
-      }
+  private static void releaseIndexSearcher(
+      IndexSearcherManager searcherManager, IndexSearcher indexSearcher) {
+    try {
+      searcherManager.release(indexSearcher);
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Failed to release index searcher", e);
     }
   }
 
@@ -823,6 +1020,18 @@ public class LocalSearchService extends AbstractLocalRpcService {
     }
   }
 
+  private final Map<Directory, IndexSearcherManager> searcherManagers = new ConcurrentHashMap<>();
+
+  private IndexSearcherManager getIndexSearcherManager(Directory directory) {
+    return searcherManagers.computeIfAbsent(directory, IndexSearcherManager::new);
+  }
+
+  /** Returns the searcher manager of an index, for tests. */
+  IndexSearcherManager getIndexSearcherManager(String appId, IndexSpec indexSpec)
+      throws IOException {
+    return getIndexSearcherManager(dirMap.getDirectory(appId, indexSpec));
+  }
+
   private void recursiveDelete(File file) throws IOException {
     if (file.isDirectory()) {
       for (File f : file.listFiles()) {
@@ -835,6 +1044,10 @@ public class LocalSearchService extends AbstractLocalRpcService {
   }
 
   private void clearIndexes(final File indexDirectory) {
+    synchronized (uncommittedChanges) {
+      uncommittedChanges.clear();
+    }
+    closeIndexSearcherManagers();
     if (indexDirectory == null) {
       dirMap = new LuceneDirectoryMap.RamBased();
     } else {
@@ -860,12 +1073,64 @@ public class LocalSearchService extends AbstractLocalRpcService {
     if (indexWriter != null) {
       try {
         indexWriter.commit();
+        IndexSearcherManager searcherManager = searcherManagers.get(indexWriter.getDirectory());
+        if (searcherManager != null) {
+          searcherManager.invalidate();
+        }
       } catch (IOException e) {
         LOG.log(Level.SEVERE, "Failed to commit changes to an index", e);
       }
     }
   }
 
+  /**
+   * Commits the changes made to {@code changes} documents through an index writer, unless the
+   * {@link #COMMIT_DELAY} lets them wait for more changes.
+   */
+  private void commitChangesToIndexWriter(IndexWriter indexWriter, int changes) {
+    if (indexWriter == null) {
+      return;
+    }
+    if (commitDelayMs <= 0) {
+      commitChangesToIndexWriter(indexWriter);
+      return;
+    }
+    synchronized (uncommittedChanges) {
+      if (uncommittedChanges.merge(indexWriter, changes, Integer::sum)
+          >= maxUncommittedDocuments) {
+        uncommittedChanges.remove(indexWriter);
+        commitChangesToIndexWriter(indexWriter);
+      }
+    }
+  }
+
+  /** Commits the pending changes to the index in a directory, if there are any. */
+  private void commitPendingChanges(Directory directory) {
+    if (commitDelayMs <= 0) {
+      return;
+    }
+    IndexWriter indexWriter;
+    synchronized (indexWriters) {
+      indexWriter = indexWriters.get(directory);
+    }
+    // The lock is held while committing, so that readers don't miss changes being committed.
+    synchronized (uncommittedChanges) {
+      if (uncommittedChanges.remove(indexWriter) != null) {
+        commitChangesToIndexWriter(indexWriter);
+      }
+    }
+  }
+
+  /** Commits the pending changes to all indexes. */
+  private void commitPendingChanges() {
+    synchronized (uncommittedChanges) {
+      for (IndexWriter indexWriter : uncommittedChanges.keySet()) {
+        commitChangesToIndexWriter(indexWriter);
+      }
+      uncommittedChanges.clear();
+    }
+  }
+
   /**
    * @return offset computed from cursor parameter, or -1 on error, in which case we
    * guarantee an error message has been logged.
@@ -21,6 +21,7 @@ import com.google.appengine.api.datastore.dev.DefaultHighRepJobPolicy;
 import com.google.appengine.api.datastore.dev.HighRepJobPolicy;
 import com.google.appengine.api.datastore.dev.LocalDatastoreService;
 import com.google.appengine.api.datastore.dev.LocalDatastoreService.AutoIdAllocationPolicy;
+import com.google.appengine.api.datastore.dev.LocalDatastoreService.PersistenceMode;
 import com.google.appengine.api.datastore.dev.LocalDatastoreV3Service;
 import com.google.appengine.tools.development.ApiProxyLocal;
 import org.jspecify.annotations.Nullable;
@@ -42,6 +43,7 @@ public final class LocalDatastoreServiceTestConfig implements LocalServiceTestCo
   @Nullable private Integer maxTxnLifetimeMs;
   @Nullable private Integer storeDelayMs;
   @Nullable private String backingStoreLocation;
+  @Nullable private PersistenceMode persistenceMode;
   private boolean noIndexAutoGen = true;
   @Nullable private Long defaultHighRepJobPolicyRandomSeed;
   @Nullable private Float defaultHighRepJobPolicyUnappliedJobPercentage;
@@ -134,6 +136,21 @@ public final class LocalDatastoreServiceTestConfig implements LocalServiceTestCo
     return this;
   }
 
+  public PersistenceMode getPersistenceMode() {
+    return persistenceMode;
+  }
+
+  /**
+   * Sets how the datastore is written to the backing store.  Only useful
+   * if {@link #isNoStorage()} returns {@code false}.
+   * @param persistenceMode
+   * @return {@code this} (for chaining)
+   */
+  public LocalDatastoreServiceTestConfig setPersistenceMode(PersistenceMode persistenceMode) {
+    this.persistenceMode = persistenceMode;
+    return this;
+  }
+
   public boolean isNoIndexAutoGen() {
     return noIndexAutoGen;
   }
@@ -281,6 +298,10 @@ public final class LocalDatastoreServiceTestConfig implements LocalServiceTestCo
     if (backingStoreLocation != null) {
       proxy.setProperty(LocalDatastoreService.BACKING_STORE_PROPERTY, backingStoreLocation);
     }
+
+    if (persistenceMode != null) {
+      proxy.setProperty(LocalDatastoreService.PERSISTENCE_MODE_PROPERTY, persistenceMode.toString());
+    }
     proxy.setProperty(LocalDatastoreService.NO_INDEX_AUTO_GEN_PROP,
         Boolean.toString(noIndexAutoGen));
     if (defaultHighRepJobPolicyRandomSeed != null) {
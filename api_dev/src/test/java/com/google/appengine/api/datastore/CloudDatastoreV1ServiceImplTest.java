@@ -1629,11 +1629,21 @@ public class CloudDatastoreV1ServiceImplTest extends BaseCloudDatastoreV1Service
                 return false;
               }
 
+              @Override
+              public boolean isReady() {
+                return true;
+              }
+
               @Override
               public int getNumSkipped() {
                 throw new AssertionError();
               }
 
+              @Override
+              public long getFetchWaitNanos() {
+                throw new AssertionError();
+              }
+
               @Override
               public List<Index> getIndexList() {
                 throw new AssertionError("should never be called");
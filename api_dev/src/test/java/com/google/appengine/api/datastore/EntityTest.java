@@ -32,7 +32,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.StringWriter;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -396,4 +398,62 @@ public class EntityTest {
     listValue.add(new EmbeddedEntity()); // Acceptable for setIndexedProperty();
     EntityTranslator.convertToPb(entity);
   }
+
+  @Test
+  public void testLazilyDecodedProperties() {
+    Entity entity = new Entity("foo", 12345L);
+    entity.setProperty("aString", "testing");
+    entity.setProperty("aList", ImmutableList.of(1L, 2L));
+    entity.setUnindexedProperty("unindexed", "unindexed");
+    EntityProto proto = EntityTranslator.convertToPb(entity);
+
+    Entity lazyEntity = EntityTranslator.createLazilyFromPb(proto);
+    LazyPropertyMap propertyMap = (LazyPropertyMap) lazyEntity.propertyMap;
+    assertThat(lazyEntity.getKey()).isEqualTo(entity.getKey());
+    assertThat(propertyMap.isDecoded()).isFalse();
+
+    assertThat(lazyEntity.getProperty("aString")).isEqualTo("testing");
+    assertThat(propertyMap.isDecoded()).isTrue();
+    assertThat(lazyEntity.getProperties()).isEqualTo(entity.getProperties());
+    assertThat(lazyEntity.isUnindexedProperty("unindexed")).isTrue();
+
+    // The field is used directly by some frameworks, and must decode the properties as well.
+    Entity otherLazyEntity = EntityTranslator.createLazilyFromPb(proto);
+    assertThat(otherLazyEntity.propertyMap).containsKey("aList");
+  }
+
+  @Test
+  public void testLazilyDecodedSerialization() throws Exception {
+    Entity entity = new Entity("foo", 12345L);
+    entity.setProperty("aString", "testing");
+    Entity lazyEntity = EntityTranslator.createLazilyFromPb(EntityTranslator.convertToPb(entity));
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(lazyEntity);
+    ObjectInputStream iis = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    Entity readEntity = (Entity) iis.readObject();
+
+    assertThat(readEntity.propertyMap).isInstanceOf(HashMap.class);
+    assertThat(readEntity.getProperties()).isEqualTo(entity.getProperties());
+  }
+
+  @Test
+  public void testProjectionDecodesOnlyProjectedProperties() {
+    Entity entity = new Entity("foo", 12345L);
+    entity.setProperty("aString", "testing");
+    entity.setProperty("aLong", 42L);
+    entity.setUnindexedProperty("unindexed", "unindexed");
+    EntityProto proto = EntityTranslator.convertToPb(entity);
+
+    List<Projection> projections = ImmutableList.of(new PropertyProjection("aLong", null));
+    Entity projected = EntityTranslator.createFromPb(proto, projections);
+    assertThat(projected.getKey()).isEqualTo(entity.getKey());
+    assertThat(projected.getProperties()).containsExactly("aLong", 42L);
+
+    Map<String, Object> values = new HashMap<>();
+    DataTypeTranslator.extractPropertiesFromPb(
+        proto, EntityTranslator.getPropertyNames(projections), values);
+    assertThat(values).containsExactly("aLong", 42L);
+  }
 }
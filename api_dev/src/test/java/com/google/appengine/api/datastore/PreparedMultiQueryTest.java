@@ -561,6 +561,125 @@ public class PreparedMultiQueryTest {
     verifyNoMoreInteractions(neverQuery);
   }
 
+  @Test
+  public void testConcurrentQueryParallelism() {
+    FetchOptions options = withChunkSize(Integer.MAX_VALUE);
+    int maxConcurrentQueries = 2 * PreparedMultiQuery.MAX_BUFFERED_QUERIES;
+    PreparedQuery[] pqs = new PreparedQuery[maxConcurrentQueries + 1];
+    for (int i = 0; i < pqs.length; i++) {
+      pqs[i] = mock(PreparedQuery.class);
+      when(pqs[i].asIterator(options)).thenReturn(makeEntityIterator(1, i + 1));
+    }
+
+    Iterator<Entity> pmqIter =
+        concurrentMultiQueryFrom(maxConcurrentQueries, pqs).asIterator(options);
+    for (int i = 0; i < maxConcurrentQueries; i++) {
+      verify(pqs[i]).asIterator(any());
+    }
+    verifyNoMoreInteractions(pqs[maxConcurrentQueries]);
+
+    pmqIter.next();
+    verify(pqs[maxConcurrentQueries]).asIterator(any());
+  }
+
+  @Test
+  public void testConcurrentDeduping() {
+    FetchOptions options = withChunkSize(Integer.MAX_VALUE);
+    PreparedQuery pqMock1 = mock(PreparedQuery.class);
+    PreparedQuery pqMock2 = mock(PreparedQuery.class);
+    PreparedQuery pqMock3 = mock(PreparedQuery.class);
+    when(pqMock1.asIterator(options)).thenReturn(makeEntityIterator(4, 1));
+    when(pqMock2.asIterator(options)).thenReturn(makeEntityIterator(3, 4));
+    when(pqMock3.asIterator(options)).thenReturn(makeEntityIterator(10, 1));
+
+    List<Entity> result = concurrentMultiQueryFrom(10, pqMock1, pqMock2, pqMock3).asList(options);
+    assertThat(result).hasSize(10);
+    assertThat(Lists.transform(result, Entity::getKey)).containsNoDuplicates();
+  }
+
+  @Test
+  public void testConcurrentAdaptivePrefetchSize() {
+    int queryCount = 12;
+    FetchOptions options = withLimit(600);
+    FetchOptions componentOptions = withLimit(600).prefetchSize(50);
+    PreparedQuery[] pqs = new PreparedQuery[queryCount];
+    for (int i = 0; i < queryCount; i++) {
+      pqs[i] = mock(PreparedQuery.class);
+      when(pqs[i].asIterator(componentOptions)).thenReturn(makeEntityIterator(1, i + 1));
+    }
+
+    assertThat(Iterators.size(concurrentMultiQueryFrom(queryCount, pqs).asIterator(options)))
+        .isEqualTo(queryCount);
+    for (PreparedQuery pq : pqs) {
+      verify(pq).asIterator(componentOptions);
+    }
+  }
+
+  @Test
+  public void testConcurrentAdaptivePrefetchSize_SmallLimit() {
+    FetchOptions options = withLimit(PreparedMultiQuery.MIN_ADAPTIVE_PREFETCH_SIZE);
+    PreparedQuery pqMock1 = mock(PreparedQuery.class);
+    PreparedQuery pqMock2 = mock(PreparedQuery.class);
+    when(pqMock1.asIterator(options)).thenReturn(makeEntityIterator(1, 1));
+    when(pqMock2.asIterator(options)).thenReturn(makeEntityIterator(1, 2));
+
+    assertThat(Iterators.size(concurrentMultiQueryFrom(2, pqMock1, pqMock2).asIterator(options)))
+        .isEqualTo(2);
+    verify(pqMock1).asIterator(options);
+    verify(pqMock2).asIterator(options);
+  }
+
+  @Test
+  public void testConcurrentCount() {
+    FetchOptions options = withLimit(9);
+    FetchOptions countOptions = withLimit(9).chunkSize(Integer.MAX_VALUE);
+    PreparedQuery pqMock1 = mock(PreparedQuery.class);
+    PreparedQuery pqMock2 = mock(PreparedQuery.class);
+    PreparedQuery pqMock3 = mock(PreparedQuery.class);
+    when(pqMock1.asIterator(countOptions)).thenReturn(makeEntityIterator(4, 1));
+    when(pqMock2.asIterator(countOptions)).thenReturn(makeEntityIterator(3, 4));
+    when(pqMock3.asIterator(countOptions)).thenReturn(makeEntityIterator(5, 6));
+
+    PreparedMultiQuery pmq = concurrentMultiQueryFrom(2, pqMock1, pqMock2, pqMock3);
+    assertThat(pmq.countEntities(options)).isEqualTo(9);
+    verify(pqMock1).asIterator(countOptions);
+    verify(pqMock2).asIterator(countOptions);
+    verify(pqMock3).asIterator(countOptions);
+  }
+
+  @Test
+  public void testGetMaxConcurrentQueries() {
+    String property = PreparedMultiQuery.MAX_CONCURRENT_QUERIES_SYS_PROP;
+    try {
+      System.clearProperty(property);
+      assertThat(PreparedMultiQuery.getMaxConcurrentQueries()).isEqualTo(0);
+      System.setProperty(property, "8");
+      assertThat(PreparedMultiQuery.getMaxConcurrentQueries()).isEqualTo(8);
+      System.setProperty(property, "-3");
+      assertThat(PreparedMultiQuery.getMaxConcurrentQueries()).isEqualTo(0);
+      // A malformed value falls back to running serially rather than failing the query.
+      System.setProperty(property, "eight");
+      assertThat(PreparedMultiQuery.getMaxConcurrentQueries()).isEqualTo(0);
+    } finally {
+      System.clearProperty(property);
+    }
+  }
+
+  @Test
+  public void testKeyFingerprintSet() {
+    KeyFingerprintSet keys = new KeyFingerprintSet();
+    Key parent = KeyFactory.createKey("Parent", "p");
+    for (int i = 0; i < 1000; i++) {
+      assertThat(keys.add(KeyFactory.createKey("Foo", i + 1))).isTrue();
+      assertThat(keys.add(KeyFactory.createKey(parent, "Foo", i + 1))).isTrue();
+      assertThat(keys.add(KeyFactory.createKey("Foo", "" + (i + 1)))).isTrue();
+    }
+    assertThat(keys.add(KeyFactory.createKey("Foo", 1))).isFalse();
+    assertThat(keys.add(KeyFactory.createKey(parent, "Foo", 1000))).isFalse();
+    assertThat(keys.add(KeyFactory.createKey("Foo", "1"))).isFalse();
+    assertThat(keys.size()).isEqualTo(3000);
+  }
+
   private static Iterable<Entity> makeEntityIterable(final int count, final int firstId) {
     return () -> makeEntityIterator(count, firstId);
   }
@@ -652,6 +771,22 @@ public class PreparedMultiQueryTest {
     };
   }
 
+  private PreparedMultiQuery concurrentMultiQueryFrom(
+      int maxConcurrentQueries, PreparedQuery... preparedQueries) {
+    Iterator<PreparedQuery> itr = Iterators.forArray(preparedQueries);
+    return new PreparedMultiQuery(
+        new Query(),
+        makeMultiQuery(preparedQueries.length, 1),
+        null,
+        queryRunner,
+        maxConcurrentQueries) {
+      @Override
+      protected PreparedQuery prepareQuery(List<FilterPredicate> filters, boolean isCountQuery) {
+        return itr.next();
+      }
+    };
+  }
+
   private PreparedMultiQuery preparedMultiQueryFrom(final PriorityQueue<EntitySource> sources) {
     return new PreparedMultiQuery(new Query(), makeMultiQuery(1, 2), null, queryRunner) {
       @Override
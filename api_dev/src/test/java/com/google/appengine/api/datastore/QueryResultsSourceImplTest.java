@@ -23,17 +23,26 @@ import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
+import com.google.appengine.api.datastore.BaseQueryResultsSource.WrappedQueryResult;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import org.junit.After;
 import org.junit.Before;
@@ -164,4 +173,182 @@ public class QueryResultsSourceImplTest {
     lastChunkSizeWarning.set(0);
     test.accept(QueryResultsSourceImplTest::asList);
   }
+
+  @Test
+  public void testLogFetchWait() {
+    addData(5);
+    List<String> messages = new ArrayList<>();
+    Handler handler =
+        new Handler() {
+          @Override
+          public void publish(LogRecord record) {
+            messages.add(record.getMessage());
+          }
+
+          @Override
+          public void flush() {}
+
+          @Override
+          public void close() {}
+        };
+    Logger fetchWaitLogger = BaseQueryResultsSource.fetchWaitLogger;
+    Level originalLevel = fetchWaitLogger.getLevel();
+    fetchWaitLogger.setLevel(Level.FINE);
+    fetchWaitLogger.addHandler(handler);
+    try {
+      DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+      assertThat(datastore.prepare(new Query("foo")).asList(withChunkSize(2))).hasSize(5);
+    } finally {
+      fetchWaitLogger.removeHandler(handler);
+      fetchWaitLogger.setLevel(originalLevel);
+    }
+    // Logged once, when the last batch was loaded.
+    assertThat(messages).hasSize(1);
+    assertThat(messages.get(0)).startsWith("Query for kind foo returned 5 results after waiting ");
+  }
+
+  @Test
+  public void testAdaptiveFetchCount() {
+    FakeResultsSource source = new FakeResultsSource(withDefaults());
+    for (int i = 0; i < 5; i++) {
+      source.loadMoreEntities(new ArrayList<>(), new ArrayList<>());
+    }
+    // The first batch is the default size, then each batch was consumed before it was fetched.
+    assertThat(source.fetchCounts)
+        .containsExactly(
+            null,
+            BaseQueryResultsSource.MIN_ADAPTIVE_FETCH_COUNT,
+            2 * BaseQueryResultsSource.MIN_ADAPTIVE_FETCH_COUNT,
+            4 * BaseQueryResultsSource.MIN_ADAPTIVE_FETCH_COUNT,
+            8 * BaseQueryResultsSource.MIN_ADAPTIVE_FETCH_COUNT)
+        .inOrder();
+    assertThat(source.getFetchWaitNanos()).isAtLeast(TimeUnit.MILLISECONDS.toNanos(4));
+  }
+
+  @Test
+  public void testAdaptiveFetchCount_Limit() {
+    FakeResultsSource source = new FakeResultsSource(withLimit(50));
+    for (int i = 0; i < 3; i++) {
+      source.loadMoreEntities(new ArrayList<>(), new ArrayList<>());
+    }
+    assertThat(source.fetchCounts).containsExactly(null, 20, 10).inOrder();
+  }
+
+  @Test
+  public void testAdaptiveFetchCount_ChunkSize() {
+    FakeResultsSource source = new FakeResultsSource(withChunkSize(5));
+    for (int i = 0; i < 3; i++) {
+      source.loadMoreEntities(new ArrayList<>(), new ArrayList<>());
+    }
+    assertThat(source.fetchCounts).containsExactly(5, 5, 5).inOrder();
+  }
+
+  /**
+   * A results source where each batch holds the requested number of results, or 10 by default,
+   * and each call after the first is still in progress when its results are needed.
+   */
+  private static class FakeResultsSource
+      extends BaseQueryResultsSource<Integer, Object, Integer> {
+    final List<Integer> fetchCounts = new ArrayList<>();
+
+    FakeResultsSource(FetchOptions fetchOptions) {
+      super(
+          mock(DatastoreCallbacks.class),
+          fetchOptions,
+          null,
+          new Query("foo"),
+          new FutureHelper.FakeFuture<>(10));
+    }
+
+    @Override
+    WrappedQueryResult wrapInitialResult(Integer res) {
+      return new FakeResult(res);
+    }
+
+    @Override
+    WrappedQueryResult wrapResult(Integer res) {
+      return new FakeResult(res);
+    }
+
+    @Override
+    Object buildNextCallPrototype(Integer res) {
+      return new Object();
+    }
+
+    @Override
+    Future<Integer> makeNextCall(
+        Object prototype,
+        WrappedQueryResult latestResult,
+        Integer fetchCountOrNull,
+        Integer offsetOrNull) {
+      fetchCounts.add(fetchCountOrNull);
+      int count = fetchCountOrNull != null ? fetchCountOrNull : 10;
+      return new FutureHelper.FakeFuture<Integer>(count) {
+        @Override
+        public boolean isDone() {
+          return false;
+        }
+
+        @Override
+        public Integer get() {
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return count;
+        }
+      };
+    }
+  }
+
+  private static class FakeResult implements WrappedQueryResult {
+    private final int count;
+
+    FakeResult(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public Cursor getEndCursor() {
+      return null;
+    }
+
+    @Override
+    public List<Entity> getEntities(Collection<Projection> projections) {
+      Entity[] entities = new Entity[count];
+      Arrays.setAll(entities, i -> new Entity("foo"));
+      return Arrays.asList(entities);
+    }
+
+    @Override
+    public List<Cursor> getResultCursors() {
+      return Collections.nCopies(count, null);
+    }
+
+    @Override
+    public Cursor getSkippedResultsCursor() {
+      return null;
+    }
+
+    @Override
+    public boolean hasMoreResults() {
+      return true;
+    }
+
+    @Override
+    public int numSkippedResults() {
+      return 0;
+    }
+
+    @Override
+    public List<Index> getIndexInfo(Collection<Index> monitoredIndexBuffer) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean madeProgress(WrappedQueryResult previousResult) {
+      return true;
+    }
+  }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore.dev;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.dev.LocalDatastoreService.PersistenceMode;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link DatastoreLog}, through a {@link LocalDatastoreService} running in {@link
+ * PersistenceMode#LOG} mode.
+ */
+@RunWith(JUnit4.class)
+public class DatastoreLogTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File backingStore;
+  private LocalServiceTestHelper helper;
+
+  @Before
+  public void setUp() throws Exception {
+    backingStore = new File(temporaryFolder.getRoot(), "local_db.bin");
+  }
+
+  @After
+  public void tearDown() {
+    if (helper != null) {
+      helper.tearDown();
+    }
+  }
+
+  private DatastoreService start(PersistenceMode persistenceMode) {
+    if (helper != null) {
+      helper.tearDown();
+    }
+    helper =
+        new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                .setNoStorage(false)
+                .setBackingStoreLocation(backingStore.getAbsolutePath())
+                .setPersistenceMode(persistenceMode));
+    helper.setUp();
+    return DatastoreServiceFactory.getDatastoreService();
+  }
+
+  private static Entity newEntity(String name, long value) {
+    Entity entity = new Entity("Item", name);
+    entity.setProperty("value", value);
+    return entity;
+  }
+
+  @Test
+  public void testWritesSurviveRestart() throws Exception {
+    DatastoreService datastore = start(PersistenceMode.LOG);
+    datastore.put(newEntity("a", 1));
+    datastore.put(newEntity("b", 2));
+    datastore.put(newEntity("c", 3));
+    datastore.put(newEntity("b", 20));
+    datastore.delete(KeyFactory.createKey("Item", "c"));
+    Key autoId = datastore.put(new Entity("Item"));
+
+    DatastoreService restarted = start(PersistenceMode.LOG);
+    assertThat(DatastoreLog.isLog(backingStore)).isTrue();
+    assertThat(restarted.get(KeyFactory.createKey("Item", "a")).getProperty("value"))
+        .isEqualTo(1L);
+    assertThat(restarted.get(KeyFactory.createKey("Item", "b")).getProperty("value"))
+        .isEqualTo(20L);
+    assertThrows(
+        EntityNotFoundException.class, () -> restarted.get(KeyFactory.createKey("Item", "c")));
+    assertThat(restarted.get(autoId)).isNotNull();
+    // The id counters are restored, so new ids don't collide with persisted ones.
+    assertThat(restarted.put(new Entity("Item")).getId()).isGreaterThan(autoId.getId());
+  }
+
+  @Test
+  public void testClearedDatastoreStaysEmptyAfterRestart() throws Exception {
+    DatastoreService datastore = start(PersistenceMode.LOG);
+    datastore.put(newEntity("a", 1));
+    datastore.put(newEntity("b", 2));
+    LocalDatastoreServiceTestConfig.getLocalDatastoreService().clearProfiles();
+    datastore.put(newEntity("c", 3));
+
+    DatastoreService restarted = start(PersistenceMode.LOG);
+    assertThrows(
+        EntityNotFoundException.class, () -> restarted.get(KeyFactory.createKey("Item", "a")));
+    assertThrows(
+        EntityNotFoundException.class, () -> restarted.get(KeyFactory.createKey("Item", "b")));
+    assertThat(restarted.get(KeyFactory.createKey("Item", "c")).getProperty("value"))
+        .isEqualTo(3L);
+
+    LocalDatastoreServiceTestConfig.getLocalDatastoreService().clearProfiles();
+    DatastoreService empty = start(PersistenceMode.LOG);
+    assertThat(
+            empty.prepare(new Query("Item")).asList(FetchOptions.Builder.withDefaults()))
+        .isEmpty();
+  }
+
+  @Test
+  public void testIncompleteTailIsDropped() throws Exception {
+    DatastoreService datastore = start(PersistenceMode.LOG);
+    datastore.put(newEntity("a", 1));
+    datastore.put(newEntity("b", 2));
+    helper.tearDown();
+    helper = null;
+    long length = backingStore.length();
+    try (OutputStream out = new FileOutputStream(backingStore, /* append= */ true)) {
+      // A record type and half of a length, as written by a process killed during a flush.
+      out.write(new byte[] {1, 0, 0});
+    }
+
+    datastore = start(PersistenceMode.LOG);
+    assertThat(backingStore.length()).isEqualTo(length);
+    assertThat(datastore.get(KeyFactory.createKey("Item", "a")).getProperty("value"))
+        .isEqualTo(1L);
+    assertThat(datastore.get(KeyFactory.createKey("Item", "b")).getProperty("value"))
+        .isEqualTo(2L);
+    datastore.put(newEntity("c", 3));
+
+    datastore = start(PersistenceMode.LOG);
+    assertThat(datastore.get(KeyFactory.createKey("Item", "c")).getProperty("value"))
+        .isEqualTo(3L);
+  }
+
+  @Test
+  public void testSwitchingPersistenceModes() throws Exception {
+    DatastoreService datastore = start(PersistenceMode.SNAPSHOT);
+    datastore.put(newEntity("a", 1));
+
+    datastore = start(PersistenceMode.LOG);
+    assertThat(DatastoreLog.isLog(backingStore)).isTrue();
+    assertThat(datastore.get(KeyFactory.createKey("Item", "a")).getProperty("value"))
+        .isEqualTo(1L);
+    datastore.put(newEntity("b", 2));
+
+    datastore = start(PersistenceMode.SNAPSHOT);
+    assertThat(datastore.get(KeyFactory.createKey("Item", "b")).getProperty("value"))
+        .isEqualTo(2L);
+    datastore.put(newEntity("c", 3));
+
+    datastore = start(PersistenceMode.SNAPSHOT);
+    assertThat(DatastoreLog.isLog(backingStore)).isFalse();
+    assertThat(datastore.get(KeyFactory.createKey("Item", "a")).getProperty("value"))
+        .isEqualTo(1L);
+    assertThat(datastore.get(KeyFactory.createKey("Item", "c")).getProperty("value"))
+        .isEqualTo(3L);
+  }
+}
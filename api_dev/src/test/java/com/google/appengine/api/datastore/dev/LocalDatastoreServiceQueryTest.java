@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore.dev;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for query execution in {@link LocalDatastoreService}, including its property indexes. */
+@RunWith(JUnit4.class)
+public class LocalDatastoreServiceQueryTest {
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private DatastoreService datastore;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    List<Entity> entities = new ArrayList<>();
+    for (long i = 1; i <= 30; i++) {
+      Entity entity = new Entity("Item", i);
+      entity.setProperty("score", i);
+      entity.setProperty("color", i % 3 == 0 ? "red" : "blue");
+      entity.setProperty("tags", ImmutableList.of("t" + (i % 2), "t" + (i % 5)));
+      entity.setUnindexedProperty("note", "note" + i);
+      entities.add(entity);
+    }
+    datastore.put(entities);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void testEqualityFilter() {
+    assertThat(ids(query(new FilterPredicate("color", FilterOperator.EQUAL, "red"))))
+        .containsExactly(3L, 6L, 9L, 12L, 15L, 18L, 21L, 24L, 27L, 30L)
+        .inOrder();
+    assertThat(ids(query(new FilterPredicate("color", FilterOperator.EQUAL, "green")))).isEmpty();
+  }
+
+  @Test
+  public void testRangeFilter() {
+    Query query =
+        new Query("Item")
+            .setFilter(
+                CompositeFilterOperator.and(
+                    new FilterPredicate("score", FilterOperator.GREATER_THAN_OR_EQUAL, 10L),
+                    new FilterPredicate("score", FilterOperator.LESS_THAN, 14L)))
+            .addSort("score", Query.SortDirection.DESCENDING);
+    assertThat(ids(query)).containsExactly(13L, 12L, 11L, 10L).inOrder();
+
+    assertThat(ids(query(new FilterPredicate("score", FilterOperator.GREATER_THAN, 28L))))
+        .containsExactly(29L, 30L)
+        .inOrder();
+    assertThat(ids(query(new FilterPredicate("score", FilterOperator.LESS_THAN_OR_EQUAL, 2L))))
+        .containsExactly(1L, 2L)
+        .inOrder();
+  }
+
+  @Test
+  public void testEqualityFiltersOnSeveralProperties() {
+    Query query =
+        new Query("Item")
+            .setFilter(
+                CompositeFilterOperator.and(
+                    new FilterPredicate("color", FilterOperator.EQUAL, "red"),
+                    new FilterPredicate("tags", FilterOperator.EQUAL, "t0"),
+                    new FilterPredicate("tags", FilterOperator.EQUAL, "t1")));
+    // Ids divisible by 3 whose tags contain t0 (even or multiple of 5) and t1 (odd or i % 5 == 1).
+    assertThat(ids(query)).containsExactly(6L, 15L).inOrder();
+  }
+
+  @Test
+  public void testUnindexedPropertyIsNotMatched() {
+    assertThat(ids(query(new FilterPredicate("note", FilterOperator.EQUAL, "note1")))).isEmpty();
+  }
+
+  @Test
+  public void testIndexFollowsPutsAndDeletes() throws Exception {
+    Query red = query(new FilterPredicate("color", FilterOperator.EQUAL, "red"));
+    assertThat(ids(red)).hasSize(10);
+
+    Entity entity = datastore.get(new Entity("Item", 3L).getKey());
+    entity.setProperty("color", "green");
+    datastore.put(entity);
+    datastore.delete(new Entity("Item", 6L).getKey());
+    Entity added = new Entity("Item", 31L);
+    added.setProperty("color", "red");
+    datastore.put(added);
+
+    assertThat(ids(red))
+        .containsExactly(9L, 12L, 15L, 18L, 21L, 24L, 27L, 30L, 31L)
+        .inOrder();
+    assertThat(ids(query(new FilterPredicate("color", FilterOperator.EQUAL, "green"))))
+        .containsExactly(3L);
+  }
+
+  @Test
+  public void testBatchesAndCursors() {
+    Query query =
+        new Query("Item").setFilter(new FilterPredicate("score", FilterOperator.GREATER_THAN, 5L));
+    List<Long> ids = new ArrayList<>();
+    for (Entity entity :
+        datastore.prepare(query).asIterable(FetchOptions.Builder.withChunkSize(4).offset(2))) {
+      ids.add(entity.getKey().getId());
+    }
+    assertThat(ids).hasSize(23);
+    assertThat(ids.get(0)).isEqualTo(8L);
+    assertThat(ids.get(22)).isEqualTo(30L);
+
+    QueryResultList<Entity> firstPage =
+        datastore.prepare(query).asQueryResultList(FetchOptions.Builder.withLimit(10));
+    QueryResultList<Entity> secondPage =
+        datastore
+            .prepare(query)
+            .asQueryResultList(
+                FetchOptions.Builder.withLimit(10).startCursor(firstPage.getCursor()));
+    assertThat(ids(secondPage))
+        .containsExactly(16L, 17L, 18L, 19L, 20L, 21L, 22L, 23L, 24L, 25L)
+        .inOrder();
+  }
+
+  private static Query query(Query.Filter filter) {
+    return new Query("Item").setFilter(filter);
+  }
+
+  private List<Long> ids(Query query) {
+    return ids(datastore.prepare(query).asList(FetchOptions.Builder.withDefaults()));
+  }
+
+  private static List<Long> ids(List<Entity> entities) {
+    List<Long> ids = new ArrayList<>();
+    for (Entity entity : entities) {
+      ids.add(entity.getKey().getId());
+    }
+    return ids;
+  }
+}
@@ -54,9 +54,12 @@ import com.google.apphosting.api.ApiProxy;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.io.Resources;
 import com.google.protobuf.ByteString;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URL;
+import javax.imageio.ImageIO;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -344,6 +347,73 @@ public class LocalImagesServiceTest {
     runTransformTest("after-resize.png");
   }
 
+  @Test
+  public void testTransform_blobCached() throws Exception {
+    try (OutputStream out = service.getBlobStorage().storeBlob(new BlobKey("foo"))) {
+      out.write(validImage);
+    }
+    request =
+        ImagesTransformRequest.newBuilder()
+            .setOutput(OutputSettings.newBuilder().setMimeType(MIME_TYPE.PNG))
+            .setImage(ImageData.newBuilder().setContent(ByteString.EMPTY).setBlobKey("foo"))
+            .addTransform(Transform.newBuilder().setWidth(30).setHeight(40));
+    ImagesTransformResponse first = service.transform(status, request.build());
+
+    // Blobs can't change, so the cached output is used rather than the overwritten content.
+    try (OutputStream out = service.getBlobStorage().storeBlob(new BlobKey("foo"))) {
+      out.write("not an image".getBytes(UTF_8));
+    }
+    status = new LocalRpcService.Status();
+    ImagesTransformResponse second = service.transform(status, request.build());
+    assertThat(second).isEqualTo(first);
+    assertThat(status.isSuccessful()).isTrue();
+    compareImage("after-resize.png", second.getImage().getContent().toByteArray());
+
+    service.getBlobStorage().deleteBlob(new BlobKey("foo"));
+    ApiProxy.ApplicationException ex =
+        assertThrows(
+            ApiProxy.ApplicationException.class, () -> service.transform(status, request.build()));
+    assertThat(ex.getApplicationError()).isEqualTo(ErrorCode.INVALID_BLOB_KEY.getNumber());
+  }
+
+  @Test
+  public void testComposite_blobImages() throws Exception {
+    String[] filenames = {"after-verticalFlip.png", "after-rotate-90.png"};
+    for (String name : filenames) {
+      try (OutputStream out = service.getBlobStorage().storeBlob(new BlobKey(name))) {
+        out.write(readImage(name));
+      }
+      compositeRequest.addImage(
+          ImageData.newBuilder().setContent(ByteString.EMPTY).setBlobKey(name));
+    }
+    for (int i = 1; i <= filenames.length; i++) {
+      compositeRequest.addOptions(
+          CompositeImageOptions.newBuilder()
+              .setAnchor(ANCHOR.TOP_LEFT)
+              .setXOffset(0)
+              .setYOffset(0)
+              .setOpacity(1.0f)
+              .setSourceIndex(i));
+    }
+    ImagesCompositeResponse response = service.composite(status, compositeRequest.build());
+    assertThat(status.isSuccessful()).isTrue();
+    BufferedImage canvas =
+        ImageIO.read(new ByteArrayInputStream(response.getImage().getContent().toByteArray()));
+    BufferedImage last = ImageIO.read(new ByteArrayInputStream(readImage(filenames[1])));
+    assertThat(canvas.getRGB(0, 0)).isEqualTo(last.getRGB(0, 0) | 0xff000000);
+
+    compositeRequest.setImage(
+        1, ImageData.newBuilder().setContent(ByteString.EMPTY).setBlobKey("non-existent"));
+    LocalRpcService.Status failedStatus = new LocalRpcService.Status();
+    ApiProxy.ApplicationException ex =
+        assertThrows(
+            ApiProxy.ApplicationException.class,
+            () -> service.composite(failedStatus, compositeRequest.build()));
+    assertThat(ex.getApplicationError()).isEqualTo(ErrorCode.INVALID_BLOB_KEY.getNumber());
+    assertThat(failedStatus.isSuccessful()).isFalse();
+    assertThat(failedStatus.getErrorCode()).isEqualTo(ErrorCode.INVALID_BLOB_KEY.getNumber());
+  }
+
   /**
    * Tests that a composition works correctly.
    */
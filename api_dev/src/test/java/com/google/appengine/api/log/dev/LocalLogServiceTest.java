@@ -31,7 +31,9 @@ import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.logservice.LogServicePb.LogLine;
 import com.google.apphosting.api.logservice.LogServicePb.LogOffset;
 import com.google.apphosting.api.logservice.LogServicePb.LogReadRequest;
+import com.google.apphosting.api.logservice.LogServicePb.LogReadResponse;
 import com.google.apphosting.api.logservice.LogServicePb.RequestLog;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
@@ -710,4 +712,48 @@ public class LocalLogServiceTest {
     LocalLogService service = new LocalLogService();
     assertThat(service.read(null, request)).isNotNull();
   }
+
+  @Test
+  public void testMaxRequestLogs() {
+    LocalLogService service = new LocalLogService();
+    service.init(null, ImmutableMap.of(LocalLogService.MAX_REQUEST_LOGS, "5"));
+    for (int i = 1; i <= 10; i++) {
+      String requestId = String.format("%x", i);
+      service.addAppLogLine(requestId, i, 2, "first line of " + requestId);
+      service.addAppLogLine(requestId, i, 2, "second line of " + requestId);
+    }
+
+    LogReadRequest request =
+        LogReadRequest.newBuilder()
+            .setAppId("")
+            .setIncludeIncomplete(true)
+            .setIncludeAppLogs(true)
+            .setCount(3)
+            .build();
+    LogReadResponse response = service.read(null, request);
+    assertThat(requestIds(response)).containsExactly("a", "9", "8").inOrder();
+    assertThat(response.getLog(0).getLineCount()).isEqualTo(2);
+    assertThat(response.getOffset().getRequestId().toStringUtf8()).isEqualTo("8");
+
+    response = service.read(null, request.toBuilder().setOffset(response.getOffset()).build());
+    assertThat(requestIds(response)).containsExactly("7", "6").inOrder();
+    assertThat(response.hasOffset()).isFalse();
+
+    // An offset whose log was dropped continues with the next older log that is still kept.
+    LogOffset dropped = LogOffset.newBuilder().setRequestId(ByteString.copyFromUtf8("2")).build();
+    assertThat(service.read(null, request.toBuilder().setOffset(dropped).build()).getLogCount())
+        .isEqualTo(0);
+    LogOffset unknown = LogOffset.newBuilder().setRequestId(ByteString.copyFromUtf8("8a")).build();
+    assertThat(requestIds(service.read(null, request.toBuilder().setOffset(unknown).build())))
+        .containsExactly("a", "9", "8")
+        .inOrder();
+  }
+
+  private static List<String> requestIds(LogReadResponse response) {
+    List<String> requestIds = new ArrayList<>();
+    for (RequestLog log : response.getLogList()) {
+      requestIds.add(log.getRequestId().toStringUtf8());
+    }
+    return requestIds;
+  }
 }
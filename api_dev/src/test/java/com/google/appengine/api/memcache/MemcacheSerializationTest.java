@@ -22,16 +22,22 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertThrows;
 
 import com.google.appengine.api.memcache.MemcacheSerialization.Flag;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
 import com.google.appengine.api.testing.SerializationTestBase;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -274,6 +280,122 @@ public class MemcacheSerializationTest extends SerializationTestBase {
         () -> MemcacheSerialization.serialize(new NotSerializable()));
   }
 
+  @Test
+  public void testProtobufCodec() throws Exception {
+    MemcacheGetRequest request =
+        MemcacheGetRequest.newBuilder()
+            .setNameSpace("ns")
+            .addKey(ByteString.copyFromUtf8("k"))
+            .build();
+    List<MemcacheCodec> codecs = ImmutableList.of(MemcacheCodecs.getProtobuf());
+
+    MemcacheSerialization.ValueAndFlags vaf =
+        MemcacheSerialization.serialize(request, codecs, MemcacheServiceConfig.NO_COMPRESSION);
+    assertThat(vaf.flags).isEqualTo(Flag.CODEC);
+    assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()))
+        .isEqualTo(request);
+
+    // Types the codecs don't accept still use their native format or Java serialization.
+    assertThat(MemcacheSerialization.serialize("yar", codecs, 0).flags).isEqualTo(Flag.UTF8);
+    assertThat(
+            MemcacheSerialization.serialize(
+                    new ArrayList<String>(), codecs, MemcacheServiceConfig.NO_COMPRESSION)
+                .flags)
+        .isEqualTo(Flag.OBJECT);
+  }
+
+  @Test
+  public void testByteBufferCodec() throws Exception {
+    ByteBuffer buffer = ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5});
+    buffer.position(2);
+    MemcacheSerialization.ValueAndFlags vaf =
+        MemcacheSerialization.serialize(
+            buffer,
+            ImmutableList.of(MemcacheCodecs.getByteBuffer()),
+            MemcacheServiceConfig.NO_COMPRESSION);
+    assertThat(vaf.flags).isEqualTo(Flag.CODEC);
+    assertThat(buffer.position()).isEqualTo(2);
+    assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()))
+        .isEqualTo(ByteBuffer.wrap(new byte[] {3, 4, 5}));
+
+    // Without the codec, a ByteBuffer can't be cached at all.
+    assertThrows(IllegalArgumentException.class, () -> MemcacheSerialization.serialize(buffer));
+  }
+
+  @Test
+  public void testCustomCodec() throws Exception {
+    MemcacheCodec codec = new UpperCaseCodec();
+    MemcacheCodecs.register(codec);
+    MemcacheSerialization.ValueAndFlags vaf =
+        MemcacheSerialization.serialize(
+            new StringBuilder("yar"),
+            ImmutableList.of(codec),
+            MemcacheServiceConfig.NO_COMPRESSION);
+    assertThat(vaf.flags).isEqualTo(Flag.CODEC);
+    assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()))
+        .isEqualTo("YAR");
+
+    // A codec of another class can't reuse the id.
+    assertThrows(
+        IllegalArgumentException.class, () -> MemcacheCodecs.register(new UpperCaseCodec() {}));
+    MemcacheCodecs.register(new UpperCaseCodec());
+
+    byte[] unknownCodec = {7, 'u', 'n', 'k', 'n', 'o', 'w', 'n', 1, 2};
+    assertThrows(
+        InvalidValueException.class,
+        () -> MemcacheSerialization.deserialize(unknownCodec, Flag.CODEC.ordinal()));
+  }
+
+  @Test
+  public void testCompression() throws Exception {
+    String string = Strings.repeat("compressible ", 1000);
+    MemcacheSerialization.ValueAndFlags vaf =
+        MemcacheSerialization.serialize(string, ImmutableList.<MemcacheCodec>of(), 1024);
+    assertThat(vaf.flags).isEqualTo(Flag.COMPRESSED);
+    assertThat(vaf.value.length).isLessThan(string.length() / 10);
+    assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()))
+        .isEqualTo(string);
+
+    // Values at or below the threshold are left alone.
+    vaf = MemcacheSerialization.serialize(string, ImmutableList.<MemcacheCodec>of(), 1 << 20);
+    assertThat(vaf.flags).isEqualTo(Flag.UTF8);
+
+    // So are values that don't get smaller.
+    byte[] random = new byte[4096];
+    new Random(42).nextBytes(random);
+    vaf = MemcacheSerialization.serialize(random, ImmutableList.<MemcacheCodec>of(), 0);
+    assertThat(vaf.flags).isEqualTo(Flag.BYTES);
+
+    byte[] truncated = MemcacheSerialization.serialize(string, null, 0).value;
+    byte[] corrupt = Arrays.copyOf(truncated, truncated.length / 2);
+    assertThrows(
+        InvalidValueException.class,
+        () -> MemcacheSerialization.deserialize(corrupt, Flag.COMPRESSED.ordinal()));
+  }
+
+  /** Encodes {@link CharSequence}s, which it decodes upper-cased. */
+  private static class UpperCaseCodec implements MemcacheCodec {
+    @Override
+    public String getId() {
+      return "upper";
+    }
+
+    @Override
+    public boolean canEncode(Object value) {
+      return value instanceof CharSequence;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+      return value.toString().getBytes(UTF_8);
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      return new String(bytes, UTF_8).toUpperCase(Locale.ROOT);
+    }
+  }
+
   @Override
   protected List<Serializable> getCanonicalObjects() {
     return Lists.newArrayList(
@@ -48,4 +48,15 @@ public class MemcacheServiceFactoryTest {
     service = MemcacheServiceFactory.getAsyncMemcacheService("tmp");
     assertThat(service.getNamespace()).isEqualTo("tmp");
   }
+
+  @Test
+  public void testMemcacheServiceFactory_withConfig() {
+    MemcacheServiceConfig config =
+        MemcacheServiceConfig.Builder.withCodec(MemcacheCodecs.getProtobuf());
+    MemcacheService service = MemcacheServiceFactory.getMemcacheService("tmp", config);
+    assertThat(service.getNamespace()).isEqualTo("tmp");
+    AsyncMemcacheService asyncService =
+        MemcacheServiceFactory.getAsyncMemcacheService(null, config);
+    assertThat(asyncService.getNamespace()).isNull();
+  }
 }
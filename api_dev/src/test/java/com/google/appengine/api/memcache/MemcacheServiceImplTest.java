@@ -29,6 +29,7 @@ import static org.junit.Assert.fail;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.same;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -1122,6 +1123,227 @@ public class MemcacheServiceImplTest {
     assertThat(stats.getMaxTimeWithoutAccess()).isEqualTo(6);
   }
 
+  private static MemcacheGetRequest nearCacheGetRequest(Object... keys) {
+    MemcacheGetRequest.Builder request = MemcacheGetRequest.newBuilder().setNameSpace("");
+    for (Object key : keys) {
+      request.addKey(ByteString.copyFrom(makePbKey(key)));
+    }
+    return request.build();
+  }
+
+  private static MemcacheGetResponse.Item nearCacheItem(Object key, Object value) {
+    ValueAndFlags vaf = serialize(value);
+    return MemcacheGetResponse.Item.newBuilder()
+        .setKey(ByteString.copyFrom(makePbKey(key)))
+        .setFlags(vaf.flags.ordinal())
+        .setValue(ByteString.copyFrom(vaf.value))
+        .build();
+  }
+
+  private static MemcacheSetRequest nearCacheSetRequest(Object key, Object value) {
+    ValueAndFlags vaf = serialize(value);
+    return MemcacheSetRequest.newBuilder()
+        .setNameSpace("")
+        .addItem(
+            MemcacheSetRequest.Item.newBuilder()
+                .setKey(ByteString.copyFrom(makePbKey(key)))
+                .setFlags(vaf.flags.ordinal())
+                .setValue(ByteString.copyFrom(vaf.value))
+                .setSetPolicy(MemcacheSetRequest.SetPolicy.SET)
+                .setExpirationTime(0))
+        .build();
+  }
+
+  @Test
+  public void testNearCacheGet() {
+    MemcacheService memcache =
+        new MemcacheServiceImpl("", MemcacheServiceConfig.Builder.withNearCache(1024, 60_000));
+    MemcacheGetRequest request = nearCacheGetRequest(ONE);
+    expectAsyncCall(
+        "Get", request, MemcacheGetResponse.newBuilder().addItem(nearCacheItem(ONE, 123)).build());
+    assertThat(memcache.get(ONE)).isEqualTo(123);
+    assertThat(memcache.get(ONE)).isEqualTo(123);
+    verifyAsyncCall("Get", request);
+
+    // Misses are not cached.
+    MemcacheGetRequest twoRequest = nearCacheGetRequest(TWO);
+    expectAsyncCall("Get", twoRequest, MemcacheGetResponse.getDefaultInstance());
+    assertThat(memcache.get(TWO)).isNull();
+    assertThat(memcache.get(TWO)).isNull();
+    verify(delegate, times(2))
+        .makeAsyncCall(
+            same(environment),
+            eq(MemcacheServiceApiHelper.PACKAGE),
+            eq("Get"),
+            eq(twoRequest.toByteArray()),
+            eq(apiConfig));
+  }
+
+  @Test
+  public void testNearCacheGetAll() {
+    MemcacheService memcache =
+        new MemcacheServiceImpl("", MemcacheServiceConfig.Builder.withNearCache(1024, 60_000));
+    expectAsyncCall(
+        "Get",
+        nearCacheGetRequest(ONE),
+        MemcacheGetResponse.newBuilder().addItem(nearCacheItem(ONE, "one")).build());
+    assertThat(memcache.get(ONE)).isEqualTo("one");
+
+    // Only the keys missing from the near cache are fetched.
+    MemcacheGetRequest request = nearCacheGetRequest(TWO, THREE);
+    expectAsyncCall(
+        "Get", request, MemcacheGetResponse.newBuilder().addItem(nearCacheItem(TWO, "two")).build());
+    assertThat(memcache.getAll(Arrays.<Object>asList(ONE, TWO, THREE)))
+        .containsExactly(ONE, "one", TWO, "two");
+    verifyAsyncCall("Get", request);
+
+    reset(delegate);
+    assertThat(memcache.getAll(Arrays.asList(ONE, TWO))).containsExactly(ONE, "one", TWO, "two");
+  }
+
+  @Test
+  public void testNearCachePutAndDelete() {
+    MemcacheService memcache =
+        new MemcacheServiceImpl("", MemcacheServiceConfig.Builder.withNearCache(1024, 60_000));
+    MemcacheGetRequest getRequest = nearCacheGetRequest(ONE);
+    MemcacheSetRequest setRequest = nearCacheSetRequest(ONE, "one");
+    expectAsyncCall(
+        "Set",
+        setRequest,
+        MemcacheSetResponse.newBuilder().addSetStatus(SetStatusCode.STORED).build());
+    memcache.put(ONE, "one");
+    verifyAsyncCall("Set", setRequest);
+
+    // The value that was put is read back without an RPC.
+    reset(delegate);
+    assertThat(memcache.get(ONE)).isEqualTo("one");
+
+    MemcacheDeleteRequest deleteRequest =
+        MemcacheDeleteRequest.newBuilder()
+            .setNameSpace("")
+            .addItem(
+                MemcacheDeleteRequest.Item.newBuilder()
+                    .setKey(ByteString.copyFrom(makePbKey(ONE)))
+                    .setDeleteTime(0))
+            .build();
+    expectAsyncCall(
+        "Delete",
+        deleteRequest,
+        MemcacheDeleteResponse.newBuilder()
+            .addDeleteStatus(MemcacheDeleteResponse.DeleteStatusCode.DELETED)
+            .build());
+    assertThat(memcache.delete(ONE)).isTrue();
+
+    expectAsyncCall("Get", getRequest, MemcacheGetResponse.getDefaultInstance());
+    assertThat(memcache.get(ONE)).isNull();
+    verifyAsyncCall("Get", getRequest);
+  }
+
+  @Test
+  public void testNearCacheFailedPutInvalidates() {
+    MemcacheService memcache =
+        new MemcacheServiceImpl("", MemcacheServiceConfig.Builder.withNearCache(1024, 60_000));
+    MemcacheGetRequest getRequest = nearCacheGetRequest(ONE);
+    expectAsyncCall(
+        "Get", getRequest, MemcacheGetResponse.newBuilder().addItem(nearCacheItem(ONE, 1)).build());
+    assertThat(memcache.get(ONE)).isEqualTo(1);
+
+    MemcacheSetRequest setRequest =
+        nearCacheSetRequest(ONE, 2).toBuilder()
+            .setItem(
+                0,
+                nearCacheSetRequest(ONE, 2).getItem(0).toBuilder()
+                    .setSetPolicy(MemcacheSetRequest.SetPolicy.CAS)
+                    .setCasId(10))
+            .build();
+    expectAsyncCall(
+        "Set",
+        setRequest,
+        MemcacheSetResponse.newBuilder().addSetStatus(SetStatusCode.EXISTS).build());
+    assertThat(memcache.putIfUntouched(ONE, new IdentifiableValueImpl(1, 10), 2)).isFalse();
+
+    expectAsyncCall(
+        "Get", getRequest, MemcacheGetResponse.newBuilder().addItem(nearCacheItem(ONE, 3)).build());
+    assertThat(memcache.get(ONE)).isEqualTo(3);
+  }
+
+  @Test
+  public void testNearCacheIncrementAndClearAllInvalidate() {
+    MemcacheService memcache =
+        new MemcacheServiceImpl("", MemcacheServiceConfig.Builder.withNearCache(1024, 60_000));
+    MemcacheGetRequest getRequest = nearCacheGetRequest(ONE);
+    expectAsyncCall(
+        "Get", getRequest, MemcacheGetResponse.newBuilder().addItem(nearCacheItem(ONE, 1L)).build());
+    assertThat(memcache.get(ONE)).isEqualTo(1L);
+
+    MemcacheIncrementRequest incrementRequest =
+        MemcacheIncrementRequest.newBuilder()
+            .setNameSpace("")
+            .setKey(ByteString.copyFrom(makePbKey(ONE)))
+            .setDelta(1)
+            .setDirection(MemcacheIncrementRequest.Direction.INCREMENT)
+            .build();
+    expectAsyncCall(
+        "Increment", incrementRequest, MemcacheIncrementResponse.newBuilder().setNewValue(2).build());
+    assertThat(memcache.increment(ONE, 1)).isEqualTo(2L);
+
+    expectAsyncCall(
+        "Get", getRequest, MemcacheGetResponse.newBuilder().addItem(nearCacheItem(ONE, 2L)).build());
+    assertThat(memcache.get(ONE)).isEqualTo(2L);
+
+    expectAsyncCall(
+        "FlushAll", MemcacheFlushRequest.getDefaultInstance(),
+        MemcacheFlushResponse.getDefaultInstance());
+    memcache.clearAll();
+
+    expectAsyncCall("Get", getRequest, MemcacheGetResponse.getDefaultInstance());
+    assertThat(memcache.get(ONE)).isNull();
+    verifyAsyncCall("Get", getRequest);
+  }
+
+  @Test
+  public void testNearCacheStatistics() {
+    MemcacheServiceConfig config = MemcacheServiceConfig.Builder.withNearCache(1024, 60_000);
+    MemcacheService memcache = new MemcacheServiceImpl("", config);
+    expectAsyncCall(
+        "Get",
+        nearCacheGetRequest(ONE),
+        MemcacheGetResponse.newBuilder().addItem(nearCacheItem(ONE, "one")).build());
+    memcache.get(ONE);
+    // Services created from the same config share the near cache.
+    new MemcacheServiceImpl("", config).get(ONE);
+
+    MemcacheStatsRequest request = MemcacheStatsRequest.getDefaultInstance();
+    MemcacheStatsResponse response =
+        MemcacheStatsResponse.newBuilder()
+            .setStats(
+                MergedNamespaceStats.newBuilder()
+                    .setHits(5)
+                    .setMisses(6)
+                    .setByteHits(0)
+                    .setItems(0)
+                    .setBytes(0)
+                    .setOldestItemAge(0))
+            .build();
+    expectAsyncCall("Stats", request, response);
+    Stats stats = memcache.getStatistics();
+    assertThat(stats.getHitCount()).isEqualTo(5);
+    assertThat(stats.getMissCount()).isEqualTo(6);
+    assertThat(stats.getNearCacheHitCount()).isEqualTo(1);
+    assertThat(stats.getNearCacheMissCount()).isEqualTo(1);
+    assertThat(stats.toString()).contains("Near Cache Hits: 1\n");
+
+    expectAsyncCall("Stats", request, new ApiProxy.ApplicationException(1, "Error"));
+    stats = memcache.getStatistics();
+    assertThat(stats.getHitCount()).isEqualTo(0);
+    assertThat(stats.getNearCacheHitCount()).isEqualTo(1);
+
+    expectAsyncCall("Stats", request, response);
+    stats = new MemcacheServiceImpl(null).getStatistics();
+    assertThat(stats.getNearCacheHitCount()).isEqualTo(0);
+    assertThat(stats.toString()).doesNotContain("Near Cache");
+  }
+
   @Test
   public void testNullStatistics() {
     MemcacheStatsRequest request = MemcacheStatsRequest.getDefaultInstance();
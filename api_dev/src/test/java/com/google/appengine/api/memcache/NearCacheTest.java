@@ -0,0 +1,142 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.protobuf.ByteString;
+import java.util.Date;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link NearCache}. */
+@RunWith(JUnit4.class)
+public class NearCacheTest {
+  private static final ByteString KEY1 = ByteString.copyFrom("key1", UTF_8);
+  private static final ByteString KEY2 = ByteString.copyFrom("key2", UTF_8);
+  private static final ByteString KEY3 = ByteString.copyFrom("key3", UTF_8);
+  private static final ByteString VALUE = ByteString.copyFrom(new byte[96]);
+
+  private long now;
+  private NearCache nearCache;
+
+  @Before
+  public void setUp() {
+    now = System.currentTimeMillis();
+    // Room for two 100 byte entries.
+    nearCache = new NearCache(250, 1000, () -> now);
+  }
+
+  @Test
+  public void testPutAndGet() {
+    nearCache.put("", KEY1, VALUE, 3, null, nearCache.generation());
+    NearCache.Entry entry = nearCache.get("", KEY1);
+    assertThat(entry.value).isEqualTo(VALUE);
+    assertThat(entry.flags).isEqualTo(3);
+    assertThat(nearCache.get("ns", KEY1)).isNull();
+    assertThat(nearCache.get("", KEY2)).isNull();
+    assertThat(nearCache.getHitCount()).isEqualTo(1);
+    assertThat(nearCache.getMissCount()).isEqualTo(2);
+    assertThat(nearCache.getTotalBytes()).isEqualTo(100);
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    nearCache.put("", KEY1, VALUE, 0, null, nearCache.generation());
+    nearCache.put("", KEY2, VALUE, 0, null, nearCache.generation());
+    assertThat(nearCache.get("", KEY1)).isNotNull();
+    nearCache.put("", KEY3, VALUE, 0, null, nearCache.generation());
+    assertThat(nearCache.size()).isEqualTo(2);
+    assertThat(nearCache.getTotalBytes()).isEqualTo(200);
+    assertThat(nearCache.get("", KEY1)).isNotNull();
+    assertThat(nearCache.get("", KEY2)).isNull();
+    assertThat(nearCache.get("", KEY3)).isNotNull();
+  }
+
+  @Test
+  public void testValueLargerThanLimitIsNotCached() {
+    nearCache.put("", KEY1, ByteString.copyFrom(new byte[300]), 0, null, nearCache.generation());
+    assertThat(nearCache.size()).isEqualTo(0);
+    assertThat(nearCache.getTotalBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testMaxAge() {
+    nearCache.put("", KEY1, VALUE, 0, null, nearCache.generation());
+    now += 999;
+    assertThat(nearCache.get("", KEY1)).isNotNull();
+    now += 1;
+    assertThat(nearCache.get("", KEY1)).isNull();
+    assertThat(nearCache.size()).isEqualTo(0);
+    assertThat(nearCache.getTotalBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testExpiration() {
+    Expiration expiration = Expiration.onDate(new Date(now + 100));
+    nearCache.put("", KEY1, VALUE, 0, expiration, nearCache.generation());
+    now += 99;
+    assertThat(nearCache.get("", KEY1)).isNotNull();
+    now += 1;
+    assertThat(nearCache.get("", KEY1)).isNull();
+  }
+
+  @Test
+  public void testInvalidate() {
+    nearCache.put("", KEY1, VALUE, 0, null, nearCache.generation());
+    nearCache.put("", KEY2, VALUE, 0, null, nearCache.generation());
+    nearCache.invalidate("", KEY1);
+    assertThat(nearCache.get("", KEY1)).isNull();
+    assertThat(nearCache.get("", KEY2)).isNotNull();
+    nearCache.invalidateAll();
+    assertThat(nearCache.get("", KEY2)).isNull();
+    assertThat(nearCache.getTotalBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPutAfterInvalidationIsDropped() {
+    long generation = nearCache.generation();
+    nearCache.invalidate("", KEY2);
+    nearCache.put("", KEY1, VALUE, 0, null, generation);
+    assertThat(nearCache.get("", KEY1)).isNull();
+  }
+
+  @Test
+  public void testPutWrittenDropsInFlightReads() {
+    long readGeneration = nearCache.generation();
+    nearCache.invalidate("", KEY1);
+    long writeGeneration = nearCache.generation();
+    ByteString written = ByteString.copyFrom("written", UTF_8);
+    nearCache.putWritten("", KEY1, written, 0, null, writeGeneration);
+    // A read issued before the write completed must not replace the written value.
+    nearCache.put("", KEY1, VALUE, 0, null, writeGeneration);
+    nearCache.put("", KEY1, VALUE, 0, null, readGeneration);
+    assertThat(nearCache.get("", KEY1).value).isEqualTo(written);
+  }
+
+  @Test
+  public void testPutWrittenAfterInvalidationRemovesKey() {
+    nearCache.put("", KEY1, VALUE, 0, null, nearCache.generation());
+    long generation = nearCache.generation();
+    nearCache.invalidate("", KEY2);
+    nearCache.putWritten("", KEY1, VALUE, 0, null, generation);
+    assertThat(nearCache.get("", KEY1)).isNull();
+  }
+}
@@ -20,6 +20,7 @@ import static com.google.appengine.tools.development.testing.LocalMemcacheServic
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertThrows;
 
 import com.google.appengine.api.memcache.Expiration;
@@ -33,6 +34,7 @@ import com.google.appengine.tools.development.ApiProxyLocal;
 import com.google.appengine.tools.development.Clock;
 import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -41,6 +43,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.junit.After;
 import org.junit.Before;
@@ -654,6 +660,133 @@ public class LocalMemcacheServiceTest {
     verifyStats(null, null, null, 2, SIZE_ONE + SIZE_TWO, null);
   }
 
+  @Test
+  public void testLruOrderAcrossSegments() {
+    // Every entry takes 8 bytes, like ONE, so the cache holds 32 of them. Their keys hash to many
+    // different segments.
+    ApiProxyLocal delegate = LocalServiceTestHelper.getApiProxyLocal();
+    delegate.setProperty(LocalMemcacheService.SIZE_PROPERTY, Integer.toString(32 * SIZE_ONE));
+    memcache = MemcacheServiceFactory.getMemcacheService();
+    for (int i = 0; i < 32; i++) {
+      memcache.put(String.format("k%02d", i), String.format("v%02d", i));
+    }
+    verifyStats(null, null, null, 32, 32 * SIZE_ONE, null);
+
+    // Touch the first eight, so that the next eight are now the least recently used.
+    for (int i = 0; i < 8; i++) {
+      assertThat(memcache.get(String.format("k%02d", i))).isEqualTo(String.format("v%02d", i));
+    }
+    for (int i = 32; i < 40; i++) {
+      memcache.put(String.format("k%02d", i), String.format("v%02d", i));
+    }
+
+    verifyStats(null, null, null, 32, 32 * SIZE_ONE, null);
+    for (int i = 0; i < 40; i++) {
+      String key = String.format("k%02d", i);
+      assertWithMessage(key).that(memcache.contains(key)).isEqualTo(i < 8 || i >= 16);
+    }
+  }
+
+  @Test
+  public void testConcurrentAccessAcrossSegments() throws Exception {
+    int threads = 8;
+    int keysPerThread = 500;
+    int increments = 1000;
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  ApiProxy.setEnvironmentForCurrentThread(environment);
+                  start.await();
+                  for (int i = 0; i < keysPerThread; i++) {
+                    String key = "t" + thread + "-" + i;
+                    memcache.put(key, i);
+                    assertThat(memcache.get(key)).isEqualTo(i);
+                    // Counters shared by every thread, in different segments.
+                    memcache.increment("counter" + (i % 4), 1, 0L);
+                  }
+                  for (int i = keysPerThread; i < increments; i++) {
+                    memcache.increment("counter" + (i % 4), 1, 0L);
+                  }
+                  return null;
+                }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get(60, SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < keysPerThread; i++) {
+        assertThat(memcache.get("t" + t + "-" + i)).isEqualTo(i);
+      }
+    }
+    for (int c = 0; c < 4; c++) {
+      assertThat(memcache.get("counter" + c)).isEqualTo((long) threads * increments / 4);
+    }
+    Stats stats = memcache.getStatistics();
+    assertThat(stats.getItemCount()).isEqualTo(threads * keysPerThread + 4L);
+  }
+
+  @Test
+  public void testConcurrentEvictionKeepsSizeAccounting() throws Exception {
+    int threads = 8;
+    int keysPerThread = 500;
+    // Room for a tenth of the entries, which take 8 bytes each.
+    long limit = threads * keysPerThread / 10 * SIZE_ONE;
+    ApiProxyLocal delegate = LocalServiceTestHelper.getApiProxyLocal();
+    delegate.setProperty(LocalMemcacheService.SIZE_PROPERTY, Long.toString(limit));
+    memcache = MemcacheServiceFactory.getMemcacheService();
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  ApiProxy.setEnvironmentForCurrentThread(environment);
+                  start.await();
+                  for (int i = 0; i < keysPerThread; i++) {
+                    memcache.put(String.format("%d%02d", thread, i % 100), "abc");
+                    memcache.get(String.format("%d%02d", (thread + 1) % threads, i % 100));
+                  }
+                  return null;
+                }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get(60, SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Stats stats = memcache.getStatistics();
+    assertThat(stats.getTotalItemBytes()).isAtMost(limit);
+    assertThat(stats.getTotalItemBytes()).isEqualTo(stats.getItemCount() * SIZE_ONE);
+    int present = 0;
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < 100; i++) {
+        if (memcache.contains(String.format("%d%02d", t, i))) {
+          present++;
+        }
+      }
+    }
+    assertThat(present).isEqualTo(stats.getItemCount());
+  }
+
   @Test
   public void testPutIfUntouched() {
     IdentifiableValue v;
@@ -697,13 +830,13 @@ public class LocalMemcacheServiceTest {
   @Test
   public void testSettingSameObjectDoesNotLeak() {
     // Verify that the LRU starts out empty
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(0);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(0);
 
     for (int i = 0; i < 10; i++) {
       memcache.put("this", "that");
     }
     // There is only 1 key in the cache so the LRU should only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
 
     // Now repeat the test but with different values, expiration values, and set policies.
     for (int i = 0; i < 10; i++) {
@@ -712,22 +845,22 @@ public class LocalMemcacheServiceTest {
       }
     }
     // It's all the same key so the LRU should still only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
   }
 
   @Test
   public void testIncrementDoesNotLeak() {
     // Verify that the LRU starts out empty
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(0);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(0);
 
     memcache.put("this", 1);
     // There is only 1 key in the cache so the LRU should only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
     for (int i = 0; i < 10; i++) {
       memcache.increment("this", 1);
     }
     // There is still only 1 key in the cache so the LRU should only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
   }
 
   @Test
@@ -77,6 +77,72 @@ public class FileBasedLocalSearchServiceTest {
     localSearch2.tearDown();
   }
 
+  @Test
+  public void testCommitDelay() throws Exception {
+    File genDir = tmpDir.getRoot();
+    LocalSearchServiceTestConfig config1 =
+        new LocalSearchServiceTestConfig()
+            .setPersistent(true)
+            .setStorageDirectory(genDir.toString());
+    LocalServiceTestHelper localSearch1 = new LocalServiceTestHelper(config1);
+    localSearch1.setUp();
+    LocalServiceTestHelper.getApiProxyLocal()
+        .setProperty(LocalSearchService.COMMIT_DELAY, Integer.toString(3600 * 1000));
+    Index inboxIndex =
+        SearchServiceFactory.getSearchService()
+            .getIndex(IndexSpec.newBuilder().setName("inbox").build());
+    Document d1 =
+        Document.newBuilder().addField(Field.newBuilder().setName("foo").setText("bar")).build();
+    Document d2 =
+        Document.newBuilder().addField(Field.newBuilder().setName("foo").setText("bar")).build();
+    assertThat(inboxIndex.put(d1).getResults().get(0).getCode()).isEqualTo(StatusCode.OK);
+    assertThat(inboxIndex.put(d2).getResults().get(0).getCode()).isEqualTo(StatusCode.OK);
+    // Pending changes are committed before the index is read.
+    assertThat(inboxIndex.search("foo:bar").getResults()).hasSize(2);
+    Document d3 =
+        Document.newBuilder().addField(Field.newBuilder().setName("foo").setText("bar")).build();
+    assertThat(inboxIndex.put(d3).getResults().get(0).getCode()).isEqualTo(StatusCode.OK);
+    // And when the service stops.
+    localSearch1.tearDown();
+    LocalSearchServiceTestConfig config2 =
+        new LocalSearchServiceTestConfig()
+            .setPersistent(true)
+            .setStorageDirectory(genDir.toString());
+    LocalServiceTestHelper localSearch2 = new LocalServiceTestHelper(config2);
+    localSearch2.setUp();
+    assertThat(inboxIndex.search("foo:bar").getResults()).hasSize(3);
+    localSearch2.tearDown();
+  }
+
+  @Test
+  public void testStopWhileBackgroundCommitsRun() throws Exception {
+    File genDir = tmpDir.getRoot();
+    LocalSearchServiceTestConfig config =
+        new LocalSearchServiceTestConfig()
+            .setPersistent(true)
+            .setStorageDirectory(genDir.toString());
+    LocalServiceTestHelper localSearch1 = new LocalServiceTestHelper(config);
+    localSearch1.setUp();
+    // Commits run all the time in the background, so stopping the service is likely to find one
+    // running. It must finish rather than be interrupted, and the final commit must still run.
+    LocalServiceTestHelper.getApiProxyLocal().setProperty(LocalSearchService.COMMIT_DELAY, "1");
+    Index inboxIndex =
+        SearchServiceFactory.getSearchService()
+            .getIndex(IndexSpec.newBuilder().setName("inbox").build());
+    for (int i = 0; i < 50; i++) {
+      Document document =
+          Document.newBuilder().addField(Field.newBuilder().setName("foo").setText("bar")).build();
+      assertThat(inboxIndex.put(document).getResults().get(0).getCode())
+          .isEqualTo(StatusCode.OK);
+    }
+    localSearch1.tearDown();
+
+    LocalServiceTestHelper localSearch2 = new LocalServiceTestHelper(config);
+    localSearch2.setUp();
+    assertThat(inboxIndex.search("foo:bar").getNumberFound()).isEqualTo(50);
+    localSearch2.tearDown();
+  }
+
   @Test
   public void testIndependentDocumentWithSameNameBackwardCompatibility() throws Exception {
     // golden_index.zip contains a golden index that was created by a version of the dev server
@@ -56,14 +56,19 @@ import com.google.appengine.api.search.SearchServiceFactory;
 import com.google.appengine.api.search.SortExpression;
 import com.google.appengine.api.search.SortOptions;
 import com.google.appengine.api.search.StatusCode;
+import com.google.appengine.api.search.proto.SearchServicePb;
 import com.google.appengine.tools.development.testing.LocalSearchServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.search.DocumentPb;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -630,6 +635,59 @@ public class LocalSearchServiceTest {
     assertEquals(1, response.getResults().size());
   }
   
+  @Test
+  public void testSearcherReusedUntilChangesAreCommitted() throws Exception {
+    indexDocuments(docA);
+    IndexSearcherManager searcherManager =
+        LocalSearchServiceTestConfig.getLocalSearchService()
+            .getIndexSearcherManager(
+                ApiProxy.getCurrentEnvironment().getAppId(),
+                SearchServicePb.IndexSpec.newBuilder().setName(INBOX_INDEX_NAME).build());
+    checkSearchResults(inboxIndex.search("hello"), 1, 1, docA);
+    checkSearchResults(inboxIndex.search("hello"), 1, 1, docA);
+    assertEquals(0, searcherManager.getReopenCount());
+    assertEquals(2, searcherManager.getSearchCount());
+
+    indexDocuments(docB);
+    checkSearchResults(inboxIndex.search("hello"), 2, 2, docA, docB);
+    assertEquals(1, searcherManager.getReopenCount());
+    assertEquals(3, searcherManager.getSearchCount());
+  }
+
+  @Test
+  public void testBulkIndexDocuments() throws Exception {
+    DocumentPb.FieldValue value =
+        DocumentPb.FieldValue.newBuilder()
+            .setType(DocumentPb.FieldValue.ContentType.ATOM)
+            .setStringValue("bulk")
+            .build();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int numDocs = 1234;
+    for (int i = 0; i < numDocs; i++) {
+      DocumentPb.Document.newBuilder()
+          .setId("bulk-" + i)
+          .setOrderId(i)
+          .addField(DocumentPb.Field.newBuilder().setName("tag").setValue(value))
+          .build()
+          .writeDelimitedTo(out);
+    }
+    // Documents must have fields.
+    DocumentPb.Document.newBuilder().setId("invalid").setOrderId(0).build().writeDelimitedTo(out);
+    indexDocuments(docA);
+
+    int indexed =
+        LocalSearchServiceTestConfig.getLocalSearchService()
+            .bulkIndexDocumentsForApp(
+                ApiProxy.getCurrentEnvironment().getAppId(),
+                INBOX_INDEX_NAME,
+                new ByteArrayInputStream(out.toByteArray()),
+                4);
+    assertEquals(numDocs, indexed);
+    assertEquals(numDocs, search("tag:bulk", 10).getNumberFound());
+    assertNotNull(inboxIndex.get("bulk-1000"));
+    assertNotNull(inboxIndex.get(docA.getId()));
+  }
+
   public Results<ScoredDocument> search(String queryString, int numToReturn) {
     Query query = Query.newBuilder()
         .setOptions(QueryOptions.newBuilder().setLimit(numToReturn).build()).build(queryString);
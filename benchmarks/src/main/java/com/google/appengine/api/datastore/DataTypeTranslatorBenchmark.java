@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Entity} to {@link EntityProto} conversion and back, which every datastore get,
+ * put and query result goes through via {@link DataTypeTranslator}.
+ *
+ * <p>Query and get results are converted with {@link EntityTranslator#createLazilyFromPb}, which
+ * only decodes the properties when they are first used: compare {@code protoToLazyEntity} (never
+ * used) and {@code protoToLazyEntityReadOne} against {@code protoToEntity}. Projection query
+ * results only decode the projected properties: compare {@code protoToProjection} against {@code
+ * protoToEntity}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataTypeTranslatorBenchmark {
+
+  @Param({"5", "50"})
+  public int propertyCount;
+
+  private Entity entity;
+  private EntityProto proto;
+  private byte[] protoBytes;
+  private List<Projection> projections;
+  private byte[][] projectedPropertyNames;
+
+  @Setup
+  public void setUp() {
+    entity = createEntity(propertyCount);
+    proto = EntityTranslator.convertToPb(entity);
+    protoBytes = proto.toByteArray();
+    projections = Collections.singletonList(new PropertyProjection("p1", null));
+    projectedPropertyNames = EntityTranslator.getPropertyNames(projections);
+  }
+
+  @Benchmark
+  public EntityProto entityToProto() {
+    return EntityTranslator.convertToPb(entity);
+  }
+
+  @Benchmark
+  public Entity protoToEntity() {
+    return EntityTranslator.createFromPb(proto);
+  }
+
+  @Benchmark
+  public Entity protoToLazyEntity() {
+    return EntityTranslator.createLazilyFromPb(proto);
+  }
+
+  @Benchmark
+  public Object protoToLazyEntityReadOne() {
+    return EntityTranslator.createLazilyFromPb(proto).getProperty("p1");
+  }
+
+  @Benchmark
+  public Entity protoToProjection() {
+    return EntityTranslator.createFromPb(proto, projections, projectedPropertyNames);
+  }
+
+  @Benchmark
+  public Entity bytesToEntity() {
+    return EntityTranslator.createFromPbBytes(protoBytes);
+  }
+
+  /**
+   * Returns an entity with a complete key and {@code propertyCount} properties cycling through the
+   * common value types, including one indexed list property.
+   */
+  static Entity createEntity(int propertyCount) {
+    // An explicit app id keeps key creation independent of the ApiProxy environment.
+    AppIdNamespace appIdNamespace = new AppIdNamespace("s~benchmark", "");
+    Key parent = KeyFactory.createKey(null, "Account", "account-42", appIdNamespace);
+    Entity entity = new Entity(KeyFactory.createKey(parent, "Order", 1234567L, appIdNamespace));
+    for (int i = 0; i < propertyCount; i++) {
+      String name = "p" + i;
+      switch (i % 6) {
+        case 0:
+          entity.setProperty(name, "value-" + i);
+          break;
+        case 1:
+          entity.setProperty(name, (long) i * 1_000_003L);
+          break;
+        case 2:
+          entity.setProperty(name, i * 0.5d);
+          break;
+        case 3:
+          entity.setProperty(name, new Date(1_600_000_000_000L + i));
+          break;
+        case 4:
+          entity.setUnindexedProperty(name, new Text("unindexed text value " + i));
+          break;
+        default:
+          List<String> tags = new ArrayList<>();
+          for (int j = 0; j < 5; j++) {
+            tags.add("tag" + j);
+          }
+          entity.setProperty(name, tags);
+          break;
+      }
+    }
+    return entity;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MemcacheSerialization#serialize} and {@link MemcacheSerialization#deserialize}
+ * for the value shapes applications typically cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MemcacheSerializationBenchmark {
+
+  /** The kind of value being cached. */
+  public enum ValueKind {
+    LONG,
+    STRING,
+    BYTES,
+    POJO,
+    MAP
+  }
+
+  @Param
+  public ValueKind kind;
+
+  private Object value;
+  private byte[] serialized;
+  private int flags;
+
+  @Setup
+  public void setUp() throws IOException {
+    switch (kind) {
+      case LONG:
+        value = 1234567890123L;
+        break;
+      case STRING:
+        value = "user:1234567890:profile:" + "x".repeat(200);
+        break;
+      case BYTES:
+        value = new byte[4096];
+        break;
+      case POJO:
+        value = UserProfile.sample(0);
+        break;
+      case MAP:
+        Map<String, UserProfile> map = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+          map.put("user" + i, UserProfile.sample(i));
+        }
+        value = map;
+        break;
+    }
+    MemcacheSerialization.ValueAndFlags valueAndFlags = MemcacheSerialization.serialize(value);
+    serialized = valueAndFlags.value;
+    flags = valueAndFlags.flags.ordinal();
+  }
+
+  @Benchmark
+  public MemcacheSerialization.ValueAndFlags serialize() throws IOException {
+    return MemcacheSerialization.serialize(value);
+  }
+
+  @Benchmark
+  public Object deserialize() throws IOException, ClassNotFoundException {
+    return MemcacheSerialization.deserialize(serialized, flags);
+  }
+
+  @Benchmark
+  public byte[] makePbKey() throws IOException {
+    return MemcacheSerialization.makePbKey("user:1234567890:profile");
+  }
+
+  /** A typical application value object. */
+  static final class UserProfile implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final long id;
+    final String name;
+    final String email;
+    final boolean admin;
+    final List<String> roles;
+
+    UserProfile(long id, String name, String email, boolean admin, List<String> roles) {
+      this.id = id;
+      this.name = name;
+      this.email = email;
+      this.admin = admin;
+      this.roles = roles;
+    }
+
+    static UserProfile sample(int i) {
+      List<String> roles = new ArrayList<>();
+      roles.add("reader");
+      roles.add("writer");
+      return new UserProfile(i, "User " + i, "user" + i + "@example.com", i % 7 == 0, roles);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache.dev;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.memcache.MemcacheSerialization;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheIncrementRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheIncrementResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetRequest.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetResponse;
+import com.google.appengine.tools.development.Clock;
+import com.google.appengine.tools.development.LocalRpcService.Status;
+import com.google.appengine.tools.development.LocalServiceContext;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stresses {@link LocalMemcacheService} with concurrent gets, sets and increments spread over
+ * several namespaces, the way a multi-threaded app on the dev server uses it. The cache limit is
+ * small enough that sets keep evicting entries.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalMemcacheServiceBenchmark {
+  private static final int NAMESPACES = 8;
+
+  @Param({"1024", "65536"})
+  public int keysPerNamespace;
+
+  private LocalMemcacheService service;
+  private ByteString[] keys;
+  private ByteString counterKey;
+  private ByteString value;
+
+  @Setup
+  public void setUp() throws IOException {
+    LocalServiceContext context = mock(LocalServiceContext.class);
+    when(context.getClock()).thenReturn(Clock.DEFAULT);
+    service = new LocalMemcacheService();
+    service.init(context, ImmutableMap.of(LocalMemcacheService.SIZE_PROPERTY, "4M"));
+    service.start();
+
+    keys = new ByteString[keysPerNamespace];
+    for (int i = 0; i < keysPerNamespace; i++) {
+      keys[i] = ByteString.copyFrom(MemcacheSerialization.makePbKey("key" + i));
+    }
+    counterKey = ByteString.copyFrom(MemcacheSerialization.makePbKey("counter"));
+    value = ByteString.copyFrom(new byte[256]);
+  }
+
+  private static String randomNamespace() {
+    return "ns" + ThreadLocalRandom.current().nextInt(NAMESPACES);
+  }
+
+  private ByteString randomKey() {
+    return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(6)
+  public MemcacheGetResponse get() {
+    MemcacheGetRequest request =
+        MemcacheGetRequest.newBuilder().setNameSpace(randomNamespace()).addKey(randomKey()).build();
+    return service.get(new Status(), request);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public MemcacheSetResponse set() {
+    MemcacheSetRequest request =
+        MemcacheSetRequest.newBuilder()
+            .setNameSpace(randomNamespace())
+            .addItem(
+                MemcacheSetRequest.Item.newBuilder()
+                    .setKey(randomKey())
+                    .setValue(value)
+                    .setFlags(0)
+                    .setSetPolicy(SetPolicy.SET))
+            .build();
+    return service.set(new Status(), request);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public MemcacheIncrementResponse increment() {
+    MemcacheIncrementRequest request =
+        MemcacheIncrementRequest.newBuilder()
+            .setNameSpace(randomNamespace())
+            .setKey(counterKey)
+            .setDelta(1)
+            .setInitialValue(0)
+            .build();
+    return service.increment(new Status(), request);
+  }
+}
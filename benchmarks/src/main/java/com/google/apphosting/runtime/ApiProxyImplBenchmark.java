@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.base.AppVersionKey;
+import com.google.apphosting.base.protos.AppinfoPb.AppInfo;
+import com.google.apphosting.base.protos.RuntimePb.APIRequest;
+import com.google.apphosting.base.protos.RuntimePb.APIResponse;
+import com.google.apphosting.base.protos.RuntimePb.UPRequest;
+import com.google.apphosting.base.protos.Status.StatusProto;
+import com.google.apphosting.runtime.anyrpc.APIHostClientInterface;
+import com.google.apphosting.runtime.anyrpc.AnyRpcCallback;
+import com.google.apphosting.runtime.anyrpc.AnyRpcClientContext;
+import com.google.apphosting.runtime.timer.CpuRatioTimer;
+import com.google.apphosting.runtime.timer.TimerFactory;
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.AbstractList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the client side of an API call through {@link ApiProxyImpl}: building the {@code
+ * APIRequest}, acquiring an API slot, and turning the {@code APIResponse} back into bytes. The API
+ * host is a local fake that echoes the request payload, so no network time is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApiProxyImplBenchmark {
+  private static final String APP_ID = "benchmark-app";
+  private static final String VERSION_ID = "v1.1";
+
+  @Param({"64", "16384", "1048576"})
+  public int payloadSize;
+
+  private ApiProxyImpl delegate;
+  private ApiProxyImpl.EnvironmentImpl environment;
+  private ApiProxy.ApiConfig apiConfig;
+  private byte[] payload;
+
+  @Setup
+  public void setUp() throws IOException {
+    ApiDeadlineOracle oracle =
+        new ApiDeadlineOracle.Builder()
+            .initDeadlineMap(5.0, "", 10.0, "")
+            .initOfflineDeadlineMap(5.0, "", 10.0, "")
+            .build();
+    delegate =
+        ApiProxyImpl.builder()
+            .setApiHost(new EchoApiHost())
+            .setDeadlineOracle(oracle)
+            .setDisableApiCallLogging(true)
+            .build();
+
+    File rootDirectory = Files.createTempDirectory("benchmark").toFile();
+    rootDirectory.deleteOnExit();
+    AppVersion appVersion =
+        AppVersion.builder()
+            .setAppVersionKey(AppVersionKey.of(APP_ID, VERSION_ID))
+            .setAppInfo(AppInfo.newBuilder().setAppId(APP_ID).setVersionId(VERSION_ID).build())
+            .setRootDirectory(rootDirectory)
+            .setEnvironment(
+                new ApplicationEnvironment(
+                    APP_ID,
+                    VERSION_ID,
+                    ImmutableMap.of(),
+                    ImmutableMap.of(),
+                    rootDirectory,
+                    ApplicationEnvironment.RuntimeConfiguration.DEFAULT_FOR_TEST))
+            .setSessionsConfig(new SessionsConfig(false, false, null))
+            .setPublicRoot("")
+            .build();
+    UPRequest upRequest =
+        UPRequest.newBuilder()
+            .setAppId(APP_ID)
+            .setVersionId(VERSION_ID)
+            .setSecurityTicket("secret")
+            .buildPartial();
+    MutableUpResponse upResponse = new MutableUpResponse();
+    CpuRatioTimer timer = new TimerFactory(1_000_000_000L).getCpuRatioTimer(Thread.currentThread());
+    environment =
+        delegate.createEnvironment(
+            appVersion,
+            upRequest,
+            upResponse,
+            /* traceWriter= */ null,
+            timer,
+            "benchmark-request",
+            new DiscardingFutureList(),
+            new Semaphore(Integer.MAX_VALUE),
+            new ThreadGroup("benchmark"),
+            new RequestState(),
+            /* millisUntilSoftDeadline= */ null);
+
+    apiConfig = new ApiProxy.ApiConfig();
+    payload = new byte[payloadSize];
+    new Random(payloadSize).nextBytes(payload);
+  }
+
+  @Benchmark
+  public byte[] makeSyncCall() {
+    return delegate.makeSyncCall(environment, "benchmark", "Echo", payload);
+  }
+
+  @Benchmark
+  public byte[] makeAsyncCall() throws InterruptedException, ExecutionException {
+    return delegate.makeAsyncCall(environment, "benchmark", "Echo", payload, apiConfig).get();
+  }
+
+  /**
+   * The environment normally keeps every outstanding API future so that they can be cancelled when
+   * the request ends. The benchmark request never ends, so the futures are dropped instead of
+   * letting the list grow without bound.
+   */
+  private static final class DiscardingFutureList extends AbstractList<Future<?>> {
+    @Override
+    public boolean add(Future<?> future) {
+      return true;
+    }
+
+    @Override
+    public Future<?> get(int index) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public int size() {
+      return 0;
+    }
+  }
+
+  /** An {@link APIHostClientInterface} that answers every call inline with the request payload. */
+  private static final class EchoApiHost implements APIHostClientInterface {
+    @Override
+    public void call(
+        AnyRpcClientContext ctx, APIRequest request, AnyRpcCallback<APIResponse> callback) {
+      callback.success(
+          APIResponse.newBuilder()
+              .setError(APIResponse.ERROR.OK_VALUE)
+              .setPb(request.getPb())
+              .build());
+    }
+
+    @Override
+    public AnyRpcClientContext newClientContext() {
+      return new FakeClientContext();
+    }
+
+    @Override
+    public void disable() {}
+
+    @Override
+    public void enable() {}
+  }
+
+  private static final class FakeClientContext implements AnyRpcClientContext {
+    private final long startTimeMillis = System.currentTimeMillis();
+
+    @Override
+    public int getApplicationError() {
+      return 0;
+    }
+
+    @Override
+    public String getErrorDetail() {
+      return null;
+    }
+
+    @Override
+    public long getStartTimeMillis() {
+      return startTimeMillis;
+    }
+
+    @Override
+    public StatusProto getStatus() {
+      return StatusProto.getDefaultInstance();
+    }
+
+    @Override
+    public Throwable getException() {
+      return null;
+    }
+
+    @Override
+    public void setDeadline(double seconds) {}
+
+    @Override
+    public void startCancel() {}
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import com.google.apphosting.base.protos.HttpPb.ParsedHttpHeader;
+import com.google.apphosting.base.protos.RuntimePb.UPRequest;
+import com.google.common.net.HttpHeaders;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link HttpCompression#attemptCompression} on a JSON response body of varying size,
+ * from a browser that accepts gzip, at the default and the fastest deflate levels, and with a cache
+ * of compressed responses, which the repeated body always hits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpCompressionBenchmark {
+
+  @Param({"1024", "65536", "1048576"})
+  public int responseSize;
+
+  @Param({"-1", "1"})
+  public int level;
+
+  @Param({"false", "true"})
+  public boolean cached;
+
+  private HttpCompression compression;
+  private UPRequest request;
+  private ByteString body;
+
+  @Setup
+  public void setUp() {
+    compression = new HttpCompression(level, 0, cached ? 16 << 20 : 0);
+    UPRequest.Builder builder = UPRequest.newBuilder();
+    builder
+        .getRequestBuilder()
+        .addHeaders(
+            ParsedHttpHeader.newBuilder()
+                .setKey(HttpHeaders.USER_AGENT)
+                .setValue("Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0"));
+    builder.addRuntimeHeaders(
+        ParsedHttpHeader.newBuilder().setKey(HttpHeaders.ACCEPT_ENCODING).setValue("gzip"));
+    request = builder.buildPartial();
+    body = ByteString.copyFromUtf8(jsonBody(responseSize));
+  }
+
+  @Benchmark
+  public MutableUpResponse attemptCompression() throws IOException {
+    MutableUpResponse response = new MutableUpResponse();
+    response.setHttpResponseCode(200);
+    response.addHttpOutputHeaders(
+        ParsedHttpHeader.newBuilder()
+            .setKey(HttpHeaders.CONTENT_TYPE)
+            .setValue("application/json; charset=utf-8"));
+    response.setHttpResponseResponse(body);
+    compression.attemptCompression(request, response);
+    return response;
+  }
+
+  /** Returns a JSON array of roughly {@code size} characters with realistic repetition. */
+  static String jsonBody(int size) {
+    StringBuilder sb = new StringBuilder(size + 64).append('[');
+    for (int i = 0; sb.length() < size; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"id\":")
+          .append(i)
+          .append(",\"name\":\"entity-")
+          .append(i)
+          .append("\",\"active\":")
+          .append(i % 3 == 0)
+          .append(",\"score\":")
+          .append(i * 31 % 1000)
+          .append('}');
+    }
+    return sb.append(']').toString();
+  }
+}
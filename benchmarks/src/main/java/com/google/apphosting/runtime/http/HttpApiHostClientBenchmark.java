@@ -0,0 +1,149 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.http;
+
+import com.google.apphosting.base.protos.RuntimePb.APIResponse;
+import com.google.apphosting.base.protos.api.RemoteApiPb;
+import com.google.apphosting.runtime.anyrpc.AnyRpcCallback;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures turning the content of an API response, as read from the connection in chunks, into an
+ * {@link APIResponse}, for responses as large as a datastore query batch.
+ *
+ * <ul>
+ *   <li>{@code growingArray} copies the chunks into an array that grows as needed and parses it
+ *       into a copy of the payload, as responses without a Content-Length used to be read.
+ *   <li>{@code contiguousArray} copies the chunks into an array of the Content-Length and parses
+ *       the payload as a view of it, as the Jetty 9 client and the JDK client do.
+ *   <li>{@code retainedChunks} parses the chunks themselves, as the Jetty 12 client does with the
+ *       pooled buffers it retains.
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpApiHostClientBenchmark {
+
+  /** The size of the buffers the Jetty client reads into. */
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  @Param({"65536", "1048576", "8388608"})
+  public int responseSize;
+
+  private List<ByteBuffer> chunks;
+  private int length;
+
+  @Setup
+  public void setUp() {
+    byte[] payload = new byte[responseSize];
+    new Random(1234).nextBytes(payload);
+    byte[] response =
+        RemoteApiPb.Response.newBuilder()
+            .setResponse(ByteString.copyFrom(payload))
+            .build()
+            .toByteArray();
+    length = response.length;
+    chunks = new ArrayList<>();
+    for (int i = 0; i < response.length; i += CHUNK_SIZE) {
+      int chunkLength = Math.min(CHUNK_SIZE, response.length - i);
+      ByteBuffer chunk = ByteBuffer.allocateDirect(chunkLength);
+      chunk.put(response, i, chunkLength);
+      chunk.flip();
+      chunks.add(chunk);
+    }
+  }
+
+  @Benchmark
+  public APIResponse growingArray() {
+    byte[] buffer = new byte[2048];
+    int offset = 0;
+    for (ByteBuffer chunk : chunks) {
+      ByteBuffer content = chunk.duplicate();
+      int byteCount = content.remaining();
+      if (byteCount > buffer.length - offset) {
+        buffer = Arrays.copyOf(buffer, Math.max((int) (buffer.length * 1.5), offset + byteCount));
+      }
+      content.get(buffer, offset, byteCount);
+      offset += byteCount;
+    }
+    Callback callback = new Callback();
+    HttpApiHostClient.receivedResponse(
+        UnsafeByteOperations.unsafeWrap(buffer, 0, offset),
+        false,
+        new HttpApiHostClient.Context(),
+        callback);
+    return callback.response;
+  }
+
+  @Benchmark
+  public APIResponse contiguousArray() {
+    byte[] buffer = new byte[length];
+    int offset = 0;
+    for (ByteBuffer chunk : chunks) {
+      ByteBuffer content = chunk.duplicate();
+      int byteCount = content.remaining();
+      content.get(buffer, offset, byteCount);
+      offset += byteCount;
+    }
+    Callback callback = new Callback();
+    HttpApiHostClient.receivedResponse(buffer, offset, new HttpApiHostClient.Context(), callback);
+    return callback.response;
+  }
+
+  @Benchmark
+  public APIResponse retainedChunks() {
+    Callback callback = new Callback();
+    HttpApiHostClient.receivedResponse(chunks, new HttpApiHostClient.Context(), callback);
+    return callback.response;
+  }
+
+  private static class Callback implements AnyRpcCallback<APIResponse> {
+    APIResponse response;
+
+    @Override
+    public void success(APIResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    public void failure() {
+      throw new AssertionError("Failed to parse response");
+    }
+  }
+}
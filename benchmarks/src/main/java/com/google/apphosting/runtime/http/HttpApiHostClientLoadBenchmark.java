@@ -0,0 +1,178 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.http;
+
+import com.google.apphosting.base.protos.RuntimePb.APIRequest;
+import com.google.apphosting.base.protos.RuntimePb.APIResponse;
+import com.google.apphosting.base.protos.api.RemoteApiPb;
+import com.google.apphosting.runtime.anyrpc.AnyRpcCallback;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ExtensionRegistry;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures API calls made concurrently by many request threads through an {@link
+ * HttpApiHostClient}, against a local API host which answers each call after a fixed latency.
+ *
+ * <p>The sample time mode reports latency percentiles; compare the p0.99 lines with and without
+ * {@code virtualThreads}. The peak number of platform threads, which excludes virtual threads, is
+ * printed after each iteration; it includes the benchmark threads and a fixed pool for the API
+ * host.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(64)
+public class HttpApiHostClientLoadBenchmark {
+
+  /** The time the API host takes to answer a call. */
+  private static final long API_LATENCY_MILLIS = 10;
+
+  private static final int API_HOST_THREADS = 16;
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  @Param({"jetty", "jdk"})
+  public String client;
+
+  @Param({"false", "true"})
+  public boolean virtualThreads;
+
+  private Server apiHost;
+  private HttpApiHostClient apiHostClient;
+  private APIRequest request;
+
+  @Setup
+  public void setUp() throws Exception {
+    // A small fixed pool, so that the peak thread count mostly reflects the client.
+    apiHost = new Server(new QueuedThreadPool(API_HOST_THREADS, API_HOST_THREADS));
+    ServerConnector connector = new ServerConnector(apiHost);
+    apiHost.addConnector(connector);
+    apiHost.setHandler(new DelayedEchoHandler());
+    apiHost.start();
+
+    String url =
+        "http://localhost:" + connector.getLocalPort() + HttpApiHostClient.REQUEST_ENDPOINT;
+    HttpApiHostClient.Config config =
+        HttpApiHostClient.Config.builder().setUseVirtualThreads(virtualThreads).build();
+    apiHostClient =
+        client.equals("jdk")
+            ? JdkHttpApiHostClient.create(url, config)
+            : JettyHttpApiHostClient.create(url, config);
+    request =
+        APIRequest.newBuilder()
+            .setApiPackage("benchmark")
+            .setCall("Echo")
+            .setSecurityTicket("secret")
+            .setPb(ByteString.copyFrom(new byte[1024]))
+            .build();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    if (apiHostClient instanceof JettyHttpApiHostClient) {
+      apiHostClient.disable();
+    }
+    apiHost.stop();
+  }
+
+  @Setup(Level.Iteration)
+  public void resetPeakThreadCount() {
+    THREADS.resetPeakThreadCount();
+  }
+
+  @TearDown(Level.Iteration)
+  public void printPeakThreadCount() {
+    System.out.printf("%nPeak platform threads: %d%n", THREADS.getPeakThreadCount());
+  }
+
+  @Benchmark
+  public APIResponse call() throws InterruptedException, ExecutionException {
+    CompletableFuture<APIResponse> response = new CompletableFuture<>();
+    apiHostClient.call(
+        apiHostClient.newClientContext(),
+        request,
+        new AnyRpcCallback<APIResponse>() {
+          @Override
+          public void success(APIResponse apiResponse) {
+            response.complete(apiResponse);
+          }
+
+          @Override
+          public void failure() {
+            response.completeExceptionally(new AssertionError("API call failed"));
+          }
+        });
+    return response.get();
+  }
+
+  /** Answers each API call with its request payload, {@link #API_LATENCY_MILLIS} later. */
+  private static final class DelayedEchoHandler extends Handler.Abstract {
+    @Override
+    public boolean handle(Request request, Response response, Callback callback) throws Exception {
+      RemoteApiPb.Request apiRequest =
+          RemoteApiPb.Request.parseFrom(
+              Content.Source.asByteBuffer(request), ExtensionRegistry.getEmptyRegistry());
+      ByteBuffer apiResponse =
+          ByteBuffer.wrap(
+              RemoteApiPb.Response.newBuilder()
+                  .setResponse(apiRequest.getRequest())
+                  .build()
+                  .toByteArray());
+      response.getHeaders().put(HttpHeader.CONTENT_TYPE, HttpApiHostClient.CONTENT_TYPE_VALUE);
+      request
+          .getComponents()
+          .getScheduler()
+          .schedule(
+              () -> response.write(true, apiResponse, callback),
+              API_LATENCY_MILLIS,
+              TimeUnit.MILLISECONDS);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty.proxy;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.google.apphosting.base.protos.HttpPb;
+import com.google.apphosting.base.protos.RuntimePb;
+import com.google.apphosting.runtime.jetty.AppInfoFactory;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.ByteString;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.server.ConnectionMetaData;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.Callback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link UPRequestTranslator} converting a Jetty request carrying the usual set of
+ * X-AppEngine headers into a {@code UPRequest}, and a {@code UPResponse} back into a Jetty
+ * response. The Jetty objects are stub-only mocks so that only the translation is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UPRequestTranslatorBenchmark {
+
+  @Param({"0", "16384", "1048576"})
+  public int bodySize;
+
+  private UPRequestTranslator translator;
+  private Request request;
+  private Response response;
+  private HttpFields.Mutable responseHeaders;
+  private RuntimePb.UPResponse upResponse;
+
+  @Setup
+  public void setUp() throws Exception {
+    translator =
+        new UPRequestTranslator(
+            new AppInfoFactory(
+                ImmutableMap.of(
+                    "GAE_VERSION", "3.14",
+                    "GOOGLE_CLOUD_PROJECT", "benchmark",
+                    "GAE_APPLICATION", "s~benchmark",
+                    "GAE_SERVICE", "default")),
+            /* passThroughPrivateHeaders= */ false,
+            /* skipPostData= */ false);
+
+    byte[] body = new byte[bodySize];
+    new Random(bodySize).nextBytes(body);
+    ByteBuffer bodyBuffer = ByteBuffer.wrap(body).asReadOnlyBuffer();
+
+    URI uri = new URI("http://benchmark.appspot.com/api/items/42?fields=name,score&limit=20");
+    HttpFields.Mutable requestHeaders = HttpFields.build();
+    requestHeaders.put("host", uri.getHost());
+    requestHeaders.put("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101");
+    requestHeaders.put("Accept", "application/json");
+    requestHeaders.put("Accept-Encoding", "gzip, deflate, br");
+    requestHeaders.put("Content-Type", "application/octet-stream");
+    requestHeaders.put("Cookie", "SESSION=0123456789abcdef; prefs=dark");
+    requestHeaders.put("X-AppEngine-User-IP", "203.0.113.7");
+    requestHeaders.put("X-AppEngine-Country", "US");
+    requestHeaders.put("X-AppEngine-Region", "ca");
+    requestHeaders.put("X-AppEngine-City", "mountain view");
+    requestHeaders.put("X-AppEngine-Https", "on");
+    requestHeaders.put("X-AppEngine-Request-Log-Id", "5f0c3a9e00ff0b2c9d1e");
+    requestHeaders.put("X-AppEngine-Default-Version-Hostname", "benchmark.appspot.com");
+    requestHeaders.put("X-Cloud-Trace-Context", "000000000000007b00000000000001c8/789;o=1");
+    requestHeaders.put("X-AppEngine-Timeout-Ms", "60000");
+
+    ConnectionMetaData connectionMetaData =
+        mock(ConnectionMetaData.class, withSettings().stubOnly());
+    when(connectionMetaData.getRemoteSocketAddress())
+        .thenReturn(new InetSocketAddress("127.0.0.1", 43210));
+    when(connectionMetaData.getHttpVersion()).thenReturn(HttpVersion.HTTP_1_1);
+
+    request = mock(Request.class, withSettings().stubOnly());
+    when(request.getMethod()).thenReturn(bodySize == 0 ? "GET" : "POST");
+    when(request.getHttpURI()).thenReturn(HttpURI.build(uri).asImmutable());
+    when(request.getHeaders()).thenReturn(requestHeaders.asImmutable());
+    when(request.getConnectionMetaData()).thenReturn(connectionMetaData);
+    when(request.read())
+        .thenAnswer(
+            invocation ->
+                bodySize == 0
+                    ? Content.Chunk.EOF
+                    : Content.Chunk.from(bodyBuffer.duplicate(), /* last= */ true));
+
+    responseHeaders = HttpFields.build();
+    response = mock(Response.class, withSettings().stubOnly());
+    when(response.getHeaders()).thenReturn(responseHeaders);
+    doAnswer(
+            invocation -> {
+              invocation.<Callback>getArgument(2).succeeded();
+              return null;
+            })
+        .when(response)
+        .write(anyBoolean(), any(), any());
+
+    HttpPb.HttpResponse.Builder httpResponse =
+        HttpPb.HttpResponse.newBuilder()
+            .setResponsecode(200)
+            .setResponse(ByteString.copyFrom(body));
+    httpResponse.addOutputHeadersBuilder().setKey("Content-Type").setValue("application/json");
+    httpResponse.addOutputHeadersBuilder().setKey("Cache-Control").setValue("no-cache");
+    httpResponse.addOutputHeadersBuilder().setKey("Set-Cookie").setValue("SESSION=0123456789");
+    upResponse =
+        RuntimePb.UPResponse.newBuilder()
+            .setError(RuntimePb.UPResponse.ERROR.OK_VALUE)
+            .setHttpResponse(httpResponse)
+            .build();
+  }
+
+  @Benchmark
+  public RuntimePb.UPRequest translateRequest() {
+    return translator.translateRequest(request);
+  }
+
+  @Benchmark
+  public HttpFields translateResponse() {
+    responseHeaders.clear();
+    translator.translateResponse(response, upResponse, Callback.NOOP);
+    return responseHeaders;
+  }
+}
@@ -26,9 +26,12 @@ import com.google.appengine.api.memcache.IMemcacheServiceFactory;
 import com.google.appengine.api.memcache.IMemcacheServiceFactoryProvider;
 import com.google.appengine.api.memcache.InvalidValueException;
 import com.google.appengine.api.memcache.LogAndContinueErrorHandler;
+import com.google.appengine.api.memcache.MemcacheCodec;
+import com.google.appengine.api.memcache.MemcacheCodecs;
 import com.google.appengine.api.memcache.MemcacheSerialization;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceConfig;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.memcache.Stats;
 import com.google.appengine.api.memcache.StrictErrorHandler;
@@ -49,6 +52,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Future;
@@ -84,6 +88,9 @@ public final class MemcacheApiUsage {
     public Set<Class<?>> useApi(IMemcacheServiceFactory iMemcacheServiceFactory) {
       AsyncMemcacheService ams = iMemcacheServiceFactory.getAsyncMemcacheService("yar");
       MemcacheService ms = iMemcacheServiceFactory.getMemcacheService("yar");
+      MemcacheServiceConfig config = MemcacheServiceConfig.Builder.withDefaults();
+      ams = iMemcacheServiceFactory.getAsyncMemcacheService("yar", config);
+      ms = iMemcacheServiceFactory.getMemcacheService("yar", config);
       return Collections.emptySet();
     }
   }
@@ -298,6 +305,8 @@ public final class MemcacheApiUsage {
       int intVal = stats.getMaxTimeWithoutAccess();
       longVal = stats.getMissCount();
       longVal = stats.getTotalItemBytes();
+      longVal = stats.getNearCacheHitCount();
+      longVal = stats.getNearCacheMissCount();
       return Sets.newHashSet();
     }
   }
@@ -621,6 +630,8 @@ public final class MemcacheApiUsage {
       flag = MemcacheSerialization.Flag.OBJECT;
       flag = MemcacheSerialization.Flag.SHORT;
       flag = MemcacheSerialization.Flag.UTF8;
+      flag = MemcacheSerialization.Flag.CODEC;
+      flag = MemcacheSerialization.Flag.COMPRESSED;
       return Sets.newHashSet(Enum.class, Object.class, Serializable.class, Comparable.class);
     }
   }
@@ -635,6 +646,72 @@ public final class MemcacheApiUsage {
       ams = MemcacheServiceFactory.getAsyncMemcacheService("yar");
       MemcacheService ms = MemcacheServiceFactory.getMemcacheService();
       ms = MemcacheServiceFactory.getMemcacheService("yar");
+      MemcacheServiceConfig config = MemcacheServiceConfig.Builder.withDefaults();
+      ams = MemcacheServiceFactory.getAsyncMemcacheService("yar", config);
+      ms = MemcacheServiceFactory.getMemcacheService("yar", config);
+      return Sets.<Class<?>>newHashSet(Object.class);
+    }
+  }
+
+  /** Exhaustive use of {@link MemcacheCodec}. */
+  public static class MemcacheCodecApiUsage extends ExhaustiveApiInterfaceUsage<MemcacheCodec> {
+
+    @Override
+    protected Set<Class<?>> useApi(MemcacheCodec codec) {
+      String id = codec.getId();
+      boolean canEncode = codec.canEncode("yar");
+      try {
+        byte[] bytes = codec.encode("yar");
+        Object value = codec.decode(bytes);
+      } catch (ClassNotFoundException | IOException e) {
+        // fine
+      }
+      return Collections.emptySet();
+    }
+  }
+
+  /** Exhaustive use of {@link MemcacheCodecs}. */
+  public static class MemcacheCodecsApiUsage extends ExhaustiveApiUsage<MemcacheCodecs> {
+
+    @Override
+    public Set<Class<?>> useApi() {
+      MemcacheCodec codec = MemcacheCodecs.getProtobuf();
+      codec = MemcacheCodecs.getByteBuffer();
+      MemcacheCodecs.register(codec);
+      return Sets.<Class<?>>newHashSet(Object.class);
+    }
+  }
+
+  /** Exhaustive use of {@link MemcacheServiceConfig}. */
+  public static class MemcacheServiceConfigApiUsage
+      extends ExhaustiveApiUsage<MemcacheServiceConfig> {
+
+    int ___apiConstant_NO_COMPRESSION;
+
+    @Override
+    public Set<Class<?>> useApi() {
+      ___apiConstant_NO_COMPRESSION = MemcacheServiceConfig.NO_COMPRESSION;
+      MemcacheServiceConfig config =
+          MemcacheServiceConfig.Builder.withDefaults()
+              .codec(MemcacheCodecs.getProtobuf())
+              .compressionThreshold(1024)
+              .nearCache(1024, 1000);
+      List<MemcacheCodec> codecs = config.getCodecs();
+      int threshold = config.getCompressionThreshold();
+      return Sets.<Class<?>>newHashSet(Object.class);
+    }
+  }
+
+  /** Exhaustive use of {@link MemcacheServiceConfig.Builder}. */
+  public static class MemcacheServiceConfigBuilderApiUsage
+      extends ExhaustiveApiUsage<MemcacheServiceConfig.Builder> {
+
+    @Override
+    public Set<Class<?>> useApi() {
+      MemcacheServiceConfig config = MemcacheServiceConfig.Builder.withDefaults();
+      config = MemcacheServiceConfig.Builder.withCodec(MemcacheCodecs.getByteBuffer());
+      config = MemcacheServiceConfig.Builder.withCompressionThreshold(1024);
+      config = MemcacheServiceConfig.Builder.withNearCache(1024, 1000);
       return Sets.<Class<?>>newHashSet(Object.class);
     }
   }
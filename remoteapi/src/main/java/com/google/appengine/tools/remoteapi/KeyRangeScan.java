@@ -0,0 +1,344 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.remoteapi;
+
+import com.google.apphosting.datastore.proto2api.DatastoreV3Pb;
+import com.google.storage.onestore.v3.proto2api.OnestoreEntity;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Scans a kind by splitting its keys into ranges, and fetching the batches of every range
+ * concurrently.
+ *
+ * <p>The split points are sampled with the {@code __scatter__} property. Results are still returned
+ * in key order: the batches of a range are handed out once the ranges before it are exhausted, and
+ * each range fetches at most {@value #READ_AHEAD_BATCHES} batches ahead of the caller.
+ *
+ * <p>The batches carry no cursors, since those of a range only apply to the query of that range.
+ */
+final class KeyRangeScan {
+  private static final String KEY_PROPERTY = "__key__";
+  private static final String SCATTER_PROPERTY = "__scatter__";
+
+  // How many scattered keys are sampled for each range.
+  private static final int OVERSAMPLING = 32;
+  private static final int READ_AHEAD_BATCHES = 2;
+
+  private final RemoteRpc remoteRpc;
+  private final Executor executor;
+  private final List<Range> ranges = new ArrayList<>();
+
+  // Guarded by this. The index of the range whose batches are being handed out.
+  private int current;
+
+  private KeyRangeScan(RemoteRpc remoteRpc, Executor executor) {
+    this.remoteRpc = remoteRpc;
+    this.executor = executor;
+  }
+
+  /**
+   * Returns whether the query reads a whole kind in key order, which is what a scan of its key
+   * ranges returns, and doesn't ask for cursors, which a scan can't return.
+   */
+  static boolean canSplit(DatastoreV3Pb.QueryOrBuilder query) {
+    if (!query.hasKind()
+        || query.getCompile()
+        || query.hasAncestor()
+        || query.getFilterCount() > 0
+        || query.hasSearchQuery()
+        || query.getOffset() > 0
+        || query.hasLimit()
+        || query.hasCompiledCursor()
+        || query.hasEndCompiledCursor()
+        || query.hasTransaction()
+        || query.getPropertyNameCount() > 0
+        || query.getGroupByPropertyNameCount() > 0
+        || query.getDistinct()) {
+      return false;
+    }
+    if (query.getOrderCount() == 0) {
+      return true;
+    }
+    DatastoreV3Pb.Query.Order order = query.getOrder(0);
+    return query.getOrderCount() == 1
+        && order.getProperty().equals(KEY_PROPERTY)
+        && order.getDirection() == DatastoreV3Pb.Query.Order.Direction.ASCENDING;
+  }
+
+  /**
+   * Starts a scan of the query, split into at most {@code maxRanges} key ranges, or returns null if
+   * the kind has too few scattered entities to split it.
+   *
+   * @param query a query for which {@link #canSplit} is true, with its fetch count set
+   */
+  static @Nullable KeyRangeScan start(
+      DatastoreV3Pb.Query query, int maxRanges, RemoteRpc remoteRpc, Executor executor) {
+    List<OnestoreEntity.Reference> splitPoints = sampleKeys(query, maxRanges, remoteRpc);
+    int rangeCount = Math.min(maxRanges, splitPoints.size() + 1);
+    if (rangeCount < 2) {
+      return null;
+    }
+    KeyRangeScan scan = new KeyRangeScan(remoteRpc, executor);
+    OnestoreEntity.Reference lower = null;
+    for (int i = 1; i < rangeCount; i++) {
+      OnestoreEntity.Reference upper = splitPoints.get(i * splitPoints.size() / rangeCount);
+      if (lower == null || compareKeys(lower, upper) < 0) {
+        scan.ranges.add(scan.new Range(withKeyRange(query, lower, upper)));
+        lower = upper;
+      }
+    }
+    scan.ranges.add(scan.new Range(withKeyRange(query, lower, null)));
+    for (Range range : scan.ranges) {
+      range.fetchAhead();
+    }
+    return scan;
+  }
+
+  /**
+   * Returns the next batch of results, waiting for it if needed. The batch says there are more
+   * results until every range is exhausted.
+   */
+  synchronized DatastoreV3Pb.QueryResult.Builder nextBatch() {
+    while (current < ranges.size()) {
+      DatastoreV3Pb.QueryResult batch = ranges.get(current).take();
+      boolean rangeDone = !hasMoreResults(batch);
+      if (rangeDone) {
+        current++;
+        if (batch.getResultCount() == 0 && current < ranges.size()) {
+          // Don't make the caller come back for an empty batch.
+          continue;
+        }
+      }
+      return batch.toBuilder()
+          .clearCompiledQuery()
+          .clearCompiledCursor()
+          .clearResultCompiledCursor()
+          .clearSkippedResultsCompiledCursor()
+          .setMoreResults(!rangeDone || current < ranges.size());
+    }
+    return DatastoreV3Pb.QueryResult.newBuilder().setMoreResults(false);
+  }
+
+  private static boolean hasMoreResults(DatastoreV3Pb.QueryResult batch) {
+    return batch.getMoreResults() && batch.hasCompiledCursor();
+  }
+
+  /** Returns scattered keys of the kind, in key order. */
+  private static List<OnestoreEntity.Reference> sampleKeys(
+      DatastoreV3Pb.Query query, int maxRanges, RemoteRpc remoteRpc) {
+    int sampleSize = maxRanges * OVERSAMPLING;
+    DatastoreV3Pb.Query.Builder sample =
+        DatastoreV3Pb.Query.newBuilder()
+            .setApp(query.getApp())
+            .setKind(query.getKind())
+            .setKeysOnly(true)
+            .addOrder(DatastoreV3Pb.Query.Order.newBuilder().setProperty(SCATTER_PROPERTY))
+            .setLimit(sampleSize)
+            .setCount(sampleSize);
+    if (query.hasNameSpace()) {
+      sample.setNameSpace(query.getNameSpace());
+    }
+    if (query.hasDatabaseId()) {
+      sample.setDatabaseId(query.getDatabaseId());
+    }
+    DatastoreV3Pb.QueryResult.Builder result = DatastoreV3Pb.QueryResult.newBuilder();
+    RemoteDatastore.mergeFromBytes(
+        result,
+        remoteRpc.call(
+            RemoteDatastore.DATASTORE_SERVICE, "RunQuery", "", sample.build().toByteArray()));
+    List<OnestoreEntity.Reference> keys = new ArrayList<>();
+    for (OnestoreEntity.EntityProto entity : result.getResultList()) {
+      keys.add(entity.getKey());
+    }
+    keys.sort(KeyRangeScan::compareKeys);
+    return keys;
+  }
+
+  /** Returns the query restricted to keys from {@code lower}, inclusive, to {@code upper}. */
+  private static DatastoreV3Pb.Query withKeyRange(
+      DatastoreV3Pb.Query query,
+      OnestoreEntity.@Nullable Reference lower,
+      OnestoreEntity.@Nullable Reference upper) {
+    DatastoreV3Pb.Query.Builder range = query.toBuilder();
+    if (lower != null) {
+      range.addFilter(
+          keyFilter(DatastoreV3Pb.Query.Filter.Operator.GREATER_THAN_OR_EQUAL, lower));
+    }
+    if (upper != null) {
+      range.addFilter(keyFilter(DatastoreV3Pb.Query.Filter.Operator.LESS_THAN, upper));
+    }
+    return range.build();
+  }
+
+  private static DatastoreV3Pb.Query.Filter keyFilter(
+      DatastoreV3Pb.Query.Filter.Operator op, OnestoreEntity.Reference key) {
+    OnestoreEntity.PropertyValue.ReferenceValue.Builder value =
+        OnestoreEntity.PropertyValue.ReferenceValue.newBuilder().setApp(key.getApp());
+    if (key.hasNameSpace()) {
+      value.setNameSpace(key.getNameSpace());
+    }
+    if (key.hasDatabaseId()) {
+      value.setDatabaseId(key.getDatabaseId());
+    }
+    for (OnestoreEntity.Path.Element element : key.getPath().getElementList()) {
+      OnestoreEntity.PropertyValue.ReferenceValue.PathElement.Builder pathElement =
+          value.addPathElementBuilder().setType(element.getType());
+      if (element.hasId()) {
+        pathElement.setId(element.getId());
+      }
+      if (element.hasName()) {
+        pathElement.setName(element.getName());
+      }
+    }
+    OnestoreEntity.Property property =
+        OnestoreEntity.Property.newBuilder()
+            .setName(KEY_PROPERTY)
+            .setMultiple(false)
+            .setValue(OnestoreEntity.PropertyValue.newBuilder().setReferenceValue(value))
+            .build();
+    return DatastoreV3Pb.Query.Filter.newBuilder().setOp(op).addProperty(property).build();
+  }
+
+  /** Compares keys of the same app and namespace in the order the datastore sorts them. */
+  static int compareKeys(OnestoreEntity.Reference a, OnestoreEntity.Reference b) {
+    List<OnestoreEntity.Path.Element> pathA = a.getPath().getElementList();
+    List<OnestoreEntity.Path.Element> pathB = b.getPath().getElementList();
+    for (int i = 0; i < pathA.size() && i < pathB.size(); i++) {
+      OnestoreEntity.Path.Element elementA = pathA.get(i);
+      OnestoreEntity.Path.Element elementB = pathB.get(i);
+      int result = compareStrings(elementA.getType(), elementB.getType());
+      if (result == 0) {
+        // Ids sort before names.
+        if (elementA.hasName() != elementB.hasName()) {
+          result = elementA.hasName() ? 1 : -1;
+        } else if (elementA.hasName()) {
+          result = compareStrings(elementA.getName(), elementB.getName());
+        } else {
+          result = Long.compare(elementA.getId(), elementB.getId());
+        }
+      }
+      if (result != 0) {
+        return result;
+      }
+    }
+    return Integer.compare(pathA.size(), pathB.size());
+  }
+
+  // The datastore sorts strings by their UTF-8 bytes, which is the order of their code points.
+  private static int compareStrings(String a, String b) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length() && j < b.length()) {
+      int codePointA = a.codePointAt(i);
+      int codePointB = b.codePointAt(j);
+      if (codePointA != codePointB) {
+        return Integer.compare(codePointA, codePointB);
+      }
+      i += Character.charCount(codePointA);
+      j += Character.charCount(codePointB);
+    }
+    return Integer.compare(a.length() - i, b.length() - j);
+  }
+
+  /** One key range, which fetches its batches one after the other on the executor. */
+  private final class Range {
+    private final DatastoreV3Pb.Query query;
+
+    // Guarded by this.
+    private final Deque<DatastoreV3Pb.QueryResult> ready = new ArrayDeque<>();
+    private DatastoreV3Pb.@Nullable CompiledCursor cursor;
+    private boolean fetching;
+    private boolean done;
+    private @Nullable RuntimeException failure;
+
+    Range(DatastoreV3Pb.Query query) {
+      this.query = query;
+    }
+
+    /** Starts fetching the next batch, unless one is being fetched or enough are waiting. */
+    synchronized void fetchAhead() {
+      if (fetching || done || failure != null || ready.size() >= READ_AHEAD_BATCHES) {
+        return;
+      }
+      fetching = true;
+      DatastoreV3Pb.Query.Builder next = query.toBuilder();
+      if (cursor != null) {
+        next.setCompiledCursor(cursor);
+      }
+      byte[] request = next.build().toByteArray();
+      executor.execute(() -> fetch(request));
+    }
+
+    private void fetch(byte[] request) {
+      DatastoreV3Pb.QueryResult.Builder result = DatastoreV3Pb.QueryResult.newBuilder();
+      RuntimeException failed = null;
+      try {
+        RemoteDatastore.mergeFromBytes(
+            result, remoteRpc.call(RemoteDatastore.DATASTORE_SERVICE, "RunQuery", "", request));
+      } catch (RuntimeException e) {
+        failed = e;
+      }
+      synchronized (this) {
+        fetching = false;
+        if (failed != null) {
+          failure = failed;
+        } else {
+          DatastoreV3Pb.QueryResult batch = result.build();
+          ready.add(batch);
+          if (hasMoreResults(batch)) {
+            cursor = batch.getCompiledCursor();
+          } else {
+            done = true;
+          }
+        }
+        notifyAll();
+      }
+      fetchAhead();
+    }
+
+    /** Returns the next batch of this range, waiting for it to be fetched if needed. */
+    synchronized DatastoreV3Pb.QueryResult take() {
+      fetchAhead();
+      while (ready.isEmpty() && !done && failure == null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RemoteApiException(
+              "interrupted while waiting for query results",
+              RemoteDatastore.DATASTORE_SERVICE,
+              "RunQuery",
+              e);
+        }
+      }
+      if (ready.isEmpty()) {
+        if (failure != null) {
+          throw failure;
+        }
+        return DatastoreV3Pb.QueryResult.newBuilder().setMoreResults(false).build();
+      }
+      DatastoreV3Pb.QueryResult batch = ready.poll();
+      fetchAhead();
+      return batch;
+    }
+  }
+}
@@ -71,6 +71,8 @@ public class RemoteApiOptions {
   private String remoteApiPath = "/remote_api";
   private int maxConcurrentRequests = 5;
   private int datastoreQueryFetchSize = 500;
+  private boolean datastoreQueryPrefetch;
+  private int datastoreQueryParallelism = 1;
   private int maxHttpResponseSize = 33 * 1024 * 1024;
 
   // public methods that populate oauthCredential must also populate
@@ -89,6 +91,8 @@ public class RemoteApiOptions {
     this.remoteApiPath = original.remoteApiPath;
     this.maxConcurrentRequests = original.maxConcurrentRequests;
     this.datastoreQueryFetchSize = original.datastoreQueryFetchSize;
+    this.datastoreQueryPrefetch = original.datastoreQueryPrefetch;
+    this.datastoreQueryParallelism = original.datastoreQueryParallelism;
     this.maxHttpResponseSize = original.maxHttpResponseSize;
     this.oauthCredential = original.oauthCredential;
     this.httpTransport = original.httpTransport;
@@ -351,6 +355,30 @@ public class RemoteApiOptions {
     return this;
   }
 
+  /**
+   * When true, a datastore query that has more results starts fetching its next batch
+   * while the code using the datastore API consumes the current one, so that a large
+   * query only waits for a round trip when it is consumed faster than it is fetched.
+   * The prefetched batch is wasted if the query is abandoned. This setting has no
+   * effect on queries in transactions. Defaults to false.
+   */
+  public RemoteApiOptions datastoreQueryPrefetch(boolean newValue) {
+    datastoreQueryPrefetch = newValue;
+    return this;
+  }
+
+  /**
+   * When greater than 1, a datastore query that reads a whole kind in key order, with
+   * no filters, limit, offset or cursors, is split into up to this many key ranges,
+   * sampled with the {@code __scatter__} property, which are fetched concurrently. The
+   * results are still returned in key order. This speeds up bulk exports, at the cost
+   * of an extra round trip to pick the ranges. Defaults to 1.
+   */
+  public RemoteApiOptions datastoreQueryParallelism(int newValue) {
+    datastoreQueryParallelism = newValue;
+    return this;
+  }
+
   /**
    * When making a remote call, this is the maximum size of the HTTP response.
    * The default is 33M. Normally there's no reason to change this.  This
@@ -429,6 +457,14 @@ public class RemoteApiOptions {
     return datastoreQueryFetchSize;
   }
 
+  public boolean getDatastoreQueryPrefetch() {
+    return datastoreQueryPrefetch;
+  }
+
+  public int getDatastoreQueryParallelism() {
+    return datastoreQueryParallelism;
+  }
+
   public int getMaxHttpResponseSize() {
     return maxHttpResponseSize;
   }
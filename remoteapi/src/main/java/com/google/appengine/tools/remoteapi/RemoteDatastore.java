@@ -18,6 +18,7 @@ package com.google.appengine.tools.remoteapi;
 
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.datastore.proto2api.DatastoreV3Pb;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
@@ -30,9 +31,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.jspecify.annotations.Nullable;
 
 /**
  * Contains handlers for calling the datastore via the remote API.
@@ -52,6 +60,11 @@ import java.util.logging.Logger;
  * returned to the user matching the app id of the request. That is, they will match the app id that
  * was on the Entity being Put. As discussed above, this could be either the client app id or the
  * remote app id. TODO: consider updating this.
+ *
+ * <p>Queries outside transactions can fetch their next batch while the caller consumes the current
+ * one, see {@link RemoteApiOptions#datastoreQueryPrefetch}, and whole-kind queries can be split
+ * into key ranges that are fetched concurrently, see {@link
+ * RemoteApiOptions#datastoreQueryParallelism}.
  */
 class RemoteDatastore {
   static final String DATASTORE_SERVICE = "datastore_v3";
@@ -59,9 +72,21 @@ class RemoteDatastore {
 
   private static final Logger logger = Logger.getLogger(RemoteDatastore.class.getName());
 
+  /** Holds the threads that fetch query results ahead of the caller, created on first use. */
+  private static final class Fetchers {
+    static final ExecutorService EXECUTOR =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("remote-api-query-fetcher-%d")
+                .build());
+  }
+
   private final RemoteRpc remoteRpc;
   private final RemoteApiOptions options;
   private final String remoteAppId;
+  // Runs the fetches of query results ahead of the caller.
+  private final Executor fetcher;
 
   /** Contains an entry for every query we've ever run. */
   private final Map<Long, QueryState> idToCursor = new ConcurrentHashMap<>();
@@ -82,9 +107,46 @@ class RemoteDatastore {
   private final AtomicLong nextTransactionId = new AtomicLong(1);
 
   RemoteDatastore(String remoteAppId, RemoteRpc remoteRpc, RemoteApiOptions options) {
+    this(remoteAppId, remoteRpc, options, command -> Fetchers.EXECUTOR.execute(command));
+  }
+
+  /**
+   * @param executor runs the fetches of query results ahead of the caller, in the environment of
+   *     the thread that started them
+   */
+  /* @VisibleForTesting */
+  RemoteDatastore(
+      String remoteAppId, RemoteRpc remoteRpc, RemoteApiOptions options, Executor executor) {
     this.remoteAppId = remoteAppId;
     this.remoteRpc = remoteRpc;
     this.options = options;
+    this.fetcher = command -> executor.execute(inCurrentEnvironment(command));
+  }
+
+  /**
+   * Returns a task that runs {@code command} in the environment of the current thread. When the
+   * remote API is installed in an App Engine app, remote calls are URLFetch calls, which can only
+   * be made from a thread with the environment of the request.
+   */
+  private static Runnable inCurrentEnvironment(Runnable command) {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    return () -> {
+      ApiProxy.Environment previous = ApiProxy.getCurrentEnvironment();
+      setEnvironment(environment);
+      try {
+        command.run();
+      } finally {
+        setEnvironment(previous);
+      }
+    };
+  }
+
+  private static void setEnvironment(ApiProxy.@Nullable Environment environment) {
+    if (environment == null) {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    } else {
+      ApiProxy.setEnvironmentForCurrentThread(environment);
+    }
   }
 
   byte[] handleDatastoreCall(String methodName, byte[] request) {
@@ -129,6 +191,8 @@ class RemoteDatastore {
     if (rewriteQueryAppIds(query, remoteAppId)) {
       request = query.build().toByteArray();
     }
+    // Checked before compilation is forced, since a key range scan can't return cursors.
+    boolean canSplit = KeyRangeScan.canSplit(query);
     query.setCompile(true);
 
     // override fetch size; the normal default is too small for the remote API.
@@ -155,6 +219,10 @@ class RemoteDatastore {
           remoteRpc.call(REMOTE_API_SERVICE, "TransactionQuery", "", query.build().toByteArray());
       result = tx.handleQueryResult(resultBytes).toBuilder();
     } else {
+      KeyRangeScan scan = canSplit ? startKeyRangeScan(query) : null;
+      if (scan != null) {
+        return nextKeyRangeBatch(scan, localCursorId);
+      }
       byte[] resultBytes =
           remoteRpc.call(DATASTORE_SERVICE, "RunQuery", "", query.build().toByteArray());
       result = DatastoreV3Pb.QueryResult.newBuilder();
@@ -176,9 +244,30 @@ class RemoteDatastore {
       }
     }
 
+    // Only results fetched outside a transaction are prefetched.
+    return finishQuery(request, result, localCursorId, tx == null ? query.getCount() : 0);
+  }
+
+  /**
+   * Remembers where the query stopped using the given cursor id, and starts prefetching the next
+   * batch of {@code prefetchCount} results if that is enabled.
+   */
+  private byte[] finishQuery(
+      byte[] request,
+      DatastoreV3Pb.QueryResult.Builder result,
+      long localCursorId,
+      int prefetchCount) {
     if (result.getMoreResults() && result.hasCompiledCursor()) {
       // create a query to continue from after the results we already got.
-      idToCursor.put(localCursorId, new QueryState(request, result.getCompiledCursor()));
+      QueryState queryState = new QueryState(request, result.getCompiledCursor());
+      if (prefetchCount > 0 && options.getDatastoreQueryPrefetch()) {
+        byte[] nextQuery = queryState.makeNextQuery(prefetchCount).toByteArray();
+        FutureTask<byte[]> prefetched =
+            new FutureTask<>(() -> remoteRpc.call(DATASTORE_SERVICE, "RunQuery", "", nextQuery));
+        fetcher.execute(prefetched);
+        queryState = new QueryState(request, result.getCompiledCursor(), prefetched, prefetchCount);
+      }
+      idToCursor.put(localCursorId, queryState);
     } else {
       idToCursor.put(localCursorId, QueryState.NO_MORE_RESULTS);
     }
@@ -188,6 +277,27 @@ class RemoteDatastore {
     return result.build().toByteArray();
   }
 
+  /**
+   * Starts scanning the key ranges of the query concurrently if that is enabled, or returns null.
+   *
+   * @param query a query for which {@link KeyRangeScan#canSplit} is true
+   */
+  private @Nullable KeyRangeScan startKeyRangeScan(DatastoreV3Pb.Query.Builder query) {
+    int parallelism = options.getDatastoreQueryParallelism();
+    if (parallelism < 2) {
+      return null;
+    }
+    return KeyRangeScan.start(query.build(), parallelism, remoteRpc, fetcher);
+  }
+
+  private byte[] nextKeyRangeBatch(KeyRangeScan scan, long localCursorId) {
+    DatastoreV3Pb.QueryResult.Builder result = scan.nextBatch();
+    idToCursor.put(
+        localCursorId, result.getMoreResults() ? new QueryState(scan) : QueryState.NO_MORE_RESULTS);
+    result.getCursorBuilder().setCursor(localCursorId);
+    return result.build().toByteArray();
+  }
+
   /**
    * Rewrite app ids in the Query pb.
    * @return if any app ids were rewritten
@@ -233,8 +343,41 @@ class RemoteDatastore {
       DatastoreV3Pb.QueryResult result =
           DatastoreV3Pb.QueryResult.newBuilder().setMoreResults(false).build();
       return result.toByteArray();
-    } else {
-      return runQuery(queryState.makeNextQuery(nextRequest.build()).toByteArray(), cursorId);
+    } else if (queryState.scan != null) {
+      // The batch size of a key range scan is set by the query that started it.
+      return nextKeyRangeBatch(queryState.scan, cursorId);
+    }
+    byte[] prefetched = getPrefetchedResults(queryState, nextRequest.build());
+    if (prefetched != null) {
+      DatastoreV3Pb.QueryResult.Builder result = DatastoreV3Pb.QueryResult.newBuilder();
+      mergeFromBytes(result, prefetched);
+      return finishQuery(queryState.query, result, cursorId, queryState.prefetchedCount);
+    }
+    return runQuery(queryState.makeNextQuery(nextRequest.build()).toByteArray(), cursorId);
+  }
+
+  /**
+   * Returns the results prefetched for the query, or null if there are none, they failed, or there
+   * are more of them than the request asks for.
+   */
+  private static byte @Nullable [] getPrefetchedResults(
+      QueryState queryState, DatastoreV3Pb.NextRequest nextRequest) {
+    if (queryState.prefetched == null) {
+      return null;
+    }
+    if (nextRequest.hasCount() && nextRequest.getCount() < queryState.prefetchedCount) {
+      queryState.prefetched.cancel(false);
+      return null;
+    }
+    try {
+      return queryState.prefetched.get();
+    } catch (ExecutionException e) {
+      logger.log(Level.FINE, "remote API call: prefetching query results failed", e.getCause());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteApiException(
+          "interrupted while waiting for query results", DATASTORE_SERVICE, "Next", e);
     }
   }
 
@@ -551,6 +694,11 @@ class RemoteDatastore {
 
     private final byte[] query;
     private final DatastoreV3Pb.CompiledCursor cursor;
+    // The next batch of results, fetched while the caller consumes the current one.
+    private final @Nullable Future<byte[]> prefetched;
+    private final int prefetchedCount;
+    // Set instead of the fields above for a query whose key ranges are scanned concurrently.
+    private final @Nullable KeyRangeScan scan;
 
     /**
      * Creates a QueryState that can continue fetching results from a given cursor.
@@ -558,21 +706,40 @@ class RemoteDatastore {
      * @param cursor  the cursor that was returned after the previous remote call
      */
     QueryState(byte[] query, DatastoreV3Pb.CompiledCursor cursor) {
+      this(query, cursor, null, 0);
+    }
+
+    /**
+     * Creates a QueryState whose next batch of results is already being fetched.
+     * @param prefetched  the future result of running the next query with {@code prefetchedCount}
+     */
+    QueryState(
+        byte[] query,
+        DatastoreV3Pb.CompiledCursor cursor,
+        @Nullable Future<byte[]> prefetched,
+        int prefetchedCount) {
       this.query = query;
       this.cursor = cursor;
+      this.prefetched = prefetched;
+      this.prefetchedCount = prefetchedCount;
+      this.scan = null;
+    }
+
+    /** Creates a QueryState that continues a key range scan. */
+    QueryState(KeyRangeScan scan) {
+      this.query = null;
+      this.cursor = null;
+      this.prefetched = null;
+      this.prefetchedCount = 0;
+      this.scan = scan;
     }
 
     boolean hasMoreResults() {
-      return query != null;
+      return query != null || scan != null;
     }
 
     private DatastoreV3Pb.Query makeNextQuery(DatastoreV3Pb.NextRequest nextRequest) {
-      DatastoreV3Pb.Query.Builder result = DatastoreV3Pb.Query.newBuilder();
-      mergeFromBytes(result, query);
-      result.setOffset(0);
-      result.setCompiledCursor(cursor);
-      result.setCompile(true);
-
+      DatastoreV3Pb.Query.Builder result = makeNextQueryBuilder();
       if (nextRequest.hasCount()) {
         result.setCount(nextRequest.getCount());
       } else {
@@ -580,9 +747,22 @@ class RemoteDatastore {
       }
       return result.build();
     }
+
+    private DatastoreV3Pb.Query makeNextQuery(int count) {
+      return makeNextQueryBuilder().setCount(count).build();
+    }
+
+    private DatastoreV3Pb.Query.Builder makeNextQueryBuilder() {
+      DatastoreV3Pb.Query.Builder result = DatastoreV3Pb.Query.newBuilder();
+      mergeFromBytes(result, query);
+      result.setOffset(0);
+      result.setCompiledCursor(cursor);
+      result.setCompile(true);
+      return result;
+    }
   }
 
-  private static void mergeFromBytes(Message.Builder message, byte[] bytes) {
+  static void mergeFromBytes(Message.Builder message, byte[] bytes) {
     boolean parsed = true;
     try {
       message.mergeFrom(bytes, ExtensionRegistry.getEmptyRegistry());
@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -37,7 +38,8 @@ class RemoteRpc {
   private static final Logger logger = Logger.getLogger(RemoteRpc.class.getName());
 
   private final RemoteApiClient client;
-  private int rpcCount = 0;
+  // Calls are made concurrently by async API calls and by prefetched queries.
+  private final AtomicInteger rpcCount = new AtomicInteger();
 
   // NOTE: Do not remove this seemingly unnecessary constructor.
   // See the long note in InternalRemoteApiInstaller for more info on why this
@@ -106,7 +108,7 @@ class RemoteRpc {
   }
 
   RemoteApiPb.Response callImpl(RemoteApiPb.Request requestProto) {
-    rpcCount++;
+    rpcCount.incrementAndGet();
 
     byte[] requestBytes = requestProto.toByteArray();
 
@@ -138,11 +140,11 @@ class RemoteRpc {
   }
 
   void resetRpcCount() {
-    rpcCount = 0;
+    rpcCount.set(0);
   }
 
   int getRpcCount() {
-    return rpcCount;
+    return rpcCount.get();
   }
 
   private static final AtomicLong requestId = new AtomicLong();
@@ -49,11 +49,19 @@ class StandaloneAppEngineClient extends AppEngineClient {
     for (Cookie cookie : authCookies) {
       cookieStore.addCookie(cookie);
     }
+    // Keep a persistent connection for every call that may be in flight at once, rather than the
+    // default of two per host, so that concurrent calls don't wait for each other's connections.
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    int maxConnections =
+        options.getMaxConcurrentRequests() + Math.max(options.getDatastoreQueryParallelism(), 1);
+    connectionManager.setMaxTotal(Math.max(connectionManager.getMaxTotal(), maxConnections));
+    connectionManager.setDefaultMaxPerRoute(
+        Math.max(connectionManager.getDefaultMaxPerRoute(), maxConnections));
     HttpClient httpClient = HttpClientBuilder.create()
         // Don't redirect to a login page if authentication fails. We will report the 302 and it
         // will be handled as an error.
         .disableRedirectHandling()
-        .setConnectionManager(new PoolingHttpClientConnectionManager())
+        .setConnectionManager(connectionManager)
         .setDefaultCookieStore(cookieStore)
         .build();
     this.httpClient = httpClient;
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.remoteapi;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.datastore.proto2api.DatastoreV3Pb;
+import com.google.storage.onestore.v3.proto2api.OnestoreEntity;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link RemoteRpc} that answers datastore RunQuery calls from an in-memory list of keys of one
+ * kind, sorted in key order.
+ *
+ * <p>Queries may filter on {@code __key__}, skip an offset, and continue from a compiled cursor,
+ * which holds the key to continue from. Queries ordered by {@code __scatter__} return every {@link
+ * #scatterEvery}th key.
+ */
+class FakeRemoteRpc extends RemoteRpc {
+  static final String APP = "s~remote-app";
+  static final String KIND = "Foo";
+
+  private final List<OnestoreEntity.Reference> keys = new ArrayList<>();
+  private final List<DatastoreV3Pb.Query> queries = new ArrayList<>();
+  private final List<ApiProxy.Environment> environments = new ArrayList<>();
+
+  volatile int scatterEvery = 10;
+  // Thrown by RunQuery calls, other than those that sample scattered keys, if set.
+  volatile RuntimeException queryFailure;
+
+  FakeRemoteRpc() {
+    super((RemoteApiClient) null);
+  }
+
+  /** Adds the keys with ids 1 to {@code count}. */
+  FakeRemoteRpc withIds(int count) {
+    for (int i = 1; i <= count; i++) {
+      keys.add(key(i));
+    }
+    keys.sort(KeyRangeScan::compareKeys);
+    return this;
+  }
+
+  /** Adds keys with the given names. */
+  FakeRemoteRpc withNames(String... names) {
+    for (String name : names) {
+      keys.add(key(name));
+    }
+    keys.sort(KeyRangeScan::compareKeys);
+    return this;
+  }
+
+  static OnestoreEntity.Reference key(long id) {
+    return key(OnestoreEntity.Path.Element.newBuilder().setType(KIND).setId(id));
+  }
+
+  static OnestoreEntity.Reference key(String name) {
+    return key(OnestoreEntity.Path.Element.newBuilder().setType(KIND).setName(name));
+  }
+
+  private static OnestoreEntity.Reference key(OnestoreEntity.Path.Element.Builder element) {
+    return OnestoreEntity.Reference.newBuilder()
+        .setApp(APP)
+        .setPath(OnestoreEntity.Path.newBuilder().addElement(element))
+        .build();
+  }
+
+  List<OnestoreEntity.Reference> getKeys() {
+    return Collections.unmodifiableList(keys);
+  }
+
+  /** Returns the queries run so far, in the order they were received. */
+  synchronized List<DatastoreV3Pb.Query> getQueries() {
+    return new ArrayList<>(queries);
+  }
+
+  /** Returns the environment of the thread of every call so far. */
+  synchronized List<ApiProxy.Environment> getEnvironments() {
+    return new ArrayList<>(environments);
+  }
+
+  @Override
+  byte[] call(String serviceName, String methodName, String logSuffix, byte[] request) {
+    if (!serviceName.equals(RemoteDatastore.DATASTORE_SERVICE) || !methodName.equals("RunQuery")) {
+      throw new UnsupportedOperationException(serviceName + "." + methodName);
+    }
+    DatastoreV3Pb.Query.Builder query = DatastoreV3Pb.Query.newBuilder();
+    RemoteDatastore.mergeFromBytes(query, request);
+    synchronized (this) {
+      queries.add(query.build());
+      environments.add(ApiProxy.getCurrentEnvironment());
+    }
+    if (query.getOrderCount() > 0 && query.getOrder(0).getProperty().equals("__scatter__")) {
+      return runScatterQuery(query).toByteArray();
+    }
+    if (queryFailure != null) {
+      throw queryFailure;
+    }
+    return runQuery(query).toByteArray();
+  }
+
+  private DatastoreV3Pb.QueryResult runScatterQuery(DatastoreV3Pb.QueryOrBuilder query) {
+    DatastoreV3Pb.QueryResult.Builder result =
+        DatastoreV3Pb.QueryResult.newBuilder().setMoreResults(false).setKeysOnly(true);
+    for (int i = 0; i < keys.size() && result.getResultCount() < query.getLimit(); i++) {
+      if (i % scatterEvery == scatterEvery - 1) {
+        result.addResult(entity(keys.get(i)));
+      }
+    }
+    return result.build();
+  }
+
+  private DatastoreV3Pb.QueryResult runQuery(DatastoreV3Pb.QueryOrBuilder query) {
+    List<OnestoreEntity.Reference> matching = new ArrayList<>();
+    for (OnestoreEntity.Reference key : keys) {
+      if (matches(query, key)) {
+        matching.add(key);
+      }
+    }
+    int skipped = Math.min(query.getOffset(), matching.size());
+    matching = matching.subList(skipped, matching.size());
+    int count = query.hasCount() ? query.getCount() : 20;
+    List<OnestoreEntity.Reference> batch = matching.subList(0, Math.min(count, matching.size()));
+    DatastoreV3Pb.QueryResult.Builder result = DatastoreV3Pb.QueryResult.newBuilder();
+    if (skipped > 0) {
+      result.setSkippedResults(skipped);
+    }
+    for (OnestoreEntity.Reference key : batch) {
+      result.addResult(entity(key));
+    }
+    boolean moreResults = batch.size() < matching.size();
+    result.setMoreResults(moreResults);
+    if (query.getCompile()) {
+      DatastoreV3Pb.CompiledCursor.Builder cursor = result.getCompiledCursorBuilder();
+      if (moreResults) {
+        cursor.getPositionBuilder().setKey(matching.get(batch.size()));
+      }
+      result.addResultCompiledCursor(cursor);
+    }
+    return result.build();
+  }
+
+  private static boolean matches(DatastoreV3Pb.QueryOrBuilder query, OnestoreEntity.Reference key) {
+    if (query.hasCompiledCursor()
+        && query.getCompiledCursor().getPosition().hasKey()
+        && KeyRangeScan.compareKeys(key, query.getCompiledCursor().getPosition().getKey()) < 0) {
+      return false;
+    }
+    for (DatastoreV3Pb.Query.Filter filter : query.getFilterList()) {
+      int result = KeyRangeScan.compareKeys(key, toKey(filter.getProperty(0).getValue()));
+      switch (filter.getOp()) {
+        case GREATER_THAN_OR_EQUAL:
+          if (result < 0) {
+            return false;
+          }
+          break;
+        case LESS_THAN:
+          if (result >= 0) {
+            return false;
+          }
+          break;
+        default:
+          throw new UnsupportedOperationException(filter.getOp().toString());
+      }
+    }
+    return true;
+  }
+
+  private static OnestoreEntity.Reference toKey(OnestoreEntity.PropertyValue value) {
+    OnestoreEntity.Path.Builder path = OnestoreEntity.Path.newBuilder();
+    for (OnestoreEntity.PropertyValue.ReferenceValue.PathElement element :
+        value.getReferenceValue().getPathElementList()) {
+      OnestoreEntity.Path.Element.Builder pathElement = path.addElementBuilder();
+      pathElement.setType(element.getType());
+      if (element.hasId()) {
+        pathElement.setId(element.getId());
+      }
+      if (element.hasName()) {
+        pathElement.setName(element.getName());
+      }
+    }
+    return OnestoreEntity.Reference.newBuilder()
+        .setApp(value.getReferenceValue().getApp())
+        .setPath(path)
+        .build();
+  }
+
+  private static OnestoreEntity.EntityProto entity(OnestoreEntity.Reference key) {
+    return OnestoreEntity.EntityProto.newBuilder()
+        .setKey(key)
+        .setEntityGroup(key.getPath())
+        .build();
+  }
+}
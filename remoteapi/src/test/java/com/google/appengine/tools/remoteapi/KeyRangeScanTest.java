@@ -0,0 +1,214 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.remoteapi;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.apphosting.datastore.proto2api.DatastoreV3Pb;
+import com.google.storage.onestore.v3.proto2api.OnestoreEntity;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class KeyRangeScanTest {
+
+  private static DatastoreV3Pb.Query.Builder kindQuery() {
+    return DatastoreV3Pb.Query.newBuilder().setApp(FakeRemoteRpc.APP).setKind(FakeRemoteRpc.KIND);
+  }
+
+  private static DatastoreV3Pb.Query.Order.Builder order(
+      String property, DatastoreV3Pb.Query.Order.Direction direction) {
+    return DatastoreV3Pb.Query.Order.newBuilder().setProperty(property).setDirection(direction);
+  }
+
+  @Test
+  public void canSplit_wholeKindInKeyOrder() {
+    assertThat(KeyRangeScan.canSplit(kindQuery())).isTrue();
+    assertThat(
+            KeyRangeScan.canSplit(
+                kindQuery()
+                    .addOrder(order("__key__", DatastoreV3Pb.Query.Order.Direction.ASCENDING))))
+        .isTrue();
+    assertThat(KeyRangeScan.canSplit(kindQuery().setKeysOnly(true).setCount(100))).isTrue();
+  }
+
+  @Test
+  public void canSplit_otherQueries() {
+    assertThat(KeyRangeScan.canSplit(kindQuery().clearKind())).isFalse();
+    assertThat(
+            KeyRangeScan.canSplit(
+                kindQuery()
+                    .addOrder(order("__key__", DatastoreV3Pb.Query.Order.Direction.DESCENDING))))
+        .isFalse();
+    assertThat(
+            KeyRangeScan.canSplit(
+                kindQuery().addOrder(order("p", DatastoreV3Pb.Query.Order.Direction.ASCENDING))))
+        .isFalse();
+    assertThat(KeyRangeScan.canSplit(kindQuery().setLimit(10))).isFalse();
+    assertThat(KeyRangeScan.canSplit(kindQuery().setOffset(10))).isFalse();
+    assertThat(KeyRangeScan.canSplit(kindQuery().setDistinct(true))).isFalse();
+    assertThat(KeyRangeScan.canSplit(kindQuery().addPropertyName("p"))).isFalse();
+    assertThat(
+            KeyRangeScan.canSplit(
+                kindQuery().setAncestor(FakeRemoteRpc.key(1)).setKind(FakeRemoteRpc.KIND)))
+        .isFalse();
+    assertThat(
+            KeyRangeScan.canSplit(
+                kindQuery()
+                    .addFilter(
+                        DatastoreV3Pb.Query.Filter.newBuilder()
+                            .setOp(DatastoreV3Pb.Query.Filter.Operator.EQUAL)
+                            .addProperty(
+                                OnestoreEntity.Property.newBuilder()
+                                    .setName("p")
+                                    .setMultiple(false)
+                                    .setValue(
+                                        OnestoreEntity.PropertyValue.newBuilder()
+                                            .setInt64Value(1))))))
+        .isFalse();
+    // The cursors of a range don't apply to the whole query.
+    assertThat(KeyRangeScan.canSplit(kindQuery().setCompile(true))).isFalse();
+    assertThat(
+            KeyRangeScan.canSplit(
+                kindQuery().setCompiledCursor(DatastoreV3Pb.CompiledCursor.getDefaultInstance())))
+        .isFalse();
+  }
+
+  @Test
+  public void compareKeys() {
+    List<OnestoreEntity.Reference> keys = new ArrayList<>();
+    keys.add(FakeRemoteRpc.key("b"));
+    keys.add(FakeRemoteRpc.key("\u00e9"));
+    keys.add(FakeRemoteRpc.key(10));
+    keys.add(FakeRemoteRpc.key("a"));
+    keys.add(FakeRemoteRpc.key("\ud83d\ude00"));
+    keys.add(FakeRemoteRpc.key("\uffff"));
+    keys.add(FakeRemoteRpc.key(2));
+    keys.sort(KeyRangeScan::compareKeys);
+
+    // Ids sort before names, and names in the order of their code points.
+    assertThat(keys)
+        .containsExactly(
+            FakeRemoteRpc.key(2),
+            FakeRemoteRpc.key(10),
+            FakeRemoteRpc.key("a"),
+            FakeRemoteRpc.key("b"),
+            FakeRemoteRpc.key("\u00e9"),
+            FakeRemoteRpc.key("\uffff"),
+            FakeRemoteRpc.key("\ud83d\ude00"))
+        .inOrder();
+
+    OnestoreEntity.Reference parent = FakeRemoteRpc.key(2);
+    OnestoreEntity.Reference child =
+        parent.toBuilder()
+            .setPath(
+                parent.getPath().toBuilder()
+                    .addElement(
+                        OnestoreEntity.Path.Element.newBuilder().setType("Child").setId(1)))
+            .build();
+    assertThat(KeyRangeScan.compareKeys(parent, child)).isLessThan(0);
+    assertThat(KeyRangeScan.compareKeys(child, FakeRemoteRpc.key(3))).isLessThan(0);
+  }
+
+  @Test
+  public void start_tooFewScatteredKeys() {
+    FakeRemoteRpc remoteRpc = new FakeRemoteRpc().withIds(5);
+    DatastoreV3Pb.Query query = kindQuery().setCount(10).setCompile(true).build();
+    assertThat(KeyRangeScan.start(query, 4, remoteRpc, Runnable::run)).isNull();
+    assertThat(remoteRpc.getQueries()).hasSize(1);
+  }
+
+  @Test
+  public void nextBatch_returnsKeysInOrder() {
+    FakeRemoteRpc remoteRpc = new FakeRemoteRpc().withIds(150).withNames("a", "b", "c");
+    DatastoreV3Pb.Query query = kindQuery().setCount(7).setCompile(true).build();
+    KeyRangeScan scan = KeyRangeScan.start(query, 4, remoteRpc, Runnable::run);
+    assertThat(scan).isNotNull();
+
+    List<OnestoreEntity.Reference> keys = drain(scan);
+    assertThat(keys).containsExactlyElementsIn(remoteRpc.getKeys()).inOrder();
+
+    // Every range was queried, each bounded by the split points.
+    int rangeQueries = 0;
+    for (DatastoreV3Pb.Query sent : remoteRpc.getQueries()) {
+      if (sent.getFilterCount() > 0) {
+        rangeQueries++;
+        assertThat(sent.getCount()).isEqualTo(7);
+      }
+    }
+    assertThat(rangeQueries).isAtLeast(4);
+  }
+
+  @Test
+  public void nextBatch_concurrentRanges() throws Exception {
+    FakeRemoteRpc remoteRpc = new FakeRemoteRpc().withIds(1000);
+    remoteRpc.scatterEvery = 3;
+    DatastoreV3Pb.Query query = kindQuery().setCount(13).setCompile(true).build();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      KeyRangeScan scan = KeyRangeScan.start(query, 8, remoteRpc, executor);
+      assertThat(scan).isNotNull();
+      assertThat(drain(scan)).containsExactlyElementsIn(remoteRpc.getKeys()).inOrder();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void nextBatch_carriesNoCursors() {
+    FakeRemoteRpc remoteRpc = new FakeRemoteRpc().withIds(100);
+    DatastoreV3Pb.Query query = kindQuery().setCount(5).setCompile(true).build();
+    KeyRangeScan scan = KeyRangeScan.start(query, 2, remoteRpc, Runnable::run);
+
+    DatastoreV3Pb.QueryResult.Builder batch;
+    do {
+      batch = scan.nextBatch();
+      assertThat(batch.hasCompiledCursor()).isFalse();
+      assertThat(batch.hasCompiledQuery()).isFalse();
+      assertThat(batch.getResultCompiledCursorCount()).isEqualTo(0);
+    } while (batch.getMoreResults());
+  }
+
+  @Test
+  public void nextBatch_failedRange() {
+    FakeRemoteRpc remoteRpc = new FakeRemoteRpc().withIds(100);
+    remoteRpc.queryFailure = new RemoteApiException("failed", "datastore_v3", "RunQuery", null);
+    DatastoreV3Pb.Query query = kindQuery().setCount(5).setCompile(true).build();
+    KeyRangeScan scan = KeyRangeScan.start(query, 2, remoteRpc, Runnable::run);
+
+    RemoteApiException e = assertThrows(RemoteApiException.class, scan::nextBatch);
+    assertThat(e).isSameInstanceAs(remoteRpc.queryFailure);
+  }
+
+  private static List<OnestoreEntity.Reference> drain(KeyRangeScan scan) {
+    List<OnestoreEntity.Reference> keys = new ArrayList<>();
+    DatastoreV3Pb.QueryResult.Builder batch;
+    do {
+      batch = scan.nextBatch();
+      for (OnestoreEntity.EntityProto entity : batch.getResultList()) {
+        keys.add(entity.getKey());
+      }
+    } while (batch.getMoreResults());
+    return keys;
+  }
+}
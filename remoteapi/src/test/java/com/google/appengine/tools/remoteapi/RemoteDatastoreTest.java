@@ -0,0 +1,286 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.remoteapi;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.datastore.proto2api.DatastoreV3Pb;
+import com.google.storage.onestore.v3.proto2api.OnestoreEntity;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RemoteDatastoreTest {
+  private final FakeRemoteRpc remoteRpc = new FakeRemoteRpc();
+  private final RemoteApiOptions options = new RemoteApiOptions().datastoreQueryFetchSize(10);
+  // Fetches started ahead of the caller, which only run when the test runs them.
+  private final List<Runnable> fetches = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    ApiProxy.clearEnvironmentForCurrentThread();
+  }
+
+  private RemoteDatastore newRemoteDatastore() {
+    return new RemoteDatastore(FakeRemoteRpc.APP, remoteRpc, options, fetches::add);
+  }
+
+  private static DatastoreV3Pb.Query.Builder kindQuery() {
+    // Queries arrive with the app id of the client app.
+    return DatastoreV3Pb.Query.newBuilder().setApp("s~client-app").setKind(FakeRemoteRpc.KIND);
+  }
+
+  private static DatastoreV3Pb.QueryResult runQuery(
+      RemoteDatastore datastore, DatastoreV3Pb.Query.Builder query) {
+    return parse(datastore.handleDatastoreCall("RunQuery", query.build().toByteArray()));
+  }
+
+  private static DatastoreV3Pb.QueryResult next(
+      RemoteDatastore datastore, DatastoreV3Pb.Cursor cursor, int count) {
+    DatastoreV3Pb.NextRequest.Builder request = DatastoreV3Pb.NextRequest.newBuilder();
+    request.setCursor(cursor);
+    if (count > 0) {
+      request.setCount(count);
+    }
+    return parse(datastore.handleDatastoreCall("Next", request.build().toByteArray()));
+  }
+
+  private static DatastoreV3Pb.QueryResult parse(byte[] bytes) {
+    DatastoreV3Pb.QueryResult.Builder result = DatastoreV3Pb.QueryResult.newBuilder();
+    RemoteDatastore.mergeFromBytes(result, bytes);
+    return result.build();
+  }
+
+  /** Runs the query and returns the keys of all its results, fetched with Next calls. */
+  private static List<OnestoreEntity.Reference> runAll(
+      RemoteDatastore datastore, DatastoreV3Pb.Query.Builder query) {
+    List<OnestoreEntity.Reference> keys = new ArrayList<>();
+    DatastoreV3Pb.QueryResult result = runQuery(datastore, query);
+    addKeys(result, keys);
+    while (result.getMoreResults()) {
+      result = next(datastore, result.getCursor(), 0);
+      addKeys(result, keys);
+    }
+    return keys;
+  }
+
+  private static void addKeys(
+      DatastoreV3Pb.QueryResult result, List<OnestoreEntity.Reference> keys) {
+    for (OnestoreEntity.EntityProto entity : result.getResultList()) {
+      keys.add(entity.getKey());
+    }
+  }
+
+  private void runFetches() {
+    while (!fetches.isEmpty()) {
+      fetches.remove(0).run();
+    }
+  }
+
+  @Test
+  public void query_continuesFromTheCompiledCursor() {
+    remoteRpc.withIds(25);
+    RemoteDatastore datastore = newRemoteDatastore();
+
+    assertThat(runAll(datastore, kindQuery().setOffset(2)))
+        .containsExactlyElementsIn(remoteRpc.getKeys().subList(2, 25))
+        .inOrder();
+
+    List<DatastoreV3Pb.Query> queries = remoteRpc.getQueries();
+    assertThat(queries).hasSize(3);
+    DatastoreV3Pb.Query first = queries.get(0);
+    assertThat(first.getApp()).isEqualTo(FakeRemoteRpc.APP);
+    assertThat(first.getCompile()).isTrue();
+    assertThat(first.getCount()).isEqualTo(10);
+    assertThat(first.getOffset()).isEqualTo(2);
+    // The next queries start at the cursor of the previous one. The Next requests have no count, so
+    // the fetch size is used again.
+    DatastoreV3Pb.Query second = queries.get(1);
+    assertThat(second.getOffset()).isEqualTo(0);
+    assertThat(second.getCompile()).isTrue();
+    assertThat(second.getCount()).isEqualTo(10);
+    assertThat(second.getCompiledCursor().getPosition().getKey())
+        .isEqualTo(remoteRpc.getKeys().get(12));
+    assertThat(fetches).isEmpty();
+  }
+
+  @Test
+  public void next_unknownCursor() {
+    RemoteDatastore datastore = newRemoteDatastore();
+    DatastoreV3Pb.Cursor cursor = DatastoreV3Pb.Cursor.newBuilder().setCursor(42).build();
+    assertThrows(RemoteApiException.class, () -> next(datastore, cursor, 0));
+  }
+
+  @Test
+  public void next_afterTheLastResults() {
+    remoteRpc.withIds(5);
+    RemoteDatastore datastore = newRemoteDatastore();
+    DatastoreV3Pb.QueryResult result = runQuery(datastore, kindQuery());
+    assertThat(result.getResultCount()).isEqualTo(5);
+    assertThat(result.getMoreResults()).isFalse();
+
+    DatastoreV3Pb.QueryResult nextResult = next(datastore, result.getCursor(), 0);
+    assertThat(nextResult.getResultCount()).isEqualTo(0);
+    assertThat(nextResult.getMoreResults()).isFalse();
+    assertThat(remoteRpc.getQueries()).hasSize(1);
+  }
+
+  @Test
+  public void prefetch_nextBatchIsFetchedAhead() {
+    options.datastoreQueryPrefetch(true);
+    remoteRpc.withIds(25);
+    RemoteDatastore datastore = newRemoteDatastore();
+
+    DatastoreV3Pb.QueryResult result = runQuery(datastore, kindQuery());
+    assertThat(result.getResultCount()).isEqualTo(10);
+    assertThat(fetches).hasSize(1);
+    runFetches();
+    assertThat(remoteRpc.getQueries()).hasSize(2);
+
+    // The prefetched batch is returned without another call, and the one after it is prefetched.
+    result = next(datastore, result.getCursor(), 10);
+    assertThat(result.getResultCount()).isEqualTo(10);
+    assertThat(result.getResult(0).getKey()).isEqualTo(remoteRpc.getKeys().get(10));
+    assertThat(remoteRpc.getQueries()).hasSize(2);
+    runFetches();
+    result = next(datastore, result.getCursor(), 0);
+    assertThat(result.getResultCount()).isEqualTo(5);
+    assertThat(result.getMoreResults()).isFalse();
+    assertThat(remoteRpc.getQueries()).hasSize(3);
+    assertThat(fetches).isEmpty();
+  }
+
+  @Test
+  public void prefetch_smallerCountCancelsThePrefetch() {
+    options.datastoreQueryPrefetch(true);
+    remoteRpc.withIds(25);
+    RemoteDatastore datastore = newRemoteDatastore();
+
+    DatastoreV3Pb.QueryResult result = runQuery(datastore, kindQuery());
+    assertThat(fetches).hasSize(1);
+    Runnable prefetch = fetches.remove(0);
+
+    result = next(datastore, result.getCursor(), 3);
+    assertThat(result.getResultCount()).isEqualTo(3);
+    assertThat(result.getResult(0).getKey()).isEqualTo(remoteRpc.getKeys().get(10));
+    List<DatastoreV3Pb.Query> queries = remoteRpc.getQueries();
+    assertThat(queries).hasSize(2);
+    assertThat(queries.get(1).getCount()).isEqualTo(3);
+
+    // The cancelled prefetch makes no call once it runs.
+    prefetch.run();
+    assertThat(remoteRpc.getQueries()).hasSize(2);
+    // The results that follow are prefetched with the smaller count.
+    runFetches();
+    assertThat(remoteRpc.getQueries().get(2).getCount()).isEqualTo(3);
+    result = next(datastore, result.getCursor(), 3);
+    assertThat(result.getResult(0).getKey()).isEqualTo(remoteRpc.getKeys().get(13));
+  }
+
+  @Test
+  public void prefetch_failureFallsBackToRunningTheQuery() {
+    options.datastoreQueryPrefetch(true);
+    remoteRpc.withIds(25);
+    RemoteDatastore datastore = newRemoteDatastore();
+
+    DatastoreV3Pb.QueryResult result = runQuery(datastore, kindQuery());
+    remoteRpc.queryFailure = new RemoteApiException("failed", "datastore_v3", "RunQuery", null);
+    runFetches();
+    remoteRpc.queryFailure = null;
+
+    result = next(datastore, result.getCursor(), 0);
+    assertThat(result.getResult(0).getKey()).isEqualTo(remoteRpc.getKeys().get(10));
+    assertThat(remoteRpc.getQueries()).hasSize(3);
+  }
+
+  @Test
+  public void parallelism_returnsKeysInOrder() {
+    options.datastoreQueryParallelism(4);
+    remoteRpc.withIds(200).withNames("x", "y");
+    // The ranges are fetched as soon as they are asked for.
+    RemoteDatastore datastore =
+        new RemoteDatastore(FakeRemoteRpc.APP, remoteRpc, options, Runnable::run);
+
+    DatastoreV3Pb.QueryResult result = runQuery(datastore, kindQuery());
+    List<OnestoreEntity.Reference> keys = new ArrayList<>();
+    addKeys(result, keys);
+    while (result.getMoreResults()) {
+      assertThat(result.hasCompiledCursor()).isFalse();
+      result = next(datastore, result.getCursor(), 0);
+      addKeys(result, keys);
+    }
+    assertThat(keys).containsExactlyElementsIn(remoteRpc.getKeys()).inOrder();
+
+    int rangeQueries = 0;
+    for (DatastoreV3Pb.Query query : remoteRpc.getQueries()) {
+      if (query.getFilterCount() > 0) {
+        rangeQueries++;
+      }
+    }
+    assertThat(rangeQueries).isGreaterThan(4);
+  }
+
+  @Test
+  public void parallelism_notForQueriesThatAskForCursors() {
+    options.datastoreQueryParallelism(4);
+    remoteRpc.withIds(200);
+    RemoteDatastore datastore = newRemoteDatastore();
+
+    DatastoreV3Pb.QueryResult result = runQuery(datastore, kindQuery().setCompile(true));
+    assertThat(result.getResultCount()).isEqualTo(10);
+    assertThat(result.hasCompiledCursor()).isTrue();
+    // The query ran as it is: no keys were sampled, and no ranges are fetched.
+    assertThat(remoteRpc.getQueries()).hasSize(1);
+    assertThat(remoteRpc.getQueries().get(0).getFilterCount()).isEqualTo(0);
+    assertThat(fetches).isEmpty();
+  }
+
+  @Test
+  public void fetchesRunInTheEnvironmentOfTheCaller() throws Exception {
+    options.datastoreQueryPrefetch(true).datastoreQueryParallelism(4);
+    remoteRpc.withIds(500);
+    ApiProxy.Environment environment = mock(ApiProxy.Environment.class);
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      RemoteDatastore datastore =
+          new RemoteDatastore(FakeRemoteRpc.APP, remoteRpc, options, executor);
+      assertThat(runAll(datastore, kindQuery()))
+          .containsExactlyElementsIn(remoteRpc.getKeys())
+          .inOrder();
+      assertThat(runAll(datastore, kindQuery().setCompile(true)))
+          .containsExactlyElementsIn(remoteRpc.getKeys())
+          .inOrder();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(remoteRpc.getEnvironments()).hasSize(remoteRpc.getQueries().size());
+    for (ApiProxy.Environment callEnvironment : remoteRpc.getEnvironments()) {
+      assertThat(callEnvironment).isSameInstanceAs(environment);
+    }
+  }
+}
@@ -49,6 +49,8 @@ import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.Collections;
 import java.util.HashMap;
@@ -64,6 +66,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import org.jspecify.annotations.Nullable;
 
 /**
@@ -297,14 +300,48 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       final byte[] request,
       final ApiProxy.ApiConfig apiConfig) {
     return doAsyncCall(
-        environment, packageName, methodName, request, apiConfig.getDeadlineInSeconds());
+        environment,
+        packageName,
+        methodName,
+        ByteString.copyFrom(request),
+        apiConfig.getDeadlineInSeconds(),
+        ByteString::toByteArray);
+  }
+
+  /**
+   * Makes an API call whose request is sent and whose response is returned without being copied.
+   * The returned buffer is a read-only view of the response payload.
+   *
+   * <p>Unlike the {@code byte[]} calls, which copy the request as callers may reuse their array,
+   * this relies on the caller not modifying the request until the returned future is done.
+   */
+  @Override
+  public Future<ByteBuffer> makeAsyncByteBufferCall(
+      final EnvironmentImpl environment,
+      final String packageName,
+      final String methodName,
+      final ByteBuffer request,
+      final ApiProxy.ApiConfig apiConfig) {
+    return doAsyncCall(
+        environment,
+        packageName,
+        methodName,
+        UnsafeByteOperations.unsafeWrap(request),
+        apiConfig.getDeadlineInSeconds(),
+        ByteString::asReadOnlyByteBuffer);
   }
 
   private byte[] doSyncCall(
       EnvironmentImpl environment, String packageName, String methodName, byte[] requestBytes) {
     double deadlineInSeconds = getApiDeadline(packageName, environment);
     Future<byte[]> future =
-        doAsyncCall(environment, packageName, methodName, requestBytes, deadlineInSeconds);
+        doAsyncCall(
+            environment,
+            packageName,
+            methodName,
+            ByteString.copyFrom(requestBytes),
+            deadlineInSeconds,
+            ByteString::toByteArray);
     try {
       return future.get((long) (deadlineInSeconds * 1000), TimeUnit.MILLISECONDS);
     } catch (InterruptedException ex) {
@@ -389,12 +426,19 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     }
   }
 
-  private Future<byte[]> doAsyncCall(
+  /**
+   * Starts an API call. The request payload is not copied, so the caller must not modify it until
+   * the call completes; the public {@code ApiProxy} callers all pass freshly serialized requests.
+   *
+   * @param responseConverter converts the response payload to the result of the returned future
+   */
+  private <T> Future<T> doAsyncCall(
       EnvironmentImpl environment,
       String packageName,
       String methodName,
-      byte[] requestBytes,
-      Double requestDeadlineInSeconds) {
+      ByteString request,
+      Double requestDeadlineInSeconds,
+      Function<ByteString, T> responseConverter) {
     TraceWriter traceWriter = environment.getTraceWriter();
     CloudTraceContext currentContext = null;
     if (traceWriter != null) {
@@ -429,7 +473,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
             .setApiPackage(packageName)
             .setCall(methodName)
             .setSecurityTicket(environment.getSecurityTicket())
-            .setPb(ByteString.copyFrom(requestBytes));
+            .setPb(request);
     if (currentContext != null) {
       apiRequest.setTraceContext(TraceContextHelper.toProto2(currentContext));
     }
@@ -467,7 +511,8 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
           packageName,
           methodName,
           deadlineInSeconds,
-          apiSlotWaitTime);
+          apiSlotWaitTime,
+          responseConverter);
     } catch (RuntimeException | Error e) {
       environment.apiRpcFinished();
       logger.atWarning().withCause(e).log("Exception in API call setup");
@@ -475,7 +520,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     }
   }
 
-  private Future<byte[]> finishAsyncApiCallSetup(
+  private <T> Future<T> finishAsyncApiCallSetup(
       AnyRpcClientContext rpc,
       APIRequest apiRequest,
       CloudTraceContext currentContext,
@@ -483,7 +528,8 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       String packageName,
       String methodName,
       double deadlineInSeconds,
-      long apiSlotWaitTime) {
+      long apiSlotWaitTime,
+      Function<ByteString, T> responseConverter) {
     rpc.setDeadline(deadlineInSeconds);
 
     if (!disableApiCallLogging) {
@@ -496,20 +542,21 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       }
     }
 
-    SettableFuture<byte[]> settableFuture = SettableFuture.create();
+    SettableFuture<T> settableFuture = SettableFuture.create();
     long deadlineMillis = (long) (deadlineInSeconds * 1000.0);
-    Future<byte[]> timedFuture =
-        new TimedFuture<byte[]>(settableFuture, deadlineMillis + API_DEADLINE_PADDING) {
+    Future<T> timedFuture =
+        new TimedFuture<T>(settableFuture, deadlineMillis + API_DEADLINE_PADDING) {
           @Override
           protected RuntimeException createDeadlineException() {
             return new ApiProxy.ApiDeadlineExceededException(packageName, methodName);
           }
         };
-    AsyncApiFuture rpcCallback =
-        new AsyncApiFuture(
+    AsyncApiFuture<T> rpcCallback =
+        new AsyncApiFuture<>(
             deadlineMillis,
             timedFuture,
             settableFuture,
+            responseConverter,
             rpc,
             environment,
             currentContext,
@@ -527,16 +574,16 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
   }
 
   @SuppressWarnings("ShouldNotSubclass")
-  private Future<byte[]> createCancelledFuture(
+  private <T> Future<T> createCancelledFuture(
       final String packageName, final String methodName, final String reason) {
-    return new Future<byte[]>() {
+    return new Future<T>() {
       @Override
-      public byte[] get() {
+      public T get() {
         throw new ApiProxy.CancelledException(packageName, methodName, reason);
       }
 
       @Override
-      public byte[] get(long deadline, TimeUnit unit) {
+      public T get(long deadline, TimeUnit unit) {
         throw new ApiProxy.CancelledException(packageName, methodName, reason);
       }
 
@@ -582,8 +629,8 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     }
   }
 
-  private static class AsyncApiFuture extends ForwardingFuture<byte[]>
-      implements AnyRpcCallback<APIResponse>, ApiResultFuture<byte[]> {
+  private static class AsyncApiFuture<T> extends ForwardingFuture<T>
+      implements AnyRpcCallback<APIResponse>, ApiResultFuture<T> {
     private final long deadlineMillis;
     private static final long NO_VALUE = -1;
     private final AnyRpcClientContext rpc;
@@ -593,14 +640,16 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     private final String methodName;
     private final AtomicLong cpuTimeInMegacycles;
     private final AtomicLong wallclockTimeInMillis;
-    private final SettableFuture<byte[]> settable;
-    private final Future<byte[]> delegate;
+    private final SettableFuture<T> settable;
+    private final Future<T> delegate;
+    private final Function<ByteString, T> responseConverter;
     private final boolean disableApiCallLogging;
 
     AsyncApiFuture(
         long deadlineMillis,
-        Future<byte[]> delegate,
-        SettableFuture<byte[]> settable,
+        Future<T> delegate,
+        SettableFuture<T> settable,
+        Function<ByteString, T> responseConverter,
         AnyRpcClientContext rpc,
         EnvironmentImpl environment,
         @Nullable CloudTraceContext currentContext,
@@ -619,6 +668,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       this.cpuTimeInMegacycles = new AtomicLong(NO_VALUE);
       this.delegate = delegate;
       this.settable = settable;
+      this.responseConverter = responseConverter;
       this.rpc = rpc;
       this.environment = environment;
       this.context = currentContext;
@@ -628,7 +678,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     }
 
     @Override
-    protected final Future<byte[]> delegate() {
+    protected final Future<T> delegate() {
       return delegate;
     }
 
@@ -682,11 +732,11 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
         if (!disableApiCallLogging) {
           logger.atInfo().log("API call completed normally with status: %s", rpc.getStatus());
         }
-        settable.set(apiResponse.getPb().toByteArray());
+        settable.set(responseConverter.apply(apiResponse.getPb()));
       } else {
         if ((APIResponse.ERROR.forNumber(apiResponse.getError()) == CANCELLED)
             && Boolean.getBoolean("appengine.ignore.cancelerror")) {
-          settable.set(apiResponse.getPb().toByteArray());
+          settable.set(responseConverter.apply(apiResponse.getPb()));
         } else {
           settable.setException(
               ApiProxyUtils.getApiError(packageName, methodName, apiResponse, logger));
@@ -1147,6 +1197,11 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       appLogsWriter.flushAndWait();
     }
 
+    /** Returns the logs still queued to the response, once the request has completed. */
+    void finishLogs() {
+      appLogsWriter.finish();
+    }
+
     public TraceWriter getTraceWriter() {
       return traceWriter;
     }
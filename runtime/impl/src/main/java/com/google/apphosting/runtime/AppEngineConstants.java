@@ -129,5 +129,17 @@ public final class AppEngineConstants {
 
   public static final String IGNORE_RESPONSE_SIZE_LIMIT = "appengine.ignore.responseSizeLimit";
 
+  /**
+   * If this system property is true, the runtime uses virtual threads, where the JVM supports
+   * them, for the web server, for API calls, and for request deadlines.
+   */
+  public static final String USE_VIRTUAL_THREADS = "appengine.use.virtualthreads";
+
+  /**
+   * If this system property is true, the Jetty HTTP proxy streams request and response bodies
+   * between the client and the application, instead of buffering them in the forwarded protos.
+   */
+  public static final String STREAM_PROXY_BODIES = "appengine.proxy.streamBodies";
+
   private AppEngineConstants() {}
 }
@@ -23,17 +23,28 @@ import com.google.apphosting.base.protos.AppLogsPb.AppLogLine;
 import com.google.apphosting.base.protos.RuntimePb.UPResponse;
 import com.google.apphosting.base.protos.SourcePb.SourceLocation;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ascii;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 import javax.annotation.concurrent.GuardedBy;
+import org.jspecify.annotations.Nullable;
 
 /**
  * {@code AppsLogWriter} is responsible for batching application logs for a single request and
@@ -61,13 +72,69 @@ import javax.annotation.concurrent.GuardedBy;
  * is unrelated to the batching mechanism described above but is necessary to prevent the AppServer
  * from truncating individual log entries.
  *
- * <p>TODO: In the future we may wish to initiate flushes from a scheduled future which would happen
- * in a background thread. In this case, we must pass the {@link ApiProxy.Environment} in explicitly
- * so API calls can be made on behalf of the original thread.
+ * <p>When the {@value #ASYNC_PROPERTY} system property is true, log lines are instead appended to a
+ * lock-free queue, and a flusher thread moves them into the {@link UPResponse}, starting flushes on
+ * behalf of the request as above. Only the flusher waits for a pending flush while the next one is
+ * built, so request threads never block on log I/O, unless more than {@value
+ * #MAX_QUEUED_BYTES_PROPERTY} bytes of log lines are queued and the {@value
+ * #OVERFLOW_POLICY_PROPERTY} is {@link OverflowPolicy#BLOCK}. When the request completes, {@link
+ * #finish} returns the lines still queued with the {@link UPResponse}.
  */
 public class AppLogsWriter {
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
 
+  /** System property that turns on the asynchronous mode, in which a flusher thread flushes. */
+  public static final String ASYNC_PROPERTY = "appengine.logs.async";
+
+  /**
+   * System property for the number of bytes of log lines that may be queued in the asynchronous
+   * mode. The default is four times the number of bytes that trigger a flush.
+   */
+  public static final String MAX_QUEUED_BYTES_PROPERTY = "appengine.logs.async.maxQueuedBytes";
+
+  /**
+   * System property for the {@link OverflowPolicy}, {@code block} (the default) or {@code drop},
+   * applied to log lines that don't fit in the queue of the asynchronous mode.
+   */
+  public static final String OVERFLOW_POLICY_PROPERTY = "appengine.logs.async.overflowPolicy";
+
+  /** What happens to a log line that doesn't fit in the queue of the asynchronous mode. */
+  public enum OverflowPolicy {
+    /** The logging thread drains the queue itself, waiting for a pending flush if there is one. */
+    BLOCK,
+    /** The log line is dropped, and counted in {@link #getDroppedLineCount}. */
+    DROP
+  }
+
+  private static final int DEFAULT_MAX_QUEUED_FLUSHES = 4;
+
+  /** Holds the configuration read from the system properties. */
+  private static final class Defaults {
+    static final boolean ASYNC = Boolean.getBoolean(ASYNC_PROPERTY);
+    static final long MAX_QUEUED_BYTES = Long.getLong(MAX_QUEUED_BYTES_PROPERTY, 0);
+    static final OverflowPolicy OVERFLOW_POLICY = parseOverflowPolicy();
+
+    private static OverflowPolicy parseOverflowPolicy() {
+      String policy = System.getProperty(OVERFLOW_POLICY_PROPERTY, "block");
+      try {
+        return OverflowPolicy.valueOf(Ascii.toUpperCase(policy));
+      } catch (IllegalArgumentException e) {
+        logger.atWarning().log("Unknown %s %s, using block", OVERFLOW_POLICY_PROPERTY, policy);
+        return OverflowPolicy.BLOCK;
+      }
+    }
+  }
+
+  /** Holds the threads shared by the flushers of all requests. */
+  private static final class Flushers {
+    static final Executor EXECUTOR =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("app-logs-flusher-%d")
+                .build());
+  }
+
   // (Some constants below package scope for testability)
   static final String LOG_CONTINUATION_SUFFIX = "\n<continued in next message>";
   static final int LOG_CONTINUATION_SUFFIX_LENGTH = LOG_CONTINUATION_SUFFIX.length();
@@ -108,6 +175,22 @@ public class AppLogsWriter {
   private static final Pattern PROTECTED_LOGS_CLASSES =
       Pattern.compile(PROTECTED_LOGS_CLASSES_REGEXP);
 
+  // The flusher of the asynchronous mode, or null in the synchronous mode.
+  @Nullable private final Executor flusher;
+  private final long maxQueuedBytes;
+  private final OverflowPolicy overflowPolicy;
+  private final Queue<AppLogLine> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicLong queuedBytes = new AtomicLong();
+  // Whether a drain of the queue is pending on the flusher.
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+  private volatile boolean finished;
+
+  private final LongAdder enqueueCount = new LongAdder();
+  private final LongAdder enqueueNanos = new LongAdder();
+  private final LongAdder flushCount = new LongAdder();
+  private final LongAdder flushedBytes = new LongAdder();
+  private final LongAdder droppedLines = new LongAdder();
+
   public AppLogsWriter(
       MutableUpResponse upResponse,
       long maxBytesToFlush,
@@ -141,6 +224,33 @@ public class AppLogsWriter {
       long maxBytesToFlush,
       int maxLogMessageLength,
       int maxFlushSeconds) {
+    this(
+        genericResponse,
+        maxBytesToFlush,
+        maxLogMessageLength,
+        maxFlushSeconds,
+        Defaults.ASYNC ? Flushers.EXECUTOR : null,
+        Defaults.MAX_QUEUED_BYTES,
+        Defaults.OVERFLOW_POLICY);
+  }
+
+  /**
+   * Construct an AppLogsWriter instance, in the asynchronous mode if {@code flusher} is not null.
+   *
+   * @param flusher The executor that runs the flushes of the asynchronous mode.
+   * @param maxQueuedBytes The number of bytes of log lines that may be queued in the asynchronous
+   *     mode, or 0 for four times {@code maxBytesToFlush}.
+   * @param overflowPolicy What happens to log lines that don't fit in the queue.
+   * @see #AppLogsWriter(ResponseAPIData, long, int, int)
+   */
+  AppLogsWriter(
+      ResponseAPIData genericResponse,
+      long maxBytesToFlush,
+      int maxLogMessageLength,
+      int maxFlushSeconds,
+      @Nullable Executor flusher,
+      long maxQueuedBytes,
+      OverflowPolicy overflowPolicy) {
     this.genericResponse = genericResponse;
     this.maxSecondsBetweenFlush = maxFlushSeconds;
 
@@ -174,15 +284,21 @@ public class AppLogsWriter {
     // Always have a stopwatch even if we're not doing time based flushing
     // to keep code a bit simpler
     stopwatch = Stopwatch.createUnstarted();
+
+    this.flusher = flusher;
+    this.maxQueuedBytes =
+        maxQueuedBytes > 0 ? maxQueuedBytes : DEFAULT_MAX_QUEUED_FLUSHES * this.maxBytesToFlush;
+    this.overflowPolicy = overflowPolicy;
   }
 
   /**
    * Add the specified LogRecord for the current request.  If
    * enough space (or in the future, time) has accumulated, an
    * asynchronous flush may be started.  If flushes are backed up,
-   * this method may block.
+   * this method may block, unless in the asynchronous mode.
    */
   public void addLogRecordAndMaybeFlush(ApiProxy.LogRecord fullRecord) {
+    long startNanos = System.nanoTime();
     List<AppLogLine> appLogLines = new ArrayList<>();
 
     // Convert the ApiProxy.LogRecord into AppLogLine protos.
@@ -203,31 +319,114 @@ public class AppLogsWriter {
       appLogLines.add(logLineBuilder.build());
     }
 
-    synchronized (lock) {
-      addLogLinesAndMaybeFlush(appLogLines);
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    if (flusher != null && !finished && environment != null) {
+      enqueue(appLogLines, environment);
+    } else {
+      synchronized (lock) {
+        addLogLinesAndMaybeFlush(appLogLines);
+      }
     }
+    enqueueCount.increment();
+    enqueueNanos.add(System.nanoTime() - startNanos);
   }
 
-  @GuardedBy("lock")
-  private void addLogLinesAndMaybeFlush(Iterable<AppLogLine> appLogLines) {
+  /** Queues log lines, and schedules a drain of the queue on the flusher. */
+  private void enqueue(List<AppLogLine> appLogLines, ApiProxy.Environment environment) {
     for (AppLogLine logLine : appLogLines) {
       int serializedSize = logLine.getSerializedSize();
-
-      if (maxBytesToFlush > 0 && (currentByteCount + serializedSize) > maxBytesToFlush) {
-        logger.atInfo().log("%d bytes of app logs pending, starting flush...", currentByteCount);
-        waitForCurrentFlushAndStartNewFlush();
+      if (queuedBytes.get() + serializedSize > maxQueuedBytes) {
+        if (overflowPolicy == OverflowPolicy.DROP) {
+          droppedLines.increment();
+          continue;
+        }
+        synchronized (lock) {
+          drainQueue();
+        }
+      }
+      queue.add(logLine);
+      queuedBytes.addAndGet(serializedSize);
+    }
+    if (finished) {
+      // The request finished while the lines were queued, so its final drain may have missed them.
+      synchronized (lock) {
+        drainQueue();
+      }
+      return;
+    }
+    if (drainScheduled.compareAndSet(false, true)) {
+      try {
+        flusher.execute(() -> drain(environment));
+      } catch (RejectedExecutionException e) {
+        drainScheduled.set(false);
+        synchronized (lock) {
+          drainQueue();
+        }
       }
-      if (!stopwatch.isRunning()) {
-        // We only want to flush once a log message has been around for
-        // longer than maxSecondsBetweenFlush. So, we only start the timer
-        // when we add the first message so we don't include time when
-        // the queue is empty.
-        stopwatch.start();
+    }
+  }
+
+  /**
+   * Drains the queue on the flusher, making flushes on behalf of the request. Does nothing once the
+   * request has finished: {@link #finish} drained the queue, and flushes can no longer be made.
+   */
+  private void drain(ApiProxy.Environment environment) {
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    try {
+      synchronized (lock) {
+        // Lines queued from now on need another drain.
+        drainScheduled.set(false);
+        if (finished) {
+          return;
+        }
+        drainQueue();
       }
-      genericResponse.addAppLog(logLine);
-      currentByteCount += serializedSize;
+    } catch (RuntimeException e) {
+      logger.atWarning().withCause(e).log("Failed to flush app logs");
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+  }
+
+  @GuardedBy("lock")
+  private void drainQueue() {
+    AppLogLine logLine;
+    while ((logLine = queue.poll()) != null) {
+      addLogLine(logLine);
+      queuedBytes.addAndGet(-logLine.getSerializedSize());
+    }
+    maybeFlushForTime();
+  }
+
+  @GuardedBy("lock")
+  private void addLogLinesAndMaybeFlush(Iterable<AppLogLine> appLogLines) {
+    for (AppLogLine logLine : appLogLines) {
+      addLogLine(logLine);
+    }
+    maybeFlushForTime();
+  }
+
+  @GuardedBy("lock")
+  private void addLogLine(AppLogLine logLine) {
+    int serializedSize = logLine.getSerializedSize();
+
+    if (maxBytesToFlush > 0 && (currentByteCount + serializedSize) > maxBytesToFlush) {
+      logger.atInfo().log("%d bytes of app logs pending, starting flush...", currentByteCount);
+      waitForCurrentFlushAndStartNewFlush();
     }
+    if (!stopwatch.isRunning()) {
+      // We only want to flush once a log message has been around for
+      // longer than maxSecondsBetweenFlush. So, we only start the timer
+      // when we add the first message so we don't include time when
+      // the queue is empty.
+      stopwatch.start();
+    }
+    genericResponse.addAppLog(logLine);
+    currentByteCount += serializedSize;
+  }
 
+  @GuardedBy("lock")
+  private void maybeFlushForTime() {
     if (maxSecondsBetweenFlush > 0 && stopwatch.elapsed().getSeconds() >= maxSecondsBetweenFlush) {
       waitForCurrentFlushAndStartNewFlush();
     }
@@ -253,6 +452,7 @@ public class AppLogsWriter {
     Future<byte[]> flush = null;
 
     synchronized (lock) {
+      drainQueue();
       waitForCurrentFlush();
       if (genericResponse.getAppLogCount() > 0) {
         flush = currentFlush = doFlush();
@@ -266,6 +466,68 @@ public class AppLogsWriter {
     }
   }
 
+  /**
+   * Called when the request completes and no more user code can log. In the asynchronous mode,
+   * moves the log lines still queued into the response and waits for the pending flush, so that
+   * every log line is either flushed or returned with the response. Lines logged afterwards are
+   * added to the response directly.
+   */
+  public void finish() {
+    if (flusher != null) {
+      synchronized (lock) {
+        finished = true;
+        drainQueue();
+        waitForCurrentFlush();
+        long dropped = droppedLines.sum();
+        if (dropped > 0) {
+          logger.atWarning().log("Dropped %d app log lines", dropped);
+          genericResponse.addAppLog(
+              AppLogLine.newBuilder()
+                  .setLevel(ApiProxy.LogRecord.Level.warn.ordinal())
+                  .setTimestampUsec(System.currentTimeMillis() * 1000)
+                  .setMessage(
+                      dropped
+                          + " log lines were dropped because they were logged faster than they"
+                          + " could be flushed")
+                  .build());
+        }
+      }
+    }
+    long enqueued = enqueueCount.sum();
+    long flushes = flushCount.sum();
+    logger.atFine().log(
+        "App logs: %d records added in %d ns on average, %d flushes of %d bytes on average",
+        enqueued,
+        enqueued == 0 ? 0 : enqueueNanos.sum() / enqueued,
+        flushes,
+        flushes == 0 ? 0 : flushedBytes.sum() / flushes);
+  }
+
+  /** Returns the number of log records added. */
+  public long getEnqueueCount() {
+    return enqueueCount.sum();
+  }
+
+  /** Returns the total time, in nanoseconds, that adding log records took their callers. */
+  public long getEnqueueNanos() {
+    return enqueueNanos.sum();
+  }
+
+  /** Returns the number of flushes started. */
+  public long getFlushCount() {
+    return flushCount.sum();
+  }
+
+  /** Returns the total size, in bytes, of the log groups flushed. */
+  public long getFlushedBytes() {
+    return flushedBytes.sum();
+  }
+
+  /** Returns the number of log lines dropped by the {@link OverflowPolicy#DROP} policy. */
+  public long getDroppedLineCount() {
+    return droppedLines.sum();
+  }
+
   /**
    * This method blocks until any outstanding flush is completed. This method
    * should be called prior to {@link #doFlush()} so that it is impossible for
@@ -303,8 +565,9 @@ public class AppLogsWriter {
     currentByteCount = 0;
     stopwatch.reset();
     FlushRequest request = FlushRequest.newBuilder().setLogs(group.build().toByteString()).build();
-    // This assumes that we are always doing a flush from the request
-    // thread.  See the TODO above.
+    flushCount.increment();
+    flushedBytes.add(request.getLogs().size());
+    // The flusher of the asynchronous mode runs with the environment of the request.
     return ApiProxy.makeAsyncCall("logservice", "Flush", request.toByteArray());
   }
 
@@ -18,23 +18,67 @@ package com.google.apphosting.runtime;
 
 import com.google.apphosting.base.protos.HttpPb;
 import com.google.apphosting.base.protos.RuntimePb;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.net.HttpHeaders;
 import com.google.common.net.MediaType;
 import com.google.protobuf.ByteString;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import org.jspecify.annotations.Nullable;
 
 /**
  * A class in charge of compressing request responses at the HTTP protocol buffer level.
  *
+ * <p>Responses are gzipped with pooled {@link Deflater}s straight into the {@link ByteString} that
+ * replaces the response body. The compression level, the size below which responses are not
+ * worth compressing, and the size of an optional cache of compressed responses are read from the
+ * {@value #LEVEL_PROPERTY}, {@value #MIN_SIZE_PROPERTY} and {@value #CACHE_BYTES_PROPERTY} system
+ * properties. The cache, keyed by the SHA-256 of the uncompressed body, saves compressing again
+ * the static files and JSON documents that an application serves repeatedly.
+ *
  */
 // the C++ equivalent is http_compression.cc in apphosting.
 // Many comments come from the C++ implementation itself.
 public class HttpCompression {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** System property for the deflate level, from 1 to 9, of compressed responses. */
+  public static final String LEVEL_PROPERTY = "appengine.compression.level";
+
+  /** System property for the size in bytes below which responses are not compressed. */
+  public static final String MIN_SIZE_PROPERTY = "appengine.compression.minSize";
+
+  /**
+   * System property for the total size in bytes of the compressed responses to cache, or 0 (the
+   * default) for no cache.
+   */
+  public static final String CACHE_BYTES_PROPERTY = "appengine.compression.cacheBytes";
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private static final byte[] GZIP_HEADER = {
+    0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  /** Idle deflaters, by compression level. */
+  private static final ConcurrentMap<Integer, BlockingQueue<Deflater>> deflaterPools =
+      new ConcurrentHashMap<>();
+
+  private static final int MAX_POOLED_DEFLATERS =
+      2 * Runtime.getRuntime().availableProcessors();
 
   /** CSS/JavaScript content-types that are allowed to be compressed. */
   private static final ImmutableSet<String> COMPRESSABLE_CSS_JS =
@@ -45,18 +89,166 @@ public class HttpCompression {
           "application/javascript",
           "application/json");
 
+  /** Holds the configuration read from the system properties. */
+  private static final class Defaults {
+    static final int LEVEL = parseLevel(System.getProperty(LEVEL_PROPERTY));
+    static final int MIN_SIZE = Integer.getInteger(MIN_SIZE_PROPERTY, 0);
+    static final @Nullable Cache<HashCode, ByteString> CACHE =
+        newCache(Long.getLong(CACHE_BYTES_PROPERTY, 0));
+  }
+
+  private final int level;
+  private final int minSize;
+  private final @Nullable Cache<HashCode, ByteString> cache;
+
+  /** Creates an instance configured by the system properties. */
+  public HttpCompression() {
+    this(Defaults.LEVEL, Defaults.MIN_SIZE, Defaults.CACHE);
+  }
+
   /**
-   * Compress a byte buffer
+   * Creates an instance with the given configuration and its own cache.
+   *
+   * @param level the deflate level, from 1 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+   * @param minSize the size in bytes below which responses are not compressed
+   * @param cacheBytes the total size in bytes of the compressed responses to cache, or 0
+   */
+  HttpCompression(int level, int minSize, long cacheBytes) {
+    this(level, minSize, newCache(cacheBytes));
+  }
+
+  private HttpCompression(int level, int minSize, @Nullable Cache<HashCode, ByteString> cache) {
+    if (!isValidLevel(level)) {
+      throw new IllegalArgumentException("Invalid compression level " + level);
+    }
+    this.level = level;
+    this.minSize = minSize;
+    this.cache = cache;
+  }
+
+  private static boolean isValidLevel(int level) {
+    return level == Deflater.DEFAULT_COMPRESSION
+        || (level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION);
+  }
+
+  /**
+   * Returns the compression level given by the {@value #LEVEL_PROPERTY} system property, or {@link
+   * Deflater#DEFAULT_COMPRESSION} if it is not set or is not a valid level, which is logged.
+   */
+  static int parseLevel(@Nullable String value) {
+    if (value == null) {
+      return Deflater.DEFAULT_COMPRESSION;
+    }
+    try {
+      int level = Integer.parseInt(value.trim());
+      if (isValidLevel(level)) {
+        return level;
+      }
+    } catch (NumberFormatException e) {
+      // Logged below.
+    }
+    logger.atWarning().log(
+        "Ignoring invalid compression level %s=%s, using the default level", LEVEL_PROPERTY, value);
+    return Deflater.DEFAULT_COMPRESSION;
+  }
+
+  private static @Nullable Cache<HashCode, ByteString> newCache(long cacheBytes) {
+    if (cacheBytes <= 0) {
+      return null;
+    }
+    return CacheBuilder.newBuilder()
+        .maximumWeight(cacheBytes)
+        .<HashCode, ByteString>weigher((hash, compressed) -> compressed.size())
+        .build();
+  }
+
+  /**
+   * Compress a byte buffer at the default level
    *
    * @param content the entry buffer
    * @return the compressed buffer
    */
-  static byte[] compress(ByteString content) throws IOException {
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    try (GZIPOutputStream zos = new GZIPOutputStream(outputStream)) {
-      content.writeTo(zos);
+  static ByteString compress(ByteString content) {
+    return compress(content, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Compress a byte buffer in the gzip format. The compressed bytes are written directly into the
+   * chunks of the returned {@code ByteString}, which is never copied into one contiguous array.
+   *
+   * @param content the entry buffer
+   * @param level the deflate level
+   * @return the compressed buffer
+   */
+  static ByteString compress(ByteString content, int level) {
+    ByteString.Output output = ByteString.newOutput(Math.min(content.size() / 4 + 64, BUFFER_SIZE));
+    output.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+    CRC32 crc = new CRC32();
+    byte[] input = new byte[Math.min(content.size(), BUFFER_SIZE)];
+    byte[] buffer = new byte[BUFFER_SIZE];
+    Deflater deflater = borrowDeflater(level);
+    try {
+      for (int offset = 0; offset < content.size(); offset += input.length) {
+        int length = Math.min(input.length, content.size() - offset);
+        content.copyTo(input, offset, 0, length);
+        crc.update(input, 0, length);
+        deflater.setInput(input, 0, length);
+        while (!deflater.needsInput()) {
+          output.write(buffer, 0, deflater.deflate(buffer));
+        }
+      }
+      deflater.finish();
+      while (!deflater.finished()) {
+        output.write(buffer, 0, deflater.deflate(buffer));
+      }
+    } finally {
+      returnDeflater(level, deflater);
+    }
+    writeIntLittleEndian(output, (int) crc.getValue());
+    writeIntLittleEndian(output, content.size());
+    return output.toByteString();
+  }
+
+  private static void writeIntLittleEndian(ByteString.Output output, int value) {
+    output.write(value);
+    output.write(value >>> 8);
+    output.write(value >>> 16);
+    output.write(value >>> 24);
+  }
+
+  private static Deflater borrowDeflater(int level) {
+    Deflater deflater = deflaterPool(level).poll();
+    return (deflater == null) ? new Deflater(level, /* nowrap= */ true) : deflater;
+  }
+
+  private static void returnDeflater(int level, Deflater deflater) {
+    deflater.reset();
+    if (!deflaterPool(level).offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  private static BlockingQueue<Deflater> deflaterPool(int level) {
+    return deflaterPools.computeIfAbsent(
+        level, unused -> new ArrayBlockingQueue<>(MAX_POOLED_DEFLATERS));
+  }
+
+  /** Compresses {@code content}, or returns the cached result of compressing the same bytes. */
+  private ByteString compressCached(ByteString content) {
+    if (cache == null) {
+      return compress(content, level);
+    }
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (ByteBuffer buffer : content.asReadOnlyByteBufferList()) {
+      hasher.putBytes(buffer);
+    }
+    HashCode hash = hasher.hash();
+    ByteString compressed = cache.getIfPresent(hash);
+    if (compressed == null) {
+      compressed = compress(content, level);
+      cache.put(hash, compressed);
     }
-    return outputStream.toByteArray();
+    return compressed;
   }
 
   String getHeader(List<HttpPb.ParsedHttpHeader> lrh, String key) {
@@ -105,7 +297,8 @@ public class HttpCompression {
       return false;
     }
 
-    if (response.getHttpResponseResponse().size() == 0) {
+    if (response.getHttpResponseResponse().size() == 0
+        || response.getHttpResponseResponse().size() < minSize) {
       return false;
     }
 
@@ -181,7 +374,7 @@ public class HttpCompression {
     // Compress the response.  Response buffer will be cleared and written to if
     // compression succeeds, otherwise it will be left untouched.
 
-    response.setHttpResponseResponse(ByteString.copyFrom(compress(responseBytes)));
+    response.setHttpResponseResponse(compressCached(responseBytes));
 
     response.setHttpUncompressedSize(uncompressedSize);
     response.setHttpUncompressForClient(!compressForClient);
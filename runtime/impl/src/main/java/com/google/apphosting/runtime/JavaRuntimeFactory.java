@@ -142,7 +142,8 @@ public class JavaRuntimeFactory {
             .setThreadStopTerminatesClone(params.getThreadStopTerminatesClone())
             .setInterruptFirstOnSoftDeadline(params.getInterruptThreadsFirstOnSoftDeadline())
             .setCyclesPerSecond(params.getCyclesPerSecond())
-            .setWaitForDaemonRequestThreads(params.getWaitForDaemonRequestThreads());
+            .setWaitForDaemonRequestThreads(params.getWaitForDaemonRequestThreads())
+            .setUseVirtualThreads(VirtualThreads.isRequested());
 
     RequestManager requestManager = makeRequestManager(requestManagerBuilder);
     apiProxyImpl.setRequestManager(requestManager);
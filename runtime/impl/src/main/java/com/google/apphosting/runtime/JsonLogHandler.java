@@ -16,7 +16,9 @@
 
 package com.google.apphosting.runtime;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.Environment;
@@ -24,14 +26,55 @@ import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.escape.Escaper;
 import com.google.common.escape.Escapers;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import org.jspecify.annotations.Nullable;
 
-/** A log handler that publishes log messages in a json format. */
+/**
+ * A log handler that publishes log messages in a json format.
+ *
+ * <p>By default each message is written to a {@link PrintStream} by the thread that logs it. A
+ * handler created with a {@link WritableByteChannel} instead formats the message on the logging
+ * thread and hands it to a bounded ring buffer, which a single writer thread encodes into a reused
+ * direct buffer and writes to the channel. Messages that don't fit in the ring buffer are dropped,
+ * counted in {@link #getDroppedRecordCount}, and reported in the log by the writer thread. {@link
+ * #flush} and {@link #close}, which the {@link java.util.logging.LogManager} calls on shutdown,
+ * wait for the messages already published to be written.
+ */
 public final class JsonLogHandler extends LogHandler {
+  /**
+   * System property that makes {@link Logging#logJsonToFile} write to the log file from a writer
+   * thread rather than from the logging threads.
+   */
+  public static final String ASYNC_PROPERTY = "appengine.logs.json.async";
+
+  /**
+   * System property for the number of messages the ring buffer of the writer thread holds. The
+   * default is {@value #DEFAULT_BUFFER_SIZE}.
+   */
+  public static final String BUFFER_SIZE_PROPERTY = "appengine.logs.json.async.bufferSize";
+
+  static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  /** Holds the configuration read from the system properties. */
+  private static final class Defaults {
+    static final boolean ASYNC = Boolean.getBoolean(ASYNC_PROPERTY);
+    static final int BUFFER_SIZE = Integer.getInteger(BUFFER_SIZE_PROPERTY, DEFAULT_BUFFER_SIZE);
+  }
+
   private static final String TRACE_KEY = "\"logging.googleapis.com/trace\": ";
   private static final String SOURCE_LOCATION_KEY = "\"logging.googleapis.com/sourceLocation\": ";
   private static final String SPAN_KEY = "\"logging.googleapis.com/spanId\": ";
@@ -50,7 +93,9 @@ public final class JsonLogHandler extends LogHandler {
           .addEscape('\t', "\\t")
           .build();
 
-  private final PrintStream out;
+  // Exactly one of out and writer is set.
+  @Nullable private final PrintStream out;
+  @Nullable private final AsyncWriter writer;
   private final boolean closePrintStreamOnClose;
   @Nullable private final String projectId;
   private final Formatter formatter;
@@ -60,12 +105,53 @@ public final class JsonLogHandler extends LogHandler {
       boolean closePrintStreamOnClose,
       @Nullable String projectId,
       Formatter formatter) {
-    this.out = out;
+    this.out = checkNotNull(out);
+    this.writer = null;
     this.closePrintStreamOnClose = closePrintStreamOnClose;
     this.projectId = projectId;
     this.formatter = checkNotNull(formatter);
   }
 
+  /**
+   * Creates a handler that writes to {@code channel} from a writer thread, with a ring buffer of
+   * the size set by the {@value #BUFFER_SIZE_PROPERTY} system property.
+   */
+  public JsonLogHandler(
+      WritableByteChannel channel,
+      boolean closeChannelOnClose,
+      @Nullable String projectId,
+      Formatter formatter) {
+    this(channel, closeChannelOnClose, projectId, formatter, Defaults.BUFFER_SIZE);
+  }
+
+  JsonLogHandler(
+      WritableByteChannel channel,
+      boolean closeChannelOnClose,
+      @Nullable String projectId,
+      Formatter formatter,
+      int bufferSize) {
+    this.out = null;
+    this.writer = new AsyncWriter(channel, bufferSize);
+    this.closePrintStreamOnClose = closeChannelOnClose;
+    this.projectId = projectId;
+    this.formatter = checkNotNull(formatter);
+    writer.start();
+  }
+
+  /** Returns whether the {@value #ASYNC_PROPERTY} system property is true. */
+  static boolean isAsyncEnabled() {
+    return Defaults.ASYNC;
+  }
+
+  /**
+   * Returns the number of messages dropped because the ring buffer of the writer thread was full,
+   * or because they could not be written. Always zero for a handler that writes to a {@link
+   * PrintStream}.
+   */
+  public long getDroppedRecordCount() {
+    return writer == null ? 0 : writer.dropped.get();
+  }
+
   @Override
   public void publish(LogRecord record) {
     // We avoid String.format and String.join even though they would simplify the code.
@@ -78,6 +164,10 @@ public final class JsonLogHandler extends LogHandler {
     appendSourceLocation(json, record);
     appendMessage(json, record); // must be last, see appendMessage
     json.append("}");
+    if (writer != null) {
+      writer.offer(json.toString());
+      return;
+    }
     // We must output the log all at once (should only call println once per call to publish)
     out.println(json.toString());
   }
@@ -176,13 +266,216 @@ public final class JsonLogHandler extends LogHandler {
 
   @Override
   public void flush() {
+    if (writer != null) {
+      writer.awaitWritten();
+      return;
+    }
     out.flush();
   }
 
   @Override
   public void close() throws SecurityException {
+    if (writer != null) {
+      writer.close(closePrintStreamOnClose);
+      return;
+    }
     if (closePrintStreamOnClose) {
       out.close();
     }
   }
+
+  /** Writes the messages of a bounded ring buffer to a channel, from a single daemon thread. */
+  private static final class AsyncWriter implements Runnable {
+    // Queued by close() to stop the writer thread once the messages before it are written.
+    private static final String END = new String("");
+    private static final int BYTE_BUFFER_SIZE = 64 * 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final WritableByteChannel channel;
+    private final BlockingQueue<String> queue;
+    private final Thread thread;
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+    private final CharsetEncoder encoder =
+        UTF_8
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final AtomicLong queued = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    // Guarded by this. The number of messages taken from the queue, whether written or dropped.
+    private long done;
+
+    // Only used by the writer thread.
+    private long droppedReported;
+    // The messages of the current batch whose bytes are in the byte buffer or already written, and
+    // those already written to the channel.
+    private int appendedCount;
+    private int writtenCount;
+
+    AsyncWriter(WritableByteChannel channel, int bufferSize) {
+      checkArgument(bufferSize > 0, "bufferSize must be positive: %s", bufferSize);
+      this.channel = checkNotNull(channel);
+      this.queue = new ArrayBlockingQueue<>(bufferSize);
+      this.thread = new Thread(this, "json-log-writer");
+      thread.setDaemon(true);
+    }
+
+    void start() {
+      thread.start();
+    }
+
+    void offer(String line) {
+      // The count goes up first, so that a flush() that sees the message queued waits for it.
+      queued.incrementAndGet();
+      if (closed || !queue.offer(line)) {
+        dropped.incrementAndGet();
+        markDone(1);
+      }
+    }
+
+    /** Waits until the messages queued so far have been written, or dropped. */
+    void awaitWritten() {
+      long target = queued.get();
+      boolean interrupted = false;
+      synchronized (this) {
+        while (done < target && thread.isAlive()) {
+          try {
+            wait(100);
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    void close(boolean closeChannel) {
+      if (!closed) {
+        closed = true;
+        boolean interrupted = false;
+        while (true) {
+          try {
+            queue.put(END);
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        try {
+          thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (closeChannel) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // Nowhere left to report it.
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      List<String> batch = new ArrayList<>();
+      boolean end = false;
+      while (!end) {
+        try {
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          // The writer thread is private, so nobody should interrupt it. Keep going until close().
+          continue;
+        }
+        queue.drainTo(batch);
+        int count = batch.size();
+        // A message offered while close() runs may be queued after END, as checking closed and
+        // queueing the message are not atomic. Such messages are dropped, along with any others
+        // still queued, and only the messages before END are written.
+        int endIndex = indexOfEnd(batch);
+        if (endIndex >= 0) {
+          end = true;
+          count = endIndex;
+          int late = batch.size() - endIndex - 1 + queue.drainTo(new ArrayList<>());
+          dropped.addAndGet(late);
+          markDone(late);
+        }
+        appendedCount = 0;
+        writtenCount = 0;
+        try {
+          for (int i = 0; i < count; i++) {
+            append(batch.get(i));
+            appendedCount++;
+          }
+          appendDroppedWarning();
+          writeBytes();
+        } catch (IOException | RuntimeException e) {
+          // Writing to the log is best effort: count what couldn't be written and carry on.
+          bytes.clear();
+          dropped.addAndGet(count - writtenCount);
+        }
+        batch.clear();
+        markDone(count);
+      }
+    }
+
+    /** Returns the index of {@link #END} in {@code batch}, compared by identity, or -1. */
+    private static int indexOfEnd(List<String> batch) {
+      for (int i = 0; i < batch.size(); i++) {
+        if (batch.get(i) == END) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private synchronized void markDone(int count) {
+      done += count;
+      notifyAll();
+    }
+
+    private void appendDroppedWarning() throws IOException {
+      long droppedNow = dropped.get();
+      if (droppedNow > droppedReported) {
+        append(
+            "{\"severity\": \"WARNING\", \"message\": \""
+                + (droppedNow - droppedReported)
+                + " log messages were dropped because the log writer fell behind.\"}");
+        droppedReported = droppedNow;
+      }
+    }
+
+    /** Encodes the line and a newline into the byte buffer, writing it out whenever it fills. */
+    private void append(String line) throws IOException {
+      CharBuffer chars = CharBuffer.wrap(line);
+      encoder.reset();
+      while (encoder.encode(chars, bytes, true).isOverflow()) {
+        writeBytes();
+      }
+      while (encoder.flush(bytes).isOverflow()) {
+        writeBytes();
+      }
+      if (!bytes.hasRemaining()) {
+        writeBytes();
+      }
+      bytes.put((byte) '\n');
+    }
+
+    private void writeBytes() throws IOException {
+      bytes.flip();
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      bytes.clear();
+      writtenCount = appendedCount;
+    }
+  }
 }
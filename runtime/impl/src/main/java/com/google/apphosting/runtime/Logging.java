@@ -20,12 +20,12 @@ import org.jspecify.annotations.Nullable;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.util.Collections;
 import java.util.HashSet;
@@ -41,6 +41,9 @@ import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 /** Configures logging for the GAE Java Runtime. */
 public final class Logging {
@@ -163,10 +166,15 @@ public final class Logging {
   }
 
   public void logJsonToFile(@Nullable String projectId, Path logPath, boolean clearLogHandlers) {
-    PrintStream printStream;
+    PrintStream printStream = null;
+    FileChannel channel = null;
     try {
-      printStream = new PrintStream(logPath.toFile());
-    } catch (FileNotFoundException e) {
+      if (JsonLogHandler.isAsyncEnabled()) {
+        channel = FileChannel.open(logPath, CREATE, WRITE, TRUNCATE_EXISTING);
+      } else {
+        printStream = new PrintStream(logPath.toFile());
+      }
+    } catch (IOException e) {
       if (logger.isLoggable(Level.FINE)) {
         logger.log(Level.WARNING, "Unable to create log handler to " + logPath, e);
       }
@@ -193,7 +201,10 @@ public final class Logging {
     }
 
     LogHandler logHandler =
-        new JsonLogHandler(printStream, /* closePrintStreamOnClose= */ false, projectId, formatter);
+        channel != null
+            ? new JsonLogHandler(channel, /* closeChannelOnClose= */ false, projectId, formatter)
+            : new JsonLogHandler(
+                printStream, /* closePrintStreamOnClose= */ false, projectId, formatter);
     if (clearLogHandlers) {
       logHandler.init(rootLogger);
     } else {
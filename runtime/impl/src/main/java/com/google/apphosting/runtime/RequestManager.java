@@ -58,7 +58,9 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -128,6 +130,11 @@ public class RequestManager implements RequestThreadManager {
   private final long hardDeadlineDelay;
   private final boolean disableDeadlineTimers;
   private final ScheduledThreadPoolExecutor executor;
+  /**
+   * If present, scheduled actions are handed off to a new virtual thread each when they are due, so
+   * that a slow deadline for one request does not delay the deadlines of others.
+   */
+  private final Optional<ExecutorService> virtualThreadExecutor;
   private final TimerFactory timerFactory;
   private final Optional<RuntimeLogSink> runtimeLogSink;
   private final ApiProxyImpl apiProxyImpl;
@@ -141,6 +148,7 @@ public class RequestManager implements RequestThreadManager {
   /** Make a partly-initialized builder for a RequestManager. */
   public static Builder builder() {
     return new AutoBuilder_RequestManager_Builder()
+        .setUseVirtualThreads(false)
         .setEnvironment(System.getenv());
   }
 
@@ -186,6 +194,10 @@ public class RequestManager implements RequestThreadManager {
 
     public abstract boolean waitForDaemonRequestThreads();
 
+    public abstract Builder setUseVirtualThreads(boolean x);
+
+    public abstract boolean useVirtualThreads();
+
     public abstract Builder setEnvironment(Map<String, String> x);
 
     public abstract RequestManager build();
@@ -202,11 +214,16 @@ public class RequestManager implements RequestThreadManager {
       boolean interruptFirstOnSoftDeadline,
       long cyclesPerSecond,
       boolean waitForDaemonRequestThreads,
+      boolean useVirtualThreads,
       ImmutableMap<String, String> environment) {
     this.softDeadlineDelay = softDeadlineDelay;
     this.hardDeadlineDelay = hardDeadlineDelay;
     this.disableDeadlineTimers = disableDeadlineTimers;
     this.executor = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS);
+    this.virtualThreadExecutor =
+        useVirtualThreads
+            ? VirtualThreads.newVirtualThreadPerTaskExecutor("RequestManager-")
+            : Optional.empty();
     this.timerFactory =
         new TimerFactory(cyclesPerSecond, new JmxHotspotTimerSet(), new JmxGcTimerSet());
     this.runtimeLogSink = runtimeLogSink;
@@ -386,6 +403,12 @@ public class RequestManager implements RequestThreadManager {
     // Now wait for any async API calls and all request threads to complete.
     waitForUserCodeToComplete(requestToken);
 
+    // No user code can log anymore, so any app logs still queued go back with the response.
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    if (environment instanceof ApiProxyImpl.EnvironmentImpl) {
+      ((ApiProxyImpl.EnvironmentImpl) environment).finishLogs();
+    }
+
     // There is no more user code left, stop the timers and tear down the state.
     requests.remove(requestToken.getSecurityTicket());
     requestToken.setFinished();
@@ -825,9 +848,47 @@ public class RequestManager implements RequestThreadManager {
    */
   private Future<?> schedule(Runnable runnable, long time) {
     logger.atFine().log("Scheduling %s to run in %d ms.", runnable, time);
+    if (virtualThreadExecutor.isPresent()) {
+      ExecutorService virtualThreads = virtualThreadExecutor.get();
+      HandedOffFuture action = new HandedOffFuture(runnable);
+      action.setHandOff(
+          executor.schedule(() -> virtualThreads.execute(action), time, TimeUnit.MILLISECONDS));
+      return action;
+    }
     return executor.schedule(runnable, time, TimeUnit.MILLISECONDS);
   }
 
+  /**
+   * A scheduled action that is handed off to a virtual thread when it is due. It is only done once
+   * the action has run there, and cancelling it cancels both the hand-off and the action, so that
+   * an action which was handed off but has not started yet does not run after the request
+   * finished.
+   */
+  private static final class HandedOffFuture extends FutureTask<Void> {
+    private volatile Future<?> handOff;
+
+    HandedOffFuture(Runnable runnable) {
+      super(runnable, null);
+    }
+
+    void setHandOff(Future<?> handOff) {
+      this.handOff = handOff;
+      if (isCancelled()) {
+        handOff.cancel(false);
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      Future<?> scheduled = handOff;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+      return cancelled;
+    }
+  }
+
   /**
    * Adjusts the deadline for this RPC by the padding constant along with the
    * elapsed time.  Will return the defaultValue if the rpc is not valid.
@@ -52,6 +52,11 @@ public class RequestRunner implements Runnable {
    */
   public static final Duration WAIT_FOR_USER_RUNNABLE_DEADLINE = Duration.ofSeconds(60);
 
+  /** Holds the response compressor, created the first time a response is compressed. */
+  private static final class SharedCompression {
+    static final HttpCompression INSTANCE = new HttpCompression();
+  }
+
   private final UPRequestHandler upRequestHandler;
   private final RequestManager requestManager;
   private final BackgroundRequestCoordinator coordinator;
@@ -351,8 +356,7 @@ public class RequestRunner implements Runnable {
     if (compressResponse) {
       // try to compress if necessary (http://b/issue?id=3368468)
       try {
-        HttpCompression compression = new HttpCompression();
-        compression.attemptCompression(upRequest, upResponse);
+        SharedCompression.INSTANCE.attemptCompression(upRequest, upResponse);
       } catch (IOException ex) {
         // Zip compression did not work... Response is not compressed.
         logger.atWarning().withCause(ex).log("Error attempting the compression of the response.");
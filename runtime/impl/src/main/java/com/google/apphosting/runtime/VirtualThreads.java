@@ -0,0 +1,63 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import com.google.common.flogger.GoogleLogger;
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors that run each task in a new virtual thread. Virtual threads only exist from
+ * Java 21, while this code is compiled for older releases, so they are reached by reflection.
+ *
+ * <p>Virtual threads are used when the {@value AppEngineConstants#USE_VIRTUAL_THREADS} system
+ * property is true and the JVM supports them.
+ */
+public final class VirtualThreads {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private VirtualThreads() {}
+
+  /** Returns true if the {@value AppEngineConstants#USE_VIRTUAL_THREADS} property is true. */
+  public static boolean isRequested() {
+    return Boolean.getBoolean(AppEngineConstants.USE_VIRTUAL_THREADS);
+  }
+
+  /**
+   * Returns an executor that starts a new virtual thread, named with {@code namePrefix} followed by
+   * a counter, for each task; or an empty {@code Optional} if this JVM has no virtual threads.
+   */
+  public static Optional<ExecutorService> newVirtualThreadPerTaskExecutor(String namePrefix) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder =
+          builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      Method newThreadPerTaskExecutor =
+          Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      return Optional.of((ExecutorService) newThreadPerTaskExecutor.invoke(null, factory));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.atWarning().withCause(e).log(
+          "Virtual threads are not available in Java %s", System.getProperty("java.version"));
+      return Optional.empty();
+    }
+  }
+}
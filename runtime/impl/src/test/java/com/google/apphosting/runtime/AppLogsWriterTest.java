@@ -43,10 +43,12 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ExtensionRegistry;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import org.junit.After;
 import org.junit.Before;
@@ -280,6 +282,130 @@ public class AppLogsWriterTest {
     assertThat(response.getAppLogCount()).isEqualTo(0);
   }
 
+  @Test
+  public void testAsyncLoggingDoesNotBlockOnFlush() throws Exception {
+    SettableFuture<byte[]> firstFlush = SettableFuture.create();
+    ArgumentCaptor<byte[]> flushRequestBytes = ArgumentCaptor.forClass(byte[].class);
+    when(delegate.makeAsyncCall(
+            eq(environment), eq("logservice"), eq("Flush"), flushRequestBytes.capture(), notNull()))
+        .thenReturn(firstFlush, immediateFuture(new byte[0]));
+    ExecutorService flusher = newSingleThreadExecutor();
+    AppLogsWriter writer =
+        new AppLogsWriter(
+            new UpResponseAPIData(response),
+            SMALL_FLUSH,
+            DEFAULT_MAX_LOG_LINE,
+            0,
+            flusher,
+            0,
+            AppLogsWriter.OverflowPolicy.BLOCK);
+    // The flusher waits for the first flush before starting the second one, but logging doesn't.
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "3"));
+    assertThat(writer.getEnqueueCount()).isEqualTo(3);
+
+    firstFlush.set(new byte[0]);
+    writer.finish();
+    flusher.shutdown();
+
+    assertThat(flushRequestBytes.getAllValues()).hasSize(2);
+    for (int i = 0; i < 2; i++) {
+      AppLogGroup.Builder group = AppLogGroup.newBuilder();
+      FlushRequest.Builder flushRequest =
+          FlushRequest.newBuilder()
+              .mergeFrom(
+                  flushRequestBytes.getAllValues().get(i), ExtensionRegistry.getEmptyRegistry());
+      group.mergeFrom(flushRequest.getLogs(), ExtensionRegistry.getEmptyRegistry());
+      assertThat(group.getLogLineList()).containsExactly(createLogLine(Integer.toString(i + 1)));
+    }
+    assertThat(writer.getFlushCount()).isEqualTo(2);
+    assertThat(writer.getFlushedBytes()).isGreaterThan(2 * LOG_BLOCK.length());
+    // The last message is returned with the response.
+    assertThat(response.getAppLogCount()).isEqualTo(1);
+    assertThat(response.getAppLog(0)).isEqualTo(createLogLine("3"));
+  }
+
+  @Test
+  public void testAsyncOverflowDrop() throws Exception {
+    // A flusher that never runs, so that the queue fills up.
+    AppLogsWriter writer =
+        new AppLogsWriter(
+            new UpResponseAPIData(response),
+            STANDARD_FLUSH,
+            DEFAULT_MAX_LOG_LINE,
+            0,
+            runnable -> {},
+            10_000,
+            AppLogsWriter.OverflowPolicy.DROP);
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+    assertThat(writer.getDroppedLineCount()).isEqualTo(1);
+    assertThat(response.getAppLogCount()).isEqualTo(0);
+
+    writer.finish();
+    verifyNoMoreInteractions(delegate);
+    assertThat(response.getAppLogCount()).isEqualTo(2);
+    assertThat(response.getAppLog(0)).isEqualTo(createLogLine("1"));
+    assertThat(response.getAppLog(1).getMessage()).startsWith("1 log lines were dropped");
+  }
+
+  @Test
+  public void testAsyncOverflowBlock() throws Exception {
+    AppLogsWriter writer =
+        new AppLogsWriter(
+            new UpResponseAPIData(response),
+            STANDARD_FLUSH,
+            DEFAULT_MAX_LOG_LINE,
+            0,
+            runnable -> {},
+            10_000,
+            AppLogsWriter.OverflowPolicy.BLOCK);
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+    // The queue is full, so the caller drains it.
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+    assertThat(response.getAppLogCount()).isEqualTo(1);
+    assertThat(response.getAppLog(0)).isEqualTo(createLogLine("1"));
+
+    writer.finish();
+    verifyNoMoreInteractions(delegate);
+    assertThat(writer.getDroppedLineCount()).isEqualTo(0);
+    assertThat(response.getAppLogCount()).isEqualTo(2);
+    assertThat(response.getAppLog(0)).isEqualTo(createLogLine("1"));
+    assertThat(response.getAppLog(1)).isEqualTo(createLogLine("2"));
+  }
+
+  @Test
+  public void testAsyncDrainAfterFinishDoesNotFlush() throws Exception {
+    List<Runnable> drains = new ArrayList<>();
+    Ticker ticker = mock(Ticker.class);
+    // The drain of finish() is within the flush interval, a later one would be past it.
+    when(ticker.read()).thenReturn(0L).thenReturn(1 * INVERSE_NANO).thenReturn(60 * INVERSE_NANO);
+    AppLogsWriter writer =
+        new AppLogsWriter(
+            new UpResponseAPIData(response),
+            STANDARD_FLUSH,
+            DEFAULT_MAX_LOG_LINE,
+            60,
+            drains::add,
+            0,
+            AppLogsWriter.OverflowPolicy.BLOCK);
+    writer.setStopwatch(Stopwatch.createUnstarted(ticker));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+    assertThat(drains).hasSize(1);
+
+    writer.finish();
+    // The drain only runs once the request finished, which must not start a flush.
+    drains.get(0).run();
+
+    verifyNoMoreInteractions(delegate);
+    assertThat(writer.getFlushCount()).isEqualTo(0);
+    assertThat(response.getAppLogCount()).isEqualTo(2);
+    assertThat(response.getAppLog(0)).isEqualTo(createLogLine("1"));
+    assertThat(response.getAppLog(1)).isEqualTo(createLogLine("2"));
+  }
+
   private AppLogLine createLogLine(String suffix) {
     return AppLogLine.newBuilder()
         .setLevel(1)
@@ -17,6 +17,8 @@
 package com.google.apphosting.runtime;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
 
 import com.google.apphosting.base.protos.HttpPb;
 import com.google.apphosting.base.protos.RuntimePb;
@@ -29,6 +31,7 @@ import com.google.protobuf.ByteString;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import org.junit.Before;
 import org.junit.Test;
@@ -71,7 +74,7 @@ public class HttpCompressionTest {
 
   /** @return the actual compressed compressed buffer for further testing */
   private byte[] compressAndAssertRoundTrip(String input) throws IOException {
-    byte[] compressedBytes = HttpCompression.compress(ByteString.copyFromUtf8(input));
+    byte[] compressedBytes = HttpCompression.compress(ByteString.copyFromUtf8(input)).toByteArray();
     byte[] decompressedBytes = uncompress(compressedBytes);
     assertThat(decompressedBytes).hasLength(Utf8.encodedLength(input));
     return compressedBytes;
@@ -124,7 +127,8 @@ public class HttpCompressionTest {
 
     if (expectCompression) {
       // Verify that the response was compressed.
-      byte[] compressed = HttpCompression.compress(ByteString.copyFromUtf8(responseBody));
+      byte[] compressed =
+          HttpCompression.compress(ByteString.copyFromUtf8(responseBody)).toByteArray();
       assertThat(upResponse.getHttpResponse().getResponse().toByteArray()).isEqualTo(compressed);
 
       // Verify that the response headers were set.
@@ -337,6 +341,77 @@ public class HttpCompressionTest {
     assertThat(upResponse.getHttpResponse().getResponse().toStringUtf8()).isEqualTo(responseBody);
   }
 
+  @Test
+  public void testLargeRopeRoundTrip() throws IOException {
+    // Larger than the deflate buffers, and made of several chunks.
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; sb.length() < 100_000; i++) {
+      sb.append("{\"id\":").append(i).append(",\"name\":\"entity-").append(i).append("\"},");
+    }
+    ByteString content =
+        ByteString.copyFromUtf8(sb.toString()).concat(ByteString.copyFromUtf8(sb.toString()));
+    for (int level : new int[] {Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION}) {
+      ByteString compressed = HttpCompression.compress(content, level);
+      assertThat(ByteString.copyFrom(uncompress(compressed.toByteArray()))).isEqualTo(content);
+      assertThat(compressed.size()).isLessThan(content.size() / 4);
+    }
+  }
+
+  @Test
+  public void testInvalidLevel() {
+    assertThrows(IllegalArgumentException.class, () -> new HttpCompression(10, 0, 0));
+  }
+
+  @Test
+  public void testParseLevel() {
+    assertThat(HttpCompression.parseLevel(null)).isEqualTo(Deflater.DEFAULT_COMPRESSION);
+    assertThat(HttpCompression.parseLevel("1")).isEqualTo(1);
+    assertThat(HttpCompression.parseLevel(" 9 ")).isEqualTo(9);
+    assertThat(HttpCompression.parseLevel("-1")).isEqualTo(Deflater.DEFAULT_COMPRESSION);
+    // Invalid levels fall back to the default level rather than failing every response.
+    assertThat(HttpCompression.parseLevel("0")).isEqualTo(Deflater.DEFAULT_COMPRESSION);
+    assertThat(HttpCompression.parseLevel("10")).isEqualTo(Deflater.DEFAULT_COMPRESSION);
+    assertThat(HttpCompression.parseLevel("fast")).isEqualTo(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  @Test
+  public void testMinSize() throws IOException {
+    responseBody = "short response";
+    initResponse();
+    HttpCompression compression =
+        new HttpCompression(Deflater.DEFAULT_COMPRESSION, responseBody.length() + 1, 0);
+    assertThat(compression.attemptCompression(upRequest, upResponse)).isFalse();
+    assertThat(upResponse.getHttpResponse().getResponse().toStringUtf8()).isEqualTo(responseBody);
+
+    compression = new HttpCompression(Deflater.DEFAULT_COMPRESSION, responseBody.length(), 0);
+    assertThat(compression.attemptCompression(upRequest, upResponse)).isTrue();
+  }
+
+  @Test
+  public void testCache() throws IOException {
+    HttpCompression compression = new HttpCompression(Deflater.BEST_SPEED, 0, 1 << 20);
+    initResponse();
+    assertThat(compression.attemptCompression(upRequest, upResponse)).isTrue();
+    ByteString first = upResponse.getHttpResponse().getResponse();
+
+    // A new response with equal content gets the same compressed bytes from the cache.
+    upResponse = new MutableUpResponse();
+    upResponse.setError(RuntimePb.APIResponse.ERROR.OK_VALUE);
+    initResponse();
+    assertThat(compression.attemptCompression(upRequest, upResponse)).isTrue();
+    assertThat(upResponse.getHttpResponse().getResponse()).isSameInstanceAs(first);
+    assertThat(uncompress(first.toByteArray())).isEqualTo(responseBody.getBytes(UTF_8));
+
+    // Different content is compressed again.
+    responseBody = "bar";
+    upResponse = new MutableUpResponse();
+    upResponse.setError(RuntimePb.APIResponse.ERROR.OK_VALUE);
+    initResponse();
+    assertThat(compression.attemptCompression(upRequest, upResponse)).isTrue();
+    assertThat(uncompress(upResponse.getHttpResponse().getResponse().toByteArray()))
+        .isEqualTo("bar".getBytes(UTF_8));
+  }
+
   private HttpPb.ParsedHttpHeader.Builder header(String key, String value) {
     return HttpPb.ParsedHttpHeader.newBuilder().setKey(key).setValue(value);
   }
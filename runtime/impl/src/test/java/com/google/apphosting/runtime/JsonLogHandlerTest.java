@@ -17,6 +17,8 @@
 package com.google.apphosting.runtime;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -28,8 +30,16 @@ import com.google.apphosting.base.protos.SpanId;
 import com.google.apphosting.base.protos.TraceId;
 import com.google.apphosting.base.protos.TracePb.TraceContextProto;
 import com.google.apphosting.runtime.anyrpc.APIHostClientInterface;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -175,6 +185,129 @@ public final class JsonLogHandlerTest {
     assertThat(string.getValue()).contains("Message with parameters foo and bar");
   }
 
+  @Test
+  public void testAsyncPublish() throws Exception {
+    PrintStream out = Mockito.mock(PrintStream.class);
+    JsonLogHandler syncHandler =
+        new JsonLogHandler(out, true, "test-project-id", new SimpleFormatter());
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    JsonLogHandler handler =
+        new JsonLogHandler(
+            Channels.newChannel(bytes), true, "test-project-id", new SimpleFormatter(), 16);
+
+    logRecord = new LogRecord(Level.INFO, "Non-ASCII characters: \u00e9\u2713");
+    syncHandler.publish(logRecord);
+    for (int i = 0; i < 3; i++) {
+      handler.publish(logRecord);
+    }
+    handler.flush();
+
+    ArgumentCaptor<String> expected = ArgumentCaptor.forClass(String.class);
+    verify(out).println(expected.capture());
+    String line = expected.getValue();
+    assertThat(new String(bytes.toByteArray(), UTF_8))
+        .isEqualTo(line + "\n" + line + "\n" + line + "\n");
+    assertThat(handler.getDroppedRecordCount()).isEqualTo(0);
+    handler.close();
+  }
+
+  @Test
+  public void testAsyncDropsWhenBufferIsFull() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CountDownLatch writeStarted = new CountDownLatch(1);
+    CountDownLatch writeAllowed = new CountDownLatch(1);
+    WritableByteChannel delegate = Channels.newChannel(bytes);
+    WritableByteChannel channel =
+        new WritableByteChannel() {
+          @Override
+          public int write(ByteBuffer src) throws IOException {
+            writeStarted.countDown();
+            try {
+              writeAllowed.await();
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+            return delegate.write(src);
+          }
+
+          @Override
+          public boolean isOpen() {
+            return true;
+          }
+
+          @Override
+          public void close() {}
+        };
+    JsonLogHandler handler = new JsonLogHandler(channel, true, null, new SimpleFormatter(), 1);
+
+    handler.publish(new LogRecord(Level.INFO, "first"));
+    // The writer thread is now stuck writing the first message, so the second one fills the ring
+    // buffer and the next ones are dropped, without blocking this thread.
+    assertThat(writeStarted.await(10, SECONDS)).isTrue();
+    handler.publish(new LogRecord(Level.INFO, "second"));
+    handler.publish(new LogRecord(Level.INFO, "third"));
+    handler.publish(new LogRecord(Level.INFO, "fourth"));
+    assertThat(handler.getDroppedRecordCount()).isEqualTo(2);
+
+    writeAllowed.countDown();
+    handler.close();
+
+    String[] lines = new String(bytes.toByteArray(), UTF_8).split("\n");
+    assertThat(lines).hasLength(3);
+    assertThat(lines[0]).contains("\"message\": \"first\"");
+    assertThat(lines[1]).contains("\"message\": \"second\"");
+    assertThat(lines[2]).contains("2 log messages were dropped");
+  }
+
+  @Test
+  public void testAsyncCountsOnlyUnwrittenMessagesAsDroppedOnWriteFailure() throws Exception {
+    CountDownLatch writeStarted = new CountDownLatch(1);
+    CountDownLatch writeAllowed = new CountDownLatch(1);
+    AtomicInteger writes = new AtomicInteger();
+    WritableByteChannel channel =
+        new WritableByteChannel() {
+          @Override
+          public int write(ByteBuffer src) throws IOException {
+            writeStarted.countDown();
+            try {
+              writeAllowed.await();
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+            if (writes.incrementAndGet() > 2) {
+              throw new IOException("disk full");
+            }
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+          }
+
+          @Override
+          public boolean isOpen() {
+            return true;
+          }
+
+          @Override
+          public void close() {}
+        };
+    JsonLogHandler handler = new JsonLogHandler(channel, true, null, new SimpleFormatter(), 4);
+
+    handler.publish(new LogRecord(Level.INFO, "first"));
+    assertThat(writeStarted.await(10, SECONDS)).isTrue();
+    // These are written as one batch. The 64 KB byte buffer fills up while the second is appended,
+    // so the first is written on its own, and the write of the other two fails.
+    String big = Strings.repeat("x", 40_000);
+    for (int i = 0; i < 3; i++) {
+      handler.publish(new LogRecord(Level.INFO, big));
+    }
+    writeAllowed.countDown();
+    handler.flush();
+
+    assertThat(writes.get()).isEqualTo(3);
+    assertThat(handler.getDroppedRecordCount()).isEqualTo(2);
+    handler.close();
+  }
+
   @Before
   public void setUp() {
     APIHostClientInterface apiHost = mock(APIHostClientInterface.class);
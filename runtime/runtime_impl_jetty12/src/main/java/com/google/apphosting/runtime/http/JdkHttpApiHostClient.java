@@ -31,8 +31,10 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -66,7 +68,7 @@ class JdkHttpApiHostClient extends HttpApiHostClient {
             t.setDaemon(true);
             return t;
           };
-      Executor executor = Executors.newCachedThreadPool(factory);
+      Executor executor = newExecutor(config, "JdkHttp-", factory);
       return new JdkHttpApiHostClient(config, new URL(url), executor);
     } catch (MalformedURLException e) {
       throw new UncheckedIOException(e);
@@ -84,14 +86,14 @@ class JdkHttpApiHostClient extends HttpApiHostClient {
 
   @Override
   void send(
-      byte[] requestBytes,
+      ByteBuffer[] requestBuffers,
       HttpApiHostClient.Context context,
       AnyRpcCallback<APIResponse> callback) {
-    executor.execute(() -> doSend(requestBytes, context, callback));
+    executor.execute(() -> doSend(requestBuffers, context, callback));
   }
 
   private void doSend(
-      byte[] requestBytes,
+      ByteBuffer[] requestBuffers,
       HttpApiHostClient.Context context,
       AnyRpcCallback<APIResponse> callback) {
     try {
@@ -106,10 +108,20 @@ class JdkHttpApiHostClient extends HttpApiHostClient {
             Ints.saturatedCast(max(1, context.getDeadlineNanos().get() / 1_000_000));
         connection.setReadTimeout(deadlineMillis);
       }
-      connection.setFixedLengthStreamingMode(requestBytes.length);
+      long requestLength = 0;
+      for (ByteBuffer buffer : requestBuffers) {
+        requestLength += buffer.remaining();
+      }
+      connection.setFixedLengthStreamingMode(requestLength);
       connection.setRequestMethod("POST");
       try (OutputStream out = connection.getOutputStream()) {
-        out.write(requestBytes);
+        WritableByteChannel channel = Channels.newChannel(out);
+        for (ByteBuffer buffer : requestBuffers) {
+          ByteBuffer remaining = buffer.duplicate();
+          while (remaining.hasRemaining()) {
+            channel.write(remaining);
+          }
+        }
       }
       if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
         int length = connection.getContentLength();
@@ -16,7 +16,6 @@
 
 package com.google.apphosting.runtime.http;
 
-import static java.lang.Math.max;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import com.google.apphosting.api.ApiProxy;
@@ -30,14 +29,14 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedSelectorException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import org.eclipse.jetty.client.BytesRequestContent;
+import org.eclipse.jetty.client.ByteBufferRequestContent;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.HttpResponseException;
 import org.eclipse.jetty.client.Request;
@@ -47,7 +46,9 @@ import org.eclipse.jetty.client.Result;
 import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.io.Content;
 import org.eclipse.jetty.io.EofException;
+import org.eclipse.jetty.util.BufferUtil;
 import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
 import org.eclipse.jetty.util.thread.Scheduler;
 
@@ -102,7 +103,8 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
     // what advantage we'd get from using a QueuedThreadPool with a smaller minThreads value, versus
     // just one of the standard java.util.concurrent pools. Here we have minThreads=1, maxThreads=∞,
     // and idleTime=60 seconds. maxThreads=200 and maxThreads=∞ are probably equivalent in practice.
-    httpClient.setExecutor(Executors.newCachedThreadPool(factory));
+    // With Config.useVirtualThreads() there is no pool at all, just a virtual thread per task.
+    httpClient.setExecutor(newExecutor(config, "JettyHttpApiHostClient-", factory));
     httpClient.setScheduler(scheduler);
     config.maxConnectionsPerDestination().ifPresent(httpClient::setMaxConnectionsPerDestination);
     try {
@@ -115,14 +117,21 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
     return new JettyHttpApiHostClient(url, httpClient, config);
   }
 
+  /**
+   * Collects the response content as the chunks read from the connection, which are retained
+   * rather than copied into a contiguous array, and parses them once the response is complete.
+   * The chunks typically come from the buffer pool of the client; they are released as soon as
+   * the response has been parsed, or when the exchange fails.
+   */
   private class Listener implements Response.Listener {
 
     private static final int MAX_LENGTH = MAX_PAYLOAD + EXTRA_CONTENT_BYTES;
 
     private final Context context;
     private final AnyRpcCallback<APIResponse> callback;
-    private byte[] buffer;
-    private int offset;
+    private final List<Content.Chunk> chunks = new ArrayList<>(); // Guarded by chunks.
+    private boolean released; // Guarded by chunks.
+    private long length;
 
     Listener(Context context, AnyRpcCallback<APIResponse> callback) {
       this.context = context;
@@ -131,40 +140,47 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
 
     @Override
     public void onHeaders(Response response) {
+      if (config().ignoreContentLength()) {
+        return;
+      }
       HttpFields headers = response.getHeaders();
       String lengthString = headers.get(HttpHeader.CONTENT_LENGTH.asString());
       Long length = (lengthString == null) ? null : Longs.tryParse(lengthString);
-      if (length == null || config().ignoreContentLength()) {
-        // We expect there to be a Content-Length, but we should be correct if less efficient
-        // even if not.
-        buffer = new byte[2048];
-      } else if (length > MAX_LENGTH) {
+      if (length != null && length > MAX_LENGTH) {
         abortBecauseTooLarge(response);
-        return;
-      } else {
-        buffer = new byte[length.intValue()];
       }
-      offset = 0;
     }
 
     @Override
-    public void onContent(Response response, ByteBuffer byteBuffer) {
-      int byteCount = byteBuffer.remaining();
-      if (offset + byteCount > MAX_LENGTH) {
+    public void onContent(Response response, Content.Chunk chunk, Runnable demander) {
+      length += chunk.remaining();
+      if (length > MAX_LENGTH) {
         abortBecauseTooLarge(response);
         return;
       }
-      int bufferRemaining = buffer.length - offset;
-      if (byteCount > bufferRemaining) {
-        int newSize = max((int) (buffer.length * 1.5), offset + byteCount);
-        logger.atInfo().log(
-            "Had to resize buffer, %d > %d; resizing to %d", byteCount, bufferRemaining, newSize);
-        buffer = Arrays.copyOf(buffer, newSize);
-        bufferRemaining = buffer.length - offset;
-        Preconditions.checkState(byteCount <= bufferRemaining);
+      if (chunk.hasRemaining()) {
+        synchronized (chunks) {
+          if (released) {
+            // The exchange already failed.
+            return;
+          }
+          if (chunk.canRetain()) {
+            chunk.retain();
+          } else {
+            chunk = Content.Chunk.from(BufferUtil.copy(chunk.getByteBuffer()), false);
+          }
+          chunks.add(chunk);
+        }
+      }
+      demander.run();
+    }
+
+    private void releaseChunks() {
+      synchronized (chunks) {
+        released = true;
+        chunks.forEach(Content.Chunk::release);
+        chunks.clear();
       }
-      byteBuffer.get(buffer, offset, byteCount);
-      offset += byteCount;
     }
 
     private void abortBecauseTooLarge(Response response) {
@@ -174,6 +190,14 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
 
     @Override
     public void onComplete(Result result) {
+      try {
+        handleResult(result);
+      } finally {
+        releaseChunks();
+      }
+    }
+
+    private void handleResult(Result result) {
       if (result.isFailed()) {
         Throwable failure = result.getFailure();
         if (failure instanceof ApiProxy.ResponseTooLargeException) {
@@ -213,7 +237,11 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
       } else {
         Response response = result.getResponse();
         if (response.getStatus() == HttpURLConnection.HTTP_OK) {
-          receivedResponse(buffer, offset, context, callback);
+          List<ByteBuffer> buffers = new ArrayList<>();
+          synchronized (chunks) {
+            chunks.forEach(chunk -> buffers.add(chunk.getByteBuffer()));
+          }
+          receivedResponse(buffers, context, callback);
         } else {
           String httpError = response.getStatus() + " " + response.getReason();
           logger.atWarning().log("HTTP communication got error: %s", httpError);
@@ -224,12 +252,12 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
   }
 
   @Override
-  void send(byte[] requestBytes, HttpApiHostClient.Context context,
+  void send(ByteBuffer[] requestBuffers, HttpApiHostClient.Context context,
       AnyRpcCallback<APIResponse> callback) {
     Request request = httpClient
         .newRequest(url)
         .method(HttpMethod.POST)
-        .body(new BytesRequestContent(CONTENT_TYPE_VALUE, requestBytes));
+        .body(new ByteBufferRequestContent(CONTENT_TYPE_VALUE, requestBuffers));
 
     request = request.headers(headers ->
     {
@@ -25,28 +25,31 @@ import com.google.apphosting.runtime.MutableUpResponse;
 import com.google.apphosting.runtime.jetty.delegate.api.DelegateExchange;
 import com.google.common.base.Ascii;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicReference;
 import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpMethod;
-import org.eclipse.jetty.io.ByteBufferAccumulator;
 import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.io.content.ByteBufferContentSource;
 import org.eclipse.jetty.util.Attributes;
 import org.eclipse.jetty.util.Callback;
 
 public class DelegateRpcExchange implements DelegateExchange {
-  private static final Content.Chunk EOF = Content.Chunk.EOF;
   private static final String X_GOOGLE_INTERNAL_SKIPADMINCHECK = "x-google-internal-skipadmincheck";
   private static final String SKIP_ADMIN_CHECK_ATTR = "com.google.apphosting.internal.SkipAdminCheck";
 
   private final HttpPb.HttpRequest _request;
-  private final AtomicReference<Content.Chunk> _content = new AtomicReference<>();
+  private final StreamedBody _streamedBody;
+  private final Content.Source _content;
   private final MutableUpResponse _response;
-  private final ByteBufferAccumulator accumulator = new ByteBufferAccumulator();
+  // The response body, as owned copies of the written buffers.
+  private final List<ByteString> _responseContent = new ArrayList<>();
   private final CompletableFuture<Void> _completion = new CompletableFuture<>();
   private final Attributes _attributes = new Attributes.Lazy();
   private final String _httpMethod;
@@ -55,7 +58,13 @@ public class DelegateRpcExchange implements DelegateExchange {
   public DelegateRpcExchange(RuntimePb.UPRequest request, MutableUpResponse response) {
     _request = request.getRequest();
     _response = response;
-    _content.set(new ContentChunk(_request.getPostdata().toByteArray()));
+    _streamedBody = StreamedBody.take(request);
+    if (_streamedBody != null) {
+      _content = _streamedBody.getRequestContent();
+    } else {
+      // The chunks wrap the buffers of the post data, whatever its shape, without copying them.
+      _content = new ByteBufferContentSource(_request.getPostdata().asReadOnlyByteBufferList());
+    }
 
     String protocol = _request.getProtocol();
     HttpMethod method =
@@ -132,17 +141,17 @@ public class DelegateRpcExchange implements DelegateExchange {
 
   @Override
   public Content.Chunk read() {
-    return _content.getAndUpdate(chunk -> (chunk instanceof ContentChunk) ? EOF : chunk);
+    return _content.read();
   }
 
   @Override
   public void demand(Runnable demandCallback) {
-    demandCallback.run();
+    _content.demand(demandCallback);
   }
 
   @Override
   public void fail(Throwable failure) {
-    _content.set(Content.Chunk.from(failure));
+    _content.fail(failure);
   }
 
   @Override
@@ -158,13 +167,26 @@ public class DelegateRpcExchange implements DelegateExchange {
 
   @Override
   public void write(boolean last, ByteBuffer content, Callback callback) {
-    if (content != null) accumulator.copyBuffer(content);
+    if (_streamedBody != null) {
+      _streamedBody.write(_response.getHttpResponse(), last, content, callback);
+      return;
+    }
+    // The caller may reuse the buffer once the callback has completed, so it has to be copied, but
+    // the copies are then only wrapped into the response body.
+    if (content != null && content.hasRemaining()) {
+      byte[] bytes = new byte[content.remaining()];
+      content.get(bytes);
+      _responseContent.add(UnsafeByteOperations.unsafeWrap(bytes));
+    }
     callback.succeeded();
   }
 
   @Override
   public void succeeded() {
-    _response.setHttpResponseResponse(ByteString.copyFrom(accumulator.takeByteBuffer()));
+    // A streamed response body has already been written to the client.
+    if (_streamedBody == null) {
+      _response.setHttpResponseResponse(ByteString.copyFrom(_responseContent));
+    }
     _response.setError(RuntimePb.UPResponse.ERROR.OK_VALUE);
     _completion.complete(null);
   }
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty.delegate.impl;
+
+import com.google.apphosting.base.protos.HttpPb;
+import com.google.apphosting.base.protos.RuntimePb;
+import com.google.apphosting.base.protos.RuntimePb.UPRequest;
+import com.google.common.collect.MapMaker;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.Callback;
+
+/**
+ * The request and response bodies of a request that the HTTP proxy forwards to the runtime without
+ * buffering them in the {@link UPRequest} and {@code UPResponse}.
+ *
+ * <p>The proxy {@link #register registers} the body against the {@code UPRequest} it hands to the
+ * runtime, and the {@link DelegateRpcExchange} serving that request {@link #take takes} it back.
+ * The exchange then reads the request content straight from the client connection, and writes the
+ * response to the client as the application writes it. Neither side buffers more than Jetty does
+ * for the client connection, and a write only completes once that connection has accepted it, so a
+ * slow client slows down the application rather than filling the heap.
+ */
+public class StreamedBody {
+  // Weak keys are compared by identity, so a body can only be taken with the very UPRequest it was
+  // registered with, and it goes away with that UPRequest if no exchange ever takes it.
+  private static final ConcurrentMap<UPRequest, StreamedBody> bodies =
+      new MapMaker().weakKeys().makeMap();
+
+  private final Content.Source requestContent;
+  private final Response response;
+  private final AtomicBoolean committed = new AtomicBoolean();
+  private volatile boolean lastWritten;
+
+  /**
+   * @param requestContent the content of the client request
+   * @param response the response to the client
+   */
+  public StreamedBody(Content.Source requestContent, Response response) {
+    this.requestContent = requestContent;
+    this.response = response;
+  }
+
+  /** Makes {@code body} available to the exchange that serves {@code upRequest}. */
+  public static void register(UPRequest upRequest, StreamedBody body) {
+    bodies.put(upRequest, body);
+  }
+
+  /** Returns the body registered for {@code upRequest} and forgets it, or {@code null}. */
+  public static StreamedBody take(UPRequest upRequest) {
+    return bodies.remove(upRequest);
+  }
+
+  Content.Source getRequestContent() {
+    return requestContent;
+  }
+
+  /**
+   * Writes response content to the client, preceded by the status and headers of {@code
+   * httpResponse} the first time. The callback completes once the client connection has accepted
+   * the content.
+   */
+  void write(
+      HttpPb.HttpResponse httpResponse, boolean last, ByteBuffer content, Callback callback) {
+    if (committed.compareAndSet(false, true)) {
+      response.setStatus(httpResponse.getResponsecode());
+      for (HttpPb.ParsedHttpHeader header : httpResponse.getOutputHeadersList()) {
+        response.getHeaders().add(header.getKey(), header.getValue());
+      }
+    }
+    if (last) {
+      lastWritten = true;
+    }
+    response.write(last, content == null ? BufferUtil.EMPTY_BUFFER : content, callback);
+  }
+
+  /** Returns whether the application has started writing the response to the client. */
+  public boolean isCommitted() {
+    return committed.get();
+  }
+
+  /**
+   * Completes the response to the client once the runtime has returned {@code upResponse}, which
+   * no longer carries the response body. Since the client has already received part of the
+   * response, a failed request can only abort it.
+   */
+  public void complete(RuntimePb.UPResponse upResponse, Callback callback) {
+    if (upResponse.getError() != RuntimePb.UPResponse.ERROR.OK_VALUE) {
+      callback.failed(new IOException("Request failed: " + upResponse.getErrorMessage()));
+    } else if (lastWritten) {
+      callback.succeeded();
+    } else {
+      response.write(true, BufferUtil.EMPTY_BUFFER, callback);
+    }
+  }
+}
@@ -26,6 +26,7 @@ import com.google.apphosting.runtime.ServletEngineAdapter;
 import com.google.apphosting.runtime.anyrpc.EvaluationRuntimeServerInterface;
 import com.google.apphosting.runtime.jetty.AppInfoFactory;
 import com.google.apphosting.runtime.jetty.AppVersionHandlerFactory;
+import com.google.apphosting.runtime.jetty.delegate.impl.StreamedBody;
 import com.google.common.base.Ascii;
 import com.google.common.base.Throwables;
 import com.google.common.flogger.GoogleLogger;
@@ -150,6 +151,11 @@ public class JettyHttpProxy {
   /**
    * Handler to stub out the frontend server. This has to launch the runtime, configure the user's
    * app into it, and then forward HTTP requests over gRPC to the runtime and decode the responses.
+   *
+   * <p>If the {@link AppEngineConstants#STREAM_PROXY_BODIES} system property is true, request and
+   * response bodies are not copied into the forwarded protos: the application reads the request
+   * content from the client connection and its response is written to the client as it is
+   * produced, see {@link StreamedBody}.
    */
   // The class has to be public, as it is a Servlet that needs to be loaded by the Jetty server.
   public static class ForwardingHandler extends Handler.Abstract {
@@ -158,14 +164,21 @@ public class JettyHttpProxy {
 
     private final EvaluationRuntimeServerInterface evaluationRuntimeServerInterface;
     private final UPRequestTranslator upRequestTranslator;
+    private final boolean streamBodies;
 
     public ForwardingHandler(ServletEngineAdapter.Config runtimeOptions, Map<String, String> env) {
+      this(runtimeOptions, env, Boolean.getBoolean(AppEngineConstants.STREAM_PROXY_BODIES));
+    }
+
+    public ForwardingHandler(
+        ServletEngineAdapter.Config runtimeOptions, Map<String, String> env, boolean streamBodies) {
       this.evaluationRuntimeServerInterface = runtimeOptions.evaluationRuntimeServerInterface();
+      this.streamBodies = streamBodies;
       this.upRequestTranslator =
           new UPRequestTranslator(
               new AppInfoFactory(env),
               runtimeOptions.passThroughPrivateHeaders(),
-              /* skipPostData= */ false);
+              /* skipPostData= */ streamBodies);
     }
 
     /**
@@ -177,13 +190,31 @@ public class JettyHttpProxy {
     public boolean handle(Request request, Response response, Callback callback) throws Exception {
       // build the request object
       RuntimePb.UPRequest upRequest = upRequestTranslator.translateRequest(request);
+      StreamedBody streamedBody = null;
+      if (streamBodies) {
+        streamedBody = new StreamedBody(request, response);
+        StreamedBody.register(upRequest, streamedBody);
+      }
 
       try {
         UPResponse upResponse = getUpResponse(upRequest);
-        upRequestTranslator.translateResponse(response, upResponse, callback);
+        if (streamedBody != null && streamedBody.isCommitted()) {
+          streamedBody.complete(upResponse, callback);
+        } else {
+          upRequestTranslator.translateResponse(response, upResponse, callback);
+        }
       } catch (Throwable t) {
-        String errorMsg = "Can't make request of app: " + Throwables.getStackTraceAsString(t);
-        UPRequestTranslator.populateErrorResponse(response, errorMsg, callback);
+        if (streamedBody != null && streamedBody.isCommitted()) {
+          callback.failed(t);
+        } else {
+          String errorMsg = "Can't make request of app: " + Throwables.getStackTraceAsString(t);
+          UPRequestTranslator.populateErrorResponse(response, errorMsg, callback);
+        }
+      } finally {
+        if (streamedBody != null) {
+          // The runtime may have rejected the request before serving it.
+          StreamedBody.take(upRequest);
+        }
       }
 
       return true;
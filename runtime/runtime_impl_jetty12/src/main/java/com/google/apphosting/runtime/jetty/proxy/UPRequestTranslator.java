@@ -68,10 +68,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
 import org.eclipse.jetty.http.HttpField;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.http.HttpURI;
 import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.io.content.ByteBufferContentSource;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Response;
 import org.eclipse.jetty.util.Callback;
@@ -118,7 +121,14 @@ public class UPRequestTranslator {
       response.getHeaders().add(header.getKey(), header.getValue());
     }
 
-    response.write(true, rpcHttpResp.getResponse().asReadOnlyByteBuffer(), callback);
+    // A response body made of several buffers is written one buffer at a time, rather than
+    // flattened into a copy.
+    List<ByteBuffer> body = rpcHttpResp.getResponse().asReadOnlyByteBufferList();
+    if (body.size() == 1) {
+      response.write(true, body.get(0), callback);
+    } else {
+      Content.copy(new ByteBufferContentSource(body), response, callback);
+    }
   }
 
   /**
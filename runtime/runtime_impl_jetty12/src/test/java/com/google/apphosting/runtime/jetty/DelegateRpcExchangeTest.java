@@ -0,0 +1,200 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.base.protos.HttpPb;
+import com.google.apphosting.base.protos.RuntimePb;
+import com.google.apphosting.runtime.MutableUpResponse;
+import com.google.apphosting.runtime.jetty.delegate.impl.DelegateRpcExchange;
+import com.google.apphosting.runtime.jetty.delegate.impl.StreamedBody;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.io.content.AsyncContent;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.Callback;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class DelegateRpcExchangeTest {
+  private final AsyncContent requestContent = new AsyncContent();
+  private final HttpFields.Mutable responseHeaders = HttpFields.build();
+  private Response response;
+  private RuntimePb.UPRequest upRequest;
+  private MutableUpResponse upResponse;
+
+  @Before
+  public void setUp() {
+    response = mock(Response.class);
+    when(response.getHeaders()).thenReturn(responseHeaders);
+    upRequest =
+        RuntimePb.UPRequest.newBuilder()
+            .setRequest(
+                HttpPb.HttpRequest.newBuilder()
+                    .setProtocol("POST")
+                    .setUrl("http://localhost/upload")
+                    .setUserIp("127.0.0.1")
+                    .setPostdata(ByteString.copyFromUtf8("buffered")))
+            .buildPartial();
+    upResponse = new MutableUpResponse();
+  }
+
+  @Test
+  public void buffered_readsPostData() throws Exception {
+    DelegateRpcExchange exchange = new DelegateRpcExchange(upRequest, upResponse);
+
+    Content.Chunk chunk = exchange.read();
+    assertThat(BufferUtil.toString(chunk.getByteBuffer(), UTF_8)).isEqualTo("buffered");
+    assertThat(exchange.read().isLast()).isTrue();
+
+    exchange.write(true, BufferUtil.toBuffer("response", UTF_8), Callback.NOOP);
+    exchange.succeeded();
+    exchange.awaitResponse();
+    assertThat(upResponse.getHttpResponseResponse().toStringUtf8()).isEqualTo("response");
+  }
+
+  @Test
+  public void buffered_wrapsPostDataBuffers() throws Exception {
+    // Large enough for the concatenation to stay a rope.
+    byte[] first = new byte[1024];
+    byte[] second = new byte[1024];
+    RuntimePb.UPRequest ropeRequest =
+        upRequest.toBuilder()
+            .setRequest(
+                upRequest.getRequest().toBuilder()
+                    .setPostdata(
+                        UnsafeByteOperations.unsafeWrap(first)
+                            .concat(UnsafeByteOperations.unsafeWrap(second))))
+            .buildPartial();
+    DelegateRpcExchange exchange = new DelegateRpcExchange(ropeRequest, upResponse);
+
+    // Changing the post data shows through the chunks, since they were not copied.
+    first[0] = 1;
+    second[0] = 2;
+    Content.Chunk chunk = exchange.read();
+    assertThat(chunk.isLast()).isFalse();
+    assertThat(chunk.remaining()).isEqualTo(1024);
+    assertThat(chunk.getByteBuffer().get(0)).isEqualTo(1);
+    chunk = exchange.read();
+    assertThat(chunk.isLast()).isTrue();
+    assertThat(chunk.remaining()).isEqualTo(1024);
+    assertThat(chunk.getByteBuffer().get(0)).isEqualTo(2);
+    assertThat(exchange.read()).isSameInstanceAs(Content.Chunk.EOF);
+  }
+
+  @Test
+  public void buffered_keepsResponseContentOfReusedBuffers() throws Exception {
+    DelegateRpcExchange exchange = new DelegateRpcExchange(upRequest, upResponse);
+
+    // Jetty reuses its aggregation buffer once a write has completed.
+    ByteBuffer buffer = BufferUtil.allocate(16);
+    for (String content : new String[] {"one,", "two,", "three"}) {
+      BufferUtil.clearToFill(buffer);
+      buffer.put(content.getBytes(UTF_8));
+      BufferUtil.flipToFlush(buffer, 0);
+      exchange.write(false, buffer, Callback.NOOP);
+    }
+    exchange.write(true, null, Callback.NOOP);
+    exchange.succeeded();
+    exchange.awaitResponse();
+    assertThat(upResponse.getHttpResponseResponse().toStringUtf8()).isEqualTo("one,two,three");
+  }
+
+  @Test
+  public void streamed_readsRequestContentAsItArrives() throws Exception {
+    StreamedBody.register(upRequest, new StreamedBody(requestContent, response));
+    DelegateRpcExchange exchange = new DelegateRpcExchange(upRequest, upResponse);
+
+    assertThat(exchange.read()).isNull();
+    AtomicBoolean demanded = new AtomicBoolean();
+    exchange.demand(() -> demanded.set(true));
+    assertThat(demanded.get()).isFalse();
+
+    requestContent.write(false, BufferUtil.toBuffer("first", UTF_8), Callback.NOOP);
+    assertThat(demanded.get()).isTrue();
+    Content.Chunk chunk = exchange.read();
+    assertThat(BufferUtil.toString(chunk.getByteBuffer(), UTF_8)).isEqualTo("first");
+    chunk.release();
+
+    requestContent.close();
+    assertThat(exchange.read().isLast()).isTrue();
+  }
+
+  @Test
+  public void streamed_writesResponseToClient() throws Exception {
+    StreamedBody body = new StreamedBody(requestContent, response);
+    StreamedBody.register(upRequest, body);
+    DelegateRpcExchange exchange = new DelegateRpcExchange(upRequest, upResponse);
+    assertThat(StreamedBody.take(upRequest)).isNull();
+
+    exchange.setStatus(201);
+    exchange.addHeader("Content-Type", "text/plain");
+    ByteBuffer first = BufferUtil.toBuffer("first", UTF_8);
+    Callback firstCallback = mock(Callback.class);
+    exchange.write(false, first, firstCallback);
+
+    // The application's buffer goes to the client as it is, and its write only completes when the
+    // client connection has accepted it.
+    verify(response).setStatus(201);
+    assertThat(responseHeaders.get("Content-Type")).isEqualTo("text/plain");
+    verify(response).write(eq(false), same(first), same(firstCallback));
+    verify(firstCallback, never()).succeeded();
+    assertThat(body.isCommitted()).isTrue();
+
+    ByteBuffer last = BufferUtil.toBuffer("last", UTF_8);
+    exchange.write(true, last, Callback.NOOP);
+    verify(response).write(eq(true), same(last), any(Callback.class));
+    exchange.succeeded();
+    exchange.awaitResponse();
+    assertThat(upResponse.getHttpResponseResponse().isEmpty()).isTrue();
+
+    Callback callback = mock(Callback.class);
+    body.complete(upResponse.build(), callback);
+    verify(callback).succeeded();
+  }
+
+  @Test
+  public void streamed_failedRequestAbortsResponse() throws Exception {
+    StreamedBody body = new StreamedBody(requestContent, response);
+    StreamedBody.register(upRequest, body);
+    DelegateRpcExchange exchange = new DelegateRpcExchange(upRequest, upResponse);
+    exchange.write(false, BufferUtil.toBuffer("partial", UTF_8), Callback.NOOP);
+
+    upResponse.setError(RuntimePb.UPResponse.ERROR.APP_FAILURE_VALUE);
+    Callback callback = mock(Callback.class);
+    body.complete(upResponse.build(), callback);
+    verify(callback).failed(any(Throwable.class));
+    verify(response, never()).write(eq(true), any(ByteBuffer.class), any(Callback.class));
+  }
+}
@@ -22,6 +22,7 @@ import com.google.apphosting.base.protos.RuntimePb.APIResponse.ERROR;
 import com.google.apphosting.base.protos.RuntimePb.APIResponse.RpcError;
 import com.google.apphosting.base.protos.Status.StatusProto;
 import com.google.apphosting.base.protos.api.RemoteApiPb;
+import com.google.apphosting.runtime.VirtualThreads;
 import com.google.apphosting.runtime.anyrpc.APIHostClientInterface;
 import com.google.apphosting.runtime.anyrpc.AnyRpcCallback;
 import com.google.apphosting.runtime.anyrpc.AnyRpcClientContext;
@@ -32,11 +33,19 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.flogger.GoogleLogger;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.UninitializedMessageException;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A client of the APIHost service over HTTP.
@@ -90,11 +99,19 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
      */
     abstract boolean treatClosedChannelAsCancellation();
 
+    /**
+     * Run the work of the client in virtual threads rather than in a pool of platform threads, so
+     * that many concurrent API calls don't each tie up a platform thread. Ignored, with a warning,
+     * if the JVM has no virtual threads.
+     */
+    abstract boolean useVirtualThreads();
+
     static Builder builder() {
       return new AutoValue_HttpApiHostClient_Config.Builder()
           .setExtraTimeoutSeconds(DEFAULT_EXTRA_TIMEOUT_SECONDS)
           .setIgnoreContentLength(false)
-          .setTreatClosedChannelAsCancellation(false);
+          .setTreatClosedChannelAsCancellation(false)
+          .setUseVirtualThreads(false);
     }
 
     abstract Builder toBuilder();
@@ -105,6 +122,7 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
       abstract Builder setExtraTimeoutSeconds(double value);
       abstract Builder setIgnoreContentLength(boolean value);
       abstract Builder setTreatClosedChannelAsCancellation(boolean value);
+      abstract Builder setUseVirtualThreads(boolean value);
       abstract Config build();
     }
   }
@@ -119,6 +137,24 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
     return config;
   }
 
+  /**
+   * Returns the executor for the work of a client: one that starts a virtual thread per task if the
+   * config asks for that and the JVM supports it, and otherwise a cached pool of the threads made
+   * by {@code platformThreadFactory}.
+   */
+  static ExecutorService newExecutor(
+      Config config, String threadNamePrefix, ThreadFactory platformThreadFactory) {
+    if (config.useVirtualThreads()) {
+      Optional<ExecutorService> executor =
+          VirtualThreads.newVirtualThreadPerTaskExecutor(threadNamePrefix);
+      if (executor.isPresent()) {
+        logger.atInfo().log("Using virtual threads for API calls");
+        return executor.get();
+      }
+    }
+    return Executors.newCachedThreadPool(platformThreadFactory);
+  }
+
   static HttpApiHostClient create(String url, Config config) {
     if (System.getenv("APPENGINE_API_CALLS_USING_JDK_CLIENT") != null) {
       logger.atInfo().log("Using JDK HTTP client for API calls");
@@ -252,23 +288,88 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
       requestTooBig(cb);
       return;
     }
-    RemoteApiPb.Request requestPb = RemoteApiPb.Request.newBuilder()
+    send(encodeRequest(req), context, cb);
+  }
+
+  /**
+   * Serializes the {@code RemoteApiPb.Request} for {@code req} as a small header followed by the
+   * buffers of the API request payload, so that the payload, which can be up to {@value
+   * #MAX_PAYLOAD} bytes, goes to the connection without being copied into another array. Protocol
+   * buffer parsers accept fields in any order, so the payload field can come last.
+   */
+  static ByteBuffer[] encodeRequest(APIRequest req) {
+    ByteString payload = req.getPb();
+    RemoteApiPb.Request header = RemoteApiPb.Request.newBuilder()
         .setServiceName(req.getApiPackage())
         .setMethod(req.getCall())
-        .setRequest(payload)
         .setRequestId(req.getSecurityTicket())
         .setTraceContext(req.getTraceContext().toByteString())
-        .build();
-    send(requestPb.toByteArray(), context, cb);
+        .buildPartial();
+    int headerSize =
+        header.getSerializedSize()
+            + CodedOutputStream.computeTagSize(RemoteApiPb.Request.REQUEST_FIELD_NUMBER)
+            + CodedOutputStream.computeUInt32SizeNoTag(payload.size());
+    byte[] headerBytes = new byte[headerSize];
+    CodedOutputStream output = CodedOutputStream.newInstance(headerBytes);
+    try {
+      header.writeTo(output);
+      output.writeTag(
+          RemoteApiPb.Request.REQUEST_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(payload.size());
+    } catch (IOException e) {
+      // Can't happen when writing to an array of the right size.
+      throw new IllegalStateException(e);
+    }
+    output.checkNoSpaceLeft();
+    List<ByteBuffer> payloadBuffers = payload.asReadOnlyByteBufferList();
+    ByteBuffer[] buffers = new ByteBuffer[1 + payloadBuffers.size()];
+    buffers[0] = ByteBuffer.wrap(headerBytes);
+    for (int i = 0; i < payloadBuffers.size(); i++) {
+      buffers[i + 1] = payloadBuffers.get(i);
+    }
+    return buffers;
   }
 
+  /**
+   * Parses the first {@code responseLength} bytes of {@code responseBytes}. The API response
+   * payload refers to those bytes rather than being copied, so the array must not be modified
+   * afterwards.
+   */
   static void receivedResponse(
       byte[] responseBytes,
       int responseLength,
       Context context,
       AnyRpcCallback<APIResponse> callback) {
-    logger.atFine().log("Response size %d", responseLength);
-    CodedInputStream input = CodedInputStream.newInstance(responseBytes, 0, responseLength);
+    receivedResponse(
+        UnsafeByteOperations.unsafeWrap(responseBytes, 0, responseLength), true, context, callback);
+  }
+
+  /**
+   * Parses a response received as a sequence of buffers, which are typically the chunks read from
+   * the connection. The API response payload is copied out of the buffers, so they can be released
+   * or reused as soon as this method returns.
+   */
+  static void receivedResponse(
+      List<ByteBuffer> responseBuffers, Context context, AnyRpcCallback<APIResponse> callback) {
+    ByteString responseBytes = ByteString.EMPTY;
+    for (ByteBuffer buffer : responseBuffers) {
+      responseBytes = responseBytes.concat(UnsafeByteOperations.unsafeWrap(buffer));
+    }
+    receivedResponse(responseBytes, false, context, callback);
+  }
+
+  /**
+   * Parses {@code responseBytes}. If {@code aliasPayload}, the API response payload is a view of
+   * {@code responseBytes} rather than a copy, which saves copying a large response once more.
+   */
+  static void receivedResponse(
+      ByteString responseBytes,
+      boolean aliasPayload,
+      Context context,
+      AnyRpcCallback<APIResponse> callback) {
+    logger.atFine().log("Response size %d", responseBytes.size());
+    CodedInputStream input = responseBytes.newCodedInput();
+    input.enableAliasing(aliasPayload);
     RemoteApiPb.Response responsePb;
     try {
       responsePb = RemoteApiPb.Response.parseFrom(input, ExtensionRegistry.getEmptyRegistry());
@@ -296,7 +397,12 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
     callback.success(apiResponse);
   }
 
-  abstract void send(byte[] requestBytes, Context context, AnyRpcCallback<APIResponse> callback);
+  /**
+   * Sends the request made of the remaining bytes of {@code requestBuffers}, which must not be
+   * modified.
+   */
+  abstract void send(
+      ByteBuffer[] requestBuffers, Context context, AnyRpcCallback<APIResponse> callback);
 
   private static void requestTooBig(AnyRpcCallback<APIResponse> cb) {
     APIResponse apiResponse =
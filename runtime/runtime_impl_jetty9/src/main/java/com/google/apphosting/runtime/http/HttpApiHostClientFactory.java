@@ -18,6 +18,7 @@ package com.google.apphosting.runtime.http;
 
 import static com.google.apphosting.runtime.http.HttpApiHostClient.REQUEST_ENDPOINT;
 
+import com.google.apphosting.runtime.VirtualThreads;
 import com.google.apphosting.runtime.anyrpc.APIHostClientInterface;
 import com.google.apphosting.runtime.http.HttpApiHostClient.Config;
 import com.google.common.net.HostAndPort;
@@ -37,6 +38,7 @@ public class HttpApiHostClientFactory {
     Config config =
         Config.builder()
             .setMaxConnectionsPerDestination(maxConcurrentRpcs)
+            .setUseVirtualThreads(VirtualThreads.isRequested())
             .build();
     return HttpApiHostClient.create(url, config);
   }
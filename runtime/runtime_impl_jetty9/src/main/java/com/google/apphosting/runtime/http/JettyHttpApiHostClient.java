@@ -16,7 +16,6 @@
 
 package com.google.apphosting.runtime.http;
 
-import static java.lang.Math.max;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import com.google.apphosting.api.ApiProxy;
@@ -30,9 +29,9 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedSelectorException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeoutException;
@@ -43,7 +42,7 @@ import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
 import org.eclipse.jetty.client.api.Response.CompleteListener;
 import org.eclipse.jetty.client.api.Result;
-import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.ByteBufferContentProvider;
 import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpMethod;
@@ -102,7 +101,8 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
     // what advantage we'd get from using a QueuedThreadPool with a smaller minThreads value, versus
     // just one of the standard java.util.concurrent pools. Here we have minThreads=1, maxThreads=∞,
     // and idleTime=60 seconds. maxThreads=200 and maxThreads=∞ are probably equivalent in practice.
-    httpClient.setExecutor(Executors.newCachedThreadPool(factory));
+    // With Config.useVirtualThreads() there is no pool at all, just a virtual thread per task.
+    httpClient.setExecutor(newExecutor(config, "JettyHttpApiHostClient-", factory));
     httpClient.setScheduler(scheduler);
     config.maxConnectionsPerDestination().ifPresent(httpClient::setMaxConnectionsPerDestination);
     try {
@@ -115,6 +115,12 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
     return new JettyHttpApiHostClient(url, httpClient, config);
   }
 
+  /**
+   * Collects the response content. Jetty reuses the buffers it passes to {@link #onContent}, so
+   * their bytes are copied, but only once: into an array of the right size if the response has a
+   * Content-Length, and otherwise into a list of chunks which are parsed without first being
+   * joined together.
+   */
   private class Listener extends Response.Listener.Adapter {
 
     private static final int MAX_LENGTH = MAX_PAYLOAD + EXTRA_CONTENT_BYTES;
@@ -123,6 +129,8 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
     private final AnyRpcCallback<APIResponse> callback;
     private byte[] buffer;
     private int offset;
+    private List<ByteBuffer> chunks;
+    private long length;
 
     Listener(Context context, AnyRpcCallback<APIResponse> callback) {
       this.context = context;
@@ -137,7 +145,7 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
       if (length == null || config().ignoreContentLength()) {
         // We expect there to be a Content-Length, but we should be correct if less efficient
         // even if not.
-        buffer = new byte[2048];
+        chunks = new ArrayList<>();
       } else if (length > MAX_LENGTH) {
         abortBecauseTooLarge(response);
         return;
@@ -150,21 +158,26 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
     @Override
     public void onContent(Response response, ByteBuffer byteBuffer) {
       int byteCount = byteBuffer.remaining();
-      if (offset + byteCount > MAX_LENGTH) {
+      length += byteCount;
+      if (length > MAX_LENGTH) {
         abortBecauseTooLarge(response);
         return;
       }
-      int bufferRemaining = buffer.length - offset;
-      if (byteCount > bufferRemaining) {
-        int newSize = max((int) (buffer.length * 1.5), offset + byteCount);
+      if (chunks == null && byteCount > buffer.length - offset) {
         logger.atInfo().log(
-            "Had to resize buffer, %d > %d; resizing to %d", byteCount, bufferRemaining, newSize);
-        buffer = Arrays.copyOf(buffer, newSize);
-        bufferRemaining = buffer.length - offset;
-        Preconditions.checkState(byteCount <= bufferRemaining);
+            "Response is longer than its Content-Length %d; collecting chunks", buffer.length);
+        chunks = new ArrayList<>();
+        chunks.add(ByteBuffer.wrap(buffer, 0, offset));
+        buffer = null;
+      }
+      if (chunks == null) {
+        byteBuffer.get(buffer, offset, byteCount);
+        offset += byteCount;
+      } else {
+        byte[] chunk = new byte[byteCount];
+        byteBuffer.get(chunk);
+        chunks.add(ByteBuffer.wrap(chunk));
       }
-      byteBuffer.get(buffer, offset, byteCount);
-      offset += byteCount;
     }
 
     private void abortBecauseTooLarge(Response response) {
@@ -213,7 +226,11 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
       } else {
         Response response = result.getResponse();
         if (response.getStatus() == HttpURLConnection.HTTP_OK) {
-          receivedResponse(buffer, offset, context, callback);
+          if (chunks == null) {
+            receivedResponse(buffer, offset, context, callback);
+          } else {
+            receivedResponse(chunks, context, callback);
+          }
         } else {
           String httpError = response.getStatus() + " " + response.getReason();
           logger.atWarning().log("HTTP communication got error: %s", httpError);
@@ -224,12 +241,12 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
   }
 
   @Override
-  void send(byte[] requestBytes, HttpApiHostClient.Context context,
+  void send(ByteBuffer[] requestBuffers, HttpApiHostClient.Context context,
       AnyRpcCallback<APIResponse> callback) {
     Request request = httpClient
         .newRequest(url)
         .method(HttpMethod.POST)
-        .content(new BytesContentProvider(requestBytes), CONTENT_TYPE_VALUE);
+        .content(new ByteBufferContentProvider(requestBuffers), CONTENT_TYPE_VALUE);
     for (Map.Entry<String, String> header : HEADERS.entrySet()) {
       request.header(header.getKey(), header.getValue());
     }
@@ -391,11 +391,50 @@ public class RequestManagerTest {
 
   @Test
   public void testSoftExceptionWithInterruption() throws Exception {
+    checkSoftExceptionWithInterruption(
+        requestManagerBuilder()
+            .setInterruptFirstOnSoftDeadline(true)
+            .build());
+  }
+
+  @Test
+  public void testSoftExceptionWithInterruptionOnVirtualThreads() throws Exception {
+    // Where the JVM has no virtual threads, deadlines are sent from the scheduler thread as usual.
+    checkSoftExceptionWithInterruption(
+        requestManagerBuilder()
+            .setInterruptFirstOnSoftDeadline(true)
+            .setUseVirtualThreads(true)
+            .build());
+  }
+
+  @Test
+  public void testNoDeadlineAfterFinishOnVirtualThreads() throws Exception {
     RequestManager requestManager =
         requestManagerBuilder()
             .setInterruptFirstOnSoftDeadline(true)
+            .setUseVirtualThreads(true)
             .build();
     MockAnyRpcServerContext rpc = createRpc();
+    RequestManager.RequestToken token =
+        requestManager.startRequest(
+            appVersion, rpc, upRequest, upResponse, new ThreadGroup("test"));
+    requestManager.finishRequest(token);
+
+    // Both the hand-off to a virtual thread and the deadline it would run are cancelled.
+    assertThat(token.getScheduledFutures()).isNotEmpty();
+    for (Future<?> future : token.getScheduledFutures()) {
+      assertThat(future.isCancelled()).isTrue();
+    }
+    // A soft deadline sent anyway would cancel this future.
+    Future<Void> asyncFuture = SettableFuture.create();
+    token.getAsyncFutures().add(asyncFuture);
+    Thread.sleep(Math.round(RPC_DEADLINE * 1000) - SOFT_DEADLINE_DELAY + 500);
+    assertThat(asyncFuture.isCancelled()).isFalse();
+    assertThat(upResponse.getTerminateClone()).isFalse();
+  }
+
+  private void checkSoftExceptionWithInterruption(RequestManager requestManager) throws Exception {
+    MockAnyRpcServerContext rpc = createRpc();
     ThreadGroup threadGroup = new ThreadGroup("test-interruption");
     AtomicReference<TestOutcome> outcome = new AtomicReference<>(TestOutcome.NONE);
     // We cannot simply use the thread from the test environment, because interruption
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.http;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.apphosting.base.protos.RuntimePb.APIRequest;
+import com.google.apphosting.base.protos.RuntimePb.APIResponse;
+import com.google.apphosting.base.protos.TracePb.TraceContextProto;
+import com.google.apphosting.base.protos.api.RemoteApiPb;
+import com.google.apphosting.runtime.anyrpc.AnyRpcCallback;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ExtensionRegistry;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link HttpApiHostClient}. */
+@RunWith(JUnit4.class)
+public class HttpApiHostClientTest {
+
+  private static RemoteApiPb.Request parse(ByteBuffer[] buffers) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (ByteBuffer buffer : buffers) {
+      ByteBuffer remaining = buffer.duplicate();
+      byte[] bytes = new byte[remaining.remaining()];
+      remaining.get(bytes);
+      out.write(bytes);
+    }
+    return RemoteApiPb.Request.parseFrom(out.toByteArray(), ExtensionRegistry.getEmptyRegistry());
+  }
+
+  private static APIRequest apiRequest(ByteString payload) {
+    return APIRequest.newBuilder()
+        .setApiPackage("datastore_v3")
+        .setCall("Put")
+        .setSecurityTicket("ticket")
+        .setTraceContext(TraceContextProto.newBuilder().setTraceId(ByteString.copyFromUtf8("t")))
+        .setPb(payload)
+        .build();
+  }
+
+  @Test
+  public void encodeRequest() throws Exception {
+    // A rope, as produced by concatenating serialized messages, is sent as several buffers.
+    ByteString payload =
+        ByteString.copyFrom(new byte[5000]).concat(ByteString.copyFrom("tail", UTF_8));
+    APIRequest request = apiRequest(payload);
+    ByteBuffer[] buffers = HttpApiHostClient.encodeRequest(request);
+    assertThat(buffers.length).isGreaterThan(2);
+
+    RemoteApiPb.Request expected =
+        RemoteApiPb.Request.newBuilder()
+            .setServiceName("datastore_v3")
+            .setMethod("Put")
+            .setRequest(payload)
+            .setRequestId("ticket")
+            .setTraceContext(request.getTraceContext().toByteString())
+            .build();
+    assertThat(parse(buffers)).isEqualTo(expected);
+  }
+
+  @Test
+  public void encodeRequest_emptyPayload() throws Exception {
+    RemoteApiPb.Request parsed =
+        parse(HttpApiHostClient.encodeRequest(apiRequest(ByteString.EMPTY)));
+    assertThat(parsed.hasRequest()).isTrue();
+    assertThat(parsed.getRequest()).isEqualTo(ByteString.EMPTY);
+  }
+
+  private static class ResponseCallback implements AnyRpcCallback<APIResponse> {
+    APIResponse response;
+    boolean failed;
+
+    @Override
+    public void success(APIResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    public void failure() {
+      failed = true;
+    }
+  }
+
+  private static byte[] responseBytes(ByteString payload) {
+    return RemoteApiPb.Response.newBuilder().setResponse(payload).build().toByteArray();
+  }
+
+  /** Splits {@code bytes} into chunks of {@code chunkSize}, as read from a connection. */
+  private static List<ByteBuffer> chunks(byte[] bytes, int chunkSize, boolean direct) {
+    List<ByteBuffer> chunks = new ArrayList<>();
+    for (int i = 0; i < bytes.length; i += chunkSize) {
+      int length = Math.min(chunkSize, bytes.length - i);
+      ByteBuffer chunk = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+      chunk.put(bytes, i, length);
+      chunk.flip();
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  private static ByteString payload(int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) i;
+    }
+    return ByteString.copyFrom(bytes);
+  }
+
+  @Test
+  public void receivedResponse_array() {
+    ByteString payload = payload(100_000);
+    byte[] bytes = responseBytes(payload);
+    byte[] buffer = Arrays.copyOf(bytes, bytes.length + 10);
+    ResponseCallback callback = new ResponseCallback();
+    HttpApiHostClient.receivedResponse(
+        buffer, bytes.length, new HttpApiHostClient.Context(), callback);
+    assertThat(callback.failed).isFalse();
+    assertThat(callback.response.getPb()).isEqualTo(payload);
+  }
+
+  @Test
+  public void receivedResponse_chunks() {
+    ByteString payload = payload(100_000);
+    for (boolean direct : new boolean[] {false, true}) {
+      List<ByteBuffer> chunks = chunks(responseBytes(payload), 4096, direct);
+      ResponseCallback callback = new ResponseCallback();
+      HttpApiHostClient.receivedResponse(chunks, new HttpApiHostClient.Context(), callback);
+      assertThat(callback.failed).isFalse();
+      assertThat(callback.response.getPb()).isEqualTo(payload);
+
+      // The chunks can be reused once the response has been parsed.
+      for (ByteBuffer chunk : chunks) {
+        chunk.clear();
+        chunk.put(new byte[chunk.remaining()]);
+      }
+      assertThat(callback.response.getPb()).isEqualTo(payload);
+    }
+  }
+
+  @Test
+  public void receivedResponse_truncatedChunks() {
+    byte[] bytes = responseBytes(payload(10_000));
+    List<ByteBuffer> chunks = chunks(Arrays.copyOf(bytes, bytes.length - 1), 4096, true);
+    ResponseCallback callback = new ResponseCallback();
+    HttpApiHostClient.Context context = new HttpApiHostClient.Context();
+    HttpApiHostClient.receivedResponse(chunks, context, callback);
+    assertThat(callback.failed).isTrue();
+    assertThat(context.getErrorDetail()).isEqualTo("Failed to parse RemoteApiPb.Response");
+  }
+}
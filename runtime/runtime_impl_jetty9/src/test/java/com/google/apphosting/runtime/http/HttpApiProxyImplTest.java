@@ -29,6 +29,7 @@ import com.google.apphosting.runtime.MutableUpResponse;
 import com.google.apphosting.runtime.TraceWriter;
 import com.google.apphosting.runtime.grpc.FakeApiProxyImplFactory;
 import com.google.apphosting.testing.PortPicker;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -76,6 +77,44 @@ public class HttpApiProxyImplTest extends HttpApiProxyImplTestBase {
     assertThat(responsePayload).isEqualTo(requestPayload);
   }
 
+  @Test
+  public void asyncApiCall_callerMayReuseRequestArray() throws Exception {
+    ApiProxyImpl apiProxyImpl = newApiProxyImpl();
+    ApiProxyImpl.EnvironmentImpl environment = newEnvironmentImpl(apiProxyImpl);
+    byte[] requestPayload = new byte[100_000];
+    Arrays.fill(requestPayload, (byte) 42);
+    Future<byte[]> future =
+        apiProxyImpl.makeAsyncCall(
+            environment, ECHO_SERVICE, ECHO_METHOD, requestPayload, new ApiProxy.ApiConfig());
+    // The request was copied when the call was made, so changing the array does not change it.
+    Arrays.fill(requestPayload, (byte) 7);
+    byte[] responsePayload = future.get(10, SECONDS);
+    byte[] expected = new byte[100_000];
+    Arrays.fill(expected, (byte) 42);
+    assertThat(responsePayload).isEqualTo(expected);
+  }
+
+  @Test
+  public void byteBufferApiCall() throws Exception {
+    ApiProxyImpl apiProxyImpl = newApiProxyImpl();
+    ApiProxyImpl.EnvironmentImpl environment = newEnvironmentImpl(apiProxyImpl);
+    byte[] requestPayload = new byte[100_000];
+    Arrays.fill(requestPayload, (byte) 42);
+    ByteBuffer request = ByteBuffer.allocateDirect(requestPayload.length + 10);
+    request.position(10);
+    request.mark();
+    request.put(requestPayload).reset();
+    ByteBuffer response =
+        apiProxyImpl
+            .makeAsyncByteBufferCall(
+                environment, ECHO_SERVICE, ECHO_METHOD, request, new ApiProxy.ApiConfig())
+            .get(10, SECONDS);
+    assertThat(request.position()).isEqualTo(10);
+    byte[] responsePayload = new byte[response.remaining()];
+    response.get(responsePayload);
+    assertThat(responsePayload).isEqualTo(requestPayload);
+  }
+
   @Test
   public void badApiResponse() {
     // TODO: figure out whether this test method makes sense.
@@ -54,6 +54,9 @@ public class HttpApiProxyImplTestBase {
             HttpApiHostClient.Config.builder().build(),
             "com.google.appengine.api.calls.using.jdk.client",
           },
+          {
+            HttpApiHostClient.Config.builder().setUseVirtualThreads(true).build(), null,
+          },
         });
   }
 
@@ -248,6 +248,8 @@ public abstract class JavaRuntimeViaHttpBase {
                   "-Dappengine.use.EE10=" + Boolean.getBoolean("appengine.use.EE10"),
                   "-Dappengine.use.HttpConnector="
                       + Boolean.getBoolean("appengine.use.HttpConnector"),
+                  "-Dappengine.proxy.streamBodies="
+                      + Boolean.getBoolean("appengine.proxy.streamBodies"),
                   "-Dappengine.ignore.responseSizeLimit="
                       + Boolean.getBoolean("appengine.ignore.responseSizeLimit"),
                   "-Djetty.server.dumpAfterStart="
@@ -16,14 +16,17 @@
 
 package com.google.apphosting.api;
 
+import java.nio.ByteBuffer;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.jspecify.annotations.Nullable;
 
 /**
@@ -180,30 +183,60 @@ public class ApiProxy {
       // If no delegate was installed or no environment was registered
       // for this thread, just act like we do not understand any
       // methods.
-      return new Future<byte[]>() {
+      return callNotFound(packageName, methodName);
+    }
+    return delegate().makeAsyncCall(env, packageName, methodName, request, apiConfig);
+  }
 
-        @Override public byte[] get() {
-          throw CallNotFoundException.foreignThread(packageName, methodName);
-        }
+  /**
+   * Make an asynchronous call to the specified method in the specified API package, passing the
+   * serialized request and response in {@link ByteBuffer}s rather than byte arrays.
+   *
+   * <p>This behaves like {@link #makeAsyncCall(String, String, byte[], ApiConfig)}, but lets a
+   * {@code Delegate} that supports it send the request and return the response without copying
+   * them. The remaining bytes of {@code request} are sent; its position is not changed, and its
+   * content must not be modified until the returned {@link Future} is done.
+   *
+   * @param packageName the name of the API package.
+   * @param methodName the name of the method within the API package.
+   * @param request a buffer containing the serialized form of the request protocol buffer.
+   * @param apiConfig that specifies API-specific configuration parameters.
+   * @return a {@link Future} that will resolve to a buffer, possibly read-only, containing the
+   *     serialized form of the response protocol buffer on success, or throw one of the exceptions
+   *     documented for {@link #makeSyncCall(String, String, byte[], ApiConfig)} on failure.
+   */
+  public static Future<ByteBuffer> makeAsyncByteBufferCall(
+      String packageName, String methodName, ByteBuffer request, ApiConfig apiConfig) {
+    Environment env = getCurrentEnvironment();
+    if (delegate == null || env == null) {
+      return callNotFound(packageName, methodName);
+    }
+    return delegate().makeAsyncByteBufferCall(env, packageName, methodName, request, apiConfig);
+  }
 
-        @Override public byte[] get(long deadline, TimeUnit unit) {
-          throw CallNotFoundException.foreignThread(packageName, methodName);
-        }
+  private static <T> Future<T> callNotFound(final String packageName, final String methodName) {
+    return new Future<T>() {
 
-        @Override public boolean isDone() {
-          return true;
-        }
+      @Override public T get() {
+        throw CallNotFoundException.foreignThread(packageName, methodName);
+      }
 
-        @Override public boolean isCancelled() {
-          return false;
-        }
+      @Override public T get(long deadline, TimeUnit unit) {
+        throw CallNotFoundException.foreignThread(packageName, methodName);
+      }
 
-        @Override public boolean cancel(boolean shouldInterrupt) {
-          return false;
-        }
-      };
-    }
-    return delegate().makeAsyncCall(env, packageName, methodName, request, apiConfig);
+      @Override public boolean isDone() {
+        return true;
+      }
+
+      @Override public boolean isCancelled() {
+        return false;
+      }
+
+      @Override public boolean cancel(boolean shouldInterrupt) {
+        return false;
+      }
+    };
   }
 
   public static void log(LogRecord record) {
@@ -492,6 +525,37 @@ public class ApiProxy {
                                  byte[] request,
                                  ApiConfig apiConfig);
 
+    /**
+     * Make an asynchronous call to the specified method in the specified API package, passing the
+     * serialized request and response in {@link ByteBuffer}s.
+     *
+     * <p>The default implementation copies the remaining bytes of {@code request} into an array
+     * and calls {@link #makeAsyncCall(Environment, String, String, byte[], ApiConfig)}.
+     * Implementations that can send a buffer as it is should override this method.
+     *
+     * @param environment the current request environment.
+     * @param packageName the name of the API package.
+     * @param methodName the name of the method within the API package.
+     * @param request a buffer containing the serialized form of the request protocol buffer, whose
+     *     position must not be changed.
+     * @param apiConfig that specifies API-specific configuration parameters.
+     * @return a {@link Future} that will resolve to a buffer, possibly read-only, containing the
+     *     serialized form of the response protocol buffer on success, or throw one of the
+     *     exceptions documented for {@link #makeSyncCall(Environment, String, String, byte[])} on
+     *     failure.
+     */
+    default Future<ByteBuffer> makeAsyncByteBufferCall(
+        E environment,
+        String packageName,
+        String methodName,
+        ByteBuffer request,
+        ApiConfig apiConfig) {
+      byte[] requestBytes = new byte[request.remaining()];
+      request.duplicate().get(requestBytes);
+      return new ByteBufferFuture(
+          makeAsyncCall(environment, packageName, methodName, requestBytes, apiConfig));
+    }
+
     void log(E environment, LogRecord record);
 
     void flushLogs(E environment);
@@ -1097,6 +1161,45 @@ public class ApiProxy {
     }
   }
 
+  /** Adapts the result of {@link Delegate#makeAsyncCall} to a {@code Future<ByteBuffer>}. */
+  private static final class ByteBufferFuture implements Future<ByteBuffer> {
+    private final Future<byte[]> delegate;
+
+    ByteBufferFuture(Future<byte[]> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public ByteBuffer get() throws InterruptedException, ExecutionException {
+      return wrap(delegate.get());
+    }
+
+    @Override
+    public ByteBuffer get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return wrap(delegate.get(timeout, unit));
+    }
+
+    private static ByteBuffer wrap(byte[] bytes) {
+      return (bytes == null) ? null : ByteBuffer.wrap(bytes);
+    }
+
+    @Override
+    public boolean isDone() {
+      return delegate.isDone();
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return delegate.isCancelled();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return delegate.cancel(mayInterruptIfRunning);
+    }
+  }
+
   /**
    * Class that implements the logic of handling an overflow in our buffer of deferred log records.
    * If more than MAX_SAVED_LOG_RECORDS records are logged, we keep the earliest chunk and the
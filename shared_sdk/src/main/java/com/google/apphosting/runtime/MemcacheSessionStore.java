@@ -16,8 +16,8 @@
 
 package com.google.apphosting.runtime;
 
-import static com.google.apphosting.runtime.SessionManagerUtil.deserialize;
-import static com.google.apphosting.runtime.SessionManagerUtil.serialize;
+import static com.google.apphosting.runtime.SessionDataCodec.deserialize;
+import static com.google.apphosting.runtime.SessionDataCodec.serialize;
 
 import com.google.appengine.api.memcache.ErrorHandlers;
 import com.google.appengine.api.memcache.MemcacheService;
@@ -29,6 +29,8 @@ import java.util.logging.Level;
 /**
  * A {@link SessionStore} implementation on top of memcache.
  *
+ * <p>Sessions are stored in the encoding chosen by {@link SessionDataCodec}, and read in either
+ * encoding.
  */
 public class MemcacheSessionStore implements SessionStore {
 
@@ -46,7 +48,7 @@ public class MemcacheSessionStore implements SessionStore {
     byte[] sessionBytes = (byte[]) memcache.get(key);
     if (sessionBytes != null) {
       logger.atFinest().log("Loaded session %s from memcache.", key);
-      return (SessionData) deserialize(sessionBytes);
+      return deserialize(sessionBytes);
     }
     return null;
   }
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compact, versioned binary encoding of sessions, used instead of Java serialization of the whole
+ * {@link SessionData} or attribute map when the {@link #COMPACT_ENCODING_PROPERTY} system property
+ * is true.
+ *
+ * <p>An encoded session starts with a header that a Java serialization stream can't start with: two
+ * magic bytes, the version of the encoding, and flags. The rest, deflated if it is larger than the
+ * {@link #COMPRESSION_THRESHOLD_PROPERTY compression threshold}, holds the expiration time if the
+ * whole {@code SessionData} was encoded, then the number of attributes, and each attribute as its
+ * length-prefixed UTF-8 name followed by its value. Strings, byte arrays and boxed primitives are
+ * written as a type tag followed by their value. Any other value only has a type tag there: such
+ * values are written together after the attributes, with a single Java serialization stream, so
+ * that objects shared between attributes are still shared once the session is read back.
+ *
+ * <p>Sessions are always read in either encoding, so the compact encoding can only be turned on
+ * once no version of the application that may read the sessions predates this class.
+ */
+public final class SessionDataCodec {
+  /** The system property that turns on writing sessions in the compact encoding. */
+  public static final String COMPACT_ENCODING_PROPERTY = "gae.session_compact_encoding";
+
+  /**
+   * The system property setting the size, in bytes, above which compactly encoded sessions are
+   * deflated. Compression is disabled if it is negative.
+   */
+  public static final String COMPRESSION_THRESHOLD_PROPERTY = "gae.session_compression_threshold";
+
+  private static final int DEFAULT_COMPRESSION_THRESHOLD = 8192;
+
+  // Sessions are stored in memcache and the datastore, which hold at most 1 MB per value, so this
+  // only rejects corrupt data before it is inflated or allocated.
+  private static final int MAX_DECODED_LENGTH = 64 << 20;
+
+  // Java serialization streams start with 0xACED.
+  private static final byte MAGIC_0 = (byte) 0xAE;
+  private static final byte MAGIC_1 = (byte) 0x5D;
+  private static final byte VERSION = 1;
+  private static final int HEADER_LENGTH = 4;
+
+  private static final int FLAG_DEFLATED = 1;
+  private static final int FLAG_EXPIRATION_TIME = 2;
+
+  private static final byte TYPE_NULL = 0;
+  private static final byte TYPE_STRING = 1;
+  private static final byte TYPE_BYTES = 2;
+  private static final byte TYPE_BOOLEAN = 3;
+  private static final byte TYPE_BYTE = 4;
+  private static final byte TYPE_SHORT = 5;
+  private static final byte TYPE_CHAR = 6;
+  private static final byte TYPE_INTEGER = 7;
+  private static final byte TYPE_LONG = 8;
+  private static final byte TYPE_FLOAT = 9;
+  private static final byte TYPE_DOUBLE = 10;
+  private static final byte TYPE_SERIALIZED = 11;
+
+  private SessionDataCodec() {}
+
+  /** Returns whether sessions are written in the compact encoding. */
+  public static boolean isCompactEncodingEnabled() {
+    return Boolean.getBoolean(COMPACT_ENCODING_PROPERTY);
+  }
+
+  /** Returns whether {@code bytes} hold a session in the compact encoding. */
+  public static boolean isEncoded(byte[] bytes) {
+    return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+  }
+
+  /**
+   * Serializes a session for memcache, in the compact encoding if it is enabled, and with Java
+   * serialization otherwise.
+   */
+  public static byte[] serialize(SessionData data) {
+    if (!isCompactEncodingEnabled()) {
+      return SessionManagerUtil.serialize(data);
+    }
+    try {
+      return encode(data.getExpirationTime(), FLAG_EXPIRATION_TIME, data.getValueMap());
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /** Deserializes a session serialized by {@link #serialize}, in either encoding. */
+  public static SessionData deserialize(byte[] bytes) {
+    if (!isEncoded(bytes)) {
+      return (SessionData) SessionManagerUtil.deserialize(bytes);
+    }
+    try (DataInputStream in = body(bytes)) {
+      if ((bytes[3] & FLAG_EXPIRATION_TIME) == 0) {
+        throw new IOException("No expiration time in encoded session");
+      }
+      SessionData data = new SessionData();
+      data.setExpirationTime(in.readLong());
+      data.setValueMap(readAttributes(in));
+      return data;
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /** Encodes the attributes of a session in the compact encoding. */
+  public static byte[] encodeAttributes(Map<String, Object> attributes) throws IOException {
+    return encode(0, 0, attributes);
+  }
+
+  /**
+   * Decodes the attributes of a session in the compact encoding. Values that were written with
+   * Java serialization are read with the context class loader.
+   */
+  public static Map<String, Object> decodeAttributes(byte[] bytes) throws IOException {
+    if (!isEncoded(bytes)) {
+      throw new IOException("Not an encoded session");
+    }
+    try (DataInputStream in = body(bytes)) {
+      if ((bytes[3] & FLAG_EXPIRATION_TIME) != 0) {
+        in.readLong();
+      }
+      return readAttributes(in);
+    }
+  }
+
+  private static byte[] encode(long expirationTime, int flags, Map<String, Object> attributes)
+      throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(body);
+    if ((flags & FLAG_EXPIRATION_TIME) != 0) {
+      out.writeLong(expirationTime);
+    }
+    writeVarInt(out, attributes.size());
+    Map<String, Object> serialized = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+      writeBytes(out, entry.getKey().getBytes(UTF_8));
+      if (!writeValue(out, entry.getValue())) {
+        out.writeByte(TYPE_SERIALIZED);
+        serialized.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (!serialized.isEmpty()) {
+      writeBytes(out, SessionManagerUtil.serialize(serialized));
+    }
+    out.flush();
+
+    int threshold =
+        Integer.getInteger(COMPRESSION_THRESHOLD_PROPERTY, DEFAULT_COMPRESSION_THRESHOLD);
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream(HEADER_LENGTH + body.size());
+    if (threshold >= 0 && body.size() > threshold) {
+      encoded.write(new byte[] {MAGIC_0, MAGIC_1, VERSION, (byte) (flags | FLAG_DEFLATED)});
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try (DeflaterOutputStream deflated = new DeflaterOutputStream(encoded, deflater)) {
+        body.writeTo(deflated);
+      } finally {
+        deflater.end();
+      }
+      // Values that don't compress are better left alone.
+      if (encoded.size() < HEADER_LENGTH + body.size()) {
+        return encoded.toByteArray();
+      }
+      encoded.reset();
+    }
+    encoded.write(new byte[] {MAGIC_0, MAGIC_1, VERSION, (byte) flags});
+    body.writeTo(encoded);
+    return encoded.toByteArray();
+  }
+
+  /**
+   * Returns a stream over the body of an encoded session. Deflated bodies are inflated up front, so
+   * that the stream always knows how many bytes remain.
+   */
+  private static DataInputStream body(byte[] bytes) throws IOException {
+    if (bytes[2] != VERSION) {
+      throw new IOException("Unsupported session encoding version " + bytes[2]);
+    }
+    if ((bytes[3] & FLAG_DEFLATED) == 0) {
+      return new DataInputStream(
+          new ByteArrayInputStream(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH));
+    }
+    ByteArrayOutputStream inflated =
+        new ByteArrayOutputStream((int) Math.min(4L * bytes.length, MAX_DECODED_LENGTH));
+    try (InputStream in =
+        new InflaterInputStream(
+            new ByteArrayInputStream(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH))) {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        if (inflated.size() + n > MAX_DECODED_LENGTH) {
+          throw new IOException("Encoded session is larger than " + MAX_DECODED_LENGTH + " bytes");
+        }
+        inflated.write(buffer, 0, n);
+      }
+    }
+    return new DataInputStream(new ByteArrayInputStream(inflated.toByteArray()));
+  }
+
+  private static Map<String, Object> readAttributes(DataInputStream in) throws IOException {
+    int count = readVarInt(in);
+    Map<String, Object> attributes = new HashMap<>();
+    List<String> serializedNames = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String name = new String(readBytes(in), UTF_8);
+      byte type = in.readByte();
+      if (type == TYPE_SERIALIZED) {
+        serializedNames.add(name);
+      } else {
+        attributes.put(name, readValue(in, type));
+      }
+    }
+    if (!serializedNames.isEmpty()) {
+      Object serialized;
+      try {
+        serialized = SessionManagerUtil.deserialize(readBytes(in));
+      } catch (RuntimeException ex) {
+        throw new IOException("Corrupt serialized session attributes", ex);
+      }
+      if (!(serialized instanceof Map)) {
+        throw new IOException("Corrupt serialized session attributes");
+      }
+      Map<?, ?> values = (Map<?, ?>) serialized;
+      for (String name : serializedNames) {
+        attributes.put(name, values.get(name));
+      }
+    }
+    return attributes;
+  }
+
+  /**
+   * Writes the type tag and value of an attribute, unless it has to be written with Java
+   * serialization.
+   *
+   * @return whether the value was written
+   */
+  private static boolean writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(TYPE_NULL);
+    } else if (value instanceof String) {
+      out.writeByte(TYPE_STRING);
+      writeBytes(out, ((String) value).getBytes(UTF_8));
+    } else if (value instanceof byte[]) {
+      out.writeByte(TYPE_BYTES);
+      writeBytes(out, (byte[]) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(TYPE_BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Byte) {
+      out.writeByte(TYPE_BYTE);
+      out.writeByte((Byte) value);
+    } else if (value instanceof Short) {
+      out.writeByte(TYPE_SHORT);
+      out.writeShort((Short) value);
+    } else if (value instanceof Character) {
+      out.writeByte(TYPE_CHAR);
+      out.writeChar((Character) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(TYPE_INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(TYPE_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Float) {
+      out.writeByte(TYPE_FLOAT);
+      out.writeFloat((Float) value);
+    } else if (value instanceof Double) {
+      out.writeByte(TYPE_DOUBLE);
+      out.writeDouble((Double) value);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private static Object readValue(DataInputStream in, byte type) throws IOException {
+    switch (type) {
+      case TYPE_NULL:
+        return null;
+      case TYPE_STRING:
+        return new String(readBytes(in), UTF_8);
+      case TYPE_BYTES:
+        return readBytes(in);
+      case TYPE_BOOLEAN:
+        return in.readBoolean();
+      case TYPE_BYTE:
+        return in.readByte();
+      case TYPE_SHORT:
+        return in.readShort();
+      case TYPE_CHAR:
+        return in.readChar();
+      case TYPE_INTEGER:
+        return in.readInt();
+      case TYPE_LONG:
+        return in.readLong();
+      case TYPE_FLOAT:
+        return in.readFloat();
+      case TYPE_DOUBLE:
+        return in.readDouble();
+      default:
+        throw new IOException("Unknown session attribute type " + type);
+    }
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = readVarInt(in);
+    // The stream is always over an array, so available() is the number of bytes left.
+    if (length > in.available()) {
+      throw new IOException("Truncated encoded session");
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          throw new IOException("Negative length in encoded session");
+        }
+        return value;
+      }
+    }
+    throw new IOException("Malformed length in encoded session");
+  }
+}
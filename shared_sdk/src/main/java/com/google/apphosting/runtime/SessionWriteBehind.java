@@ -0,0 +1,310 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.flogger.GoogleLogger;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Coalesces and batches the session entities saved to the datastore.
+ *
+ * <p>Saving a session only records its entity, replacing the entity of an earlier save of the same
+ * session that was not written yet. The pending entities are then written together by a single
+ * batched call, once the oldest of them has waited for the window, or once there are {@link
+ * #MAX_BATCH_SIZE} of them.
+ *
+ * <p>App Engine API calls can only be made from request threads, so there is no background flusher:
+ * pending entities are written by the first request that saves, loads or deletes a session once the
+ * window has elapsed, and when the session store stops. Until then, they only live in this
+ * instance (and in memcache), so a session saved just before the instance goes away can be lost.
+ *
+ * <p>No lock is held while entities are written, which can take a while when the datastore has to
+ * be retried. Only one flush writes at a time, so that entities are written in the order they were
+ * saved: other requests that find pending entities due while a flush is writing leave them for a
+ * later request. Only the deletion of a session that is being written waits for the write.
+ *
+ * <p>This class is thread-safe.
+ */
+public class SessionWriteBehind {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /**
+   * The system property setting the window, in milliseconds, during which saves of sessions are
+   * coalesced. Write-behind is disabled unless it is positive.
+   */
+  public static final String WINDOW_MILLIS_PROPERTY = "gae.session_write_behind_ms";
+
+  /** The maximum number of entities written by one call. */
+  public static final int MAX_BATCH_SIZE = 100;
+
+  /**
+   * The number of times the write of a saved session is attempted before it is dropped. A session
+   * saved again starts over with its new entity.
+   */
+  public static final int MAX_WRITE_ATTEMPTS = 5;
+
+  /** Writes a batch of session entities. */
+  public interface Writer {
+    void write(List<Entity> entities) throws IOException, InterruptedException;
+  }
+
+  private final Writer writer;
+  private final long windowNanos;
+  private final LongSupplier nanoClock;
+
+  /** Guarded by this, in the order in which sessions were first saved since the last flush. */
+  private Map<String, Entity> pending = new LinkedHashMap<>();
+
+  /** Guarded by this. The entities being written. */
+  private Map<String, Entity> writing = Collections.emptyMap();
+
+  /** Guarded by this. Whether a flush is writing entities. */
+  private boolean flushing;
+
+  /** Guarded by this. When the oldest pending entity was saved. */
+  private long oldestSaveNanos;
+
+  /** Guarded by this. The number of failed writes of the pending entities that failed before. */
+  private final Map<String, Integer> failedWrites = new HashMap<>();
+
+  private final AtomicLong saves = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong flushNanos = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  public SessionWriteBehind(Writer writer, long windowMillis) {
+    this(writer, windowMillis, System::nanoTime);
+  }
+
+  SessionWriteBehind(Writer writer, long windowMillis, LongSupplier nanoClock) {
+    this.writer = writer;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.nanoClock = nanoClock;
+  }
+
+  /** Returns the window set by {@link #WINDOW_MILLIS_PROPERTY}, or 0 if write-behind is off. */
+  public static long windowMillisFromSystemProperty() {
+    return Math.max(0, Long.getLong(WINDOW_MILLIS_PROPERTY, 0));
+  }
+
+  /** Records the entity of a saved session, then writes the pending entities if they are due. */
+  public void save(String id, Entity entity) throws InterruptedException {
+    saves.incrementAndGet();
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        oldestSaveNanos = nanoClock.getAsLong();
+      }
+      pending.put(id, entity);
+      failedWrites.remove(id);
+    }
+    flushIfDue();
+  }
+
+  /** Returns the entity of a save of the session that was not written yet, or {@code null}. */
+  public synchronized Entity getPending(String id) {
+    Entity entity = pending.get(id);
+    return entity != null ? entity : writing.get(id);
+  }
+
+  /**
+   * Forgets any save of the session that was not written yet, waiting for a write of it that is in
+   * progress, so that the session can then be deleted.
+   */
+  public synchronized void remove(String id) {
+    boolean interrupted = false;
+    while (writing.containsKey(id)) {
+      try {
+        wait();
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+    // Removed after the write, as a failed write puts its entities back.
+    pending.remove(id);
+    failedWrites.remove(id);
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Writes the pending entities if the oldest of them has waited for the window, unless another
+   * flush is already writing.
+   */
+  public void flushIfDue() throws InterruptedException {
+    boolean due;
+    synchronized (this) {
+      due =
+          !flushing
+              && (pending.size() >= MAX_BATCH_SIZE
+                  || (!pending.isEmpty()
+                      && nanoClock.getAsLong() - oldestSaveNanos >= windowNanos));
+    }
+    if (due) {
+      flush(false);
+    }
+  }
+
+  /**
+   * Writes all the pending entities, after waiting for any flush that is already writing. Entities
+   * that can't be written stay pending, unless the session was saved again in the meantime, or
+   * their write has now failed {@link #MAX_WRITE_ATTEMPTS} times.
+   */
+  public void flush() throws InterruptedException {
+    flush(true);
+  }
+
+  private void flush(boolean waitForFlush) throws InterruptedException {
+    Map<String, Entity> batch;
+    synchronized (this) {
+      while (flushing) {
+        if (!waitForFlush) {
+          return;
+        }
+        wait();
+      }
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new LinkedHashMap<>();
+      writing = batch;
+      flushing = true;
+    }
+    List<Entity> entities = new ArrayList<>(batch.values());
+    long start = nanoClock.getAsLong();
+    int written = 0;
+    try {
+      while (written < entities.size()) {
+        int end = Math.min(entities.size(), written + MAX_BATCH_SIZE);
+        writer.write(entities.subList(written, end));
+        written = end;
+      }
+    } catch (IOException | RuntimeException ex) {
+      logger.atWarning().withCause(ex).log(
+          "Failed to save %d sessions, will retry", entities.size() - written);
+      restore(batch, written, /* countFailure= */ true);
+    } catch (InterruptedException ex) {
+      restore(batch, written, /* countFailure= */ false);
+      throw ex;
+    } finally {
+      synchronized (this) {
+        if (!failedWrites.isEmpty()) {
+          int index = 0;
+          for (String id : batch.keySet()) {
+            if (index++ >= written) {
+              break;
+            }
+            failedWrites.remove(id);
+          }
+        }
+        writing = Collections.emptyMap();
+        flushing = false;
+        notifyAll();
+      }
+      long elapsed = nanoClock.getAsLong() - start;
+      writes.addAndGet(written);
+      flushes.incrementAndGet();
+      flushNanos.addAndGet(elapsed);
+      logger.atFine().log(
+          "Saved %d sessions in %d ms", written, TimeUnit.NANOSECONDS.toMillis(elapsed));
+      logger.atInfo().atMostEvery(1, TimeUnit.MINUTES).log(
+          "Session write-behind: %d saves, %d writes (coalescing ratio %.2f),"
+              + " %d flushes (mean latency %.1f ms)",
+          getSaveCount(),
+          getWriteCount(),
+          getCoalescingRatio(),
+          getFlushCount(),
+          getMeanFlushMillis());
+    }
+  }
+
+  private synchronized void restore(Map<String, Entity> batch, int written, boolean countFailure) {
+    Map<String, Entity> restored = new LinkedHashMap<>();
+    int droppedNow = 0;
+    int index = 0;
+    for (Map.Entry<String, Entity> entry : batch.entrySet()) {
+      String id = entry.getKey();
+      if (index++ < written || pending.containsKey(id)) {
+        continue;
+      }
+      if (countFailure && failedWrites.merge(id, 1, Integer::sum) >= MAX_WRITE_ATTEMPTS) {
+        failedWrites.remove(id);
+        droppedNow++;
+      } else {
+        restored.put(id, entry.getValue());
+      }
+    }
+    if (droppedNow > 0) {
+      dropped.addAndGet(droppedNow);
+      logger.atSevere().log(
+          "Dropped %d sessions which failed to be saved %d times", droppedNow, MAX_WRITE_ATTEMPTS);
+    }
+    // Retry once the window has elapsed again.
+    oldestSaveNanos = nanoClock.getAsLong();
+    restored.putAll(pending);
+    pending = restored;
+  }
+
+  /** Returns the number of sessions saved and not written yet. */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /** Returns the number of sessions saved. */
+  public long getSaveCount() {
+    return saves.get();
+  }
+
+  /** Returns the number of session entities written. */
+  public long getWriteCount() {
+    return writes.get();
+  }
+
+  /** Returns how many saves there were per entity written, or 0 if none was. */
+  public double getCoalescingRatio() {
+    long written = writes.get();
+    return written == 0 ? 0 : (double) saves.get() / written;
+  }
+
+  /** Returns the number of sessions dropped because their write failed too many times. */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /** Returns the number of times pending entities were written. */
+  public long getFlushCount() {
+    return flushes.get();
+  }
+
+  /** Returns the mean time it took to write the pending entities, in milliseconds. */
+  public double getMeanFlushMillis() {
+    long count = flushes.get();
+    return count == 0 ? 0 : flushNanos.get() / 1e6 / count;
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.base.Strings;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SessionDataCodecTest {
+  private static final byte MAGIC_0 = (byte) 0xAE;
+  private static final byte MAGIC_1 = (byte) 0x5D;
+
+  @After
+  public void tearDown() {
+    System.clearProperty(SessionDataCodec.COMPACT_ENCODING_PROPERTY);
+    System.clearProperty(SessionDataCodec.COMPRESSION_THRESHOLD_PROPERTY);
+  }
+
+  @Test
+  public void roundTrip_everyType() throws Exception {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("null", null);
+    attributes.put("string", "h\u00e9llo \u2603");
+    attributes.put("boolean", true);
+    attributes.put("byte", (byte) -7);
+    attributes.put("short", (short) 1234);
+    attributes.put("char", '\u2603');
+    attributes.put("int", Integer.MIN_VALUE);
+    attributes.put("long", Long.MAX_VALUE);
+    attributes.put("float", 1.5f);
+    attributes.put("double", -0.25);
+    attributes.put("serialized", new ArrayList<>(Arrays.asList("a", 1, 2L)));
+
+    byte[] encoded = SessionDataCodec.encodeAttributes(attributes);
+    assertThat(SessionDataCodec.isEncoded(encoded)).isTrue();
+    Map<String, Object> decoded = SessionDataCodec.decodeAttributes(encoded);
+    assertThat(decoded).isEqualTo(attributes);
+    assertThat(decoded).containsKey("null");
+    assertThat(decoded.get("byte")).isInstanceOf(Byte.class);
+    assertThat(decoded.get("short")).isInstanceOf(Short.class);
+    assertThat(decoded.get("char")).isInstanceOf(Character.class);
+  }
+
+  @Test
+  public void roundTrip_bytes() throws Exception {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("bytes", new byte[] {0, 1, -1, 127});
+    attributes.put("empty", new byte[0]);
+
+    Map<String, Object> decoded =
+        SessionDataCodec.decodeAttributes(SessionDataCodec.encodeAttributes(attributes));
+    assertThat((byte[]) decoded.get("bytes")).isEqualTo(new byte[] {0, 1, -1, 127});
+    assertThat((byte[]) decoded.get("empty")).isEmpty();
+  }
+
+  @Test
+  public void roundTrip_sessionData() {
+    System.setProperty(SessionDataCodec.COMPACT_ENCODING_PROPERTY, "true");
+    SessionData data = new SessionData();
+    data.setExpirationTime(123456789L);
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("user", "alice");
+    attributes.put("cart", new ArrayList<>(Arrays.asList("apple", "pear")));
+    data.setValueMap(attributes);
+
+    byte[] encoded = SessionDataCodec.serialize(data);
+    assertThat(SessionDataCodec.isEncoded(encoded)).isTrue();
+    SessionData decoded = SessionDataCodec.deserialize(encoded);
+    assertThat(decoded.getExpirationTime()).isEqualTo(123456789L);
+    assertThat(decoded.getValueMap()).isEqualTo(attributes);
+  }
+
+  @Test
+  public void sharedObjectsStayShared() throws Exception {
+    List<String> shared = new ArrayList<>(Arrays.asList("x", "y"));
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("first", shared);
+    attributes.put("second", shared);
+    attributes.put("other", "z");
+
+    Map<String, Object> decoded =
+        SessionDataCodec.decodeAttributes(SessionDataCodec.encodeAttributes(attributes));
+    assertThat(decoded.get("first")).isEqualTo(shared);
+    assertThat(decoded.get("first")).isSameInstanceAs(decoded.get("second"));
+  }
+
+  @Test
+  public void legacySerialization_isDecoded() {
+    SessionData data = new SessionData();
+    data.setExpirationTime(42L);
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("key", "value");
+    data.setValueMap(attributes);
+
+    byte[] legacy = SessionManagerUtil.serialize(data);
+    assertThat(legacy[0]).isEqualTo((byte) 0xAC);
+    assertThat(legacy[1]).isEqualTo((byte) 0xED);
+    assertThat(SessionDataCodec.isEncoded(legacy)).isFalse();
+
+    SessionData decoded = SessionDataCodec.deserialize(legacy);
+    assertThat(decoded.getExpirationTime()).isEqualTo(42L);
+    assertThat(decoded.getValueMap()).isEqualTo(attributes);
+  }
+
+  @Test
+  public void serialize_disabledWritesJavaSerialization() {
+    SessionData data = new SessionData();
+    data.setValueMap(new HashMap<>());
+    assertThat(SessionDataCodec.isEncoded(SessionDataCodec.serialize(data))).isFalse();
+  }
+
+  @Test
+  public void compressionThreshold() throws Exception {
+    System.setProperty(SessionDataCodec.COMPRESSION_THRESHOLD_PROPERTY, "1000");
+    // The body holds the attribute count, the length and name "a", the type tag, a two byte length
+    // and the value: 6 bytes more than the value.
+    Map<String, Object> atThreshold = new HashMap<>();
+    atThreshold.put("a", Strings.repeat("x", 994));
+    byte[] plain = SessionDataCodec.encodeAttributes(atThreshold);
+    assertThat(plain[3] & 1).isEqualTo(0);
+    assertThat(plain).hasLength(4 + 1000);
+    assertThat(SessionDataCodec.decodeAttributes(plain)).isEqualTo(atThreshold);
+
+    Map<String, Object> aboveThreshold = new HashMap<>();
+    aboveThreshold.put("a", Strings.repeat("x", 995));
+    byte[] deflated = SessionDataCodec.encodeAttributes(aboveThreshold);
+    assertThat(deflated[3] & 1).isEqualTo(1);
+    assertThat(deflated.length).isLessThan(100);
+    assertThat(SessionDataCodec.decodeAttributes(deflated)).isEqualTo(aboveThreshold);
+  }
+
+  @Test
+  public void compressionThreshold_negativeDisablesCompression() throws Exception {
+    System.setProperty(SessionDataCodec.COMPRESSION_THRESHOLD_PROPERTY, "-1");
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("a", Strings.repeat("x", 100_000));
+    byte[] encoded = SessionDataCodec.encodeAttributes(attributes);
+    assertThat(encoded[3] & 1).isEqualTo(0);
+    assertThat(SessionDataCodec.decodeAttributes(encoded)).isEqualTo(attributes);
+  }
+
+  @Test
+  public void truncatedInput_isRejected() throws Exception {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("name", "value");
+    attributes.put("list", new ArrayList<>(Arrays.asList(1, 2, 3)));
+    byte[] encoded = SessionDataCodec.encodeAttributes(attributes);
+    for (int length = 4; length < encoded.length; length++) {
+      byte[] truncated = Arrays.copyOf(encoded, length);
+      assertThrows(IOException.class, () -> SessionDataCodec.decodeAttributes(truncated));
+    }
+  }
+
+  @Test
+  public void hugeLength_isRejected() {
+    // One attribute, whose name claims to be Integer.MAX_VALUE bytes long.
+    byte[] encoded = {MAGIC_0, MAGIC_1, 1, 0, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, 0x07};
+    assertThrows(IOException.class, () -> SessionDataCodec.decodeAttributes(encoded));
+  }
+
+  @Test
+  public void negativeLength_isRejected() {
+    byte[] encoded = {MAGIC_0, MAGIC_1, 1, 0, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, 0x0F};
+    assertThrows(IOException.class, () -> SessionDataCodec.decodeAttributes(encoded));
+  }
+
+  @Test
+  public void unknownType_isRejected() {
+    byte[] encoded = {MAGIC_0, MAGIC_1, 1, 0, 1, 1, 'a', 99};
+    assertThrows(IOException.class, () -> SessionDataCodec.decodeAttributes(encoded));
+  }
+
+  @Test
+  public void corruptDeflatedBody_isRejected() {
+    byte[] encoded = {MAGIC_0, MAGIC_1, 1, 1, 1, 2, 3, 4, 5};
+    assertThrows(IOException.class, () -> SessionDataCodec.decodeAttributes(encoded));
+  }
+
+  @Test
+  public void corruptSerializedValues_areRejected() {
+    // One attribute "a" written with Java serialization, followed by bytes that aren't a stream.
+    byte[] encoded = {MAGIC_0, MAGIC_1, 1, 0, 1, 1, 'a', 11, 3, 1, 2, 3};
+    assertThrows(IOException.class, () -> SessionDataCodec.decodeAttributes(encoded));
+  }
+
+  @Test
+  public void unknownVersion_isRejected() {
+    byte[] encoded = {MAGIC_0, MAGIC_1, 2, 0, 0};
+    IOException ex =
+        assertThrows(IOException.class, () -> SessionDataCodec.decodeAttributes(encoded));
+    assertThat(ex).hasMessageThat().contains("version 2");
+    assertThrows(RuntimeException.class, () -> SessionDataCodec.deserialize(encoded));
+  }
+}
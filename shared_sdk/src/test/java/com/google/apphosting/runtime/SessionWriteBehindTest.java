@@ -0,0 +1,345 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SessionWriteBehindTest {
+  private static final long WINDOW_MILLIS = 1000;
+
+  private final AtomicLong nanos = new AtomicLong();
+  private final FakeWriter writer = new FakeWriter();
+  private final SessionWriteBehind writeBehind =
+      new SessionWriteBehind(writer, WINDOW_MILLIS, nanos::get);
+
+  /** Records the ids and versions of the entities written, in order. */
+  private static class FakeWriter implements SessionWriteBehind.Writer {
+    final List<List<String>> batches = new ArrayList<>();
+    volatile IOException failure;
+    volatile Runnable onWrite;
+
+    @Override
+    public synchronized void write(List<Entity> entities) throws IOException {
+      if (onWrite != null) {
+        onWrite.run();
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      List<String> batch = new ArrayList<>();
+      for (Entity entity : entities) {
+        batch.add(describe(entity));
+      }
+      batches.add(batch);
+    }
+  }
+
+  /** Just enough of an environment to create entity keys. */
+  private static class TestEnvironment implements ApiProxy.Environment {
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    @Override
+    public String getAppId() {
+      return "s~app";
+    }
+
+    @Override
+    public String getModuleId() {
+      return "default";
+    }
+
+    @Override
+    public String getVersionId() {
+      return "1";
+    }
+
+    @Override
+    public String getEmail() {
+      return null;
+    }
+
+    @Override
+    public boolean isLoggedIn() {
+      return false;
+    }
+
+    @Override
+    public boolean isAdmin() {
+      return false;
+    }
+
+    @Override
+    public String getAuthDomain() {
+      return null;
+    }
+
+    @Override
+    @Deprecated
+    public String getRequestNamespace() {
+      return "";
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return attributes;
+    }
+
+    @Override
+    public long getRemainingMillis() {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    ApiProxy.setEnvironmentForCurrentThread(new TestEnvironment());
+  }
+
+  @After
+  public void tearDown() {
+    ApiProxy.clearEnvironmentForCurrentThread();
+  }
+
+  private static Entity entity(String id, int version) {
+    Entity entity = new Entity("_ah_SESSION", id);
+    entity.setProperty("version", version);
+    return entity;
+  }
+
+  private static String describe(Entity entity) {
+    return entity.getKey().getName() + "@" + entity.getProperty("version");
+  }
+
+  private void advanceMillis(long millis) {
+    nanos.addAndGet(MILLISECONDS.toNanos(millis));
+  }
+
+  @Test
+  public void save_coalescesSavesOfTheSameSession() throws Exception {
+    writeBehind.save("a", entity("a", 1));
+    writeBehind.save("b", entity("b", 1));
+    writeBehind.save("a", entity("a", 2));
+
+    assertThat(writer.batches).isEmpty();
+    assertThat(writeBehind.getPendingCount()).isEqualTo(2);
+    assertThat(describe(writeBehind.getPending("a"))).isEqualTo("a@2");
+
+    writeBehind.flush();
+    assertThat(writer.batches).containsExactly(ImmutableList.of("a@2", "b@1"));
+    assertThat(writeBehind.getPendingCount()).isEqualTo(0);
+    assertThat(writeBehind.getPending("a")).isNull();
+  }
+
+  @Test
+  public void flushIfDue_waitsForTheWindowOfTheOldestSave() throws Exception {
+    writeBehind.save("a", entity("a", 1));
+    advanceMillis(600);
+    writeBehind.save("b", entity("b", 1));
+    advanceMillis(399);
+    writeBehind.flushIfDue();
+    assertThat(writer.batches).isEmpty();
+
+    advanceMillis(1);
+    writeBehind.flushIfDue();
+    assertThat(writer.batches).containsExactly(ImmutableList.of("a@1", "b@1"));
+
+    // The window starts again with the next save.
+    writeBehind.save("a", entity("a", 2));
+    advanceMillis(WINDOW_MILLIS - 1);
+    writeBehind.flushIfDue();
+    assertThat(writer.batches).hasSize(1);
+    advanceMillis(1);
+    writeBehind.save("b", entity("b", 2));
+    assertThat(writer.batches)
+        .containsExactly(ImmutableList.of("a@1", "b@1"), ImmutableList.of("a@2", "b@2"))
+        .inOrder();
+  }
+
+  @Test
+  public void save_flushesFullBatches() throws Exception {
+    for (int i = 0; i < SessionWriteBehind.MAX_BATCH_SIZE - 1; i++) {
+      writeBehind.save("s" + i, entity("s" + i, 1));
+    }
+    assertThat(writer.batches).isEmpty();
+
+    writeBehind.save("last", entity("last", 1));
+    assertThat(writer.batches).hasSize(1);
+    assertThat(writer.batches.get(0)).hasSize(SessionWriteBehind.MAX_BATCH_SIZE);
+    assertThat(writeBehind.getPendingCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void flush_restoresEntitiesThatFailedToBeWritten() throws Exception {
+    writeBehind.save("a", entity("a", 1));
+    writeBehind.save("b", entity("b", 1));
+    writer.failure = new IOException("datastore unavailable");
+    // A session saved again while the write fails keeps its newer save.
+    writer.onWrite =
+        () -> {
+          try {
+            writeBehind.save("b", entity("b", 2));
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        };
+
+    writeBehind.flush();
+    assertThat(writer.batches).isEmpty();
+    assertThat(writeBehind.getPendingCount()).isEqualTo(2);
+    assertThat(describe(writeBehind.getPending("a"))).isEqualTo("a@1");
+    assertThat(describe(writeBehind.getPending("b"))).isEqualTo("b@2");
+
+    // Retried once the window elapsed again.
+    writer.failure = null;
+    writer.onWrite = null;
+    writeBehind.flushIfDue();
+    assertThat(writer.batches).isEmpty();
+    advanceMillis(WINDOW_MILLIS);
+    writeBehind.flushIfDue();
+    assertThat(writer.batches).containsExactly(ImmutableList.of("a@1", "b@2"));
+  }
+
+  @Test
+  public void flush_dropsEntitiesThatKeepFailingToBeWritten() throws Exception {
+    writeBehind.save("a", entity("a", 1));
+    writeBehind.save("b", entity("b", 1));
+    writer.failure = new IOException("entity too large");
+
+    for (int i = 1; i < SessionWriteBehind.MAX_WRITE_ATTEMPTS; i++) {
+      writeBehind.flush();
+      assertThat(writeBehind.getPendingCount()).isEqualTo(2);
+    }
+    // A session saved again starts over with its new entity.
+    writeBehind.save("b", entity("b", 2));
+    writeBehind.flush();
+    assertThat(writeBehind.getPending("a")).isNull();
+    assertThat(describe(writeBehind.getPending("b"))).isEqualTo("b@2");
+    assertThat(writeBehind.getDroppedCount()).isEqualTo(1);
+
+    writer.failure = null;
+    writeBehind.flush();
+    assertThat(writer.batches).containsExactly(ImmutableList.of("b@2"));
+    assertThat(writeBehind.getPendingCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void remove_forgetsPendingSave() throws Exception {
+    writeBehind.save("a", entity("a", 1));
+    writeBehind.save("b", entity("b", 1));
+    writeBehind.remove("a");
+
+    assertThat(writeBehind.getPending("a")).isNull();
+    writeBehind.flush();
+    assertThat(writer.batches).containsExactly(ImmutableList.of("b@1"));
+  }
+
+  @Test
+  public void remove_waitsForAnInFlightWriteOfTheSession() throws Exception {
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    writer.failure = new IOException("datastore unavailable");
+    writer.onWrite =
+        () -> {
+          writing.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        };
+    writeBehind.save("a", entity("a", 1));
+    writeBehind.save("b", entity("b", 1));
+    advanceMillis(WINDOW_MILLIS);
+
+    Thread flusher =
+        new Thread(
+            () -> {
+              try {
+                writeBehind.flushIfDue();
+              } catch (InterruptedException e) {
+                throw new AssertionError(e);
+              }
+            });
+    flusher.start();
+    assertThat(writing.await(10, SECONDS)).isTrue();
+    assertThat(describe(writeBehind.getPending("a"))).isEqualTo("a@1");
+
+    // Other requests neither wait for the write nor start another one.
+    writeBehind.save("c", entity("c", 1));
+    writeBehind.flushIfDue();
+    writeBehind.remove("c");
+
+    Thread remover = new Thread(() -> writeBehind.remove("a"));
+    remover.start();
+    while (remover.getState() != Thread.State.WAITING) {
+      assertThat(remover.isAlive()).isTrue();
+      Thread.sleep(1);
+    }
+
+    release.countDown();
+    remover.join(10_000);
+    flusher.join(10_000);
+    assertThat(remover.isAlive()).isFalse();
+    assertThat(flusher.isAlive()).isFalse();
+    // The failed write put both sessions back, but the removed one is gone.
+    assertThat(writeBehind.getPending("a")).isNull();
+    assertThat(describe(writeBehind.getPending("b"))).isEqualTo("b@1");
+    assertThat(writeBehind.getPendingCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void metrics() throws Exception {
+    assertThat(writeBehind.getCoalescingRatio()).isEqualTo(0.0);
+    assertThat(writeBehind.getMeanFlushMillis()).isEqualTo(0.0);
+
+    writer.onWrite = () -> advanceMillis(4);
+    writeBehind.save("a", entity("a", 1));
+    writeBehind.save("a", entity("a", 2));
+    writeBehind.save("b", entity("b", 1));
+    writeBehind.flush();
+    writer.onWrite = () -> advanceMillis(8);
+    writeBehind.save("a", entity("a", 3));
+    writeBehind.flush();
+    // Nothing pending: not a flush.
+    writeBehind.flush();
+
+    assertThat(writeBehind.getSaveCount()).isEqualTo(4);
+    assertThat(writeBehind.getWriteCount()).isEqualTo(3);
+    assertThat(writeBehind.getCoalescingRatio()).isWithin(1e-9).of(4.0 / 3);
+    assertThat(writeBehind.getFlushCount()).isEqualTo(2);
+    assertThat(writeBehind.getMeanFlushMillis()).isWithin(1e-9).of(6.0);
+  }
+}
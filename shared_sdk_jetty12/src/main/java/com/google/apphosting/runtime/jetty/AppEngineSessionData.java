@@ -16,14 +16,47 @@
 
 package com.google.apphosting.runtime.jetty;
 
+import com.google.apphosting.runtime.SessionDataCodec;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.util.Map;
 import org.eclipse.jetty.session.SessionData;
 
 /**
  * A specialization of the jetty SessionData class to allow direct access to the mutable attribute
  * map.
+ *
+ * <p>It also remembers a hash of the serialized attributes and the expiry of the session as they
+ * were last loaded or saved, so that a session whose attributes did not change, and whose expiry
+ * did not advance by more than the {@link #getAccessWriteGranularityMs access write granularity},
+ * is not saved again.
  */
 public class AppEngineSessionData extends SessionData {
+  /**
+   * The system property setting by how many milliseconds the expiry of a session whose attributes
+   * did not change may advance before the session is saved again. It defaults to a quarter of the
+   * max inactive interval, so that a session that expires in 1 hr is only re-stored every 15
+   * minutes unless its attributes change. It should be well below the max inactive interval, as the
+   * stored expiry is what expires the session.
+   */
+  public static final String ACCESS_WRITE_GRANULARITY_PROPERTY =
+      "gae.session_access_write_granularity_ms";
+
+  private static final double DEFAULT_ACCESS_WRITE_GRANULARITY_RATIO = 0.25;
+
+  /** The hash of the serialized attributes as last loaded or saved, or null if they never were. */
+  private HashCode persistedHash;
+
+  /** The expiry as last loaded or saved. */
+  private long persistedExpiry;
+
+  /** The attributes serialized for the save in progress, and their hash, if any. */
+  private byte[] serializedAttributes;
+
+  private HashCode serializedHash;
 
   public AppEngineSessionData(
       String id,
@@ -47,8 +80,76 @@ public class AppEngineSessionData extends SessionData {
     // TODO: Direct access to the mutable map is required to maintain binary
     // compatibility with jetty93 based runtimes for sessions stored in memcache and datastore.
     // This is a somewhat convoluted and inefficient approach, so once jetty93 runtimes are
-    // removed this code should be revisited for simplicity and efficiency.  Also a version number
-    // should eventually be added to make future changes to the session stores simpler.
+    // removed this code should be revisited for simplicity and efficiency.
     return _attributes;
   }
+
+  /**
+   * Returns by how many milliseconds the expiry of a session whose attributes did not change may
+   * advance before the session is saved again.
+   *
+   * @param maxInactiveMs the max inactive interval of the session
+   */
+  public static long getAccessWriteGranularityMs(long maxInactiveMs) {
+    long granularity = Long.getLong(ACCESS_WRITE_GRANULARITY_PROPERTY, -1);
+    return granularity >= 0
+        ? granularity
+        : (long) (maxInactiveMs * DEFAULT_ACCESS_WRITE_GRANULARITY_RATIO);
+  }
+
+  /**
+   * Returns the attributes serialized as they are stored in datastore, reusing those serialized by
+   * {@link #needsSave} for the save in progress. They are serialized in the compact encoding of
+   * {@link SessionDataCodec} if it is enabled, and with Java serialization otherwise.
+   */
+  public byte[] getSerializedAttributes() throws IOException {
+    return serializedAttributes != null ? serializedAttributes : serializeAttributes();
+  }
+
+  /**
+   * Returns whether the attributes changed since the session was last loaded or saved, or its
+   * expiry advanced by more than the access write granularity. The attributes are serialized to
+   * find out, and kept for the save that follows.
+   */
+  public boolean needsSave() throws IOException {
+    serializedAttributes = serializeAttributes();
+    serializedHash = hash(serializedAttributes);
+    return !serializedHash.equals(persistedHash)
+        || getExpiry() - persistedExpiry > getAccessWriteGranularityMs(getMaxInactiveMs());
+  }
+
+  /**
+   * Records that the session was loaded or saved with the given serialized attributes and its
+   * current expiry.
+   */
+  public void setPersisted(byte[] serializedAttributes) {
+    setPersisted(hash(serializedAttributes));
+  }
+
+  /** Records that the session was saved with the attributes serialized by {@link #needsSave}. */
+  public void setSaved() throws IOException {
+    setPersisted(serializedHash != null ? serializedHash : hash(getSerializedAttributes()));
+  }
+
+  private void setPersisted(HashCode hash) {
+    persistedHash = hash;
+    persistedExpiry = getExpiry();
+    serializedAttributes = null;
+    serializedHash = null;
+  }
+
+  private byte[] serializeAttributes() throws IOException {
+    if (SessionDataCodec.isCompactEncodingEnabled()) {
+      return SessionDataCodec.encodeAttributes(getMutableAttributes());
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(getMutableAttributes());
+    oos.flush();
+    return baos.toByteArray();
+  }
+
+  private static HashCode hash(byte[] bytes) {
+    return Hashing.murmur3_128().hashBytes(bytes);
+  }
 }
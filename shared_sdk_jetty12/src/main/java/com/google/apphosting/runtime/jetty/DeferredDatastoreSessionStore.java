@@ -24,16 +24,20 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.taskqueue.DeferredTask;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.taskqueue.TransientFailureException;
 import com.google.apphosting.runtime.SessionStore.Retryable;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import org.eclipse.jetty.session.SessionData;
 
 /**
  * A {@link DatastoreSessionStore.SessionDataStoreImpl} extension that defers all datastore writes
- * via the taskqueue.
+ * via the taskqueue. When sessions are written behind, the tasks of a batch are added by a single
+ * call.
  */
 class DeferredDatastoreSessionStore extends DatastoreSessionStore.SessionDataStoreImpl {
 
@@ -57,7 +61,8 @@ class DeferredDatastoreSessionStore extends DatastoreSessionStore.SessionDataSto
 
   private final Queue queue;
 
-  DeferredDatastoreSessionStore(Optional<String> queueName) {
+  DeferredDatastoreSessionStore(Optional<String> queueName, long writeBehindMillis) {
+    super(writeBehindMillis);
     this.queue =
         queueName.isPresent()
             ? QueueFactory.getQueue(queueName.get())
@@ -66,7 +71,10 @@ class DeferredDatastoreSessionStore extends DatastoreSessionStore.SessionDataSto
 
   @Override
   public void doStore(String id, SessionData data, long lastSaveTime)
-      throws IOException, Retryable {
+      throws IOException, InterruptedException, Retryable {
+    if (saveBehind(id, data)) {
+      return;
+    }
     try {
       // Setting a timeout on retries to reduce the likelihood that session
       // state "reverts."  This can happen if a session in state s1 is saved
@@ -88,8 +96,24 @@ class DeferredDatastoreSessionStore extends DatastoreSessionStore.SessionDataSto
     }
   }
 
+  @Override
+  void write(List<Entity> entities) throws IOException {
+    try {
+      List<TaskOptions> tasks = new ArrayList<>(entities.size());
+      for (Entity e : entities) {
+        tasks.add(
+            withPayload(newDeferredTask(putDeferredTaskConstructor, e))
+                .retryOptions(withTaskAgeLimitSeconds(SAVE_TASK_AGE_LIMIT_SECS)));
+      }
+      queue.add(tasks);
+    } catch (ReflectiveOperationException | TransientFailureException e) {
+      throw new IOException(e);
+    }
+  }
+
   @Override
   public boolean delete(String id) throws IOException {
+    cancelSave(id);
     try {
       Key key = createKeyForSession(id);
       // We'll let this task retry indefinitely.
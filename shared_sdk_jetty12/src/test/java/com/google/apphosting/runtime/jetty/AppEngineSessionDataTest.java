@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.apphosting.runtime.SessionDataCodec;
+import java.util.ArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AppEngineSessionDataTest {
+  private static final long MAX_INACTIVE_MS = 3_600_000;
+  // A quarter of the max inactive interval.
+  private static final long GRANULARITY_MS = 900_000;
+  private static final long EXPIRY = 10_000_000;
+
+  private AppEngineSessionData data;
+
+  @Before
+  public void setUp() {
+    data = new AppEngineSessionData("id", "", "0.0.0.0", 1000, 1000, 1000, MAX_INACTIVE_MS);
+    data.setExpiry(EXPIRY);
+    data.setAttribute("user", "alice");
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty(AppEngineSessionData.ACCESS_WRITE_GRANULARITY_PROPERTY);
+    System.clearProperty(SessionDataCodec.COMPACT_ENCODING_PROPERTY);
+  }
+
+  @Test
+  public void newSession_needsSave() throws Exception {
+    assertThat(data.needsSave()).isTrue();
+  }
+
+  @Test
+  public void savedSession_doesNotNeedSave() throws Exception {
+    assertThat(data.needsSave()).isTrue();
+    data.setSaved();
+    assertThat(data.needsSave()).isFalse();
+  }
+
+  @Test
+  public void loadedSession_doesNotNeedSave() throws Exception {
+    data.setPersisted(data.getSerializedAttributes());
+    assertThat(data.needsSave()).isFalse();
+  }
+
+  @Test
+  public void changedAttributes_needSave() throws Exception {
+    data.setSaved();
+    data.setAttribute("user", "bob");
+    assertThat(data.isDirty()).isTrue();
+    assertThat(data.needsSave()).isTrue();
+    data.setSaved();
+
+    data.setAttribute("cart", new ArrayList<>());
+    assertThat(data.needsSave()).isTrue();
+  }
+
+  @Test
+  public void dirtySessionWithTheSameAttributes_doesNotNeedSave() throws Exception {
+    data.setSaved();
+    data.setAttribute("user", "alice");
+    assertThat(data.isDirty()).isTrue();
+    assertThat(data.needsSave()).isFalse();
+  }
+
+  @Test
+  public void accessOnly_needsSaveOnceExpiryAdvancedByMoreThanTheGranularity() throws Exception {
+    assertThat(AppEngineSessionData.getAccessWriteGranularityMs(MAX_INACTIVE_MS))
+        .isEqualTo(GRANULARITY_MS);
+    data.setSaved();
+
+    data.setExpiry(EXPIRY + GRANULARITY_MS);
+    assertThat(data.needsSave()).isFalse();
+    data.setExpiry(EXPIRY + GRANULARITY_MS + 1);
+    assertThat(data.needsSave()).isTrue();
+
+    // The granularity counts from the expiry as last saved.
+    data.setSaved();
+    data.setExpiry(EXPIRY + 2 * GRANULARITY_MS);
+    assertThat(data.needsSave()).isFalse();
+  }
+
+  @Test
+  public void accessOnly_granularityFromSystemProperty() throws Exception {
+    System.setProperty(AppEngineSessionData.ACCESS_WRITE_GRANULARITY_PROPERTY, "1000");
+    assertThat(AppEngineSessionData.getAccessWriteGranularityMs(MAX_INACTIVE_MS)).isEqualTo(1000);
+    data.setSaved();
+
+    data.setExpiry(EXPIRY + 1000);
+    assertThat(data.needsSave()).isFalse();
+    data.setExpiry(EXPIRY + 1001);
+    assertThat(data.needsSave()).isTrue();
+  }
+
+  @Test
+  public void compactEncoding_reusesTheAttributesSerializedToCheck() throws Exception {
+    System.setProperty(SessionDataCodec.COMPACT_ENCODING_PROPERTY, "true");
+    assertThat(data.needsSave()).isTrue();
+    byte[] serialized = data.getSerializedAttributes();
+    assertThat(SessionDataCodec.isEncoded(serialized)).isTrue();
+    assertThat(data.getSerializedAttributes()).isSameInstanceAs(serialized);
+
+    data.setSaved();
+    assertThat(data.needsSave()).isFalse();
+  }
+}
@@ -31,13 +31,6 @@ import org.eclipse.jetty.util.thread.Locker.Lock;
  * RuntimeException for non serializable values.
  */
 public class AppEngineSession extends Session {
-  /**
-   * To reduce our datastore put time, we only consider a session dirty on access if it is at least
-   * 25% of the way to its expiration time. So a session that expires in 1 hr will only be re-stored
-   * every 15 minutes, unless a "real" attribute change occurs.
-   */
-  private static final double UPDATE_TIMESTAMP_RATIO = 0.75;
-
   /**
    * Create a new session object. Usually after the data has been loaded.
    *
@@ -71,16 +64,22 @@ public class AppEngineSession extends Session {
   }
 
   /**
-   * If the session is nearing its expiry time, we mark it as dirty whether or not any attributes
-   * change during this access. The default Jetty implementation does not handle the AppEngine
-   * specific dirty state.
+   * If this access advances the expiry time of the session by more than the access write
+   * granularity, we mark it as dirty whether or not any attributes change during this access. To
+   * reduce our datastore put time, a session that expires in 1 hr is by default only re-stored
+   * every 15 minutes, unless a "real" attribute change occurs. The default Jetty implementation
+   * does not handle the AppEngine specific dirty state.
+   *
+   * @see AppEngineSessionData#getAccessWriteGranularityMs(long)
    */
   @Override
   protected boolean access(long time) {
     try (Lock lock = _lock.lock()) {
       if (isValid()) {
-        long timeRemaining = _sessionData.getExpiry() - time;
-        if (timeRemaining < (_sessionData.getMaxInactiveMs() * UPDATE_TIMESTAMP_RATIO)) {
+        long newExpiry = time + _sessionData.getMaxInactiveMs();
+        long granularity =
+            AppEngineSessionData.getAccessWriteGranularityMs(_sessionData.getMaxInactiveMs());
+        if (newExpiry - _sessionData.getExpiry() > granularity) {
           _sessionData.setDirty(true);
         }
       }
@@ -25,17 +25,20 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.runtime.SessionDataCodec;
 import com.google.apphosting.runtime.SessionStore;
+import com.google.apphosting.runtime.SessionWriteBehind;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.flogger.GoogleLogger;
 // <internal22>
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import org.eclipse.jetty.server.session.AbstractSessionDataStore;
 import org.eclipse.jetty.server.session.SessionData;
@@ -46,6 +49,17 @@ import org.eclipse.jetty.util.ClassLoadingObjectInputStream;
 /**
  * Jetty Store that uses DataStore for sessions. We cannot re-use the Jetty 9.4
  * GCloudSessionDataStore purely because AppEngine uses the compat GAE Datastore APIs.
+ *
+ * <p>If the {@link SessionWriteBehind#WINDOW_MILLIS_PROPERTY} system property is positive, saved
+ * sessions are written behind: saves of the same session within the window are coalesced, and the
+ * saves of all sessions are written by batched calls, see {@link SessionWriteBehind}.
+ *
+ * <p>A session whose attributes did not change since it was loaded or saved, and whose expiry did
+ * not advance by more than the access write granularity, is not saved again, neither to datastore
+ * nor to memcache, see {@link AppEngineSessionData#needsSave}.
+ *
+ * <p>Sessions are read whether their attributes were stored in the compact encoding of {@link
+ * SessionDataCodec} or with Java serialization, and written in the encoding the codec is set to.
  */
 public class DatastoreSessionStore implements SessionStore {
 
@@ -59,7 +73,11 @@ public class DatastoreSessionStore implements SessionStore {
   private final SessionDataStoreImpl impl;
 
   public DatastoreSessionStore(boolean useTaskqueue, Optional<String> queueName) {
-    impl = useTaskqueue ? new DeferredDatastoreSessionStore(queueName) : new SessionDataStoreImpl();
+    long writeBehindMillis = SessionWriteBehind.windowMillisFromSystemProperty();
+    impl =
+        useTaskqueue
+            ? new DeferredDatastoreSessionStore(queueName, writeBehindMillis)
+            : new SessionDataStoreImpl(writeBehindMillis);
   }
 
   static String keyForSessionId(String id) {
@@ -101,6 +119,15 @@ public class DatastoreSessionStore implements SessionStore {
     private static final int MAX_RETRIES = 10;
     private static final int INITIAL_BACKOFF_MS = 50;
     private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    // Null unless sessions are written behind.
+    private final SessionWriteBehind writeBehind;
+    private final AtomicLong skippedSaves = new AtomicLong();
+    private final AtomicLong writtenSaves = new AtomicLong();
+
+    SessionDataStoreImpl(long writeBehindMillis) {
+      writeBehind =
+          writeBehindMillis > 0 ? new SessionWriteBehind(this::write, writeBehindMillis) : null;
+    }
 
     /**
      * Scavenging is not performed by the Jetty session setup, so this method will never be called.
@@ -112,10 +139,58 @@ public class DatastoreSessionStore implements SessionStore {
       return ImmutableSet.of();
     }
 
+    /**
+     * Saves the session, unless it is unchanged since it was loaded or saved. As the session is
+     * then not marked as saved, the {@code CachingSessionDataStore} does not save it to memcache
+     * either.
+     */
+    @Override
+    public void store(String id, SessionData data) throws Exception {
+      if (data == null) {
+        return;
+      }
+      AppEngineSessionData sessionData = (AppEngineSessionData) data;
+      if (!sessionData.needsSave()) {
+        skippedSaves.incrementAndGet();
+        data.setDirty(false);
+        logger.atFinest().log("Session %s is unchanged, not saving it.", id);
+      } else {
+        long lastSaved = data.getLastSaved();
+        boolean wasDirty = data.isDirty() || data.isMetaDataDirty();
+        super.store(id, data);
+        // The session was written if Jetty cleaned it, or set its save time when it had none. The
+        // save time alone is not enough, as two saves may fall within the same millisecond.
+        boolean written =
+            wasDirty
+                ? !data.isDirty() && !data.isMetaDataDirty()
+                : data.getLastSaved() != lastSaved;
+        if (written) {
+          sessionData.setSaved();
+          writtenSaves.incrementAndGet();
+        }
+      }
+      logger.atInfo().atMostEvery(1, TimeUnit.MINUTES).log(
+          "Session saves: %d written, %d skipped as unchanged",
+          getWrittenSaveCount(), getSkippedSaveCount());
+    }
+
+    /** Returns the number of session saves that were written. */
+    long getWrittenSaveCount() {
+      return writtenSaves.get();
+    }
+
+    /** Returns the number of session saves that were skipped as the session was unchanged. */
+    long getSkippedSaveCount() {
+      return skippedSaves.get();
+    }
+
     /** Save a session to Appengine datastore. */
     @Override
     public void doStore(String id, SessionData data, long lastSaveTime)
         throws InterruptedException, IOException, UnwriteableSessionDataException, Retryable {
+      if (saveBehind(id, data)) {
+        return;
+      }
 
       Entity entity = entityFromSession(id, data);
       int backoff = INITIAL_BACKOFF_MS;
@@ -135,6 +210,56 @@ public class DatastoreSessionStore implements SessionStore {
       throw new UnwriteableSessionDataException(id, _context, null);
     }
 
+    /**
+     * Records the session to be written with the next batch and returns true, if sessions are
+     * written behind.
+     */
+    boolean saveBehind(String id, SessionData data) throws IOException, InterruptedException {
+      if (writeBehind == null) {
+        return false;
+      }
+      writeBehind.save(id, entityFromSession(id, data));
+      return true;
+    }
+
+    /** Writes a batch of sessions that were written behind. */
+    void write(List<Entity> entities) throws IOException, InterruptedException {
+      int backoff = INITIAL_BACKOFF_MS;
+
+      // Attempt the update with exponential back-off.
+      for (int attempts = 0; attempts < MAX_RETRIES; attempts++) {
+        try {
+          datastore.put(entities);
+          return;
+        } catch (DatastoreTimeoutException ex) {
+          Thread.sleep(backoff);
+
+          backoff *= 2;
+        }
+      }
+      throw new IOException("Retries exceeded saving " + entities.size() + " sessions");
+    }
+
+    /** Writes the sessions that were written behind and not written yet. */
+    @Override
+    protected void doStop() throws Exception {
+      if (writeBehind != null) {
+        writeBehind.flush();
+        int unsaved = writeBehind.getPendingCount();
+        if (unsaved > 0) {
+          logger.atWarning().log("%d sessions could not be saved on shutdown", unsaved);
+        }
+      }
+      super.doStop();
+    }
+
+    /** Forgets the saves of a session that were not written yet, before it is deleted. */
+    void cancelSave(String id) {
+      if (writeBehind != null) {
+        writeBehind.remove(id);
+      }
+    }
+
     /**
      * Even though this is a passivating store, we return false because no passivation/activation
      * listeners are called in Appengine.
@@ -153,6 +278,12 @@ public class DatastoreSessionStore implements SessionStore {
      */
     @Override
     public boolean exists(String id) throws Exception {
+      if (writeBehind != null) {
+        writeBehind.flushIfDue();
+        if (writeBehind.getPending(id) != null) {
+          return true;
+        }
+      }
       try {
         Entity entity = datastore.get(createKeyForSession(id));
 
@@ -171,6 +302,7 @@ public class DatastoreSessionStore implements SessionStore {
      */
     @Override
     public boolean delete(String id) throws IOException {
+      cancelSave(id);
       datastore.delete(createKeyForSession(id));
       return true;
     }
@@ -182,6 +314,14 @@ public class DatastoreSessionStore implements SessionStore {
      */
     @Override
     public SessionData doLoad(String id) throws Exception {
+      if (writeBehind != null) {
+        writeBehind.flushIfDue();
+        Entity pending = writeBehind.getPending(id);
+        if (pending != null) {
+          logger.atFinest().log("Loaded session %s from the sessions not saved yet.", id);
+          return sessionFromEntity(pending, normalizeSessionId(id));
+        }
+      }
       try {
         Entity entity = datastore.get(createKeyForSession(id));
         logger.atFinest().log("Loaded session %s from datastore.", id);
@@ -214,15 +354,12 @@ public class DatastoreSessionStore implements SessionStore {
       String originalNamespace = NamespaceManager.get();
 
       try {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(((AppEngineSessionData) data).getMutableAttributes());
-        oos.flush();
+        byte[] values = ((AppEngineSessionData) data).getSerializedAttributes();
 
         NamespaceManager.set("");
         Entity entity = new Entity(SESSION_ENTITY_TYPE, SESSION_PREFIX + id);
         entity.setProperty(EXPIRES_PROP, data.getExpiry());
-        entity.setProperty(VALUES_PROP, new Blob(baos.toByteArray()));
+        entity.setProperty(VALUES_PROP, new Blob(values));
         return entity;
       } finally {
         NamespaceManager.set(originalNamespace);
@@ -286,26 +423,41 @@ public class DatastoreSessionStore implements SessionStore {
 
       // As the max inactive interval of the session is not stored, it must
       // be defaulted to whatever is set on the session handler from web.xml.
-      SessionData session =
-          newSessionData(
-              id,
-              time,
-              time,
-              time,
-              (1000L * _context.getSessionHandler().getMaxInactiveInterval()));
+      AppEngineSessionData session =
+          (AppEngineSessionData)
+              newSessionData(
+                  id,
+                  time,
+                  time,
+                  time,
+                  (1000L * _context.getSessionHandler().getMaxInactiveInterval()));
       session.setExpiry(expiry);
 
-      try (ClassLoadingObjectInputStream ois =
-          new ClassLoadingObjectInputStream(new ByteArrayInputStream(blob.getBytes()))) {
-        @SuppressWarnings("unchecked")
-        Map<String, Object> map = (Map<String, Object>) ois.readObject();
-
+      byte[] values = blob.getBytes();
+      try {
         // TODO: avoid this data copy
-        session.putAllAttributes(map);
+        session.putAllAttributes(deserializeAttributes(values));
       } catch (Exception ex) {
         throw new UnreadableSessionDataException(id, _context, ex);
       }
+      session.setPersisted(values);
       return session;
     }
+
+    /**
+     * Deserializes the attributes of a session, whether they were stored in the compact encoding
+     * of {@link SessionDataCodec} or with Java serialization.
+     */
+    private static Map<String, Object> deserializeAttributes(byte[] values) throws Exception {
+      if (SessionDataCodec.isEncoded(values)) {
+        return SessionDataCodec.decodeAttributes(values);
+      }
+      try (ClassLoadingObjectInputStream ois =
+          new ClassLoadingObjectInputStream(new ByteArrayInputStream(values))) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) ois.readObject();
+        return map;
+      }
+    }
   }
 }
@@ -17,6 +17,7 @@
 package com.google.apphosting.runtime.jetty9;
 
 import com.google.apphosting.runtime.MemcacheSessionStore;
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicReference;
 import org.eclipse.jetty.server.session.SessionContext;
 import org.eclipse.jetty.server.session.SessionData;
@@ -118,19 +119,21 @@ public class MemcacheSessionDataMap extends AbstractLifeCycle implements Session
   }
 
   /**
-   * Convert an appengine SessionData object into a Jetty SessionData object.
+   * Convert an appengine SessionData object into a Jetty SessionData object. The attributes are
+   * serialized again as they are stored in datastore, so that the session is not saved again unless
+   * they change.
    *
    * @param id the session id
    * @param runtimeSession SessionData
    * @return a Jetty SessionData
    */
   SessionData appEngineToJettySessionData(
-      String id, com.google.apphosting.runtime.SessionData runtimeSession) {
+      String id, com.google.apphosting.runtime.SessionData runtimeSession) throws IOException {
     // Keep this System.currentTimeMillis API, and do not use the close source suggested one.
     @SuppressWarnings("NowMillis")
     long now = System.currentTimeMillis();
     long maxInactiveMs = 1000L * this.context.getSessionHandler().getMaxInactiveInterval();
-    SessionData jettySession =
+    AppEngineSessionData jettySession =
         new AppEngineSessionData(
             id,
             this.context.getCanonicalContextPath(),
@@ -142,6 +145,7 @@ public class MemcacheSessionDataMap extends AbstractLifeCycle implements Session
     jettySession.setExpiry(runtimeSession.getExpirationTime());
     // TODO: avoid this data copy
     jettySession.putAllAttributes(runtimeSession.getValueMap());
+    jettySession.setPersisted(jettySession.getSerializedAttributes());
     return jettySession;
   }
 
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty9;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jetty.server.session.SessionContext;
+import org.eclipse.jetty.server.session.SessionData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests of the sessions saved or skipped by {@link DatastoreSessionStore.SessionDataStoreImpl}. */
+@RunWith(JUnit4.class)
+public class DatastoreSessionStoreTest {
+  private static final long MAX_INACTIVE_MS = 3_600_000;
+
+  private final List<String> stored = new ArrayList<>();
+  private volatile boolean failStores;
+  private DatastoreSessionStore.SessionDataStoreImpl store;
+
+  @Before
+  public void setUp() throws Exception {
+    // Records the sessions stored rather than writing them to datastore.
+    store =
+        new DatastoreSessionStore.SessionDataStoreImpl(0) {
+          @Override
+          public void doStore(String id, SessionData data, long lastSaveTime) throws IOException {
+            if (failStores) {
+              throw new IOException("datastore unavailable");
+            }
+            stored.add(id);
+          }
+        };
+    store.initialize(new SessionContext("worker", null));
+    store.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    store.stop();
+  }
+
+  private static AppEngineSessionData newSession(String id) {
+    AppEngineSessionData data =
+        new AppEngineSessionData(id, "", "0.0.0.0", 1000, 1000, 1000, MAX_INACTIVE_MS);
+    data.setAttribute("user", "alice");
+    return data;
+  }
+
+  @Test
+  public void store_writesNewSession() throws Exception {
+    AppEngineSessionData data = newSession("new");
+    store.store("new", data);
+
+    assertThat(stored).containsExactly("new");
+    assertThat(store.getWrittenSaveCount()).isEqualTo(1);
+    assertThat(store.getSkippedSaveCount()).isEqualTo(0);
+    assertThat(data.needsSave()).isFalse();
+  }
+
+  @Test
+  public void store_skipsUnchangedSession() throws Exception {
+    AppEngineSessionData data = newSession("s");
+    store.store("s", data);
+    data.setDirty(true);
+    data.setExpiry(data.getExpiry() + 1000);
+    store.store("s", data);
+
+    assertThat(stored).containsExactly("s");
+    assertThat(data.isDirty()).isFalse();
+    assertThat(store.getWrittenSaveCount()).isEqualTo(1);
+    assertThat(store.getSkippedSaveCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void store_skipsUnchangedLoadedSession() throws Exception {
+    AppEngineSessionData data = newSession("loaded");
+    data.setPersisted(data.getSerializedAttributes());
+    data.setLastSaved(1000);
+    data.setDirty(true);
+    store.store("loaded", data);
+
+    assertThat(stored).isEmpty();
+    assertThat(store.getWrittenSaveCount()).isEqualTo(0);
+    assertThat(store.getSkippedSaveCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void store_writesDirtySession() throws Exception {
+    AppEngineSessionData data = newSession("s");
+    store.store("s", data);
+    data.setAttribute("user", "bob");
+    store.store("s", data);
+
+    assertThat(stored).containsExactly("s", "s");
+    assertThat(store.getWrittenSaveCount()).isEqualTo(2);
+    assertThat(store.getSkippedSaveCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void store_countsSavesWithinTheSameMillisecond() throws Exception {
+    AppEngineSessionData data = newSession("s");
+    // Most of these saves fall within the same millisecond as the one before.
+    for (int i = 0; i < 100; i++) {
+      data.setAttribute("user", "user" + i);
+      store.store("s", data);
+    }
+
+    assertThat(stored).hasSize(100);
+    assertThat(store.getWrittenSaveCount()).isEqualTo(100);
+    assertThat(data.needsSave()).isFalse();
+  }
+
+  @Test
+  public void store_writesSessionWhoseExpiryAdvancedByMoreThanTheGranularity() throws Exception {
+    AppEngineSessionData data = newSession("s");
+    store.store("s", data);
+    long granularity = AppEngineSessionData.getAccessWriteGranularityMs(MAX_INACTIVE_MS);
+
+    data.setExpiry(data.getExpiry() + granularity);
+    data.setMetaDataDirty(true);
+    store.store("s", data);
+    assertThat(store.getSkippedSaveCount()).isEqualTo(1);
+
+    data.setExpiry(data.getExpiry() + 1);
+    data.setMetaDataDirty(true);
+    store.store("s", data);
+    assertThat(stored).containsExactly("s", "s");
+    assertThat(store.getWrittenSaveCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void store_failedWriteIsNotCountedAndIsRetried() throws Exception {
+    AppEngineSessionData data = newSession("s");
+    failStores = true;
+    assertThrows(IOException.class, () -> store.store("s", data));
+    assertThat(store.getWrittenSaveCount()).isEqualTo(0);
+    assertThat(store.getSkippedSaveCount()).isEqualTo(0);
+
+    failStores = false;
+    store.store("s", data);
+    assertThat(stored).containsExactly("s");
+    assertThat(store.getWrittenSaveCount()).isEqualTo(1);
+  }
+}